@@ -0,0 +1,73 @@
+package com.avalok.ib.handler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.bitex.util.JsonWriter;
+import com.ib.client.Types.DeepSide;
+
+/**
+ * A full_odbk_channel snapshot encoded to the bytes published on Redis:
+ * fastjson on {p, s} JSONObject levels as before, OrderBook.writeJSON() on a reused
+ * JsonWriter, and BinaryMarketData.book().
+ * Run with -prof gc, every variant allocates its result.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MarketDataEncodingBenchmark {
+	@Param({ "5", "30" })
+	public int levels;
+
+	private OrderBook _book;
+	private final JsonWriter _json = new JsonWriter();
+	private final JSONArray _snapshot = new JSONArray();
+	private long _ts = 1792301485717L;
+
+	@Setup
+	public void setup() {
+		_book = new OrderBook(levels);
+		List<JSONObject> bids = new ArrayList<>(), asks = new ArrayList<>();
+		for (int i = 0; i < levels; i++) {
+			_book.insert(DeepSide.BUY, i, (18749 - i) / 100.0, 100 * (i + 1));
+			_book.insert(DeepSide.SELL, i, (18751 + i) / 100.0, 100 * (i + 2));
+			bids.add(level(_book.bidPrice(i), _book.bidSize(i)));
+			asks.add(level(_book.askPrice(i), _book.askSize(i)));
+		}
+		_snapshot.add(bids);
+		_snapshot.add(asks);
+		_snapshot.add(0L);
+	}
+
+	private static JSONObject level(double p, double s) {
+		JSONObject o = new JSONObject();
+		o.put("p", p);
+		o.put("s", s);
+		return o;
+	}
+
+	@Benchmark
+	public byte[] fastjson() {
+		_snapshot.set(2, ++_ts);
+		return JSON.toJSONString(_snapshot).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public byte[] jsonWriter() {
+		return _book.writeJSON(_json.reset(), ++_ts).toBytes();
+	}
+
+	@Benchmark
+	public byte[] binary() {
+		return BinaryMarketData.book(265598, ++_ts, _ts, _book);
+	}
+}
@@ -0,0 +1,135 @@
+package com.avalok.ib.handler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.alibaba.fastjson.JSONObject;
+import com.ib.client.DefaultEWrapper;
+import com.ib.client.DepthFrames;
+import com.ib.client.EWireRecorder;
+import com.ib.client.Types.DeepSide;
+import com.ib.client.Types.DeepType;
+
+/**
+ * One depth update per operation applied to OrderBook, against the List of {p, s}
+ * JSONObject levels DeepMktDataHandler kept before.
+ * The stream is the depth updates of one request in DepthFrames, decoded once at setup,
+ * so -p recording=<file.wire|dir> replays a TWS_API_RECORD_DIR recording.
+ * Run with -prof gc for the allocation per update.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class OrderBookBenchmark {
+	private static final int MAX_DEPTH = 30; // DeepMktDataHandler.max_depth
+	private static final double MULTIPLIER = 1, MD_SIZE_MULTIPLIER = 100;
+
+	@Param("")
+	public String recording;
+
+	private int[] _pos, _op, _side, _size;
+	private double[] _price;
+	private int _n = 0, _next = 0;
+
+	private OrderBook _book;
+	private List<JSONObject> _bids, _asks;
+
+	@Setup
+	public void setup() throws IOException {
+		DepthFrames f = DepthFrames.load(recording);
+		int cap = f.frames.length;
+		_pos = new int[cap];
+		_op = new int[cap];
+		_side = new int[cap];
+		_size = new int[cap];
+		_price = new double[cap];
+		EWireRecorder.Decoder decoder = new EWireRecorder.Decoder(f.serverVersion, new DefaultEWrapper() {
+			int reqId = -1;
+
+			@Override
+			public void updateMktDepth(int tickerId, int position, int operation, int side, double price, int size) {
+				if (reqId == -1) reqId = tickerId;
+				if (tickerId != reqId) return;
+				_pos[_n] = position;
+				_op[_n] = operation;
+				_side[_n] = side;
+				_price[_n] = price;
+				_size[_n++] = size;
+			}
+
+			@Override
+			public void updateMktDepthL2(int tickerId, int position, String marketMaker, int operation, int side,
+					double price, int size, boolean isSmartDepth) {
+				updateMktDepth(tickerId, position, operation, side, price, size);
+			}
+		});
+		for (byte[] frame : f.frames)
+			decoder.process(ByteBuffer.wrap(frame));
+		if (_n == 0)
+			throw new IOException("No depth updates in " + recording);
+		_book = new OrderBook(MAX_DEPTH);
+		_bids = new ArrayList<>();
+		_asks = new ArrayList<>();
+	}
+
+	// The stream starts from an empty book
+	private void reset() {
+		_next = 0;
+		_book.clear();
+		_bids.clear();
+		_asks.clear();
+	}
+
+	private int next() {
+		if (_next == _n) reset();
+		return _next++;
+	}
+
+	@Benchmark
+	public long orderBook() {
+		int i = next();
+		if (_pos[i] >= MAX_DEPTH) return _book.seq();
+		DeepSide side = DeepSide.get(_side[i]);
+		double size = _size[i] * MULTIPLIER * MD_SIZE_MULTIPLIER;
+		switch (DeepType.get(_op[i])) {
+		case INSERT: _book.insert(side, _pos[i], _price[i], size); break;
+		case UPDATE: _book.update(side, _pos[i], _price[i], size); break;
+		case DELETE: _book.delete(side, _pos[i]); break;
+		}
+		return _book.seq();
+	}
+
+	// The former DeepMktDataHandler.updateMktDepth() book keeping
+	@Benchmark
+	public int legacy() {
+		int i = next();
+		int pos = _pos[i];
+		if (pos >= MAX_DEPTH) return 0;
+		DeepType operation = DeepType.get(_op[i]);
+		List<JSONObject> levels = DeepSide.get(_side[i]) == DeepSide.BUY ? _bids : _asks;
+		Double size = _size[i] * MULTIPLIER * MD_SIZE_MULTIPLIER;
+		JSONObject o;
+		if (operation == DeepType.INSERT) {
+			if (levels.size() < pos) return 0;
+			o = new JSONObject();
+			o.put("p", _price[i]);
+			o.put("s", size);
+			levels.add(pos, o);
+		} else if (operation == DeepType.UPDATE) {
+			if (levels.size() <= pos) return 0;
+			o = levels.get(pos);
+			o.put("p", _price[i]);
+			o.put("s", size);
+		} else {
+			if (levels.size() > pos) levels.remove(pos);
+		}
+		return levels.size();
+	}
+}
@@ -0,0 +1,118 @@
+package com.ib.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Inbound frame to EWrapper callback, one frame per operation, cycling through DepthFrames
+ * laid back to back in a slab as EReader reads them.
+ * legacy is the path before slab slices: a byte[] per frame, copied into the EMessage
+ * ByteArrayOutputStream, copied again by getStream(), then every field read into a
+ * StringBuilder and parsed. It does not dispatch to the wrapper, so it is the cheaper side.
+ * Run with -prof gc, -p recording=<file.wire|dir> replays a TWS_API_RECORD_DIR recording.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DecodeBenchmark {
+	@Param("")
+	public String recording;
+
+	private byte[] _slab;
+	private int[] _offsets, _lengths;
+	private int _next = 0;
+	private EDecoder _decoder;
+	private long _sink = 0;
+
+	// Keeps the decoded values alive
+	private class Sink extends DefaultEWrapper {
+		@Override
+		public void tickPrice(int tickerId, int field, double price, TickAttrib attribs) {
+			_sink += field + (long) price;
+		}
+
+		@Override
+		public void tickSize(int tickerId, int field, int size) {
+			_sink += size;
+		}
+
+		@Override
+		public void updateMktDepth(int tickerId, int position, int operation, int side, double price, int size) {
+			_sink += position + operation + side + (long) price + size;
+		}
+
+		@Override
+		public void updateMktDepthL2(int tickerId, int position, String marketMaker, int operation, int side,
+				double price, int size, boolean isSmartDepth) {
+			_sink += position + operation + side + (long) price + size;
+		}
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		DepthFrames f = DepthFrames.load(recording);
+		int n = f.frames.length, total = 0;
+		_offsets = new int[n];
+		_lengths = new int[n];
+		for (int i = 0; i < n; i++) {
+			_offsets[i] = total;
+			_lengths[i] = f.frames[i].length;
+			total += _lengths[i];
+		}
+		_slab = new byte[total];
+		for (int i = 0; i < n; i++)
+			System.arraycopy(f.frames[i], 0, _slab, _offsets[i], _lengths[i]);
+		_decoder = new EDecoder(f.serverVersion, new Sink());
+	}
+
+	private int next() {
+		int i = _next;
+		_next = i + 1 == _offsets.length ? 0 : i + 1;
+		return i;
+	}
+
+	@Benchmark
+	public long decode() throws IOException {
+		int i = next();
+		_decoder.processMsg(new EMessage(ByteBuffer.wrap(_slab, _offsets[i], _lengths[i])));
+		return _sink;
+	}
+
+	@Benchmark
+	public long legacy() throws IOException {
+		int i = next();
+		byte[] buf = new byte[_lengths[i]];
+		System.arraycopy(_slab, _offsets[i], buf, 0, buf.length);
+		ByteArrayOutputStream msg = new ByteArrayOutputStream();
+		msg.write(buf, 0, buf.length);
+		InputStream in = new ByteArrayInputStream(msg.toByteArray());
+		long h = 0;
+		for (String s = readStr(in); s != null; s = readStr(in))
+			h += s.indexOf('.') >= 0 ? (long) Double.parseDouble(s) : Integer.parseInt(s);
+		return h;
+	}
+
+	// The former PreV100MessageReader.readStr(), null at the end of the frame
+	private static String readStr(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (;;) {
+			int c = in.read();
+			if (c < 0) {
+				if (sb.length() == 0) return null;
+				throw new EOFException();
+			}
+			if (c == 0) break;
+			sb.append((char) c);
+		}
+		return sb.length() == 0 ? "0" : sb.toString();
+	}
+}
@@ -0,0 +1,122 @@
+package com.ib.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Inbound TICK_PRICE, TICK_SIZE and MARKET_DEPTH(_L2) frames for the benchmarks, as EReader
+ * hands them to EDecoder (no length prefix).
+ * Read from an EWireRecorder recording (a .wire file or a TWS_API_RECORD_DIR directory) when
+ * one is given. Otherwise a fixed stream is generated: a 10 level book built with inserts,
+ * then mostly size updates near the top with some insert/delete churn and a TICK_PRICE
+ * every few depth updates.
+ */
+public class DepthFrames {
+	public static final int GENERATED = 100_000;
+	public static final int DEPTH = 10;
+	// Message ids, as in EDecoder
+	static final int TICK_PRICE = 1, TICK_SIZE = 2, MARKET_DEPTH = 12, MARKET_DEPTH_L2 = 13;
+
+	public final int serverVersion;
+	public final byte[][] frames;
+
+	private DepthFrames(int serverVersion, byte[][] frames) {
+		this.serverVersion = serverVersion;
+		this.frames = frames;
+	}
+
+	/** @param recording file or directory of a wire recording, generated when empty */
+	public static DepthFrames load(String recording) throws IOException {
+		if (recording == null || recording.isEmpty())
+			return generate();
+		File f = new File(recording);
+		File[] files = f.isDirectory() ? f.listFiles((d, name) -> name.endsWith(EWireRecorder.SUFFIX)) : new File[] { f };
+		// Names are prefix-time-index, so name order is recording order
+		Arrays.sort(files);
+		List<byte[]> frames = new ArrayList<>();
+		int serverVersion = 0;
+		for (File file : files) {
+			EWireRecorder.Segment seg = new EWireRecorder.Segment(file);
+			while (seg.next()) {
+				if (seg.direction() != EWireRecorder.IN) continue;
+				int id = msgId(seg.payload());
+				if (id != TICK_PRICE && id != TICK_SIZE
+						&& id != MARKET_DEPTH && id != MARKET_DEPTH_L2)
+					continue;
+				byte[] b = new byte[seg.payload().remaining()];
+				seg.payload().duplicate().get(b);
+				frames.add(b);
+				serverVersion = seg.serverVersion();
+			}
+		}
+		if (frames.isEmpty())
+			throw new IOException("No market data frames in " + recording);
+		return new DepthFrames(serverVersion, frames.toArray(new byte[0][]));
+	}
+
+	private static int msgId(ByteBuffer b) {
+		int id = 0;
+		for (int i = b.position(); i < b.limit(); i++) {
+			byte c = b.get(i);
+			if (c == 0) return id;
+			if (c < '0' || c > '9') return -1;
+			id = id * 10 + (c - '0');
+		}
+		return -1;
+	}
+
+	private static DepthFrames generate() {
+		Random r = new Random(1);
+		List<byte[]> frames = new ArrayList<>();
+		int[] count = new int[2]; // By side, 0 ask 1 bid
+		for (int pos = 0; pos < DEPTH; pos++)
+			for (int side = 0; side < 2; side++) {
+				frames.add(depth(pos, 0, side, price(side, pos), 100 * (pos + 1)));
+				count[side]++;
+			}
+		while (frames.size() < GENERATED) {
+			if (frames.size() % 4 == 0) {
+				int side = r.nextInt(2);
+				frames.add(tickPrice(side == 1 ? 1 : 2, price(side, 0), 100 * (1 + r.nextInt(20))));
+				continue;
+			}
+			int side = r.nextInt(2), c = count[side];
+			int pos = Math.min(c, (int) (-Math.log(1 - r.nextDouble()) * 2)); // Mostly near the top
+			int op = r.nextInt(10) < 7 ? 1 : r.nextInt(2) == 0 ? 0 : 2;
+			if (c == 0) op = 0;
+			else if (op == 0 && c == DEPTH) op = 2;
+			if (op != 0 && pos == c) pos = c - 1;
+			frames.add(depth(pos, op, side, price(side, pos), 100 * (1 + r.nextInt(20))));
+			if (op == 0) count[side]++;
+			else if (op == 2) count[side]--;
+		}
+		return new DepthFrames(EClient.MAX_VERSION, frames.toArray(new byte[0][]));
+	}
+
+	private static double price(int side, int pos) {
+		return (side == 1 ? 18749 - pos : 18751 + pos) / 100.0;
+	}
+
+	// 12|1|reqId|position|operation|side|price|size
+	private static byte[] depth(int pos, int op, int side, double price, int size) {
+		return fields(MARKET_DEPTH, 1, 1, pos, op, side, price, size);
+	}
+
+	// 1|6|reqId|tickType|price|size|attrMask
+	private static byte[] tickPrice(int tickType, double price, int size) {
+		return fields(TICK_PRICE, 6, 2, tickType, price, size, 0);
+	}
+
+	private static byte[] fields(Object... fields) {
+		StringBuilder sb = new StringBuilder();
+		for (Object f : fields)
+			sb.append(f).append('\0');
+		return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,114 @@
+package com.ib.client;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.ib.client.Types.DeepSide;
+import com.ib.client.Types.DeepType;
+
+/**
+ * Enum lookups done for every tick, depth update and order status, against the
+ * values() scans they replaced.
+ * Run with -prof gc to see the values() clones of the scans.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EnumLookupBenchmark {
+	private static final int N = 64;
+
+	// What a top feed sends: bid/ask/last prices and sizes, volume, high/low/close, last timestamp, RT volume
+	private static final int[] FEED_TICKS = { 1, 2, 4, 0, 3, 5, 1, 2, 8, 4, 5, 1, 2, 45, 6, 7, 9, 48, 0, 3 };
+	// Statuses of one order's life, TWS sends them in this casing
+	private static final String[] FEED_STATUSES = { "PreSubmitted", "Submitted", "Submitted", "Filled", "Cancelled", "PendingCancel" };
+
+	private final int[] _ticks = new int[N], _depth = new int[N];
+	private final String[] _statuses = new String[N];
+
+	@Setup
+	public void setup() {
+		for (int i = 0; i < N; i++) {
+			_ticks[i] = FEED_TICKS[i % FEED_TICKS.length];
+			_statuses[i] = FEED_STATUSES[i % FEED_STATUSES.length];
+			_depth[i] = (i * 7) % 3;
+		}
+	}
+
+	////////////////////////////////////////////////////////////////
+	// TickType
+	////////////////////////////////////////////////////////////////
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public int tickType() {
+		int h = 0;
+		for (int t : _ticks)
+			h += TickType.get(t).ordinal();
+		return h;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public int tickTypeScan() {
+		int h = 0;
+		for (int t : _ticks)
+			h += scanTickType(t).ordinal();
+		return h;
+	}
+
+	private static TickType scanTickType(int ndx) {
+		for (TickType tt : TickType.values())
+			if (tt.index() == ndx) return tt;
+		return TickType.UNKNOWN;
+	}
+
+	////////////////////////////////////////////////////////////////
+	// OrderStatus
+	////////////////////////////////////////////////////////////////
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public int orderStatus() {
+		int h = 0;
+		for (String s : _statuses)
+			h += OrderStatus.get(s).ordinal();
+		return h;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public int orderStatusScan() {
+		int h = 0;
+		for (String s : _statuses)
+			h += scanOrderStatus(s).ordinal();
+		return h;
+	}
+
+	private static OrderStatus scanOrderStatus(String apiString) {
+		for (OrderStatus type : OrderStatus.values())
+			if (type.name().equalsIgnoreCase(apiString)) return type;
+		return OrderStatus.Unknown;
+	}
+
+	////////////////////////////////////////////////////////////////
+	// DeepType and DeepSide, one of each per depth update
+	////////////////////////////////////////////////////////////////
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public int deepTypeSide() {
+		int h = 0;
+		for (int d : _depth)
+			h += DeepType.get(d).ordinal() + DeepSide.get(d & 1).ordinal();
+		return h;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public int deepTypeSideScan() {
+		int h = 0;
+		for (int d : _depth)
+			h += Types.getEnum(d, DeepType.values()).ordinal() + Types.getEnum(d & 1, DeepSide.values()).ordinal();
+		return h;
+	}
+}
@@ -0,0 +1,127 @@
+package com.avalok.ib;
+
+import static com.bitex.util.DebugUtil.*;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.alibaba.fastjson.JSONObject;
+import com.bitex.util.LatencyHistogram;
+
+/**
+ * Commands run on bounded worker pools by class, so orders never wait behind a slow
+ * subscription or lookup:
+ * <ul>
+ * <li>ORDER: PLACE_ORDER, PLACE_ORDERS and REPLACE_ORDERS. One thread at max priority, orders
+ * keep their arrival order.</li>
+ * <li>CANCEL: CANCEL_ORDER, CANCEL_ORDERS, CANCEL_BY_CONTRACT and CANCEL_ALL. One thread at max
+ * priority, a cancel never waits for an order to be placed.</li>
+ * <li>DATA: market data subscriptions, RESET and UPDATE_ACCOUNT_MV. One thread, a SUB stays
+ * before its UNSUB.</li>
+ * <li>LOOKUP: contract, history, account and bar queries, CMD_LOOKUP_THREADS (ENV, default 2).</li>
+ * </ul>
+ * Each lane queues at most CMD_QUEUE_SIZE (ENV, default 1024) commands, more are rejected.
+ * Queue wait (receipt to start) and service time are kept per lane for the heartbeat.
+ */
+public class CommandLanes {
+	public enum Lane { ORDER, CANCEL, DATA, LOOKUP }
+
+	private static final int QUEUE_SIZE = Integer.parseInt(
+			System.getenv("CMD_QUEUE_SIZE") == null ? "1024" : System.getenv("CMD_QUEUE_SIZE"));
+	private static final int LOOKUP_THREADS = Integer.parseInt(
+			System.getenv("CMD_LOOKUP_THREADS") == null ? "2" : System.getenv("CMD_LOOKUP_THREADS"));
+
+	public static Lane laneOf(String cmd) {
+		switch (cmd == null ? "" : cmd) {
+		case "PLACE_ORDER":
+		case "PLACE_ORDERS":
+		case "REPLACE_ORDERS":
+			return Lane.ORDER;
+		case "CANCEL_ORDER":
+		case "CANCEL_ORDERS":
+		case "CANCEL_BY_CONTRACT":
+		case "CANCEL_ALL":
+			return Lane.CANCEL;
+		case "SUB_ODBK":
+		case "UNSUB_ODBK":
+		case "SUB_TOP":
+		case "UNSUB_TOP":
+		case "SUB_TBT":
+		case "UNSUB_TBT":
+		case "SUB_BAR":
+		case "UNSUB_BAR":
+		case "RESET":
+		case "UPDATE_ACCOUNT_MV":
+			return Lane.DATA;
+		default:
+			return Lane.LOOKUP;
+		}
+	}
+
+	private static class Pool {
+		final ThreadPoolExecutor executor;
+		final LatencyHistogram wait = new LatencyHistogram(), service = new LatencyHistogram();
+		final AtomicLong rejected = new AtomicLong();
+
+		Pool(Lane lane, int threads, int priority) {
+			String name = "Cmd-" + lane.name().toLowerCase() + "-";
+			AtomicInteger n = new AtomicInteger();
+			executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+						Thread t = new Thread(r, name + n.incrementAndGet());
+						t.setDaemon(true);
+						t.setPriority(priority);
+						return t;
+					});
+		}
+	}
+
+	private final Pool[] _pools = new Pool[Lane.values().length];
+
+	CommandLanes() {
+		_pools[Lane.ORDER.ordinal()] = new Pool(Lane.ORDER, 1, Thread.MAX_PRIORITY);
+		_pools[Lane.CANCEL.ordinal()] = new Pool(Lane.CANCEL, 1, Thread.MAX_PRIORITY);
+		_pools[Lane.DATA.ordinal()] = new Pool(Lane.DATA, 1, Thread.NORM_PRIORITY);
+		_pools[Lane.LOOKUP.ordinal()] = new Pool(Lane.LOOKUP, Math.max(1, LOOKUP_THREADS), Thread.NORM_PRIORITY);
+	}
+
+	/** Run task on its lane, recvNs is System.nanoTime() at receipt. False when the lane queue is full. */
+	public boolean submit(Lane lane, long recvNs, Runnable task) {
+		Pool p = _pools[lane.ordinal()];
+		try {
+			p.executor.execute(() -> {
+				long startNs = System.nanoTime();
+				p.wait.record(startNs - recvNs);
+				try {
+					task.run();
+				} catch (Exception e) {
+					err("Command lane " + lane + " error " + e);
+				}
+				p.service.record(System.nanoTime() - startNs);
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			p.rejected.incrementAndGet();
+			return false;
+		}
+	}
+
+	/** {order:{queue, rejected, waitUs, serviceUs}, cancel:{...}, data:{...}, lookup:{...}}, percentiles since the last call. */
+	public JSONObject stats() {
+		JSONObject j = new JSONObject();
+		for (Lane lane : Lane.values()) {
+			Pool p = _pools[lane.ordinal()];
+			JSONObject s = new JSONObject();
+			s.put("queue", p.executor.getQueue().size());
+			s.put("rejected", p.rejected.get());
+			s.put("waitUs", p.wait.snapshotAndReset());
+			s.put("serviceUs", p.service.snapshotAndReset());
+			j.put(lane.name().toLowerCase(), s);
+		}
+		return j;
+	}
+}
@@ -0,0 +1,424 @@
+package com.avalok.ib;
+
+import static com.bitex.util.DebugUtil.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.alibaba.fastjson.JSONObject;
+import com.bitex.util.Redis;
+import com.ib.client.DepthMktDataDescription;
+import com.ib.controller.ApiController.IMktDepthExchangesHandler;
+
+/**
+ * Shares the few market depth lines IB allows (error 309 past the limit) among any number
+ * of SUB_ODBK subscriptions. Subscriptions are ranked by priority, then by arrival:
+ * <ul>
+ * <li>stream: the first ones hold a real L2 stream for as long as they are subscribed.</li>
+ * <li>rotate: the rest take turns on ODBK_ROTATE_SLOTS lines, weight * ODBK_ROTATE_MS each,
+ * every turn starts a fresh book with a reset delta.</li>
+ * <li>top: exchanges without depth, or no line left to rotate on.</li>
+ * </ul>
+ * Between turns, and in top mode, a top of book subscription keeps full_odbk_channel fed
+ * by TopMktDataHandler, which publishes there whenever depth has been idle for a second.
+ *
+ * Freshness of each subscription is written to key and channel URANUS:{exchange}:{pair}:odbk_source
+ * as {"mode":"stream|rotate|top", "depth":L2 live now, "t":timestamp} whenever it changes,
+ * book messages keep their format.
+ *
+ * The depth line limit is ODBK_MAX_DEPTH (default 3), lowered to what was actually live
+ * when IB answers 309. It is raised by one line again every ODBK_PROBE_MS (ENV, default
+ * 300000) without a 309, and back to ODBK_MAX_DEPTH on restart. reqMktDepthExchanges()
+ * tells which exchanges offer depth at all, not how many lines the account has.
+ *
+ * Decisions are made under this lock, the subscriptions they call for are queued and made
+ * without it on the DATA command lane, in order: handlers wait for contract details and
+ * API tokens there, not holding up the scheduler.
+ */
+public class DepthScheduler implements IMktDepthExchangesHandler {
+	public enum Mode { STREAM, ROTATE, TOP }
+
+	private static final int MAX_DEPTH = envInt("ODBK_MAX_DEPTH", 3);
+	private static final int ROTATE_SLOTS = envInt("ODBK_ROTATE_SLOTS", 1);
+	private static final long ROTATE_MS = envInt("ODBK_ROTATE_MS", 5000);
+	private static final long PROBE_MS = envInt("ODBK_PROBE_MS", 300000);
+	private static final long TICK_MS = 250;
+
+	public class Request {
+		public final IBContract contract;
+		public final String key;
+		public final boolean full, delta, binary;
+		public final long conflateMs;
+		public final int priority, weight;
+		private final long _arrival;
+		private final String _sourceKey;
+		private Mode _mode = null;
+		private boolean _live = false; // L2 stream subscribed, or queued to be
+		private boolean _ownsTop = false; // Holds the top subscription, or is queued to
+		private long _turnEndMs = 0;
+		private int _reqId = 0; // Of the last depth request
+		private int _depthSeq = 0; // Depth requests queued, a stale result is ignored
+
+		private Request(IBContract contract, String key, boolean full, boolean delta, boolean binary, long conflateMs,
+				int priority, int weight, long arrival) {
+			this.contract = contract;
+			this.key = key;
+			this.full = full;
+			this.delta = delta;
+			this.binary = binary;
+			this.conflateMs = conflateMs;
+			this.priority = priority;
+			this.weight = Math.max(1, weight);
+			_arrival = arrival;
+			_sourceKey = "URANUS:" + contract.exchange() + ":" + contract.pair() + ":odbk_source";
+		}
+
+		public Mode mode() { return _mode; }
+		public boolean live() { return _live; }
+		public int reqId() { return _reqId; }
+	}
+
+	private final GatewayController _gw;
+	private final Map<String, Request> _requests = new LinkedHashMap<>(); // Guarded by this
+	private final ArrayDeque<Request> _rotation = new ArrayDeque<>(); // Waiting for a turn
+	private final List<Request> _turns = new ArrayList<>(); // Live rotating requests
+	private int _limit = MAX_DEPTH;
+	private long _limitMs = 0; // When _limit was last lowered or probed
+	private long _arrivals = 0, _rejected = 0, _turnCount = 0;
+	private volatile Set<String> _depthExchanges = null; // "EXCHANGE/SECTYPE", null until known
+	// From the TWS message thread, which must not wait for this lock: a depth request holding
+	// it may be waiting for contract details that thread has yet to deliver.
+	private final ConcurrentLinkedQueue<String> _rejections = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<String> _resubscriptions = new ConcurrentLinkedQueue<>();
+	private volatile boolean _rebalanceDue = false, _restartDue = false;
+	private volatile JSONObject _stats = new JSONObject(); // Read by the heartbeat without the lock
+	// Subscription changes in the order decided, run on the DATA lane without the lock.
+	private final ConcurrentLinkedQueue<Runnable> _actions = new ConcurrentLinkedQueue<>();
+
+	DepthScheduler(GatewayController gw) {
+		_gw = gw;
+		new Timer("DepthScheduler", true).scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					tick();
+				} catch (Exception e) {
+					err("DepthScheduler error " + e);
+				}
+				if (!_actions.isEmpty() && !_gw.onDataLane(DepthScheduler.this::runActions))
+					warn("Data lane full, depth subscriptions wait for the next tick");
+			}
+		}, TICK_MS, TICK_MS);
+	}
+
+	/** Add a subscription, returns it or null when the contract is subscribed already. On the DATA lane. */
+	public Request add(IBContract contract, boolean full, boolean delta, boolean binary, long conflateMs,
+			int priority, int weight) {
+		String key = contract.exchange() + "/" + contract.shownName();
+		Request r;
+		synchronized (this) {
+			if (_requests.containsKey(key)) {
+				err("Task dulicated, skip subscribing depth data " + key);
+				return null;
+			}
+			r = new Request(contract, key, full, delta, binary, conflateMs, priority, weight, _arrivals++);
+			_requests.put(key, r);
+			rebalance();
+		}
+		runActions();
+		return r;
+	}
+
+	/** Remove a subscription, false when there is none. On the DATA lane. */
+	public boolean remove(IBContract contract) {
+		synchronized (this) {
+			Request r = _requests.remove(contract.exchange() + "/" + contract.shownName());
+			if (r == null)
+				return false;
+			stopDepth(r);
+			releaseTop(r);
+			_rotation.remove(r);
+			rebalance();
+		}
+		runActions();
+		return true;
+	}
+
+	// Subscription changes queued so far, on the DATA lane only so they keep their order.
+	private void runActions() {
+		Runnable a;
+		while ((a = _actions.poll()) != null) {
+			try {
+				a.run();
+			} catch (Exception e) {
+				err("DepthScheduler subscription error " + e);
+			}
+		}
+	}
+
+	/** TWS answered 309 to the depth request of key, handled on the timer thread. */
+	public void rejected(String key) {
+		_rejections.add(key);
+	}
+
+	/** After (re)connecting: TWS forgot every stream, start over on the timer thread. */
+	public void restart() {
+		_restartDue = true;
+	}
+
+	/** The depth stream of key went stale or was reset by TWS, request it again on the timer thread. */
+	public void resubscribe(String key) {
+		_resubscriptions.add(key);
+	}
+
+	// Under this lock, from tick().
+	private void doRestart() {
+		for (Request r : _requests.values())
+			stopDepth(r);
+		// Turns that were cut short wait behind the others, frequent restarts still rotate.
+		for (Request r : _turns) {
+			publishSource(r);
+			_rotation.addLast(r);
+		}
+		_turns.clear();
+		if (_limit != MAX_DEPTH)
+			info("Depth lines limit back to " + MAX_DEPTH + " from " + _limit);
+		_limit = MAX_DEPTH; // A new session, maybe with more lines
+		_limitMs = 0;
+		_actions.add(() -> _gw.queryDepthExchanges(this));
+		rebalance();
+	}
+
+	@Override
+	public void mktDepthExchanges(DepthMktDataDescription[] descriptions) {
+		Set<String> exchanges = new HashSet<>();
+		for (DepthMktDataDescription d : descriptions)
+			exchanges.add(d.exchange() + "/" + d.secType());
+		info("Market depth offered at " + exchanges.size() + " exchanges");
+		_depthExchanges = exchanges;
+		_rebalanceDue = true;
+	}
+
+	/** {limit, stream, rotate, top, rejected, turns} as of the last scheduling pass. */
+	public JSONObject stats() {
+		return _stats;
+	}
+
+	private void updateStats() {
+		int[] modes = new int[Mode.values().length];
+		for (Request r : _requests.values())
+			if (r._mode != null) modes[r._mode.ordinal()]++;
+		JSONObject j = new JSONObject();
+		j.put("limit", _limit);
+		j.put("stream", modes[Mode.STREAM.ordinal()]);
+		j.put("rotate", modes[Mode.ROTATE.ordinal()]);
+		j.put("top", modes[Mode.TOP.ordinal()]);
+		j.put("rejected", _rejected);
+		j.put("turns", _turnCount);
+		_stats = j;
+	}
+
+	////////////////////////////////////////////////////////////////
+	// Scheduling, everything below runs under this lock.
+	////////////////////////////////////////////////////////////////
+	private synchronized void tick() {
+		String key;
+		while ((key = _rejections.poll()) != null)
+			reject(key);
+		while ((key = _resubscriptions.poll()) != null) {
+			Request r = _requests.get(key);
+			if (r == null || !r._live) continue; // Its turn ended meanwhile
+			stopDepth(r);
+			startDepth(r);
+		}
+		if (_restartDue) {
+			_restartDue = false;
+			doRestart();
+		} else if (_rebalanceDue) {
+			_rebalanceDue = false;
+			rebalance();
+		} else if (_limit < MAX_DEPTH && System.currentTimeMillis() - _limitMs >= PROBE_MS && wantsMoreLines()) {
+			_limit++;
+			_limitMs = System.currentTimeMillis();
+			info("Depth lines limit probed up to " + _limit + ", no 309 for " + PROBE_MS + "ms");
+			rebalance();
+		} else {
+			rotate();
+		}
+	}
+
+	// Some subscription would get a line it has not now.
+	private boolean wantsMoreLines() {
+		for (Request r : _requests.values())
+			if (r._mode != Mode.STREAM && offersDepth(r.contract)) return true;
+		return false;
+	}
+
+	// Hold one line less than was live when the request was rejected.
+	private void reject(String key) {
+		Request r = _requests.get(key);
+		if (r == null || !r._live)
+			return;
+		r._live = false;
+		if (_turns.remove(r))
+			_rotation.addFirst(r); // Still its turn once a line is free
+		_rejected++;
+		int live = 0;
+		for (Request o : _requests.values())
+			if (o._live) live++;
+		if (live < _limit) {
+			warn("Depth lines limited to " + live + " instead of " + _limit + ", rejected " + key);
+			_limit = live;
+		}
+		_limitMs = System.currentTimeMillis();
+		_rebalanceDue = true;
+	}
+
+	// An empty answer (or none yet) tells nothing, SMART routes to wherever depth is.
+	private boolean offersDepth(IBContract c) {
+		Set<String> exchanges = _depthExchanges;
+		if (exchanges == null || exchanges.isEmpty() || "SMART".equals(c.exchange()))
+			return true;
+		return exchanges.contains(c.exchange() + "/" + c.getSecType());
+	}
+
+	// Assign modes by rank, then make subscriptions match them.
+	private void rebalance() {
+		List<Request> ranked = new ArrayList<>();
+		for (Request r : _requests.values())
+			if (offersDepth(r.contract)) ranked.add(r);
+		ranked.sort((a, b) -> a.priority != b.priority ? Integer.compare(b.priority, a.priority) : Long.compare(a._arrival, b._arrival));
+		int slots = Math.min(ROTATE_SLOTS, _limit);
+		int streams = ranked.size() <= _limit ? ranked.size() : _limit - slots;
+		for (Request r : _requests.values())
+			if (!offersDepth(r.contract)) setMode(r, Mode.TOP);
+		for (int i = 0; i < ranked.size(); i++)
+			setMode(ranked.get(i), i < streams ? Mode.STREAM : slots > 0 ? Mode.ROTATE : Mode.TOP);
+
+		// Streams first, they may take the lines of rotating turns that were cut short.
+		for (Request r : _requests.values()) {
+			if (r._mode != Mode.STREAM) continue;
+			if (_turns.remove(r)) publishSource(r); // Turn became a stream, keep it live
+			if (!r._live) startDepth(r);
+		}
+		rotate();
+	}
+
+	private void setMode(Request r, Mode mode) {
+		if (r._mode == mode)
+			return;
+		info("Depth " + r.key + " " + r._mode + " -> " + mode);
+		if (mode != Mode.STREAM && r._live && !_turns.contains(r))
+			stopDepth(r);
+		if (mode != Mode.ROTATE) {
+			_rotation.remove(r);
+			if (mode == Mode.TOP && _turns.remove(r))
+				stopDepth(r);
+		} else if (!_turns.contains(r) && !_rotation.contains(r)) {
+			_rotation.addLast(r);
+		}
+		if (mode == Mode.STREAM)
+			releaseTop(r);
+		else
+			ensureTop(r);
+		r._mode = mode;
+		publishSource(r);
+	}
+
+	// End turns that are over, hand free lines to the next ones waiting.
+	private void rotate() {
+		long now = System.currentTimeMillis();
+		int slots = Math.min(ROTATE_SLOTS, _limit);
+		for (int i = _turns.size() - 1; i >= 0; i--) {
+			Request r = _turns.get(i);
+			if (r._turnEndMs > now && _turns.size() <= slots)
+				continue;
+			// Turn is over, or lines shrank. Queue it again when someone else is waiting.
+			if (_turns.size() <= slots && _rotation.isEmpty()) {
+				r._turnEndMs = now + ROTATE_MS * r.weight;
+				continue;
+			}
+			_turns.remove(i);
+			stopDepth(r);
+			publishSource(r);
+			if (r._mode == Mode.ROTATE)
+				_rotation.addLast(r);
+		}
+		int live = 0;
+		for (Request r : _requests.values())
+			if (r._live) live++;
+		while (_turns.size() < slots && live < _limit && !_rotation.isEmpty()) {
+			Request r = _rotation.pollFirst();
+			if (r._mode != Mode.ROTATE) continue;
+			r._turnEndMs = now + ROTATE_MS * r.weight;
+			_turns.add(r);
+			_turnCount++;
+			startDepth(r);
+			publishSource(r);
+			live++;
+		}
+		updateStats();
+	}
+
+	// Live from now on, until the request turns out to have failed.
+	private void startDepth(Request r) {
+		if (r._live) return;
+		r._live = true;
+		int seq = ++r._depthSeq;
+		_actions.add(() -> {
+			int reqId = _gw.startDepthStream(r);
+			synchronized (this) {
+				if (r._depthSeq != seq) return; // Stopped meanwhile
+				r._reqId = reqId;
+				if (reqId <= 0 && r._live) {
+					r._live = false;
+					_rebalanceDue = true;
+				}
+			}
+		});
+	}
+
+	private void stopDepth(Request r) {
+		if (!r._live) return;
+		r._live = false;
+		r._depthSeq++;
+		_actions.add(() -> _gw.stopDepthStream(r));
+	}
+
+	// The top subscription is shared with SUB_TOP and tick by tick fallbacks of the contract,
+	// it stays while any of them holds it.
+	private void ensureTop(Request r) {
+		if (r._ownsTop) return;
+		r._ownsTop = true;
+		_actions.add(() -> _gw.startTopFallback(r));
+	}
+
+	private void releaseTop(Request r) {
+		if (!r._ownsTop) return;
+		r._ownsTop = false;
+		_actions.add(() -> _gw.stopTopFallback(r));
+	}
+
+	private void publishSource(Request r) {
+		if (r._mode == null) return;
+		JSONObject j = new JSONObject();
+		j.put("mode", r._mode.name().toLowerCase());
+		j.put("depth", r._live);
+		j.put("t", System.currentTimeMillis());
+		Redis.set(r._sourceKey, j);
+		Redis.pub(r._sourceKey, j);
+	}
+
+	private static int envInt(String name, int defaultValue) {
+		String v = System.getenv(name);
+		return v == null ? defaultValue : Integer.parseInt(v);
+	}
+}
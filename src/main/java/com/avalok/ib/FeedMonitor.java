@@ -0,0 +1,255 @@
+package com.avalok.ib;
+
+import static com.bitex.util.DebugUtil.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.alibaba.fastjson.JSONObject;
+import com.avalok.ib.handler.ContractDetailsHandler;
+import com.avalok.ib.handler.FeedHealth;
+import com.bitex.util.Redis;
+
+/**
+ * Watches every market data subscription for silence and gaps, and resubscribes only the
+ * feeds that went stale instead of restarting everything on a farm message.
+ *
+ * Every second it samples the FeedHealth of the subscriptions GatewayController holds:
+ * <ul>
+ * <li>rate: updates per second, smoothed over about 10 seconds.</li>
+ * <li>stale: silent for FEED_STALE_MS (ENV, default 30000) and for 10 times its usual
+ * interval between updates, so quiet contracts are left alone. A feed that never updated
+ * is stale after FEED_STALE_MS.</li>
+ * <li>gaps: depth updates at a position the book does not have, and 317 depth resets.</li>
+ * </ul>
+ * A stale feed is resubscribed, then again after 1, 2, 4 ... up to 64 times FEED_STALE_MS
+ * while it stays silent, FEED_MAX_RESUBS (ENV, default 6) times at most: a feed with no
+ * update since is given up on until its next session or update.
+ *
+ * Feeds are only watched while their contract trades, by the tradingHours of its contract
+ * details: outside a session nothing is stale, and silence is counted from the start of
+ * the session. Contracts without known details are watched all the time.
+ *
+ * When a market data farm is back (2104, or 2108 for an inactive
+ * one) feeds silent since it went away are resubscribed FARM_GRACE_MS later whatever
+ * their usual interval. Broken farms (2103) are kept by name. Feeds are not mapped to farms,
+ * so while any farm is broken nothing is resubscribed, TWS restores its streams itself, but
+ * for FEED_FARM_HOLD_MS (ENV, default 120000) at most: a farm never reported back does not
+ * hold resubscriptions forever.
+ *
+ * The health map is written every second to key IBGateway:{name}:feeds as
+ * {"t":timestamp, "feeds":{"top:SMART/USD-AAPL":{"age","rate","gaps","stale","resubs","closed","gaveUp"}}},
+ * "age" in ms since the last update, -1 for none yet, "closed" outside trading hours,
+ * "gaveUp" after FEED_MAX_RESUBS tries. Totals go to the heartbeat.
+ */
+public class FeedMonitor {
+	public enum Kind { TOP, TBT, DEPTH, BAR }
+
+	/** A market data subscription as GatewayController holds it now. */
+	public static class Feed {
+		public final Kind kind;
+		public final String key; // Job key of the subscription
+		public final IBContract contract;
+		public final FeedHealth health;
+
+		public Feed(Kind kind, String key, IBContract contract, FeedHealth health) {
+			this.kind = kind;
+			this.key = key;
+			this.contract = contract;
+			this.health = health;
+		}
+	}
+
+	private static final long STALE_MS = Long.parseLong(
+			System.getenv("FEED_STALE_MS") == null ? "30000" : System.getenv("FEED_STALE_MS"));
+	private static final long FARM_GRACE_MS = 5000;
+	private static final long FARM_HOLD_MS = Long.parseLong(
+			System.getenv("FEED_FARM_HOLD_MS") == null ? "120000" : System.getenv("FEED_FARM_HOLD_MS"));
+	private static final int MAX_RESUBS = Integer.parseInt(
+			System.getenv("FEED_MAX_RESUBS") == null ? "6" : System.getenv("FEED_MAX_RESUBS"));
+	private static final long HOURS_REFRESH_MS = 3_600_000; // Details are looked up again
+	private static final int STALE_INTERVALS = 10;
+	private static final int MAX_BACKOFF = 64;
+	private static final long TICK_MS = 1000;
+	private static final double RATE_ALPHA = 0.1;
+
+	// History of one feed id, kept across resubscriptions, timer thread only.
+	private static class State {
+		FeedHealth health;
+		long lastUpdates = 0, lastMs = 0, gapsBefore = 0; // Of previous handlers
+		double rate = 0, intervalMs = 0; // Smoothed updates/s and interval between updates
+		boolean stale = false;
+		long resubs = 0, nextResubMs = 0;
+		int backoff = 1, tries = 0; // Resubscriptions since the last update or session start
+		TradingHours hours;
+		long hoursMs = 0, sessionMs = TradingHours.UNKNOWN;
+
+		long gaps() { return gapsBefore + health.gaps(); }
+	}
+
+	private final GatewayController _gw;
+	private final String _healthKey;
+	private final Map<String, State> _states = new HashMap<>();
+	private long _resubscribed = 0;
+	// From the TWS message thread
+	private final ConcurrentHashMap<String, Long> _brokenFarms = new ConcurrentHashMap<>(); // Since ms
+	private volatile long _farmDownMs = 0, _farmCheckMs = 0;
+	private volatile JSONObject _stats = new JSONObject(); // Read by the heartbeat
+
+	FeedMonitor(GatewayController gw, String healthKey) {
+		_gw = gw;
+		_healthKey = healthKey;
+		new Timer("FeedMonitor", true).scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					tick();
+				} catch (Exception e) {
+					err("FeedMonitor error " + e);
+				}
+			}
+		}, TICK_MS, TICK_MS);
+	}
+
+	/** 2103: market data farm is broken, hold resubscriptions until it is back or FARM_HOLD_MS. */
+	public void farmBroken(String farm) {
+		_brokenFarms.putIfAbsent(farm, System.currentTimeMillis());
+	}
+
+	/** 2104/2108: check feeds that went silent since the farm went away, after a grace period. */
+	public void farmRestored(String farm) {
+		long now = System.currentTimeMillis();
+		Long since = _brokenFarms.remove(farm);
+		long downMs = since == null ? now : since;
+		if (_farmDownMs == 0 || downMs < _farmDownMs)
+			_farmDownMs = downMs;
+		_farmCheckMs = now + FARM_GRACE_MS;
+	}
+
+	// A farm broken for less than FARM_HOLD_MS.
+	private boolean farmHold(long now) {
+		for (long since : _brokenFarms.values())
+			if (now - since < FARM_HOLD_MS) return true;
+		return false;
+	}
+
+	/** {feeds, stale, closed, gaveUp, gaps, resubscribed, farm, brokenFarms, held} as of the last pass. */
+	public JSONObject stats() {
+		return _stats;
+	}
+
+	private void tick() {
+		long now = System.currentTimeMillis();
+		long farmDownMs = _farmDownMs, farmCheckMs = _farmCheckMs;
+		boolean farmCheck = farmCheckMs > 0 && now >= farmCheckMs;
+		boolean farmHold = farmHold(now);
+		List<Feed> feeds = _gw.feeds();
+		Set<String> ids = new HashSet<>();
+		JSONObject map = new JSONObject();
+		int stale = 0, closed = 0, gaveUp = 0;
+		long gaps = 0;
+		for (Feed f : feeds) {
+			String id = f.kind.name().toLowerCase() + ":" + f.key;
+			ids.add(id);
+			State s = _states.computeIfAbsent(id, k -> new State());
+			if (s.health != f.health) { // New subscription, or resubscribed
+				if (s.health != null)
+					s.gapsBefore += s.health.gaps();
+				s.health = f.health;
+				s.lastUpdates = 0;
+			}
+			long updates = f.health.updates(), lastMs = f.health.lastMs();
+			long n = updates - s.lastUpdates;
+			s.rate += RATE_ALPHA * (n * 1000.0 / TICK_MS - s.rate);
+			if (n > 0) {
+				if (s.lastMs > 0)
+					s.intervalMs += RATE_ALPHA * ((double) (lastMs - s.lastMs) / n - s.intervalMs);
+				s.lastMs = lastMs;
+				s.backoff = 1;
+				s.tries = 0;
+			}
+			s.lastUpdates = updates;
+
+			long session = sessionStart(f, s, now);
+			if (session != s.sessionMs) { // Opened or closed, try again from scratch
+				s.sessionMs = session;
+				s.backoff = 1;
+				s.tries = 0;
+				s.nextResubMs = 0;
+			}
+			long activeMs = Math.max(Math.max(lastMs, f.health.createdMs), session);
+			s.stale = session != TradingHours.CLOSED
+					&& now - activeMs > Math.max(STALE_MS, (long) (STALE_INTERVALS * s.intervalMs));
+			boolean silentSinceFarmDown = farmCheck && session != TradingHours.CLOSED && activeMs < farmDownMs;
+			boolean givenUp = s.tries >= MAX_RESUBS;
+			if ((s.stale || silentSinceFarmDown) && !farmHold && !givenUp && now >= s.nextResubMs)
+				resubscribe(id, f, s, now);
+
+			if (s.stale) stale++;
+			if (session == TradingHours.CLOSED) closed++;
+			if (givenUp) gaveUp++;
+			gaps += s.gaps();
+			JSONObject j = new JSONObject();
+			j.put("age", lastMs == 0 ? -1 : now - lastMs);
+			j.put("rate", Math.round(s.rate * 10) / 10.0);
+			j.put("gaps", s.gaps());
+			j.put("stale", s.stale);
+			j.put("resubs", s.resubs);
+			j.put("closed", session == TradingHours.CLOSED);
+			j.put("gaveUp", givenUp);
+			map.put(id, j);
+		}
+		_states.keySet().retainAll(ids);
+		if (farmCheck && _farmCheckMs == farmCheckMs) {
+			_farmCheckMs = 0;
+			_farmDownMs = 0;
+		}
+
+		JSONObject health = new JSONObject();
+		health.put("t", now);
+		health.put("feeds", map);
+		Redis.set(_healthKey, health);
+		JSONObject j = new JSONObject();
+		j.put("feeds", feeds.size());
+		j.put("stale", stale);
+		j.put("closed", closed);
+		j.put("gaveUp", gaveUp);
+		j.put("gaps", gaps);
+		j.put("resubscribed", _resubscribed);
+		List<String> broken = new ArrayList<>(_brokenFarms.keySet());
+		j.put("farm", broken.isEmpty() ? "ok" : "broken");
+		j.put("brokenFarms", broken);
+		j.put("held", farmHold); // Resubscriptions held for a broken farm
+		_stats = j;
+	}
+
+	// Session start of the feed's contract now, UNKNOWN without details.
+	private static long sessionStart(Feed f, State s, long now) {
+		if (f.contract == null)
+			return TradingHours.UNKNOWN;
+		if (now - s.hoursMs >= HOURS_REFRESH_MS || (s.hours == null && now - s.hoursMs >= STALE_MS)) {
+			s.hoursMs = now;
+			JSONObject details = ContractDetailsHandler.cachedDetails(f.contract);
+			if (details != null)
+				s.hours = TradingHours.parse(details.getString("tradingHours"), details.getString("timeZoneId"));
+		}
+		return s.hours == null ? TradingHours.UNKNOWN : s.hours.sessionStart(now);
+	}
+
+	private void resubscribe(String id, Feed f, State s, long now) {
+		warn("Feed " + id + " silent for " + (now - Math.max(f.health.lastMs(), f.health.createdMs)) + "ms, resubscribe");
+		s.resubs++;
+		s.tries++;
+		s.nextResubMs = now + STALE_MS * s.backoff;
+		s.backoff = Math.min(s.backoff * 2, MAX_BACKOFF);
+		_resubscribed++;
+		_gw.resubscribeFeed(f);
+	}
+}
@@ -13,7 +13,9 @@ import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 import com.avalok.ib.controller.BaseIBController;
+import com.avalok.ib.controller.IBApiController;
 import com.avalok.ib.handler.*;
+import com.bitex.util.LatencyHistogram;
 import com.bitex.util.Redis;
 
 import com.ib.client.*;
@@ -34,6 +36,7 @@ public class GatewayController extends BaseIBController {
 	}
 
 	private final String ackChannel;
+	private final FeedMonitor _feedMonitor;
 	public GatewayController() {
 		ContractDetailsHandler.GW_CONTROLLER = this;
 		MarketRuleHandler.GW_CONTROLLER = this;
@@ -50,6 +53,7 @@ public class GatewayController extends BaseIBController {
 		long liveStatusInvertal = 1000;
 		final String liveStatusKey = "IBGateway:" + _name + ":status";
 		ackChannel = "IBGateway:"+_name+":ACK";
+		_feedMonitor = new FeedMonitor(this, "IBGateway:" + _name + ":feeds");
 		new Timer("GatewayControllerLiveStatusWriter").scheduleAtFixedRate(new TimerTask() {
 			@Override
 			public void run() {
@@ -57,6 +61,26 @@ public class GatewayController extends BaseIBController {
 				j.put("type", "heartbeat");
 				j.put("status", isConnected());
 				j.put("t", System.currentTimeMillis());
+				IBApiController api = _apiController;
+				if (api != null) { // EReader backlog, max lag is the worst in the last interval.
+					j.put("readerQueue", api.readerQueueDepth());
+					j.put("readerMaxLagUs", api.readerMaxLagNanosAndReset() / 1000);
+					JSONObject handlers = new JSONObject();
+					for (Map.Entry<String,Integer> e : api.handlerCounts().entrySet())
+						if (e.getValue() > 0) handlers.put(e.getKey(), e.getValue());
+					j.put("handlers", handlers);
+					j.put("apiRate", api.rateStats());
+				}
+				j.put("conflation", ConflatingPublisher.instance.stats());
+				j.put("redis", Redis.WRITER.stats());
+				j.put("depth", _depthScheduler.stats());
+				j.put("feeds", _feedMonitor.stats());
+				j.put("commands", _commandLanes.stats());
+				JSONObject orders = new JSONObject();
+				orders.put("templates", _orderTemplates.size());
+				orders.put("cache", orderCacheHandler.cacheStats());
+				orders.put("wireUs", _orderWireLatency.snapshotAndReset());
+				j.put("orders", orders);
 				Redis.set(liveStatusKey, j);
 				Redis.pub(ackChannel, j);
 			}
@@ -66,12 +90,35 @@ public class GatewayController extends BaseIBController {
 	////////////////////////////////////////////////////////////////
 	// Market depth data module, ridiculous limitation here:
 	// Max number (3) of market depth requests has been reached
+	// DepthScheduler decides which SUB_ODBK hold the few depth lines.
 	////////////////////////////////////////////////////////////////
 	private ConcurrentHashMap<String, DeepMktDataHandler> _depthTasks = new ConcurrentHashMap<>();
 	private ConcurrentHashMap<Integer, String> _depthTaskByReqID = new ConcurrentHashMap<>();
 	private final boolean isSmartDepth = false;
+	private final DepthScheduler _depthScheduler = new DepthScheduler(this);
+
+	int startDepthStream(DepthScheduler.Request r) {
+		return subscribeDepthData(r.contract, r.full, r.delta, r.binary, r.conflateMs);
+	}
+	void stopDepthStream(DepthScheduler.Request r) {
+		unsubscribeDepthData(r.contract);
+	}
+	// Top of book on full_odbk_channel while the request has no depth line.
+	int startTopFallback(DepthScheduler.Request r) {
+		return holdTopData(TOP_ODBK, r.contract, r.binary, r.conflateMs);
+	}
+	void stopTopFallback(DepthScheduler.Request r) {
+		releaseTopData(TOP_ODBK, r.contract);
+	}
+	void queryDepthExchanges(DepthScheduler scheduler) {
+		_apiController.reqMktDepthExchanges(scheduler);
+	}
+	// Behind the DATA commands queued before it, false when the lane is full.
+	boolean onDataLane(Runnable task) {
+		return _commandLanes.submit(CommandLanes.Lane.DATA, System.nanoTime(), task);
+	}
 
-	private int subscribeDepthData(IBContract contract) {
+	private int subscribeDepthData(IBContract contract, boolean full, boolean delta, boolean binary, long conflateMs) {
 		String jobKey = contract.exchange() + "/" + contract.shownName();
 		if (_depthTasks.get(jobKey) != null) {
 			err("Task dulicated, skip subscribing depth data " + jobKey);
@@ -79,7 +126,7 @@ public class GatewayController extends BaseIBController {
 		}
 		log("Subscribe depth data for " + jobKey);
 		int numOfRows = 10;
-		DeepMktDataHandler handler = new DeepMktDataHandler(contract, true);
+		DeepMktDataHandler handler = new DeepMktDataHandler(contract, full, delta, binary, conflateMs);
 		_apiController.reqDeepMktData(contract, numOfRows, isSmartDepth, handler);
 		int qid = _apiController.lastReqId();
 		_depthTaskByReqID.put(qid, jobKey); // reference for error msg
@@ -96,6 +143,7 @@ public class GatewayController extends BaseIBController {
 		}
 		log("Cancel depth data for " + jobKey);
 		_apiController.cancelDeepMktData(isSmartDepth, handler);
+		handler.stopBroadcast();
 		int qid = _apiController.lastReqId();
 		_depthTasks.remove(jobKey);
 		return qid;
@@ -109,6 +157,10 @@ public class GatewayController extends BaseIBController {
 	private ConcurrentHashMap<String, OptionTopMktDataHandler> _optionTopTasks = new ConcurrentHashMap<>();
 	private ConcurrentHashMap<Integer, String> _topTaskByReqID = new ConcurrentHashMap<>();
 	private int subscribeTopData(IBContract contract) {
+		return subscribeTopData(contract, false, ConflatingPublisher.PER_BATCH);
+	}
+
+	private int subscribeTopData(IBContract contract, boolean binary, long conflateMs) {
 		String jobKey = contract.exchange() + "/" + contract.shownName();
 		boolean isOptType = contract.secType() == SecType.OPT;
 		if (isOptType && _optionTopTasks.get(jobKey) != null) {
@@ -122,7 +174,7 @@ public class GatewayController extends BaseIBController {
 		if (isOptType){
 			log("Subscribe option top data for " + jobKey);
 			boolean broadcastTop = true, broadcastTick = true;
-			OptionTopMktDataHandler handler = new OptionTopMktDataHandler(contract, broadcastTop, broadcastTick);
+			OptionTopMktDataHandler handler = new OptionTopMktDataHandler(contract, broadcastTop, broadcastTick, binary, conflateMs);
 			String genericTickList = "";
 
 			// Request snapshot, then updates
@@ -134,7 +186,7 @@ public class GatewayController extends BaseIBController {
 		} else {
 			log("Subscribe top data for " + jobKey);
 			boolean broadcastTop = true, broadcastTick = true;
-			TopMktDataHandler handler = new TopMktDataHandler(contract, broadcastTop, broadcastTick);
+			TopMktDataHandler handler = new TopMktDataHandler(contract, broadcastTop, broadcastTick, binary, conflateMs);
 			// See <Generic tick required> at https://interactivebrokers.github.io/tws-api/tick_types.html
 			String genericTickList = "";
 
@@ -165,35 +217,234 @@ public class GatewayController extends BaseIBController {
 			OptionTopMktDataHandler optHandler = _optionTopTasks.get(jobKey);
 			log("Cancel option top data for " + jobKey);
 			_apiController.cancelTopMktData(optHandler);
+			optHandler.stopBroadcast();
 			_optionTopTasks.remove(jobKey);
 		} else {
 			TopMktDataHandler handler = _topTasks.get(jobKey);
 			log("Cancel top data for " + jobKey);
 			_apiController.cancelTopMktData(handler);
+			handler.stopBroadcast();
 			_topTasks.remove(jobKey);
 		}
 		int qid = _apiController.lastReqId();
 		return qid;
 	}
 
+	// Holders of a top subscription: SUB_TOP, the tick by tick fallback and the depth
+	// fallback may all want one for a contract. It is made for the first with its encoding
+	// and conflation, and cancelled when the last one lets go. On the DATA lane.
+	private static final String TOP_SUB = "sub", TOP_TBT = "tbt", TOP_ODBK = "odbk";
+	private final ConcurrentHashMap<String, Set<String>> _topHolders = new ConcurrentHashMap<>();
+
+	private int holdTopData(String holder, IBContract contract, boolean binary, long conflateMs) {
+		String jobKey = contract.exchange() + "/" + contract.shownName();
+		Set<String> holders = _topHolders.computeIfAbsent(jobKey, k -> ConcurrentHashMap.newKeySet());
+		if (!holders.add(holder)) {
+			log("Task dulicated, skip subscribing top data " + jobKey + " for " + holder);
+			return 0;
+		}
+		if (holders.size() > 1) {
+			log("Top data " + jobKey + " shared by " + holders);
+			return 0;
+		}
+		try {
+			return subscribeTopData(contract, binary, conflateMs);
+		} catch (RuntimeException e) {
+			holders.remove(holder);
+			throw e;
+		}
+	}
+
+	private int releaseTopData(String holder, IBContract contract) {
+		String jobKey = contract.exchange() + "/" + contract.shownName();
+		Set<String> holders = _topHolders.get(jobKey);
+		if (holders == null || !holders.remove(holder)) {
+			err("Task not exist, skip canceling top data " + jobKey + " for " + holder);
+			return 0;
+		}
+		if (!holders.isEmpty()) {
+			log("Top data " + jobKey + " kept for " + holders);
+			return 0;
+		}
+		_topHolders.remove(jobKey, holders);
+		return unsubscribeTopData(contract);
+	}
+
+	////////////////////////////////////////////////////////////////
+	// Tick by tick data module, falls back to top data when IB has
+	// no tick by tick line left (10190).
+	////////////////////////////////////////////////////////////////
+	private ConcurrentHashMap<String, TickByTickHandler> _tbtTasks = new ConcurrentHashMap<>();
+	private ConcurrentHashMap<Integer, String> _tbtTaskByReqID = new ConcurrentHashMap<>();
+	private final Set<String> _tbtFallbacks = ConcurrentHashMap.newKeySet(); // Served by top data instead
+
+	private int subscribeTickByTick(IBContract contract, boolean binary, long conflateMs) {
+		String jobKey = contract.exchange() + "/" + contract.shownName();
+		if (_tbtTasks.get(jobKey) != null || _tbtFallbacks.contains(jobKey)) {
+			err("Task dulicated, skip subscribing tick by tick data " + jobKey);
+			return 0;
+		}
+		log("Subscribe tick by tick data for " + jobKey);
+		TickByTickHandler handler = new TickByTickHandler(contract, binary, conflateMs);
+		_tbtTasks.put(jobKey, handler);
+		_apiController.reqTickByTickData(contract, TickByTickHandler.BID_ASK, handler);
+		_tbtTaskByReqID.put(_apiController.lastReqId(), jobKey); // reference for error msg
+		_apiController.reqTickByTickData(contract, TickByTickHandler.ALL_LAST, handler);
+		int qid = _apiController.lastReqId();
+		_tbtTaskByReqID.put(qid, jobKey);
+		return qid;
+	}
+
+	private int unsubscribeTickByTick(IBContract contract) {
+		String jobKey = contract.exchange() + "/" + contract.shownName();
+		_tbtTaskByReqID.values().removeIf(jobKey::equals);
+		if (_tbtFallbacks.remove(jobKey))
+			return releaseTopData(TOP_TBT, contract);
+		TickByTickHandler handler = _tbtTasks.remove(jobKey);
+		if (handler == null) {
+			err("Task not exist, skip canceling tick by tick data " + jobKey);
+			return 0;
+		}
+		log("Cancel tick by tick data for " + jobKey);
+		_apiController.cancelTickByTickData(handler); // BidAsk
+		_apiController.cancelTickByTickData(handler); // AllLast
+		handler.stopBroadcast();
+		return _apiController.lastReqId();
+	}
+
+	// IB refused a tick by tick request, serve the contract with the top data heuristics.
+	// On the DATA lane, after any SUB_TBT or UNSUB_TBT received before.
+	private void fallbackToTopData(String jobKey) {
+		TickByTickHandler handler = _tbtTasks.remove(jobKey);
+		if (handler == null)
+			return;
+		warn("Tick by tick data unavailable, fall back to top data for " + jobKey);
+		_tbtTaskByReqID.values().removeIf(jobKey::equals);
+		_apiController.cancelTickByTickData(handler);
+		_apiController.cancelTickByTickData(handler);
+		handler.stopBroadcast();
+		_tbtFallbacks.add(jobKey);
+		holdTopData(TOP_TBT, handler.contract(), handler.binary(), handler.conflateMs());
+	}
+
+	////////////////////////////////////////////////////////////////
+	// Bar module, IB 5s real time bars plus 1s/1m/5m bars built from
+	// SUB_TOP or SUB_TBT trades of the same contract.
+	////////////////////////////////////////////////////////////////
+	private ConcurrentHashMap<String, BarHandler> _barTasks = new ConcurrentHashMap<>();
+
+	private int subscribeBars(IBContract contract) {
+		String jobKey = contract.exchange() + "/" + contract.shownName();
+		if (_barTasks.get(jobKey) != null) {
+			err("Task dulicated, skip subscribing bars " + jobKey);
+			return 0;
+		}
+		log("Subscribe bars for " + jobKey);
+		BarHandler handler = new BarHandler(contract);
+		_barTasks.put(jobKey, handler);
+		_apiController.reqRealTimeBars(contract, WhatToShow.TRADES, false, handler);
+		return _apiController.lastReqId();
+	}
+
+	private int unsubscribeBars(IBContract contract) {
+		String jobKey = contract.exchange() + "/" + contract.shownName();
+		BarHandler handler = _barTasks.remove(jobKey);
+		if (handler == null) {
+			err("Task not exist, skip canceling bars " + jobKey);
+			return 0;
+		}
+		log("Cancel bars for " + jobKey);
+		_apiController.cancelRealtimeBars(handler);
+		handler.stopBroadcast();
+		return _apiController.lastReqId();
+	}
+
+	// Recent bars from memory, no IB request.
+	private String findBars(IBContract contract, String interval, int limit) throws Exception {
+		String jobKey = contract.exchange() + "/" + contract.shownName();
+		BarHandler handler = _barTasks.get(jobKey);
+		if (handler == null)
+			throw new Exception("No SUB_BAR for " + jobKey);
+		String bars = handler.recent(interval, limit);
+		if (bars == null)
+			throw new Exception("Unknown interval " + interval + ", expect 1s, 5s, 1m or 5m");
+		return bars;
+	}
+
+	////////////////////////////////////////////////////////////////
+	// Feed health, FeedMonitor resubscribes single stale feeds.
+	////////////////////////////////////////////////////////////////
+	List<FeedMonitor.Feed> feeds() {
+		List<FeedMonitor.Feed> feeds = new ArrayList<>();
+		for (Map.Entry<String, TopMktDataHandler> e : _topTasks.entrySet())
+			feeds.add(new FeedMonitor.Feed(FeedMonitor.Kind.TOP, e.getKey(), e.getValue().contract(), e.getValue().health()));
+		for (Map.Entry<String, TickByTickHandler> e : _tbtTasks.entrySet())
+			feeds.add(new FeedMonitor.Feed(FeedMonitor.Kind.TBT, e.getKey(), e.getValue().contract(), e.getValue().health()));
+		for (Map.Entry<String, DeepMktDataHandler> e : _depthTasks.entrySet())
+			feeds.add(new FeedMonitor.Feed(FeedMonitor.Kind.DEPTH, e.getKey(), e.getValue().contract(), e.getValue().health()));
+		for (Map.Entry<String, BarHandler> e : _barTasks.entrySet())
+			feeds.add(new FeedMonitor.Feed(FeedMonitor.Kind.BAR, e.getKey(), e.getValue().contract(), e.getValue().health()));
+		return feeds;
+	}
+
+	// From the FeedMonitor thread, done on the DATA lane in line with SUB/UNSUB commands.
+	void resubscribeFeed(FeedMonitor.Feed f) {
+		if (!_commandLanes.submit(CommandLanes.Lane.DATA, System.nanoTime(), () -> doResubscribeFeed(f)))
+			err("Data lane full, skip resubscribing " + f.kind + " " + f.key);
+	}
+
+	// Only the stale handler, it may have been unsubscribed or replaced meanwhile.
+	private void doResubscribeFeed(FeedMonitor.Feed f) {
+		switch (f.kind) {
+		case TOP:
+			TopMktDataHandler top = _topTasks.get(f.key);
+			if (top == null || top.health() != f.health) return;
+			unsubscribeTopData(top.contract());
+			subscribeTopData(top.contract(), top.binary(), top.conflateMs());
+			break;
+		case TBT:
+			TickByTickHandler tbt = _tbtTasks.get(f.key);
+			if (tbt == null || tbt.health() != f.health) return;
+			unsubscribeTickByTick(tbt.contract());
+			subscribeTickByTick(tbt.contract(), tbt.binary(), tbt.conflateMs());
+			break;
+		case DEPTH: // The scheduler owns depth lines
+			_depthScheduler.resubscribe(f.key);
+			break;
+		case BAR: // Same handler, keeps its bars
+			BarHandler bars = _barTasks.get(f.key);
+			if (bars == null || bars.health() != f.health) return;
+			_apiController.cancelRealtimeBars(bars);
+			_apiController.reqRealTimeBars(bars.contract(), WhatToShow.TRADES, false, bars);
+			break;
+		}
+	}
+
 	private void restartMarketData() {
+		info("Re-subscribe all real time bars");
+		for (BarHandler h : _barTasks.values()) { // Keep the handlers, and their bars
+			_apiController.cancelRealtimeBars(h);
+			_apiController.reqRealTimeBars(h.contract(), WhatToShow.TRADES, false, h);
+		}
 		info("Re-subscribe all depth data");
-		DeepMktDataHandler[] handlers1 = _depthTasks.values().toArray(new DeepMktDataHandler[0]);
-		for (DeepMktDataHandler h : handlers1) {
-			unsubscribeDepthData(h.contract());
-			subscribeDepthData(h.contract());
+		_depthScheduler.restart();
+		info("Re-subscribe all tick by tick data");
+		TickByTickHandler[] tbtHandlers = _tbtTasks.values().toArray(new TickByTickHandler[0]);
+		for (TickByTickHandler h : tbtHandlers) {
+			unsubscribeTickByTick(h.contract());
+			subscribeTickByTick(h.contract(), h.binary(), h.conflateMs());
 		}
 		info("Re-subscribe all top data");
 		TopMktDataHandler[] handlers2 = _topTasks.values().toArray(new TopMktDataHandler[0]);
 		for (TopMktDataHandler h : handlers2) {
 			unsubscribeTopData(h.contract());
-			subscribeTopData(h.contract());
+			subscribeTopData(h.contract(), h.binary(), h.conflateMs());
 		}
 		info("Re-subscribe all option top data");
 		OptionTopMktDataHandler[] handlers3 = _optionTopTasks.values().toArray(new OptionTopMktDataHandler[0]);
 		for (OptionTopMktDataHandler h : handlers3) {
 			unsubscribeTopData(h.contract());
-			subscribeTopData(h.contract());
+			subscribeTopData(h.contract(), h.binary(), h.conflateMs());
 		}
 	}
 	
@@ -283,11 +534,36 @@ public class GatewayController extends BaseIBController {
 	////////////////////////////////////////////////////////////////
 	// Order actions
 	////////////////////////////////////////////////////////////////
+	private final OrderTemplates _orderTemplates = new OrderTemplates();
+	private final LatencyHistogram _orderWireLatency = new LatencyHistogram(); // PLACE_ORDER receipt to socket write
+
+	// PLACE_ORDER iborder received at recvNs, its contract from _orderTemplates when resolved before.
+	// Returns nanos from recvNs until the order is on the wire.
+	private long placeOrder(JSONObject iborder, long recvNs) throws Exception {
+		IBApiController api = _apiController;
+		JSONObject contractJSON = iborder.getJSONObject("contract");
+		OrderTemplates.Template t = _orderTemplates.find(contractJSON, api);
+		long sentNs;
+		if (t != null) {
+			sentNs = placeOrder(new IBOrder(t.contract, iborder.getJSONObject("order")), t.contractFields);
+		} else {
+			IBOrder order = new IBOrder(iborder);
+			sentNs = placeOrder(order, null);
+			_orderTemplates.add(contractJSON, order.contract, api); // For the next ones
+		}
+		long wireNs = sentNs - recvNs;
+		_orderWireLatency.record(wireNs);
+		return wireNs;
+	}
 	protected int placeOrder(IBOrder order) throws Exception {
+		placeOrder(order, null);
+		return _apiController.lastReqId();
+	}
+	// System.nanoTime() once sent.
+	private long placeOrder(IBOrder order, byte[] contractFields) throws Exception {
 		if (order.omsClientOID() == null)
 			throw new Exception("Abort placing order without OMS client_oid, no orderRef?");
-		_apiController.placeOrModifyOrder(order.contract, order.order, new SingleOrderHandler(this, orderCacheHandler, order));
-		return _apiController.lastReqId();
+		return _apiController.placeOrModifyOrder(order.contract, contractFields, order.order, new SingleOrderHandler(this, orderCacheHandler, order));
 	}
 	protected int cancelOrder(String omsId) {
 		IBOrder order = orderCacheHandler.orderByOMSId(omsId);
@@ -308,6 +584,157 @@ public class GatewayController extends BaseIBController {
 		_apiController.cancelAllOrders();
 		return _apiController.lastReqId();
 	}
+
+	////////////////////////////////////////////////////////////////
+	// Order batches: PLACE_ORDERS, CANCEL_ORDERS, REPLACE_ORDERS, CANCEL_BY_CONTRACT
+	// One ACK with a result per order, in the order given.
+	////////////////////////////////////////////////////////////////
+
+	// An order of a batch, parsed and checked before any is sent.
+	private static class BatchOrder {
+		final IBOrder order;
+		final byte[] contractFields; // Null when not placed on a template
+		BatchOrder(IBOrder order, byte[] contractFields) {
+			this.order = order;
+			this.contractFields = contractFields;
+		}
+	}
+
+	// Parse every iborder, adding {client_oid} to results, with err for bad ones.
+	// Throws if any is bad: none of them must be sent then.
+	private List<BatchOrder> checkOrders(JSONArray iborders, JSONArray results) throws Exception {
+		List<BatchOrder> batch = new ArrayList<>();
+		if (iborders == null)
+			return batch;
+		IBApiController api = _apiController;
+		Set<String> oids = new HashSet<>();
+		int bad = 0;
+		for (int i = 0; i < iborders.size(); i++) {
+			JSONObject r = new JSONObject();
+			results.add(r);
+			try {
+				JSONObject iborder = iborders.getJSONObject(i);
+				JSONObject contractJSON = iborder.getJSONObject("contract");
+				OrderTemplates.Template t = _orderTemplates.find(contractJSON, api);
+				IBOrder order;
+				if (t != null) {
+					order = new IBOrder(t.contract, iborder.getJSONObject("order"));
+				} else {
+					order = new IBOrder(iborder);
+					_orderTemplates.add(contractJSON, order.contract, api); // For the rest of the batch
+				}
+				String oid = order.omsClientOID();
+				r.put("client_oid", oid);
+				if (oid == null)
+					throw new Exception("No OMS client_oid, no orderRef?");
+				if (!oids.add(oid))
+					throw new Exception("Duplicated client_oid in batch");
+				if (orderCacheHandler.orderByOMSId(oid) != null)
+					throw new Exception("Order of client_oid exists");
+				batch.add(new BatchOrder(order, t == null ? null : t.contractFields));
+			} catch (Exception e) {
+				r.put("err", e.getMessage());
+				bad++;
+			}
+		}
+		if (bad > 0)
+			throw new Exception(bad + " of " + iborders.size() + " orders invalid, none sent");
+		return batch;
+	}
+
+	// Orders are queued in the rate limiter at ORDER priority, the lane never waits for
+	// tokens: up to TWS_API_BURST leave at once, the rest at TWS_API_RATE. An order gets its
+	// id when sent, results get {orderId, wireUs} when sent already, {queued:true} else, or err.
+	private String sendOrders(List<BatchOrder> batch, JSONArray results, long recvNs) {
+		int failed = 0;
+		IBApiController api = _apiController;
+		for (int i = 0; i < batch.size(); i++) {
+			BatchOrder b = batch.get(i);
+			JSONObject r = results.getJSONObject(i);
+			try {
+				IBOrder order = b.order;
+				if (order.omsClientOID() == null)
+					throw new Exception("Abort placing order without OMS client_oid, no orderRef?");
+				long sentNs = api.queueOrder(order.contract, b.contractFields, order.order,
+						new SingleOrderHandler(this, orderCacheHandler, order),
+						t -> _orderWireLatency.record(t - recvNs));
+				if (sentNs == 0) {
+					r.put("queued", true);
+				} else {
+					r.put("orderId", order.orderId());
+					_orderWireLatency.record(sentNs - recvNs);
+					r.put("wireUs", (sentNs - recvNs) / 1000);
+				}
+			} catch (Exception e) {
+				r.put("err", e.getMessage());
+				failed++;
+			}
+		}
+		return failed == 0 ? null : failed + " of " + batch.size() + " orders failed";
+	}
+
+	// Cancels at CANCEL priority, ahead of any waiting order. Results get {omsId, orderId} or err.
+	private String cancelOrders(List<IBOrder> orders, List<String> omsIds, JSONArray results) {
+		int failed = 0;
+		boolean refresh = false;
+		for (int i = 0; i < orders.size(); i++) {
+			IBOrder order = orders.get(i);
+			JSONObject r = new JSONObject();
+			results.add(r);
+			r.put("omsId", omsIds.get(i));
+			if (order == null) {
+				r.put("err", "No order by oms id");
+			} else if (order.orderId() == 0) {
+				r.put("err", "Invalid order id 0");
+				refresh = true;
+			} else {
+				_apiController.cancelOrder(order.orderId());
+				r.put("orderId", order.orderId());
+				continue;
+			}
+			failed++;
+		}
+		if (refresh) // Might because some order updates is not received.
+			refreshLiveOrders();
+		return failed == 0 ? null : failed + " of " + orders.size() + " cancels failed";
+	}
+
+	private String cancelOrders(JSONArray omsIds, JSONArray results) {
+		List<IBOrder> orders = new ArrayList<>();
+		List<String> ids = new ArrayList<>();
+		if (omsIds != null) {
+			for (int i = 0; i < omsIds.size(); i++) {
+				ids.add(omsIds.getString(i));
+				orders.add(orderCacheHandler.orderByOMSId(omsIds.getString(i)));
+			}
+		}
+		return cancelOrders(orders, ids, results);
+	}
+
+	// Alive orders of the contract, by conid or else pair, of account if given.
+	private String cancelByContract(JSONObject contractJSON, String account, JSONArray results) {
+		Integer conid = contractJSON.getInteger("conid");
+		List<IBOrder> orders = conid != null && conid > 0 ?
+				orderCacheHandler.aliveOrders(conid, account) :
+				orderCacheHandler.aliveOrders(new IBContract(contractJSON).pair(), account);
+		List<String> ids = new ArrayList<>();
+		for (IBOrder o : orders)
+			ids.add(o.omsId());
+		return cancelOrders(orders, ids, results);
+	}
+
+	// Cancels first, then the new orders; nothing is cancelled when a new order is invalid.
+	private String replaceOrders(JSONArray omsIds, JSONArray iborders, JSONObject results, long recvNs) throws Exception {
+		JSONArray cancelled = new JSONArray(), placed = new JSONArray();
+		results.put("cancel", cancelled);
+		results.put("place", placed);
+		List<BatchOrder> batch = checkOrders(iborders, placed);
+		String cancelErr = cancelOrders(omsIds, cancelled);
+		String placeErr = sendOrders(batch, placed, recvNs);
+		if (cancelErr == null)
+			return placeErr;
+		return placeErr == null ? cancelErr : cancelErr + ", " + placeErr;
+	}
 	
 	////////////////////////////////////////////////////////////////
 	// Contract details query.
@@ -390,64 +817,148 @@ public class GatewayController extends BaseIBController {
 		orderCacheHandler.resetStatus();
 	}
 
-	private JedisPubSub commandProcessJedisPubSub = new JedisPubSub() {
-		public void onMessage(String channel, String message) {
-			JSONObject j = null;
-			try {
-				j = JSON.parseObject(message);
-			} catch (Exception e) {
-				err("<<< CMD " + message);
-				err("Failed to parse command " + e.getMessage());
-				return;
+	////////////////////////////////////////////////////////////////
+	// Commands, run on CommandLanes by class.
+	// Orders may also come on their own channel IBGateway:{name}:ORDER,
+	// received by another Redis connection.
+	////////////////////////////////////////////////////////////////
+	private final CommandLanes _commandLanes = new CommandLanes();
+
+	private JedisPubSub newCommandListener() {
+		return new JedisPubSub() {
+			public void onMessage(String channel, String message) {
+				final long recvNs = System.nanoTime();
+				JSONObject j = null;
+				try {
+					j = JSON.parseObject(message);
+				} catch (Exception e) {
+					err("<<< CMD " + message);
+					err("Failed to parse command " + e.getMessage());
+					return;
+				}
+				final JSONObject cmd = j;
+				CommandLanes.Lane lane = CommandLanes.laneOf(j.getString("cmd"));
+				if (!_commandLanes.submit(lane, recvNs, () -> processCommand(cmd, recvNs))) {
+					err("<<< CMD " + j.getLong("id") + " " + j.getString("cmd") + " rejected, " + lane + " queue full");
+					ack(j.getLong("id"), 0, lane.name().toLowerCase() + " command queue full", null, -1);
+				}
 			}
-			log("test: _twsConnected: "+ _twsConnected + ", _apiConnected: "+ _apiConnected);
-			final Long id = j.getLong("id");
-			info("<<< CMD " + id + " " + j.getString("cmd"));
-			String errorMsg = null;
-			String response = null; // Some commands could have response directly.
-			int apiReqId = 0;
-			try {
-				switch(j.getString("cmd")) {
-				case "SUB_ODBK":
-					apiReqId = subscribeDepthData(new IBContract(j.getJSONObject("contract")));
-					break;
-				case "UNSUB_ODBK":
-					apiReqId = unsubscribeDepthData(new IBContract(j.getJSONObject("contract")));
-					break;
-				case "SUB_TOP":
-					apiReqId = subscribeTopData(new IBContract(j.getJSONObject("contract")));
-					break;
-				case "UNSUB_TOP":
-					apiReqId = unsubscribeTopData(new IBContract(j.getJSONObject("contract")));
-					break;
-				case "RESET":
-					_postConnected();
-					break;
-				case "FIND_CONTRACTS":
-					apiReqId = queryContractListWithCache(j.getJSONObject("contract"));
-					break;
-				case "FIND_CONTRACTS_TO_REDIS":
-					apiReqId = queryContractListToRedis(j.getJSONObject("contract"), id);
-					break;
-				case "PLACE_ORDER":
-					apiReqId = placeOrder(new IBOrder(j.getJSONObject("iborder")));
-					break;
-				case "CANCEL_ORDER":
-					apiReqId = cancelOrder(j.getString("omsId"));
-					break;
-				case "CANCEL_ALL":
-					apiReqId = cancelAll();
-					break;
-				case "ACCOUNT_LIST":
-					response = JSON.toJSONString(accList);
-					break;
-				case "UPDATE_ACCOUNT_MV":
-					subscribeAccountMV();
-					break;
-				case "FIND_ACCOUNT_SUMMARY":
-					apiReqId = queryAccountSummary();
-					break;
-				case "FIND_HISTORY":
+		};
+	}
+
+	private void processCommand(JSONObject j, long recvNs) {
+		final Long id = j.getLong("id");
+		final String cmd = j.getString("cmd");
+		if (!"PLACE_ORDER".equals(cmd) && !"PLACE_ORDERS".equals(cmd) && !"REPLACE_ORDERS".equals(cmd)) // Logged once sent
+			info("<<< CMD " + id + " " + cmd);
+		String errorMsg = null;
+		String response = null; // Some commands could have response directly.
+		int apiReqId = 0;
+		long wireNs = -1; // Orders sent to TWS
+		JSON results = null; // Per order results of batch commands, in ACK res
+		try {
+			switch(cmd) {
+			case "SUB_ODBK":
+				String odbk = j.getString("odbk") == null ? "full" : j.getString("odbk");
+				if (!odbk.equals("full") && !odbk.equals("delta") && !odbk.equals("both"))
+					throw new Exception("Unknown odbk " + odbk + ", expect full, delta or both");
+				DepthScheduler.Request depthReq = _depthScheduler.add(new IBContract(j.getJSONObject("contract")),
+						!odbk.equals("delta"), !odbk.equals("full"), binary(j), conflateMs(j),
+						j.getIntValue("priority"), j.getInteger("weight") == null ? 1 : j.getIntValue("weight"));
+				if (depthReq != null) {
+					apiReqId = depthReq.live() ? depthReq.reqId() : 0;
+					response = depthReq.mode().name().toLowerCase();
+				}
+				break;
+			case "UNSUB_ODBK":
+				IBContract depthContract = new IBContract(j.getJSONObject("contract"));
+				if (!_depthScheduler.remove(depthContract))
+					err("Task not exist, skip canceling depth data " + depthContract.exchange() + "/" + depthContract.shownName());
+				break;
+			case "SUB_TOP":
+				apiReqId = holdTopData(TOP_SUB, new IBContract(j.getJSONObject("contract")), binary(j), conflateMs(j));
+				break;
+			case "UNSUB_TOP":
+				apiReqId = releaseTopData(TOP_SUB, new IBContract(j.getJSONObject("contract")));
+				break;
+			case "SUB_TBT":
+				apiReqId = subscribeTickByTick(new IBContract(j.getJSONObject("contract")), binary(j), conflateMs(j));
+				break;
+			case "UNSUB_TBT":
+				apiReqId = unsubscribeTickByTick(new IBContract(j.getJSONObject("contract")));
+				break;
+			case "SUB_BAR":
+				apiReqId = subscribeBars(new IBContract(j.getJSONObject("contract")));
+				break;
+			case "UNSUB_BAR":
+				apiReqId = unsubscribeBars(new IBContract(j.getJSONObject("contract")));
+				break;
+			case "FIND_BARS":
+				response = findBars(new IBContract(j.getJSONObject("contract")),
+						j.getString("interval") == null ? "1m" : j.getString("interval"),
+						j.getInteger("limit") == null ? 60 : j.getIntValue("limit"));
+				break;
+			case "RESET":
+				_postConnected();
+				break;
+			case "FIND_CONTRACTS":
+				apiReqId = queryContractListWithCache(j.getJSONObject("contract"));
+				break;
+			case "FIND_CONTRACTS_TO_REDIS":
+				apiReqId = queryContractListToRedis(j.getJSONObject("contract"), id);
+				break;
+			case "PLACE_ORDER":
+				wireNs = placeOrder(j.getJSONObject("iborder"), recvNs);
+				apiReqId = _apiController.lastReqId();
+				info("<<< CMD " + id + " " + cmd + " sent in " + wireNs / 1000 + "us");
+				break;
+			case "CANCEL_ORDER":
+				apiReqId = cancelOrder(j.getString("omsId"));
+				break;
+			case "CANCEL_ALL":
+				apiReqId = cancelAll();
+				break;
+			case "PLACE_ORDERS":
+				JSONArray iborders = j.getJSONArray("iborders");
+				if (iborders == null || iborders.isEmpty())
+					throw new Exception("No iborders");
+				results = new JSONArray();
+				errorMsg = sendOrders(checkOrders(iborders, (JSONArray) results), (JSONArray) results, recvNs);
+				apiReqId = _apiController.lastReqId();
+				info("<<< CMD " + id + " " + cmd + " " + iborders.size() + " sent in " + (System.nanoTime() - recvNs) / 1000 + "us");
+				break;
+			case "CANCEL_ORDERS":
+				results = new JSONArray();
+				errorMsg = cancelOrders(j.getJSONArray("omsIds"), (JSONArray) results);
+				apiReqId = _apiController.lastReqId();
+				break;
+			case "REPLACE_ORDERS":
+				results = new JSONObject();
+				errorMsg = replaceOrders(j.getJSONArray("omsIds"), j.getJSONArray("iborders"), (JSONObject) results, recvNs);
+				apiReqId = _apiController.lastReqId();
+				info("<<< CMD " + id + " " + cmd + " sent in " + (System.nanoTime() - recvNs) / 1000 + "us");
+				break;
+			case "FIND_ORDERS":
+				JSONObject orderContract = j.getJSONObject("contract");
+				response = orderCacheHandler.ordersJSON(orderCacheHandler.orders(
+						orderContract == null ? 0 : orderContract.getIntValue("conid"),
+						j.getString("account"), j.getBoolean("alive") == null || j.getBooleanValue("alive")));
+				break;
+			case "CANCEL_BY_CONTRACT":
+				results = new JSONArray();
+				errorMsg = cancelByContract(j.getJSONObject("contract"), j.getString("account"), (JSONArray) results);
+				apiReqId = _apiController.lastReqId();
+				break;
+			case "ACCOUNT_LIST":
+				response = JSON.toJSONString(accList);
+				break;
+			case "UPDATE_ACCOUNT_MV":
+				subscribeAccountMV();
+				break;
+			case "FIND_ACCOUNT_SUMMARY":
+				apiReqId = queryAccountSummary();
+				break;
+			case "FIND_HISTORY":
 //					Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT+8"));
 //					cal.add(Calendar.MONTH, -1);
 //					SimpleDateFormat form = new SimpleDateFormat("yyyyMMdd HH:mm:ss");
@@ -463,8 +974,8 @@ public class GatewayController extends BaseIBController {
 //					HistoricalDataHandler ss = new HistoricalDataHandler();
 ////    				(Contract contract, String endDateTime, int duration, DurationUnit durationUnit, BarSize barSize, WhatToShow whatToShow, boolean rthOnly, boolean keepUpToDate, IHistoricalDataHandler handler)
 //					_apiController.reqHistoricalData(contract, endDateTime, 3, DurationUnit.DAY, BarSize._1_day, WhatToShow.TRADES, false, false, ss);
-					apiReqId = queryHistoryDataToRedis(j, id);
-					break;
+				apiReqId = queryHistoryDataToRedis(j, id);
+				break;
 //				case "UPDATE_OPT_GREEKS":
 ////					_apiController.reqAccountUpdates(true, "All", accountMVHandler);
 //					for (IBContract c : accountMVHandler.ibc_cache.values()) {
@@ -492,40 +1003,80 @@ public class GatewayController extends BaseIBController {
 //						}
 //					}
 //					break;
-				default:
-					errorMsg = "Unknown cmd " + j.getString("cmd");
-					err(errorMsg);
-					break;
-				}
-			} catch (Exception e) {
-				errorMsg = e.getMessage();
-				e.printStackTrace();
-			} finally { // Reply with id in boradcasting.
-				info(">>> ACK " + id + " ibApiId " + apiReqId);
-				JSONObject r = new JSONObject();
-				r.put("type", "ack");
-				r.put("reqId", id);
-				r.put("ibApiId", apiReqId);
-				if (errorMsg != null)
-					r.put("err", errorMsg);
-				if (response != null)
-					r.put("res", response);
-				Redis.pub(ackChannel, r);
+			default:
+				errorMsg = "Unknown cmd " + cmd;
+				err(errorMsg);
+				break;
 			}
+		} catch (Exception e) {
+			errorMsg = e.getMessage();
+			err("<<< CMD " + id + " " + cmd + " failed " + e);
+		} finally { // Reply with id in boradcasting.
+			if (results != null)
+				response = results.toJSONString();
+			ack(id, apiReqId, errorMsg, response, wireNs);
 		}
-	};
+	}
+
+	private void ack(Long id, int apiReqId, String errorMsg, String response, long wireNs) {
+		info(">>> ACK " + id + " ibApiId " + apiReqId);
+		JSONObject r = new JSONObject();
+		r.put("type", "ack");
+		r.put("reqId", id);
+		r.put("ibApiId", apiReqId);
+		if (errorMsg != null)
+			r.put("err", errorMsg);
+		if (response != null)
+			r.put("res", response);
+		if (wireNs >= 0)
+			r.put("wireUs", wireNs / 1000);
+		Redis.pub(ackChannel, r);
+	}
+
+	// Optional "conflate_ms" of SUB_ODBK/SUB_TOP: absent or 0 publishes once per TWS message batch,
+	// N > 0 at most every N ms, -1 on every update.
+	private static long conflateMs(JSONObject cmd) {
+		Long ms = cmd.getLong("conflate_ms");
+		return ms == null ? ConflatingPublisher.PER_BATCH : ms < 0 ? ConflatingPublisher.EVERY_UPDATE : ms;
+	}
+
+	// Optional "encoding" of SUB_ODBK/SUB_TOP: "json" (default) or "binary" for BinaryMarketData on *_bin_channel.
+	private static boolean binary(JSONObject cmd) throws Exception {
+		String encoding = cmd.getString("encoding");
+		if (encoding == null || encoding.equals("json"))
+			return false;
+		if (encoding.equals("binary"))
+			return true;
+		throw new Exception("Unknown encoding " + encoding + ", expect json or binary");
+	}
+
+	@Override
+	protected void _msgBatchEnd() {
+		ConflatingPublisher.instance.batchEnd();
+	}
 
 	private void listenCommand() throws Exception {
+		Thread orderListener = new Thread("OrderCommandListener") {
+			public void run() {
+				listenCommand("IBGateway:"+_name+":ORDER");
+			}
+		};
+		orderListener.setDaemon(true);
+		orderListener.setPriority(Thread.MAX_PRIORITY);
+		orderListener.start();
+		listenCommand("IBGateway:"+_name+":CMD");
+	}
+
+	private void listenCommand(String cmdChannel) {
 		while (true) {
 			Redis.exec(new Consumer<Jedis>() {
 				@Override
 				public void accept(Jedis t) {
-					String cmdChannel = "IBGateway:"+_name+":CMD";
 					info("Command listening started at " + cmdChannel);
-					t.subscribe(commandProcessJedisPubSub, cmdChannel);
+					t.subscribe(newCommandListener(), cmdChannel);
 				}
 			});
-			err("Restart command listening in 1 second");
+			err("Restart command listening at " + cmdChannel + " in 1 second");
 			sleep(1000);
 		}
 	}
@@ -533,6 +1084,11 @@ public class GatewayController extends BaseIBController {
 	////////////////////////////////////////////////////////////////
 	// TWS Message processing
 	////////////////////////////////////////////////////////////////
+	// "Market data farm connection is broken:usfarm" -> usfarm
+	private static String farmName(String errorMsg) {
+		return errorMsg == null ? "" : errorMsg.substring(errorMsg.lastIndexOf(':') + 1).trim();
+	}
+
 	@Override
 	public void message(int id, int errorCode, String errorMsg) {
 		log("id:" + id + ", code:" + errorCode + ", msg:" + errorMsg);
@@ -549,7 +1105,10 @@ public class GatewayController extends BaseIBController {
 			String depthJobKey = _depthTaskByReqID.remove(id);
 			if (depthJobKey != null) {
 				err("Remove failed depth task " + depthJobKey);
-				_depthTasks.remove(depthJobKey);
+				DeepMktDataHandler failed = _depthTasks.remove(depthJobKey);
+				if (failed != null)
+					failed.stopBroadcast();
+				_depthScheduler.rejected(depthJobKey);
 				j.put("type", "error");
 				j.put("msg", "depth req failed " + depthJobKey);
 				j.put("detail", depthJobKey + " " + errorMsg);
@@ -558,21 +1117,42 @@ public class GatewayController extends BaseIBController {
 			}
 			Redis.pub(ackChannel, j);
 			break;
+		case 10189: // Failed to request tick-by-tick data
+		case 10190: // Max number of tick-by-tick requests has been reached
+			String tbtJobKey = _tbtTaskByReqID.remove(id);
+			if (tbtJobKey != null) {
+				// Top data waits for contract details and API tokens, not on this thread.
+				if (!_commandLanes.submit(CommandLanes.Lane.DATA, System.nanoTime(), () -> fallbackToTopData(tbtJobKey)))
+					err("Data lane full, no top data fallback for " + tbtJobKey);
+				j.put("type", "error");
+				j.put("msg", "tick by tick req failed, fall back to top data " + tbtJobKey);
+				j.put("detail", tbtJobKey + " " + errorMsg);
+			}
+			Redis.pub(ackChannel, j);
+			break;
 		case 317: // Market depth data has been RESET. Please empty deep book contents before applying any new entries.
-			log("Initialise all data jobs again.");
-			_postConnected();
+			String resetJobKey = _depthTaskByReqID.get(id);
+			if (resetJobKey != null) {
+				log("Depth data reset, subscribe again " + resetJobKey);
+				DeepMktDataHandler reset = _depthTasks.get(resetJobKey);
+				if (reset != null)
+					reset.health().gap();
+				_depthScheduler.resubscribe(resetJobKey);
+			}
 			break;
+		// Farm messages no longer restart every subscription, FeedMonitor resubscribes
+		// only the feeds that stay silent.
 		case 2103: // Market data farm connection is broken
-			log("Initialise all data jobs again.");
-			_postConnected();
-			break;
-		case 2105: // HMDS data farm connection is broken
-			log("Initialise all data jobs again.");
-			_postConnected();
+			log("id:" + id + ", code:" + errorCode + ", msg:" + errorMsg);
+			_feedMonitor.farmBroken(farmName(errorMsg));
 			break;
+		case 2104: // Market data farm connection is OK
 		case 2108: // Market data farm connection is inactive but should be available upon demand
-			log("Initialise all data jobs again.");
-			_postConnected();
+			_feedMonitor.farmRestored(farmName(errorMsg));
+			super.message(id, errorCode, errorMsg);
+			break;
+		case 2105: // HMDS data farm connection is broken, only history requests and real time bars use it
+			log("id:" + id + ", code:" + errorCode + ", msg:" + errorMsg);
 			break;
 		case 2157: // msg:Sec-def data farm connection is broken:secdefhk
 			break;
@@ -3,8 +3,11 @@ package com.avalok.ib;
 import com.avalok.ib.handler.ContractDetailsHandler;
 import static com.bitex.util.DebugUtil.*;
 
+import java.util.HashMap;
+
 import org.apache.commons.lang3.StringUtils;
 import com.alibaba.fastjson.JSONObject;
+import com.bitex.util.JsonWriter;
 
 import com.ib.client.Contract;
 import com.ib.client.Order;
@@ -78,9 +81,15 @@ public class IBOrder {
 	 * Parse URANUS format order from j['order']
 	 */
 	public IBOrder(JSONObject j) {
-		contract = new IBContract(j.getJSONObject("contract"));
+		this(new IBContract(j.getJSONObject("contract")), j.getJSONObject("order"));
 		ContractDetailsHandler.findDetails(contract);
-		JSONObject oj = j.getJSONObject("order");
+	}
+	/**
+	 * Build new order to place on a contract resolved before,
+	 * Parse URANUS format order from oj
+	 */
+	public IBOrder(IBContract _contract, JSONObject oj) {
+		contract = _contract;
 		order = new Order();
 		order.account(oj.getString("account"));
 		if (oj.getString("i") != null) // Only when modifying existed order.
@@ -195,6 +204,8 @@ public class IBOrder {
 		extMsg = msg;
 	}
 	public void setCompleted() { statusFilled = true; }
+	/** False until its first status, OMS JSON needs it. */
+	public boolean hasStatus() { return statusFilled && orderState != null; }
 	/**
 	 * return null : unknown
 	 */
@@ -316,6 +327,70 @@ public class IBOrder {
 		return j;
 	}
 
+	// Key order of toOMSJSON(): JSONObject keeps a HashMap, fastjson writes its keys in table order.
+	private static final String[] OMS_JSON_KEYS;
+	static {
+		HashMap<String, String> m = new HashMap<>();
+		for (String k : new String[] { "permId", "orderRef", "client_oid", "i", "pair", "T", "ttl_qty", "p", "avg_price",
+				"executed_qty", "remained_qty", "status", "t", "updateTime", "market", "orderType", "tif", "whatIf",
+				"secType", "commission", "extMsg" })
+			m.put(k, k);
+		OMS_JSON_KEYS = m.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * Same bytes as JSON.toJSONString(toOMSJSON()), without building the JSONObject.
+	 * Keys with a null value are left out, as fastjson does.
+	 */
+	public JsonWriter writeOMSJSON(JsonWriter w) {
+		if (!statusFilled)
+			errWithTrace("Should not call writeOMSJSON() when statusFilled is false");
+		else if (!contract.isFullDetailed())
+			errWithTrace("Should not call writeOMSJSON() when contract has no full detail");
+		w.beginObject();
+		for (String k : OMS_JSON_KEYS) {
+			switch (k) {
+			case "permId": w.name(k).value(""+order.permId()); break;
+			case "orderRef": if (order.orderRef() != null) w.name(k).value(order.orderRef()); break;
+			case "client_oid": if (omsClientOID() != null) w.name(k).value(omsClientOID()); break;
+			case "i":
+				String omsId = omsId();
+				if (omsId != null) w.name(k).value(omsId);
+				break;
+			case "pair": if (contract.pair() != null) w.name(k).value(contract.pair()); break;
+			case "T":
+				if (order.action() == Action.BUY)
+					w.name(k).value("buy");
+				else if (order.action() == Action.SELL)
+					w.name(k).value("sell");
+				else
+					errWithTrace("Unknown order action " + order.action());
+				break;
+			case "ttl_qty": w.name(k).value(order.totalQuantity()); break;
+			case "p": w.name(k).value(order.lmtPrice()); break;
+			case "avg_price": w.name(k).value(avgFillPrice == null ? order.lmtPrice() : avgFillPrice); break;
+			case "executed_qty": w.name(k).value(order.filledQuantity()); break;
+			case "remained_qty": w.name(k).value(order.totalQuantity()-order.filledQuantity()); break;
+			case "status": w.name(k).value(extStatus == null ? orderState.status().toString() : extStatus); break;
+			case "t": w.name(k).value(946656000000l); break;
+			case "updateTime": w.name(k).value(System.currentTimeMillis()); break;
+			case "market": if (contract.exchange() != null) w.name(k).value(contract.exchange()); break;
+			case "orderType": if (order.orderType() != null) w.name(k).value(order.orderType()); break;
+			case "tif": if (order.tif() != null) w.name(k).value(order.tif()); break;
+			case "whatIf": w.name(k).value(order.whatIf()); break;
+			case "secType": if (contract.secType() != null) w.name(k).value(contract.secType()); break;
+			case "commission":
+				if (orderState.commission() == Double.MAX_VALUE)
+					w.name(k).value(0);
+				else
+					w.name(k).value(orderState.commission());
+				break;
+			case "extMsg": if (extMsg != null) w.name(k).value(extMsg); break;
+			}
+		}
+		return w.endObject();
+	}
+
 	public String omsId() {
 		if (omsClientOID() != null) {
 			// suggest using orderRef to store client_oid+timestamp when created with API
@@ -0,0 +1,79 @@
+package com.avalok.ib;
+
+import static com.bitex.util.DebugUtil.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.alibaba.fastjson.JSONObject;
+import com.avalok.ib.controller.IBApiController;
+import com.avalok.ib.handler.ContractDetailsHandler;
+
+/**
+ * Contracts of PLACE_ORDER resolved once, keyed by "conid@exchange" of the order contract.
+ *
+ * The first order of a contract goes the slow way: IBContract(JSONObject) and contract
+ * details lookups. Once that contract is full detailed it is kept here with its placeOrder
+ * contract fields pre-encoded, and later orders with the same conid and exchange only parse
+ * their order fields. Orders without conid always go the slow way.
+ *
+ * Templates hold for one TWS server version, the encoding depends on it.
+ */
+public class OrderTemplates {
+	public static class Template {
+		public final IBContract contract; // Full detailed, shared by every order of it
+		public final byte[] contractFields; // From IBApiController.encodeOrderContract()
+		final int serverVersion;
+
+		Template(IBContract contract, byte[] contractFields, int serverVersion) {
+			this.contract = contract;
+			this.contractFields = contractFields;
+			this.serverVersion = serverVersion;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Template> _templates = new ConcurrentHashMap<>();
+
+	private static String key(JSONObject contract) {
+		Integer conid = contract.getInteger("conid");
+		if (conid == null || conid <= 0)
+			return null;
+		return conid + "@" + contract.getString("exchange");
+	}
+
+	/** Template of an order contract, null when it has not been resolved for this server version. */
+	public Template find(JSONObject contract, IBApiController api) {
+		String key = key(contract);
+		if (key == null)
+			return null;
+		Template t = _templates.get(key);
+		return t == null || t.serverVersion != api.serverVersion() ? null : t;
+	}
+
+	/**
+	 * Keep the contract an order resolved from its JSON, if it is full detailed, else the known
+	 * contract of the same conid and exchange: SMART ones are never filled from contract details.
+	 */
+	public Template add(JSONObject contract, IBContract resolved, IBApiController api) {
+		String key = key(contract);
+		if (key == null || api.serverVersion() <= 0)
+			return null;
+		int conid = contract.getIntValue("conid");
+		if (!resolved.isFullDetailed() || resolved.conid() != conid)
+			resolved = known(conid, contract.getString("exchange"));
+		if (resolved == null)
+			return null;
+		Template t = new Template(resolved, api.encodeOrderContract(resolved), api.serverVersion());
+		_templates.put(key, t);
+		log("Order template " + key + " " + resolved.shownName());
+		return t;
+	}
+
+	private static IBContract known(int conid, String exchange) {
+		for (IBContract c : ContractDetailsHandler.KNOWN_CONTRACTS.values())
+			if (c.conid() == conid && c.exchange().equals(exchange))
+				return c;
+		return null;
+	}
+
+	public int size() { return _templates.size(); }
+}
@@ -0,0 +1,95 @@
+package com.avalok.ib;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Trading sessions of a contract, from the "tradingHours" and "timeZoneId" of its details.
+ * TWS lists the next few days in one of two formats:
+ * <pre>
+ * 20180323:0400-20180323:2000;20180324:CLOSED     API 9.73 and later
+ * 20090507:0700-1830,1830-2330;20090508:CLOSED     older
+ * </pre>
+ * Nothing is known of days that are not listed.
+ */
+public class TradingHours {
+	/** sessionStart() results besides a session start. */
+	public static final long UNKNOWN = 0, CLOSED = -1;
+
+	private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyyMMdd");
+	private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HHmm");
+
+	private final long[] _starts, _ends; // Sessions in ms since epoch
+	private final long _fromMs, _toMs; // Days listed
+
+	private TradingHours(long[] starts, long[] ends, long fromMs, long toMs) {
+		_starts = starts;
+		_ends = ends;
+		_fromMs = fromMs;
+		_toMs = toMs;
+	}
+
+	/** Null when hours or the time zone can not be read. */
+	public static TradingHours parse(String hours, String timeZoneId) {
+		if (hours == null || hours.isEmpty() || timeZoneId == null)
+			return null;
+		try {
+			// Some TWS versions add a description, "EST (Eastern Standard Time)"
+			ZoneId zone = ZoneId.of(timeZoneId.split(" ")[0], ZoneId.SHORT_IDS);
+			List<long[]> sessions = new ArrayList<>();
+			long fromMs = Long.MAX_VALUE, toMs = Long.MIN_VALUE;
+			for (String day : hours.split(";")) {
+				if (day.isEmpty()) continue;
+				int colon = day.indexOf(':');
+				LocalDate date = LocalDate.parse(day.substring(0, colon), DATE);
+				fromMs = Math.min(fromMs, epochMs(date, LocalTime.MIDNIGHT, zone));
+				toMs = Math.max(toMs, epochMs(date.plusDays(1), LocalTime.MIDNIGHT, zone));
+				String ranges = day.substring(colon + 1);
+				if (ranges.equals("CLOSED")) continue;
+				for (String range : ranges.split(",")) {
+					String[] ends = range.split("-");
+					long start = time(ends[0], date, zone), end = time(ends[1], date, zone);
+					if (end <= start) // Old format past midnight
+						end += 86_400_000;
+					sessions.add(new long[] { start, end });
+					toMs = Math.max(toMs, end);
+				}
+			}
+			if (fromMs == Long.MAX_VALUE)
+				return null;
+			long[] starts = new long[sessions.size()], ends = new long[sessions.size()];
+			for (int i = 0; i < starts.length; i++) {
+				starts[i] = sessions.get(i)[0];
+				ends[i] = sessions.get(i)[1];
+			}
+			return new TradingHours(starts, ends, fromMs, toMs);
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	// "yyyyMMdd:HHmm", or "HHmm" of date
+	private static long time(String s, LocalDate date, ZoneId zone) {
+		int colon = s.indexOf(':');
+		if (colon >= 0) {
+			date = LocalDate.parse(s.substring(0, colon), DATE);
+			s = s.substring(colon + 1);
+		}
+		return epochMs(date, LocalTime.parse(s, TIME), zone);
+	}
+
+	private static long epochMs(LocalDate date, LocalTime time, ZoneId zone) {
+		return date.atTime(time).atZone(zone).toInstant().toEpochMilli();
+	}
+
+	/** Start of the session at ms, CLOSED between sessions, UNKNOWN outside the days listed. */
+	public long sessionStart(long ms) {
+		for (int i = 0; i < _starts.length; i++)
+			if (_starts[i] <= ms && ms < _ends[i]) return _starts[i];
+		return ms >= _fromMs && ms < _toMs ? CLOSED : UNKNOWN;
+	}
+}
@@ -0,0 +1,250 @@
+package com.avalok.ib.controller;
+
+import static com.bitex.util.DebugUtil.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.alibaba.fastjson.JSONObject;
+
+/**
+ * Token bucket for messages to TWS: TWS_API_RATE (ENV, default 44) tokens per second,
+ * holding at most TWS_API_BURST (ENV, default 4). No second sees more than rate + burst
+ * messages: the defaults stay within the 48 per second of before and sustain 44 of them,
+ * the small burst only absorbs short spikes.
+ *
+ * Requests without a token wait in the queue of their priority, nothing sleeps a fixed
+ * time. The dispatcher thread hands out tokens as they come back, highest queued priority
+ * first: CANCEL, ORDER, SUBSCRIBE, REFERENCE. SUBSCRIBE only takes a token while more than
+ * a quarter of the burst is left, and REFERENCE while more than half is, so a flood of
+ * contract details or history requests leaves tokens for orders.
+ *
+ * submit() never blocks: the send runs at once on the caller when a token is free and
+ * nothing of the same or higher priority is queued, else later on the dispatcher thread.
+ * acquire() is for callers that need the result of their send (request ids, handlers),
+ * it waits in the same queues.
+ */
+public class ApiRateLimiter {
+	public enum Priority { CANCEL, ORDER, SUBSCRIBE, REFERENCE }
+
+	private static final Priority[] PRIORITIES = Priority.values();
+
+	// A caller blocked in acquire(), run by the dispatcher to let it go.
+	private static final class Waiter implements Runnable {
+		final Thread thread = Thread.currentThread();
+		volatile boolean granted = false;
+		public void run() {
+			granted = true;
+			LockSupport.unpark(thread);
+		}
+	}
+
+	private final double _rate, _burst;
+	private final double[] _reserve = new double[PRIORITIES.length]; // Tokens left to higher priorities
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _work = _lock.newCondition();
+	// Guarded by _lock
+	private final List<ArrayDeque<Runnable>> _queues = new ArrayList<>();
+	private double _tokens;
+	private long _refillNs = System.nanoTime();
+	private final AtomicLongArray _granted = new AtomicLongArray(PRIORITIES.length);
+	private final AtomicLongArray _delayed = new AtomicLongArray(PRIORITIES.length);
+
+	public ApiRateLimiter(double rate, double burst) {
+		_rate = rate;
+		_burst = Math.max(1, burst);
+		_tokens = _burst;
+		// The bucket never holds more than burst, a larger need would never be met
+		_reserve[Priority.SUBSCRIBE.ordinal()] = Math.min(_burst / 4, _burst - 1);
+		_reserve[Priority.REFERENCE.ordinal()] = Math.min(_burst / 2, _burst - 1);
+		for (int i = 0; i < PRIORITIES.length; i++)
+			_queues.add(new ArrayDeque<>());
+		Thread t = new Thread(this::dispatch, "ApiRateLimiter");
+		t.setDaemon(true);
+		t.setPriority(Thread.MAX_PRIORITY);
+		t.start();
+	}
+
+	// Under _lock
+	private void refill(long now) {
+		_tokens = Math.min(_burst, _tokens + (now - _refillNs) * _rate / 1e9);
+		_refillNs = now;
+	}
+
+	// Under _lock, take a token now if p would be served next.
+	private boolean takeNow(int p) {
+		for (int i = 0; i <= p; i++)
+			if (!_queues.get(i).isEmpty()) return false;
+		refill(System.nanoTime());
+		if (_tokens < 1 + _reserve[p]) return false;
+		_tokens -= 1;
+		return true;
+	}
+
+	/** Run send once a token of priority is granted, without waiting for it. True when it ran now. */
+	public boolean submit(Priority priority, Runnable send) {
+		int p = priority.ordinal();
+		_lock.lock();
+		try {
+			if (!takeNow(p)) {
+				_queues.get(p).addLast(send);
+				_delayed.incrementAndGet(p);
+				_work.signal();
+				return false;
+			}
+		} finally {
+			_lock.unlock();
+		}
+		_granted.incrementAndGet(p);
+		send.run();
+		return true;
+	}
+
+	/** Take one token, waiting behind every queued request of the same or higher priority. */
+	public void acquire(Priority priority) {
+		int p = priority.ordinal();
+		Waiter w = null;
+		_lock.lock();
+		try {
+			if (!takeNow(p)) {
+				w = new Waiter();
+				_queues.get(p).addLast(w);
+				_delayed.incrementAndGet(p);
+				_work.signal();
+			}
+		} finally {
+			_lock.unlock();
+		}
+		if (w == null) {
+			_granted.incrementAndGet(p);
+			return;
+		}
+		boolean interrupted = false;
+		while (!w.granted) {
+			LockSupport.park(this);
+			if (Thread.interrupted())
+				interrupted = true;
+			if (interrupted && !w.granted) {
+				_lock.lock();
+				try {
+					if (_queues.get(p).remove(w)) { // Go now, over the limit rather than never
+						_tokens -= 1;
+						_granted.incrementAndGet(p);
+						break;
+					}
+				} finally {
+					_lock.unlock();
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	// Dispatcher thread: serve the highest queued priority whenever it has a token.
+	private void dispatch() {
+		while (true) {
+			Runnable next = null;
+			int p = -1;
+			_lock.lock();
+			try {
+				while (next == null) {
+					p = -1;
+					for (int i = 0; i < PRIORITIES.length && p < 0; i++)
+						if (!_queues.get(i).isEmpty()) p = i;
+					if (p < 0) {
+						_work.awaitUninterruptibly();
+						continue;
+					}
+					refill(System.nanoTime());
+					double need = 1 + _reserve[p];
+					if (_tokens >= need) {
+						_tokens -= 1;
+						next = _queues.get(p).pollFirst();
+					} else { // Woken earlier by any submit, a higher priority may come
+						long waitNs = (long) ((need - _tokens) / _rate * 1e9);
+						try {
+							_work.awaitNanos(Math.max(waitNs, 10_000));
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				}
+			} finally {
+				_lock.unlock();
+			}
+			_granted.incrementAndGet(p);
+			try {
+				next.run();
+			} catch (Exception e) {
+				err("ApiRateLimiter " + PRIORITIES[p] + " request failed " + e);
+			}
+		}
+	}
+
+	/**
+	 * {tokens, rate, burst, waiting:{cancel, order, subscribe, reference}, granted:{...}, delayed:{...}},
+	 * waiting is the queue length, granted and delayed count since start.
+	 */
+	public JSONObject stats() {
+		JSONObject j = new JSONObject();
+		JSONObject waiting = new JSONObject(), granted = new JSONObject(), delayed = new JSONObject();
+		_lock.lock();
+		try {
+			refill(System.nanoTime());
+			j.put("tokens", Math.round(_tokens * 10) / 10.0);
+			for (Priority p : PRIORITIES)
+				waiting.put(p.name().toLowerCase(), _queues.get(p.ordinal()).size());
+		} finally {
+			_lock.unlock();
+		}
+		for (Priority p : PRIORITIES) {
+			granted.put(p.name().toLowerCase(), _granted.get(p.ordinal()));
+			delayed.put(p.name().toLowerCase(), _delayed.get(p.ordinal()));
+		}
+		j.put("rate", _rate);
+		j.put("burst", _burst);
+		j.put("waiting", waiting);
+		j.put("granted", granted);
+		j.put("delayed", delayed);
+		return j;
+	}
+
+	/**
+	 * A pacing rule counted apart from the bucket: at most max requests in any period.
+	 * Requests over it are refused, not queued, as the period can be minutes long.
+	 */
+	public static class Window {
+		private final int _max;
+		private final long _periodMs;
+		private final ArrayDeque<Long> _times = new ArrayDeque<>();
+
+		public Window(int max, long periodMs) {
+			_max = max;
+			_periodMs = periodMs;
+		}
+
+		/** 0 when the request is counted, else ms until one is allowed. */
+		public synchronized long tryAcquire() {
+			long now = System.currentTimeMillis();
+			while (!_times.isEmpty() && _times.peekFirst() <= now - _periodMs)
+				_times.pollFirst();
+			if (_times.size() >= _max)
+				return _times.peekFirst() + _periodMs - now;
+			_times.addLast(now);
+			return 0;
+		}
+
+		public synchronized int used() {
+			long now = System.currentTimeMillis();
+			while (!_times.isEmpty() && _times.peekFirst() <= now - _periodMs)
+				_times.pollFirst();
+			return _times.size();
+		}
+	}
+}
@@ -3,6 +3,9 @@ package com.avalok.ib.controller;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
+import com.ib.client.ESelectorReader;
+import com.ib.client.EWireRecorder;
+import com.ib.client.EWaitStrategySignal.WaitStrategy;
 import com.ib.controller.ApiController.*;
 
 import com.alibaba.fastjson.*;
@@ -117,6 +120,53 @@ public abstract class BaseIBController implements IConnectionHandler {
 	public final static int TWS_API_PORT = Integer.parseInt(System.getenv("TWS_API_PORT"));
 	public final static String TWS_NAME = TWS_API_ADDR + "_" + TWS_API_PORT;
 	protected int _apiClientID = Integer.parseInt(System.getenv("TWS_API_CLIENTID")); // Only the default client (i.e 0) can auto bind orders
+	// TWS_API_NIO=true: every controller in this JVM is read by one shared selector thread.
+	public final static boolean TWS_API_NIO = "true".equalsIgnoreCase(System.getenv("TWS_API_NIO"));
+	// TWS_API_WAIT_STRATEGY: PARK (default), SPIN_YIELD or BUSY_SPIN for the message processing thread.
+	public final static WaitStrategy TWS_API_WAIT_STRATEGY = System.getenv("TWS_API_WAIT_STRATEGY") == null ?
+			WaitStrategy.PARK : WaitStrategy.valueOf(System.getenv("TWS_API_WAIT_STRATEGY").toUpperCase());
+	// TWS_API_COALESCE_US: batch requests sent within this many microseconds into one write, 0 disables. Orders are never delayed.
+	public final static long TWS_API_COALESCE_US = System.getenv("TWS_API_COALESCE_US") == null ?
+			200 : Long.parseLong(System.getenv("TWS_API_COALESCE_US"));
+	// TWS_API_RECORD_DIR: journal raw TWS frames into memory-mapped segment files there, read them back with WireReplay.
+	public final static String TWS_API_RECORD_DIR = System.getenv("TWS_API_RECORD_DIR");
+	// TWS_API_RECORD_SEGMENT_MB: size of each segment file, default 256.
+	public final static int TWS_API_RECORD_SEGMENT_MB = System.getenv("TWS_API_RECORD_SEGMENT_MB") == null ?
+			256 : Integer.parseInt(System.getenv("TWS_API_RECORD_SEGMENT_MB"));
+	private static EWireRecorder _wireRecorder = null;
+	protected static synchronized EWireRecorder wireRecorder() {
+		if (TWS_API_RECORD_DIR == null || TWS_API_RECORD_DIR.isEmpty())
+			return null;
+		if (_wireRecorder == null) {
+			try {
+				String prefix = System.getenv("TWS_GATEWAY_NAME") == null ? TWS_NAME : System.getenv("TWS_GATEWAY_NAME");
+				_wireRecorder = new EWireRecorder(new java.io.File(TWS_API_RECORD_DIR), prefix, TWS_API_RECORD_SEGMENT_MB * 1024 * 1024);
+				info("Recording TWS wire frames into " + TWS_API_RECORD_DIR);
+			} catch (java.io.IOException e) {
+				err("Failed to start wire recorder, not recording: " + e.getMessage());
+				return null;
+			}
+		}
+		return _wireRecorder;
+	}
+	private static ESelectorReader _selectorReader = null;
+	protected static synchronized ESelectorReader selectorReader() {
+		if (!TWS_API_NIO)
+			return null;
+		if (_selectorReader == null || !_selectorReader.isAlive()) {
+			try {
+				_selectorReader = new ESelectorReader();
+				_selectorReader.start();
+			} catch (java.io.IOException e) {
+				err("Failed to open NIO selector, fallback to EReader thread: " + e.getMessage());
+				return null;
+			}
+		}
+		return _selectorReader;
+	}
+	// Called on the TWS message thread after it has decoded every message available.
+	protected void _msgBatchEnd() {}
+
 	protected synchronized void _connect() {
 		// DebugUtil.printStackInfo();
 		if (isConnected()) {
@@ -137,9 +187,12 @@ public abstract class BaseIBController implements IConnectionHandler {
 					try {
 						log("Connecting gateway " + TWS_API_ADDR + " ID " + _apiClientID);
 						// TODO this step might hang.
-						IBApiController newController = new IBApiController(_assignNewIConnectionHandler(), new NullIBLogger(), new NullIBLogger());
+						IBApiController newController = new IBApiController(_assignNewIConnectionHandler(), new NullIBLogger(), new NullIBLogger(), TWS_API_WAIT_STRATEGY);
+						newController.setWriteCoalescingMicros(TWS_API_COALESCE_US);
+						newController.setWireRecorder(wireRecorder());
+						newController.setMsgBatchListener(BaseIBController.this::_msgBatchEnd);
 						// make initial connection to local host, port 7496, client id 0, no connection options
-						newController.connect(TWS_API_ADDR, TWS_API_PORT, _apiClientID, null);
+						newController.connect(TWS_API_ADDR, TWS_API_PORT, _apiClientID, null, selectorReader());
 						_apiController = newController;  // Only assign after _connect()
 						_connectedTS = System.currentTimeMillis();
 						log("Gateway connected with client ID " + _apiClientID);
@@ -2,11 +2,16 @@ package com.avalok.ib.controller;
 
 import static com.bitex.util.DebugUtil.*;
 
+import java.util.function.LongConsumer;
+import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
+import com.alibaba.fastjson.JSONObject;
 import com.avalok.ib.IBContract;
+import com.avalok.ib.controller.ApiRateLimiter.Priority;
 import com.avalok.ib.handler.ContractDetailsHandler;
 import com.ib.client.*;
+import com.ib.client.EWaitStrategySignal.WaitStrategy;
 import com.ib.client.Types.BarSize;
 import com.ib.client.Types.DurationUnit;
 import com.ib.client.Types.WhatToShow;
@@ -21,10 +26,12 @@ import com.ib.controller.ApiController.IDeepMktDataHandler;
 import com.ib.controller.ApiController.IHistoricalDataHandler;
 import com.ib.controller.ApiController.ILiveOrderHandler;
 import com.ib.controller.ApiController.IMarketRuleHandler;
+import com.ib.controller.ApiController.IMktDepthExchangesHandler;
 import com.ib.controller.ApiController.IOptHandler;
 import com.ib.controller.ApiController.IOrderHandler;
 import com.ib.controller.ApiController.IPositionHandler;
 import com.ib.controller.ApiController.IRealTimeBarHandler;
+import com.ib.controller.ApiController.ITickByTickDataHandler;
 import com.ib.controller.ApiController.ITopMktDataHandler;
 import com.ib.controller.ApiController.ITradeReportHandler;
 
@@ -36,8 +43,12 @@ public class IBApiController {
 	public IBApiController(IConnectionHandler handler, ILogger inLogger, ILogger outLogger) {
 		_api = new ApiController(handler, inLogger, outLogger);
 	}
-	public int lastReqId() { return _api.m_reqId - 1; }
-	public int nextReqId() { return _api.m_reqId; }
+	public IBApiController(IConnectionHandler handler, ILogger inLogger, ILogger outLogger, WaitStrategy waitStrategy) {
+		_api = new ApiController(handler, inLogger, outLogger, waitStrategy);
+	}
+	/** Id of the last request made by the calling thread. */
+	public int lastReqId() { return _api.lastReqId(); }
+	public int nextReqId() { return _api.peekReqId(); }
 
 	////////////////////////////////////////////////////////////////
 	// API Operation history.
@@ -57,47 +68,64 @@ public class IBApiController {
 		return _opRecs.toArray(ret);
 	}
 
+	////////////////////////////////////////////////////////////////
+	// Reader queue gauges
+	////////////////////////////////////////////////////////////////
+	public int readerQueueDepth() { return _api.readerQueueDepth(); }
+	public long readerMaxLagNanosAndReset() { return _api.readerMaxLagNanosAndReset(); }
+	public Map<String,Integer> handlerCounts() { return _api.handlerCounts(); }
+
 	////////////////////////////////////////////////////////////////
 	// TWS API Rate controller
 	////////////////////////////////////////////////////////////////
-	protected static final int MAX_IB_API_RATE = 48; // TODO Where is limitation explanation?
-	protected final ConcurrentLinkedQueue<Long> _apiRecs = new ConcurrentLinkedQueue<>();
+	protected final ApiRateLimiter _rateLimiter = new ApiRateLimiter(
+			Double.parseDouble(System.getenv("TWS_API_RATE") == null ? "44" : System.getenv("TWS_API_RATE")),
+			Double.parseDouble(System.getenv("TWS_API_BURST") == null ? "4" : System.getenv("TWS_API_BURST")));
+	// IB historical data pacing: no more than 60 requests within any 10 minutes.
+	protected final ApiRateLimiter.Window _historyPacing = new ApiRateLimiter.Window(60, 600_000);
 
-	protected void twsAPIRateControl() {
-		synchronized(_apiRecs) {
-			if (_apiRecs.size() >= MAX_IB_API_RATE) {
-				long oldestTime = _apiRecs.poll();
-				while (_apiRecs.size() >= MAX_IB_API_RATE)
-					_apiRecs.poll();
-				// Wait until 1s after the oldestTime
-				long waitTime = 1000 - (System.currentTimeMillis() - oldestTime);
-				if (waitTime > 0) {
-					log("TWS api rate reached: " + MAX_IB_API_RATE + "/s, halt for " + waitTime + "ms");
-					sleep(waitTime);
-				}
-			}
-			_apiRecs.add(System.currentTimeMillis());
-		}
+	protected void twsAPIRateControl(Priority priority) {
+		_rateLimiter.acquire(priority);
+	}
+
+	/** Rate limiter {tokens, waiting, granted, delayed ...} with "history" requests in the pacing window. */
+	public JSONObject rateStats() {
+		JSONObject j = _rateLimiter.stats();
+		j.put("history", _historyPacing.used());
+		return j;
 	}
 
 	////////////////////////////////////////////////////////////////
 	// Overwrite original API methods.
 	////////////////////////////////////////////////////////////////
+	private int _clientId; // Of the last connect(), stamped on new orders
+	/** Batch non-order requests ready within this window into one socket write, 0 disables. Set before connect(). */
+	public void setWriteCoalescingMicros(long micros) { _api.client().setWriteCoalescingNanos(micros * 1000); }
+	/** Journal raw TWS frames in both directions, null stops recording. */
+	public void setWireRecorder(EWireRecorder recorder) { _api.client().wireRecorder(recorder); }
+	/** Run on the TWS message thread after each burst of messages is decoded. */
+	public void setMsgBatchListener(Runnable listener) { _api.client().msgBatchListener(listener); }
 	public void connect( String host, int port, int clientId, String connectionOpts ) {
 		recordOperationHistory("connect");
+		_clientId = clientId;
 		_api.connect(host, port, clientId, connectionOpts);
 	}
+	public void connect( String host, int port, int clientId, String connectionOpts, ESelectorReader selectorReader ) {
+		recordOperationHistory("connect");
+		_clientId = clientId;
+		_api.connect(host, port, clientId, connectionOpts, selectorReader);
+	}
 	public void disconnect() {
 		recordOperationHistory("disconnect");
 		_api.disconnect();
 	}
 	public void reqMarketRule(int marketRuleId, IMarketRuleHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.REFERENCE);
 		recordOperationHistory("marketRule:" + marketRuleId);
 		_api.reqMarketRule(marketRuleId, handler);
 	}
 	public void reqAccountUpdates(boolean subscribe, String acctCode, IAccountHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.SUBSCRIBE);
 		recordOperationHistory("reqAccountUpdates:" + acctCode);
 		_api.reqAccountUpdates(subscribe, acctCode, handler);
 	}
@@ -105,133 +133,186 @@ public class IBApiController {
 		_api.reqAccountUpdatesMulti(account, modelCode, ledgerAndNLV, handler);
 	}
 	public void reqPositions(IPositionHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.SUBSCRIBE);
 		recordOperationHistory("reqPositions");
 		_api.reqPositions(handler);
 	}
 	public void cancelPositions(IPositionHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.SUBSCRIBE);
 		recordOperationHistory("cancelPositions");
 		_api.cancelPositions(handler);
 	}
 	public void reqDeepMktData(IBContract contract, int numRows, boolean isSmartDepth, IDeepMktDataHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.SUBSCRIBE);
 		recordOperationHistory("reqDeepMktData:" + contract.shownName());
 		_api.reqDeepMktData(contract, numRows, isSmartDepth, handler);
 	}
 	public void cancelDeepMktData(boolean isSmartDepth, IDeepMktDataHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.SUBSCRIBE);
 		recordOperationHistory("cancelDeepMktData");
 		_api.cancelDeepMktData(isSmartDepth, handler);
 	}
+	public void reqTickByTickData(Contract contract, String tickType, ITickByTickDataHandler handler) {
+		twsAPIRateControl(Priority.SUBSCRIBE);
+		recordOperationHistory("reqTickByTickData:" + tickType + ":" + contract.symbol());
+		_api.reqTickByTickData(contract, tickType, 0, false, handler);
+	}
+	/** Cancels one request of the handler, call once per request it has. */
+	public void cancelTickByTickData(ITickByTickDataHandler handler) {
+		twsAPIRateControl(Priority.SUBSCRIBE);
+		recordOperationHistory("cancelTickByTickData");
+		_api.cancelTickByTickData(handler);
+	}
+	public void reqMktDepthExchanges(IMktDepthExchangesHandler handler) {
+		twsAPIRateControl(Priority.REFERENCE);
+		recordOperationHistory("reqMktDepthExchanges");
+		_api.reqMktDepthExchanges(handler);
+	}
     public void reqTopMktData(Contract contract, String genericTickList, boolean snapshot, boolean regulatorySnapshot, ITopMktDataHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.SUBSCRIBE);
 		recordOperationHistory("reqTopMktData");
 		_api.reqTopMktData(contract, genericTickList, snapshot, regulatorySnapshot, handler);
     }
     public void reqOptionMktData(Contract contract, String genericTickList, boolean snapshot, boolean regulatorySnapshot, IOptHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.SUBSCRIBE);
 		recordOperationHistory("reqOptionMktData");
 		_api.reqOptionMktData(contract, genericTickList, snapshot, regulatorySnapshot, handler);
     }
     public void cancelTopMktData( ITopMktDataHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.SUBSCRIBE);
 		recordOperationHistory("cancelTopMktData");
 		_api.cancelTopMktData(handler);
     }
 	public void reqExecutions(ExecutionFilter filter, ITradeReportHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.SUBSCRIBE);
 		recordOperationHistory("reqExecutions");
 		_api.reqExecutions(filter, handler);
 	}
 	public void reqLiveOrders(ILiveOrderHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.SUBSCRIBE);
 		recordOperationHistory("reqLiveOrders");
 		_api.reqLiveOrders(handler);
 	}
 	public void takeTwsOrders(ILiveOrderHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.SUBSCRIBE);
 		recordOperationHistory("takeTwsOrders");
 		_api.takeTwsOrders(handler);
 	}
 	public void takeFutureTwsOrders(ILiveOrderHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.SUBSCRIBE);
 		recordOperationHistory("takeFutureTwsOrders");
 		_api.takeFutureTwsOrders(handler);
 	}
 	public void removeLiveOrderHandler(ILiveOrderHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.SUBSCRIBE);
 		recordOperationHistory("removeLiveOrderHandler");
 		_api.removeLiveOrderHandler(handler);
 	}
 	public void reqHistoricalData(Contract contract, String endDateTime, int duration, DurationUnit durationUnit, BarSize barSize, WhatToShow whatToShow, boolean rthOnly, boolean keepUpToDate, IHistoricalDataHandler handler) {
 //				client.reqHistoricalData(4001, ContractSamples.EurGbpFx(), formatted, "1 M", "1 day", "MIDPOINT", 1, 1, false, null);
-		twsAPIRateControl();
+		long pacingMs = _historyPacing.tryAcquire();
+		if (pacingMs > 0)
+			throw new IllegalStateException("Historical data pacing, 60 requests per 10 minutes, retry in " + pacingMs + "ms");
+		twsAPIRateControl(Priority.REFERENCE);
 		recordOperationHistory("reqHistoricalData");
 		_api.reqHistoricalData(contract, endDateTime, duration, durationUnit, barSize, whatToShow, rthOnly, keepUpToDate, handler);
 	}
 	public void cancelHistoricalData(IHistoricalDataHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.REFERENCE);
 		recordOperationHistory("cancelHistoricalData");
 		_api.cancelHistoricalData(handler);
 	}
-//	public void reqRealTimeBars(NewContract contract, WhatToShow whatToShow, boolean rthOnly, IRealTimeBarHandler handler) {
-//		twsAPIRateControl();
-//		recordOperationHistory("reqRealTimeBars:" + JSON.toJSONString(contract));
-//		_api.reqRealTimeBars(contract, whatToShow, rthOnly, handler);
-//	}
+	/** 5 second bars, the only size IB streams. */
+	public void reqRealTimeBars(Contract contract, WhatToShow whatToShow, boolean rthOnly, IRealTimeBarHandler handler) {
+		twsAPIRateControl(Priority.SUBSCRIBE);
+		recordOperationHistory("reqRealTimeBars:" + contract.symbol());
+		_api.reqRealTimeBars(contract, whatToShow, rthOnly, handler);
+	}
 	public void cancelRealtimeBars(IRealTimeBarHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.SUBSCRIBE);
 		recordOperationHistory("cancelRealtimeBars");
 		_api.cancelRealtimeBars(handler);
 	}
 	public void reqCompletedOrders(ICompletedOrdersHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.SUBSCRIBE);
 		recordOperationHistory("reqCompletedOrders");
 		_api.reqCompletedOrders(handler);
 	}
 	public void placeOrModifyOrder(Contract contract, final Order order, final IOrderHandler handler) {
-		twsAPIRateControl();
-		recordOperationHistory("placeOrModifyOrder");
-		_api.placeOrModifyOrder(contract, order, handler);
+		placeOrModifyOrder(contract, null, order, handler);
+	}
+	/**
+	 * With the contract fields from encodeOrderContract(), only valid for the same serverVersion().
+	 * @return System.nanoTime() once the order is written to the socket
+	 */
+	public long placeOrModifyOrder(Contract contract, byte[] contractFields, final Order order, final IOrderHandler handler) {
+		if (order.orderId() == 0) order.clientId(_clientId); // As TWS reports it back
+		twsAPIRateControl(Priority.ORDER);
+		_api.placeOrModifyOrder(contract, contractFields, order, handler);
+		long sentNs = System.nanoTime();
+		recordOperationHistory("placeOrModifyOrder " + order.orderId()); // Logging takes longer than sending
+		return sentNs;
+	}
+	/**
+	 * Place a new order without waiting for the rate limiter: it is sent at once when an
+	 * ORDER token is free, else by the limiter once one is. Its id is assigned as it is sent,
+	 * under the same lock as the socket write, so ids reach TWS in increasing order whichever
+	 * thread sends: a queued order has orderId 0 until then.
+	 * @return System.nanoTime() once sent, 0 when queued: onSent gets it later
+	 */
+	public long queueOrder(Contract contract, byte[] contractFields, final Order order, final IOrderHandler handler, LongConsumer onSent) {
+		if (order.orderId() == 0) order.clientId(_clientId);
+		final Thread caller = Thread.currentThread();
+		final long[] sentNs = { 0 };
+		_rateLimiter.submit(Priority.ORDER, () -> {
+			_api.placeOrModifyOrder(contract, contractFields, order, handler);
+			long t = System.nanoTime();
+			if (Thread.currentThread() == caller)
+				sentNs[0] = t;
+			else
+				onSent.accept(t);
+		});
+		recordOperationHistory(sentNs[0] == 0 ? "queueOrder " + order.orderRef() : "placeOrModifyOrder " + order.orderId());
+		return sentNs[0];
 	}
+	public byte[] encodeOrderContract(Contract contract) { return _api.client().encodeOrderContract(contract); }
+	public int serverVersion() { return _api.client().serverVersion(); }
+	// Cancels never wait, they are sent when a token is free, ahead of anything else queued.
 	public void cancelOrder(int orderId) {
-		twsAPIRateControl();
+		_rateLimiter.submit(Priority.CANCEL, () -> _api.cancelOrder(orderId));
 		recordOperationHistory("cancelOrder " + orderId);
-		_api.cancelOrder(orderId);
 	}
 	public void cancelAllOrders() {
-		twsAPIRateControl();
+		_rateLimiter.submit(Priority.CANCEL, () -> _api.cancelAllOrders());
 		recordOperationHistory("cancelAllOrders");
-		_api.cancelAllOrders();
 	}
 	public void reqContractDetails( Contract contract, final IContractDetailsHandler processor) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.REFERENCE);
 		recordOperationHistory("reqContractDetails");
 		_api.reqContractDetails(contract, processor);
 	}
 	public void reqContractDetailsToRedis(Contract contract, final ContractDetailsHandler processor, Long id) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.REFERENCE);
 		recordOperationHistory("reqContractDetailsToRedis");
 		_api.reqContractDetailsToRedis(contract, processor, id);
 	}
 	public void reqAccountSummary(String group, AccountSummaryTag[] tags, ApiController.IAccountSummaryHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.SUBSCRIBE);
 		recordOperationHistory("reqAccountSummary:");
 		_api.reqAccountSummary(group, tags, handler);
 	}
 	public void cancelAccountSummary(ApiController.IAccountSummaryHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.SUBSCRIBE);
 		recordOperationHistory("cancelAccountSummary:");
 		_api.cancelAccountSummary(handler);
 	}
 	public  void reqOptionVolatility(Contract c, double optPrice, double underPrice, IOptHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.REFERENCE);
 		recordOperationHistory("reqOptionVolatility");
 		_api.reqOptionVolatility(c, optPrice, underPrice, handler);
 	}
 	public  void reqOptionComputation(Contract c, double vol, double underPrice, IOptHandler handler) {
-		twsAPIRateControl();
+		twsAPIRateControl(Priority.REFERENCE);
 		recordOperationHistory("reqOptionComputation");
 		_api.reqOptionComputation(c, vol, underPrice, handler);
 	}
@@ -2,15 +2,17 @@ package com.avalok.ib.handler;
 
 import static com.bitex.util.DebugUtil.*;
 
-import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import com.bitex.util.JsonWriter;
 import com.bitex.util.Redis;
+import com.bitex.util.RedisWriter;
 
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.*;
 import java.util.function.Consumer;
 
-import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
 
 import com.avalok.ib.IBContract;
@@ -52,7 +54,7 @@ import com.ib.controller.ApiController.ITradeReportHandler;
 public class AllOrderHandler implements ILiveOrderHandler,ICompletedOrdersHandler,ITradeReportHandler {
 	private final GatewayController _ibController;
 	public final String _twsName;
-	protected OrderCache _allOrders = new OrderCache();
+	protected final OrderCache _allOrders = new OrderCache(); // Kept across reconnects
 	protected static ConcurrentHashMap<String, String> KNOWN_EXCHANGES = new ConcurrentHashMap<>();
 	public AllOrderHandler(GatewayController ibController) {
 		_ibController = ibController;
@@ -66,7 +68,43 @@ public class AllOrderHandler implements ILiveOrderHandler,ICompletedOrdersHandle
 	public IBOrder orderByOMSId(String id) {
 		return _allOrders.byOMSId(id);
 	}
-	
+
+	public IBOrder orderByPermId(int permId) {
+		return _allOrders.byPermId(permId);
+	}
+
+	/** Alive orders of contract conid, of every account when account is null. */
+	public List<IBOrder> aliveOrders(int conid, String account) {
+		List<IBOrder> list = _allOrders.byConid(conid, true);
+		if (account != null) list.removeIf(o -> !account.equals(o.account()));
+		return list;
+	}
+
+	/** Alive orders of contract pair, for contracts without conid. */
+	public List<IBOrder> aliveOrders(String pair, String account) {
+		List<IBOrder> list = account == null ? _allOrders.byStatus(true) : _allOrders.byAccount(account, true);
+		list.removeIf(o -> !pair.equals(o.contract.pair()));
+		return list;
+	}
+
+	/** Alive or dead orders of contract conid (0 for any) and account (null for any). */
+	public List<IBOrder> orders(int conid, String account, boolean alive) {
+		List<IBOrder> list;
+		if (conid != 0) {
+			list = _allOrders.byConid(conid, alive);
+			if (account != null) list.removeIf(o -> !account.equals(o.account()));
+		} else if (account != null) {
+			list = _allOrders.byAccount(account, alive);
+		} else {
+			list = _allOrders.byStatus(alive);
+		}
+		return list;
+	}
+
+	public JSONObject cacheStats() {
+		return _allOrders.stats();
+	}
+
 	public void writeToCacheAndOMS(IBOrder o) {
 		String ex = o.contract.exchange();
 		if (KNOWN_EXCHANGES.containsKey(ex) == false) { // New exchange order received, mark its OMS status.
@@ -74,7 +112,7 @@ public class AllOrderHandler implements ILiveOrderHandler,ICompletedOrdersHandle
 			for (String acc : _ibController.accountList()) {
 				String k = "URANUS:"+ex+":"+acc+":OMS";
 				info("Mark OMS started " + k);
-				Redis.set(k, "1");
+				Redis.WRITER.set(RedisWriter.Kind.ORDER, k, "1");
 			}
 		}
 		_allOrders.recOrder(o);
@@ -82,49 +120,68 @@ public class AllOrderHandler implements ILiveOrderHandler,ICompletedOrdersHandle
 			warn("_omsInit is false, don't hurry to write until _omsInit");
 			return;
 		}
-		Redis.exec(new Consumer<Jedis>() {
-			@Override
-			public void accept(Jedis r) { writeOMS(r, o); }
-		});
+		// hdel, hset and publish go out in one pipeline, the caller never waits for Redis.
+		Redis.WRITER.submit(RedisWriter.Kind.ORDER, writeOMS(o));
 	}
 	
+	// This SMART exchange would make a wrong OMS hashmap name
+	// Make real OMS hashmap data missing.
+	private static IBOrder omsOrder(IBOrder o) {
+		if (o.contract.exchange().equals("SMART")) {
+			IBOrder real_o = o.cloneWithRealExchange();
+			if (real_o != null) return real_o;
+		}
+		return o;
+	}
+
+	/** JSON array of order_json as in the OMS hashmaps, orders without status yet are left out. */
+	public String ordersJSON(List<IBOrder> orders) {
+		JsonWriter w = JsonWriter.local().beginArray();
+		for (IBOrder o : orders)
+			if (o.hasStatus())
+				omsOrder(o).writeOMSJSON(w);
+		return w.endArray().toString();
+	}
+
 	/**
 	 * Write to hset "URANUS:"+ibc.exchange()+":"+o.account()+":O:"+ibc.pair()
 	 * Also publish at channel "URANUS:"+ibc.exchange()+":"+o.account()+":O_channel"
+	 * JSON is built now on the calling thread, the returned commands only send the bytes.
 	 */
-	private void writeOMS(Jedis t, IBOrder o) {
-		// This SMART exchange would make a wrong OMS hashmap name
-		// Make real OMS hashmap data missing.
+	private Consumer<Pipeline> writeOMS(IBOrder o) {
+		o = omsOrder(o);
 		IBContract ibc = o.contract;
-		if (ibc.exchange().equals("SMART")) {
-			IBOrder real_o = o.cloneWithRealExchange();
-			if (real_o != null) {
-				o = real_o;
-				ibc = o.contract;
-			}
-		}
 
 		String timeStr = "" + System.currentTimeMillis();
-		JSONObject j = o.toOMSJSON();
-		String jstr = JSON.toJSONString(j);
-		JSONObject pubJ = new JSONObject();
+		JsonWriter w = JsonWriter.local();
+		byte[] json = o.writeOMSJSON(w).toBytes();
 		String hmap = "URANUS:"+ibc.exchange()+":"+o.account()+":O:"+ibc.pair();
 		String pubChannel = "URANUS:"+ibc.exchange()+":"+o.account()+":O_channel";
 		String hmapShort = "URANUS:"+ibc.exchange()+":"+o.account()+":O:";
-		t.hdel(hmap, "0"); // Clear historical remained trash, could delete this after stable version released.
+		String id = null;
 		if (o.omsClientOID() != null) {
 			log(">>> OMS " + hmapShort + " / " + o.omsClientOID() + "\n" + o);
-			t.hset(hmap, o.omsClientOID(), jstr);
-			pubJ.put(o.omsClientOID(), jstr);
+			id = o.omsClientOID();
 		} else if (o.omsAltId() != null) {
 			log(">>> OMS " + hmapShort + " / " + o.omsAltId() + "\n" + o);
-			t.hset(hmap, o.omsAltId(), jstr);
-			pubJ.put(o.omsAltId(), jstr);
+			id = o.omsAltId();
 		} else {
 			warn(">>> OMS " + hmapShort + " / ????? skip order with no ID\n" + o);
 		}
-		t.hset(hmap, "t", timeStr); // Mark latest updated timestamp.
-		t.publish(pubChannel, JSON.toJSONString(pubJ));
+		// { id -> order_json as a string }
+		w.reset().beginObject();
+		if (id != null)
+			w.name(id).value(json, 0, json.length);
+		byte[] pub = w.endObject().toBytes();
+		byte[] hmapKey = hmap.getBytes(StandardCharsets.UTF_8);
+		byte[] idKey = id == null ? null : id.getBytes(StandardCharsets.UTF_8);
+		return t -> {
+			t.hdel(hmap, "0"); // Clear historical remained trash, could delete this after stable version released.
+			if (idKey != null)
+				t.hset(hmapKey, idKey, json);
+			t.hset(hmap, "t", timeStr); // Mark latest updated timestamp.
+			t.publish(pubChannel.getBytes(StandardCharsets.UTF_8), pub);
+		};
 	}
 
 	public void teardownOMS(String reason) {
@@ -134,9 +191,12 @@ public class AllOrderHandler implements ILiveOrderHandler,ICompletedOrdersHandle
 			for (String ex: exchanges) {
 				String k = "URANUS:"+ex+":"+acc+":OMS";
 				info("Mark OMS stopped " + k);
-				Redis.del(k);
+				Redis.WRITER.del(RedisWriter.Kind.ORDER, k);
 			}
 		}
+		// Called from the shutdown hook too, the JVM must not exit before these are written.
+		if (!Redis.flush(3000))
+			err("Tear down OMS could not flush Redis writes in time");
 		err("Tear down OMS finished");
 	}
 	
@@ -325,7 +385,9 @@ public class AllOrderHandler implements ILiveOrderHandler,ICompletedOrdersHandle
 //		_aliveOrders = new OrderCache();
 		_recvCompletedOrder.clear();
 //		_deadOrders = new OrderCache();
-		_allOrders = new OrderCache();
+		// _allOrders is kept, the next snapshots update its orders in place: orders done while
+		// disconnected come again as completed orders, open ones missing from both are dropped.
+		_allOrders.beginSnapshot();
 	}
 	/**
 	 * Execute after _aliveOrderInit and _deadOrderInit becomes true.
@@ -346,44 +408,32 @@ public class AllOrderHandler implements ILiveOrderHandler,ICompletedOrdersHandle
 		}
 		_omsInit = true;
 		info("Init OMS now");
-		final Collection<IBOrder> orders = _allOrders.orders();
-		Redis.exec(new Consumer<Jedis>() {
+		for (IBOrder o : _allOrders.endSnapshot())
+			warn("Drop open order not in TWS snapshots, ended while disconnected?\n" + o);
+		final List<Consumer<Pipeline>> writes = new ArrayList<>();
+		int ct = 1;
+		for(IBOrder o : _allOrders.orders()) {
+			if (!o.hasStatus()) continue; // Written on its first status
+			writes.add(writeOMS(o));
+			KNOWN_EXCHANGES.put(o.contract.exchange(), o.contract.exchange());
+			ct += 1;
+		}
+		info("OMS init with " + ct + "  orders");
+		// Orders are written before the OMS is marked running, both as ORDER writes which keep their order.
+		Redis.WRITER.submit(RedisWriter.Kind.ORDER, new Consumer<Pipeline>() {
 			@Override
-			public void accept(Jedis r) {
-				int ct = 1;
-				for(IBOrder o : orders) {
-					writeOMS(r, o);
-					KNOWN_EXCHANGES.put(o.contract.exchange(), o.contract.exchange());
-					ct += 1;
-				}
-				info("OMS init with " + ct + "  orders");
+			public void accept(Pipeline r) {
+				for (Consumer<Pipeline> write : writes)
+					write.accept(r);
 				String[] exchanges = KNOWN_EXCHANGES.values().toArray(new String[0]);
 				for (String acc : _ibController.accountList()) {
 					for (String ex: exchanges) {
 						String k = "URANUS:"+ex+":"+acc+":OMS";
 						info("Mark OMS running " + k);
-						Redis.set(k, "1");
+						r.set(k, "1");
 					}
 				}
 			}
 		});
 	}
 }
-
-class OrderCache {
-	private Map<String, IBOrder> _orderByOMSId = new ConcurrentHashMap<>();
-	private Map<Integer, IBOrder> _orderById = new ConcurrentHashMap<>();
-	OrderCache() {}
-	void recOrders(IBOrder[] list) {
-		for (IBOrder o : list) recOrder(o);
-	}
-	void recOrder(IBOrder o) {
-		String omsId = o.omsId();
-		if (omsId != null) _orderByOMSId.put(o.omsId(), o);
-		_orderById.put(o.orderId(), o);
-		// errWithTrace("recOrder " + o.permId() + " - " + o.orderId());
-	}
-	IBOrder byId(int id) { return _orderById.get(id); }
-	IBOrder byOMSId(String id) { return _orderByOMSId.get(id); }
-	Collection<IBOrder> orders() { return _orderByOMSId.values(); }
-}
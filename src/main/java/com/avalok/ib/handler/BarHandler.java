@@ -0,0 +1,213 @@
+package com.avalok.ib.handler;
+
+import static com.bitex.util.DebugUtil.*;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.avalok.ib.IBContract;
+import com.bitex.util.JsonWriter;
+import com.bitex.util.Redis;
+import com.ib.controller.ApiController.IRealTimeBarHandler;
+import com.ib.controller.Bar;
+
+/**
+ * OHLCV bars of one contract, each bar is published on URANUS:{exchange}:{pair}:bar_{interval}_channel
+ * when it closes and kept in a ring of the last BAR_RING_SIZE (ENV, default 720) per interval.
+ * <ul>
+ * <li>5s: IB real time bars, this is their handler.</li>
+ * <li>1s, 1m, 5m: built here from the trades TopMktDataHandler and TickByTickHandler record
+ * for the same contract, by gateway receive time. Tick by tick prints win over top data
+ * ones while both come in. A bar closes on the clock even when no later trade arrives,
+ * intervals without trades have no bar.</li>
+ * </ul>
+ * Bar: {"timestamp":start in ms, "open", "high", "low", "close", "volume", "count", "wap"},
+ * named as HistoricalDataHandler does.
+ */
+public class BarHandler implements IRealTimeBarHandler {
+	private static final int RING_SIZE = Integer.parseInt(
+			System.getenv("BAR_RING_SIZE") == null ? "720" : System.getenv("BAR_RING_SIZE"));
+	private static final long CLOCK_MS = 100;
+	private static final long TBT_QUIET_MS = 10_000; // Top data trades count again after this
+	private static final ConcurrentHashMap<String, BarHandler> BY_PREFIX = new ConcurrentHashMap<>();
+
+	static {
+		new Timer("BarClock", true).scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				long now = System.currentTimeMillis();
+				for (BarHandler h : BY_PREFIX.values()) {
+					try {
+						h.closeDue(now);
+					} catch (Exception e) {
+						err("BarClock error " + e);
+					}
+				}
+			}
+		}, CLOCK_MS, CLOCK_MS);
+	}
+
+	/** Bars of one interval: the one being built and a ring of closed ones. */
+	private static class Series {
+		final String channel;
+		final long intervalMs; // 0 when IB builds the bars
+		final long[] time = new long[RING_SIZE], count = new long[RING_SIZE];
+		final double[] open = new double[RING_SIZE], high = new double[RING_SIZE], low = new double[RING_SIZE],
+				close = new double[RING_SIZE], volume = new double[RING_SIZE], wap = new double[RING_SIZE];
+		int head = 0, size = 0; // Next slot and number of closed bars
+		// Bar being built, start < 0 when there is none
+		long start = -1, n;
+		double o, h, l, c, v, pv;
+
+		Series(String prefix, String interval, long intervalMs) {
+			this.intervalMs = intervalMs;
+			channel = prefix + ":bar_" + interval + "_channel";
+		}
+
+		// True when the trade closed the previous bar, which is then the last one of the ring.
+		boolean trade(double price, double size, long t) {
+			long bucket = t - t % intervalMs;
+			boolean closed = false;
+			if (start >= 0 && bucket != start) {
+				close();
+				closed = true;
+			}
+			if (start < 0) {
+				start = bucket;
+				o = h = l = price;
+				v = pv = 0;
+				n = 0;
+			}
+			h = Math.max(h, price);
+			l = Math.min(l, price);
+			c = price;
+			v += size;
+			pv += price * size;
+			n++;
+			return closed;
+		}
+
+		boolean due(long now) {
+			return start >= 0 && now >= start + intervalMs;
+		}
+
+		void close() {
+			add(start, o, h, l, c, v, n, v > 0 ? pv / v : c);
+			start = -1;
+		}
+
+		void add(long t, double o, double h, double l, double c, double v, long n, double w) {
+			time[head] = t;
+			open[head] = o;
+			high[head] = h;
+			low[head] = l;
+			close[head] = c;
+			volume[head] = v;
+			count[head] = n;
+			wap[head] = w;
+			head = (head + 1) % RING_SIZE;
+			if (size < RING_SIZE) size++;
+		}
+
+		// i = 0 is the oldest closed bar
+		JsonWriter write(JsonWriter w, int i) {
+			int k = (head - size + i + RING_SIZE) % RING_SIZE;
+			return w.beginObject().name("timestamp").value(time[k])
+					.name("open").value(open[k]).name("high").value(high[k])
+					.name("low").value(low[k]).name("close").value(close[k])
+					.name("volume").value(volume[k]).name("count").value(count[k])
+					.name("wap").value(wap[k]).endObject();
+		}
+	}
+
+	protected final IBContract _contract;
+	private final String _prefix;
+	private final Series _1s, _5s, _1m, _5m;
+	private final Series[] _built; // Local intervals
+	private long _tbtTradeMs = 0; // Receive time of the last tick by tick print
+	private final JsonWriter _json = new JsonWriter(); // Under this handler's lock
+	private final FeedHealth _health = new FeedHealth(); // Of the IB real time bars
+
+	public BarHandler(IBContract contract) {
+		_contract = contract;
+		_prefix = "URANUS:" + contract.exchange() + ":" + contract.pair();
+		_1s = new Series(_prefix, "1s", 1000);
+		_5s = new Series(_prefix, "5s", 0);
+		_1m = new Series(_prefix, "1m", 60_000);
+		_5m = new Series(_prefix, "5m", 300_000);
+		_built = new Series[] { _1s, _1m, _5m };
+		BY_PREFIX.put(_prefix, this);
+	}
+
+	public IBContract contract() { return _contract; }
+	public FeedHealth health() { return _health; }
+
+	/** Stop building and publishing, after the real time bars are cancelled. */
+	public void stopBroadcast() {
+		BY_PREFIX.remove(_prefix, this);
+	}
+
+	/**
+	 * A trade of the contract published on the channels of prefix "URANUS:{exchange}:{pair}",
+	 * no-op without a BarHandler there.
+	 */
+	public static void trade(String prefix, double price, double size, long recvMs, boolean tickByTick) {
+		BarHandler h = BY_PREFIX.get(prefix);
+		if (h != null)
+			h.onTrade(price, size, recvMs, tickByTick);
+	}
+
+	private synchronized void onTrade(double price, double size, long recvMs, boolean tickByTick) {
+		if (tickByTick)
+			_tbtTradeMs = recvMs;
+		else if (recvMs - _tbtTradeMs < TBT_QUIET_MS)
+			return; // Same print from the tick by tick stream
+		for (Series s : _built)
+			if (s.trade(price, size, recvMs))
+				publish(s);
+	}
+
+	private synchronized void closeDue(long now) {
+		for (Series s : _built) {
+			if (s.due(now)) {
+				s.close();
+				publish(s);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void realtimeBar(Bar bar) {
+		_health.update();
+		_5s.add(bar.time() * 1000, bar.open(), bar.high(), bar.low(), bar.close(), bar.volume(), bar.count(), bar.wap());
+		publish(_5s);
+	}
+
+	// Last closed bar of s, one message per bar: never dropped as market data may be.
+	private void publish(Series s) {
+		Redis.pub(s.channel, s.write(_json.reset(), s.size - 1).toString());
+	}
+
+	/** JSON array of the last limit closed bars of interval, oldest first, null for an unknown interval. */
+	public synchronized String recent(String interval, int limit) {
+		Series s = series(interval);
+		if (s == null)
+			return null;
+		int n = Math.min(Math.max(limit, 0), s.size);
+		JsonWriter w = _json.reset().beginArray();
+		for (int i = s.size - n; i < s.size; i++)
+			s.write(w, i);
+		return w.endArray().toString();
+	}
+
+	private Series series(String interval) {
+		switch (interval) {
+		case "1s": return _1s;
+		case "5s": return _5s;
+		case "1m": return _1m;
+		case "5m": return _5m;
+		default: return null;
+		}
+	}
+}
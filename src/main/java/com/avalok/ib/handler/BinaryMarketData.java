@@ -0,0 +1,136 @@
+package com.avalok.ib.handler;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Compact binary encoding of market data messages, opt-in per subscription with
+ * "encoding":"binary", published on *_bin_channel instead of the JSON channels.
+ * See doc/binary_market_data.md for the layout, decode() is the reference decoder.
+ *
+ * Every message is a 32 byte header followed by a body, all little endian:
+ * <pre>
+ *  0 u8  version   VERSION
+ *  1 u8  type      BOOK, DELTA or TRADE
+ *  2 u16 flags     FLAG_RESET (DELTA), FLAG_SELL (TRADE)
+ *  4 i32 channelId IB conid of the contract
+ *  8 i64 seq       +1 per message on a channel
+ * 16 i64 timestamp gateway time, ms since epoch
+ * 24 u16 bidCount
+ * 26 u16 askCount
+ * 28 u32 reserved, 0
+ * </pre>
+ * BOOK and DELTA bodies are bidCount then askCount levels of (f64 price, f64 size).
+ * TRADE body is f64 price, f64 size, i64 trade time in ms.
+ */
+public class BinaryMarketData {
+	public static final int VERSION = 1;
+	public static final int BOOK = 1, DELTA = 2, TRADE = 3;
+	public static final int FLAG_RESET = 1, FLAG_SELL = 2;
+	public static final int HEADER_BYTES = 32, LEVEL_BYTES = 16, TRADE_BYTES = 24;
+
+	private static ByteBuffer header(int bodyBytes, int type, int flags, int channelId, long seq, long timestamp,
+			int bidCount, int askCount) {
+		ByteBuffer b = ByteBuffer.wrap(new byte[HEADER_BYTES + bodyBytes]).order(ByteOrder.LITTLE_ENDIAN);
+		b.put((byte) VERSION);
+		b.put((byte) type);
+		b.putShort((short) flags);
+		b.putInt(channelId);
+		b.putLong(seq);
+		b.putLong(timestamp);
+		b.putShort((short) bidCount);
+		b.putShort((short) askCount);
+		b.putInt(0);
+		return b;
+	}
+
+	/** BOOK or DELTA message. */
+	public static byte[] levels(int type, int flags, int channelId, long seq, long timestamp,
+			double[] bidPrices, double[] bidSizes, int bidCount, double[] askPrices, double[] askSizes, int askCount) {
+		ByteBuffer b = header((bidCount + askCount) * LEVEL_BYTES, type, flags, channelId, seq, timestamp, bidCount, askCount);
+		for (int i = 0; i < bidCount; i++)
+			b.putDouble(bidPrices[i]).putDouble(bidSizes[i]);
+		for (int i = 0; i < askCount; i++)
+			b.putDouble(askPrices[i]).putDouble(askSizes[i]);
+		return b.array();
+	}
+
+	public static byte[] book(int channelId, long seq, long timestamp, OrderBook book) {
+		return levels(BOOK, 0, channelId, seq, timestamp, book.bidPrices, book.bidSizes, book.bidCount,
+				book.askPrices, book.askSizes, book.askCount);
+	}
+
+	public static byte[] trade(int channelId, long seq, long timestamp, double price, double size, long tradeTime, boolean sell) {
+		ByteBuffer b = header(TRADE_BYTES, TRADE, sell ? FLAG_SELL : 0, channelId, seq, timestamp, 0, 0);
+		b.putDouble(price).putDouble(size).putLong(tradeTime);
+		return b.array();
+	}
+
+	////////////////////////////////////////////////////////////////
+	// Reference decoder
+	////////////////////////////////////////////////////////////////
+	public static class Message {
+		public int version, type, flags, channelId;
+		public long seq, timestamp;
+		public double[] bidPrices, bidSizes, askPrices, askSizes; // BOOK and DELTA
+		public double price, size; // TRADE
+		public long tradeTime; // TRADE
+
+		public boolean reset() { return (flags & FLAG_RESET) != 0; }
+		public boolean sell() { return (flags & FLAG_SELL) != 0; }
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(type == BOOK ? "BOOK" : type == DELTA ? "DELTA" : type == TRADE ? "TRADE" : "type " + type);
+			sb.append(" channel ").append(channelId).append(" seq ").append(seq).append(" t ").append(timestamp);
+			if (type == TRADE) {
+				sb.append(sell() ? " SELL " : " BUY ").append(size).append('@').append(price).append(" at ").append(tradeTime);
+				return sb.toString();
+			}
+			if (reset()) sb.append(" reset");
+			sb.append(" bids");
+			for (int i = 0; i < bidPrices.length; i++)
+				sb.append(' ').append(bidSizes[i]).append('@').append(bidPrices[i]);
+			sb.append(" asks");
+			for (int i = 0; i < askPrices.length; i++)
+				sb.append(' ').append(askSizes[i]).append('@').append(askPrices[i]);
+			return sb.toString();
+		}
+	}
+
+	public static Message decode(byte[] bytes) {
+		ByteBuffer b = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		Message m = new Message();
+		m.version = b.get() & 0xff;
+		if (m.version != VERSION)
+			throw new IllegalArgumentException("Unsupported binary market data version " + m.version);
+		m.type = b.get() & 0xff;
+		m.flags = b.getShort() & 0xffff;
+		m.channelId = b.getInt();
+		m.seq = b.getLong();
+		m.timestamp = b.getLong();
+		int bidCount = b.getShort() & 0xffff;
+		int askCount = b.getShort() & 0xffff;
+		b.getInt(); // reserved
+		if (m.type == TRADE) {
+			m.price = b.getDouble();
+			m.size = b.getDouble();
+			m.tradeTime = b.getLong();
+			return m;
+		}
+		m.bidPrices = new double[bidCount];
+		m.bidSizes = new double[bidCount];
+		for (int i = 0; i < bidCount; i++) {
+			m.bidPrices[i] = b.getDouble();
+			m.bidSizes[i] = b.getDouble();
+		}
+		m.askPrices = new double[askCount];
+		m.askSizes = new double[askCount];
+		for (int i = 0; i < askCount; i++) {
+			m.askPrices[i] = b.getDouble();
+			m.askSizes[i] = b.getDouble();
+		}
+		return m;
+	}
+}
@@ -0,0 +1,188 @@
+package com.avalok.ib.handler;
+
+import static com.bitex.util.DebugUtil.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import com.alibaba.fastjson.JSONObject;
+import com.bitex.util.Redis;
+
+/**
+ * Publishes the latest snapshot of a market data channel instead of every intermediate
+ * state. Handlers call markDirty() under their own lock after each update, the snapshot
+ * is built later, once, in one of the modes below (chosen per channel):
+ * <ul>
+ * <li>PER_BATCH: at the end of each batch of TWS messages decoded together, a DELETE +
+ * INSERT + UPDATE for one price change becomes one publish.</li>
+ * <li>interval &gt; 0: at most every interval ms, built by the publisher thread.</li>
+ * <li>EVERY_UPDATE: on every markDirty(), like before conflation existed.</li>
+ * </ul>
+ * Snapshots are written as market data through Redis.WRITER, never on the calling thread.
+ * A snapshot still waiting in the writer is replaced by the next one of its channel.
+ * Channels registered as streams, deltas and trades, carry new data in each message and
+ * are written one by one.
+ */
+public class ConflatingPublisher {
+	public static final long PER_BATCH = 0;
+	public static final long EVERY_UPDATE = -1;
+	public static final ConflatingPublisher instance = new ConflatingPublisher();
+
+	public class Channel {
+		public final String name;
+		private final byte[] _nameBytes;
+		private final Object _lock;
+		private final Supplier<?> _snapshot; // String or byte[]
+		public final long intervalMs;
+		private final boolean _stream; // Each message has new data, none supersedes another
+		private volatile boolean _dirty = false;
+		private long _lastPublishMs = 0; // Publisher thread only
+		private volatile long _marks = 0, _snapshots = 0; // Each written by one thread
+
+		private Channel(String name, Object lock, Supplier<?> snapshot, long intervalMs, boolean stream) {
+			this.name = name;
+			_stream = stream;
+			_nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			_lock = lock;
+			_snapshot = snapshot;
+			this.intervalMs = intervalMs;
+		}
+
+		/** Called by the handler while holding its lock. */
+		public void markDirty() {
+			_marks++;
+			if (intervalMs == EVERY_UPDATE) {
+				enqueue(this, takeSnapshot());
+			} else if (!_dirty) {
+				_dirty = true;
+				if (intervalMs == PER_BATCH)
+					_dirtyBatch.add(this);
+				else
+					LockSupport.unpark(_thread); // Let it schedule the next due time
+			}
+		}
+
+		// Caller holds _lock, or is the thread that updates the channel.
+		private Object takeSnapshot() {
+			_dirty = false;
+			_snapshots++;
+			return _snapshot.get();
+		}
+
+		/** Updates that were folded into a later snapshot and never published on their own. */
+		public long droppedCount() { return _marks - _snapshots; }
+		public long publishedCount() { return _snapshots; }
+	}
+
+	private final CopyOnWriteArrayList<Channel> _channels = new CopyOnWriteArrayList<>();
+	private final Queue<Channel> _dirtyBatch = new ConcurrentLinkedQueue<>();
+	private final Thread _thread;
+	private volatile long _removedDropped = 0, _removedPublished = 0;
+
+	private ConflatingPublisher() {
+		_thread = new Thread(this::run, "ConflatingPublisher");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	/**
+	 * @param lock held by the handler while it updates the data behind snapshot
+	 * @param snapshot builds the message to publish, null to skip this one
+	 * @param intervalMs PER_BATCH, EVERY_UPDATE or a minimum interval in ms
+	 */
+	public Channel register(String name, Object lock, Supplier<String> snapshot, long intervalMs) {
+		return add(new Channel(name, lock, snapshot, intervalMs, false));
+	}
+
+	/** Same as register() for snapshots that are already encoded, JsonWriter or BinaryMarketData bytes. */
+	public Channel registerBytes(String name, Object lock, Supplier<byte[]> snapshot, long intervalMs) {
+		return add(new Channel(name, lock, snapshot, intervalMs, false));
+	}
+
+	/** Same as registerBytes() for messages that never supersede each other: deltas, trades. */
+	public Channel registerStreamBytes(String name, Object lock, Supplier<byte[]> messages, long intervalMs) {
+		return add(new Channel(name, lock, messages, intervalMs, true));
+	}
+
+	private Channel add(Channel c) {
+		_channels.add(c);
+		return c;
+	}
+
+	public void unregister(Channel c) {
+		if (c != null && _channels.remove(c)) {
+			_removedDropped += c.droppedCount();
+			_removedPublished += c.publishedCount();
+		}
+	}
+
+	/** Called by the TWS message thread after it has decoded everything it had. */
+	public void batchEnd() {
+		Channel c;
+		while ((c = _dirtyBatch.poll()) != null) {
+			Object msg;
+			synchronized (c._lock) {
+				msg = c.takeSnapshot();
+			}
+			enqueue(c, msg);
+		}
+	}
+
+	private static void enqueue(Channel c, Object msg) {
+		if (msg == null)
+			return;
+		if (c._stream)
+			Redis.pubMarketData(c._nameBytes, msg instanceof byte[] ? (byte[]) msg : ((String) msg).getBytes(StandardCharsets.UTF_8));
+		else if (msg instanceof byte[])
+			Redis.WRITER.publishLatest(c.name, c._nameBytes, (byte[]) msg);
+		else
+			Redis.WRITER.publishLatest(c.name, (String) msg);
+	}
+
+	/** {channels, published, dropped} over all channels, including unsubscribed ones. */
+	public JSONObject stats() {
+		long published = _removedPublished, dropped = _removedDropped;
+		for (Channel c : _channels) {
+			published += c.publishedCount();
+			dropped += c.droppedCount();
+		}
+		JSONObject j = new JSONObject();
+		j.put("channels", _channels.size());
+		j.put("published", published);
+		j.put("dropped", dropped);
+		return j;
+	}
+
+	////////////////////////////////////////////////////////////////
+	// Publisher thread, takes snapshots of interval channels when due.
+	////////////////////////////////////////////////////////////////
+	private void run() {
+		while (true) {
+			try {
+				long sleepMs = 1000;
+				long now = System.currentTimeMillis();
+				for (Channel c : _channels) {
+					if (c.intervalMs <= 0 || !c._dirty) continue;
+					long due = c._lastPublishMs + c.intervalMs;
+					if (due > now) {
+						sleepMs = Math.min(sleepMs, due - now);
+						continue;
+					}
+					Object msg;
+					synchronized (c._lock) {
+						msg = c.takeSnapshot();
+					}
+					c._lastPublishMs = now;
+					enqueue(c, msg);
+				}
+				LockSupport.parkNanos(sleepMs * 1_000_000);
+			} catch (Exception e) {
+				err("ConflatingPublisher error " + e);
+			}
+		}
+	}
+}
@@ -65,6 +65,13 @@ public class ContractDetailsHandler implements IContractDetailsHandler {
 		return null;
 	}
 
+	/** Details known already, never queries TWS. */
+	public static JSONObject cachedDetails(IBContract ibc) {
+		String key = ibc.shownName();
+		if (key == null) key = ibc.toString();
+		return KNOWN_CONTRACT_DETAILS.get(key);
+	}
+
 	protected static void queryDetails(IBContract ibc) {
 		String key = ibc.shownName();
 		log("in queryDetails, key: " + key);
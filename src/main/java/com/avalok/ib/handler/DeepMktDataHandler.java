@@ -1,18 +1,12 @@
 package com.avalok.ib.handler;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.function.Consumer;
 import java.util.concurrent.ConcurrentHashMap;
 
 import com.ib.controller.ApiController.IDeepMktDataHandler;
 
-import redis.clients.jedis.Jedis;
-
-import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 import com.avalok.ib.IBContract;
+import com.bitex.util.JsonWriter;
 import com.bitex.util.Redis;
 import com.ib.client.Types.*;
 
@@ -21,22 +15,62 @@ import static com.bitex.util.DebugUtil.*;
 public class DeepMktDataHandler implements IDeepMktDataHandler {
 	// Record last channel work timestamp.
 	public final static ConcurrentHashMap<String, Long> CHANNEL_TIME = new ConcurrentHashMap<>();
+	// Min interval of full book writes to the delta snapshot key.
+	public final static long DELTA_SNAPSHOT_MS = Long.parseLong(
+			System.getenv("ODBK_SNAPSHOT_MS") == null ? "1000" : System.getenv("ODBK_SNAPSHOT_MS"));
 	public final int max_depth = 30;
+
+	/** No depth book published on this full_odbk channel in the last second, top of book may take it. */
+	public static boolean depthIdle(String odbkChannel) {
+		Long depthT = CHANNEL_TIME.get(odbkChannel);
+		return depthT == null || depthT < System.currentTimeMillis() - 1000;
+	}
 	protected IBContract _contract;
 	protected final double multiplier;
 	protected final double marketDataSizeMultiplier;
+	protected final int channelId; // conid from contract details, BinaryMarketData channel id
 	protected final String publishODBKChannel; // Publish odbk to universal system
+	protected final String publishDeltaChannel, deltaSnapshotKey;
 	
 	protected boolean depthInited = false; // Wait until all ASK/BID filled
 	protected int _ct = 0;
-	protected List<JSONObject> asks = new ArrayList<>();
-	protected List<JSONObject> bids = new ArrayList<>();
-	protected final JSONArray odbkSnapshot = new JSONArray();
+	protected final OrderBook book = new OrderBook(max_depth);
+	protected long _lastCrossedCount = 0, _lastOutOfOrder = 0;
 
-	private Consumer<Jedis> broadcastLambda;
+	protected final long conflateMs;
+	protected final boolean broadcastFull, broadcastDelta, binary;
+	private volatile ConflatingPublisher.Channel broadcastChannel, deltaChannel;
+	private final OrderBookDelta delta = new OrderBookDelta(book);
+	private long _lastDeltaSnapshotMs = 0;
+	private long _bookSeq = 0; // Binary BOOK messages published
+	private final JsonWriter _json = new JsonWriter(4096); // Under this handler's lock
+	private final FeedHealth _health = new FeedHealth();
 	public DeepMktDataHandler(IBContract contract, boolean broadcast) {
+		this(contract, broadcast, ConflatingPublisher.PER_BATCH);
+	}
+
+	public DeepMktDataHandler(IBContract contract, boolean broadcast, long conflateMs) {
+		this(contract, broadcast, false, false, conflateMs);
+	}
+
+	/**
+	 * @param broadcastFull publish the whole book on full_odbk_channel
+	 * @param broadcastDelta publish changed levels on odbk_delta_channel, with periodic full
+	 * snapshots at key odbk_snapshot
+	 * @param binary publish BinaryMarketData messages on full_odbk_bin_channel, odbk_delta_bin_channel
+	 * and key odbk_bin_snapshot instead
+	 * @param conflateMs ConflatingPublisher.PER_BATCH, EVERY_UPDATE or min publish interval in ms
+	 */
+	public DeepMktDataHandler(IBContract contract, boolean broadcastFull, boolean broadcastDelta, boolean binary, long conflateMs) {
 		_contract = contract;
-		publishODBKChannel = "URANUS:"+contract.exchange()+":"+contract.pair()+":full_odbk_channel";
+		this.conflateMs = conflateMs;
+		this.broadcastFull = broadcastFull;
+		this.broadcastDelta = broadcastDelta;
+		this.binary = binary;
+		String prefix = "URANUS:"+contract.exchange()+":"+contract.pair();
+		publishODBKChannel = prefix + (binary ? ":full_odbk_bin_channel" : ":full_odbk_channel");
+		publishDeltaChannel = prefix + (binary ? ":odbk_delta_bin_channel" : ":odbk_delta_channel");
+		deltaSnapshotKey = prefix + (binary ? ":odbk_bin_snapshot" : ":odbk_snapshot");
 		if (contract.multiplier() == null)
 			multiplier = 1;
 		else
@@ -45,28 +79,82 @@ public class DeepMktDataHandler implements IDeepMktDataHandler {
 			JSONObject contractDetail = ContractDetailsHandler.findDetails(contract);
 			if (contractDetail != null) {
 				marketDataSizeMultiplier = contractDetail.getIntValue("mdSizeMultiplier");
+				channelId = contractDetail.getJSONObject("contract").getIntValue("conid");
 				break;
 			}
 			log("wait for contract details " + publishODBKChannel);
 			sleep(1);
 		}
-		// Pre-build snapshot
-		odbkSnapshot.add(bids);
-		odbkSnapshot.add(asks);
-		odbkSnapshot.add(0); // Timestamp
-		// Pre-build broadcast lambda.
-		if (broadcast) {
-			broadcastLambda = new Consumer<Jedis> () {
-				@Override
-				public void accept(Jedis t) {
-					CHANNEL_TIME.put(publishODBKChannel, System.currentTimeMillis());
-					t.publish(publishODBKChannel, JSON.toJSONString(odbkSnapshot));
-				}
-			};
+		// Snapshots are built by the publisher, under this handler's lock.
+		ConflatingPublisher p = ConflatingPublisher.instance;
+		if (broadcastFull && binary) {
+			broadcastChannel = p.registerBytes(publishODBKChannel, this, () -> {
+				long now = System.currentTimeMillis();
+				CHANNEL_TIME.put(publishODBKChannel, now);
+				return BinaryMarketData.book(channelId, ++_bookSeq, now, book);
+			}, conflateMs);
+		} else if (broadcastFull) {
+			broadcastChannel = p.registerBytes(publishODBKChannel, this, () -> {
+				long now = System.currentTimeMillis();
+				CHANNEL_TIME.put(publishODBKChannel, now);
+				return book.writeJSON(_json.reset(), now).toBytes();
+			}, conflateMs);
+		}
+		if (broadcastDelta && binary) {
+			deltaChannel = p.registerStreamBytes(publishDeltaChannel, this, () -> {
+				long now = nextDelta();
+				return now == 0 ? null : delta.toBinary(channelId, now);
+			}, conflateMs);
+		} else if (broadcastDelta) {
+			deltaChannel = p.registerStreamBytes(publishDeltaChannel, this, () -> {
+				long now = nextDelta();
+				return now == 0 ? null : delta.writeJSON(_json.reset(), now).toBytes();
+			}, conflateMs);
 		}
 	}
-	
+
+	// Under this handler's lock, returns the delta timestamp or 0 without any change.
+	// The snapshot is written before the delta it includes is published, both go through
+	// the same writer queue so a subscriber never sees the snapshot behind.
+	private long nextDelta() {
+		long now = System.currentTimeMillis();
+		CHANNEL_TIME.put(publishDeltaChannel, now);
+		if (!delta.next())
+			return 0;
+		if (now - _lastDeltaSnapshotMs >= DELTA_SNAPSHOT_MS || delta.reset()) {
+			_lastDeltaSnapshotMs = now;
+			byte[] snapshot;
+			if (binary) {
+				snapshot = BinaryMarketData.book(channelId, delta.seq(), now, book);
+			} else {
+				_json.reset().beginObject().name("seq").value(delta.seq()).name("data");
+				snapshot = book.writeJSON(_json, now).endObject().toBytes();
+			}
+			Redis.WRITER.setLatest(deltaSnapshotKey, snapshot);
+		}
+		return now;
+	}
+
+	/** Stop publishing, after the subscription is cancelled. */
+	public void stopBroadcast() {
+		ConflatingPublisher.instance.unregister(broadcastChannel);
+		ConflatingPublisher.instance.unregister(deltaChannel);
+		broadcastChannel = null;
+		deltaChannel = null;
+	}
+
 	public IBContract contract() { return _contract; }
+	public long conflateMs() { return conflateMs; }
+	public boolean broadcastFull() { return broadcastFull; }
+	public boolean broadcastDelta() { return broadcastDelta; }
+	public boolean binary() { return binary; }
+	/** Intermediate book states that were never published, 0 without broadcast. */
+	public long droppedCount() {
+		ConflatingPublisher.Channel c = broadcastChannel != null ? broadcastChannel : deltaChannel;
+		return c == null ? 0 : c.droppedCount();
+	}
+	public OrderBook book() { return book; }
+	public FeedHealth health() { return _health; }
 
 	private double fixIbondSizeBug(double size){
 		// From ib received "IBOND" depth size is wrong
@@ -93,75 +181,54 @@ public class DeepMktDataHandler implements IDeepMktDataHandler {
 	}
 
 	@Override
-	public void updateMktDepth(int pos, String mm, DeepType operation, DeepSide side, double price, int size_in_lot) {
+	public synchronized void updateMktDepth(int pos, String mm, DeepType operation, DeepSide side, double price, int size_in_lot) {
+		_health.update();
 		if (pos >= max_depth) return;
 		if (_ct == 0)
 			log(">>> broadcast depth " + publishODBKChannel);
 		_ct += 1;
-		Double size;
+		double size;
 		if (_contract.exchange().equals("SEHK") || _contract.exchange().equals("HKFE")){
 			size = fixIbondSizeBug(size_in_lot);
 		} else {
 			size = size_in_lot * multiplier * marketDataSizeMultiplier;
 		}
-		JSONObject o = null;
+		boolean applied;
 		if (operation == DeepType.INSERT) {
 			depthInited = false;
-			o = new JSONObject();
-			o.put("p", price);
-			o.put("s", size);
-			if (side == DeepSide.BUY) {
-				if (bids.size() >= pos)
-					bids.add(pos, o);
-				else
-					return;
-			} else {
-				if (asks.size() >= pos)
-					asks.add(pos, o);
-				else
-					return;
-			}
+			applied = book.insert(side, pos, price, size);
 		} else if (operation == DeepType.UPDATE) {
-			// Reuse o from asks/bids
 			depthInited = true;
-			if (side == DeepSide.BUY) {
-				if (bids.size() > pos)
-					o = bids.get(pos);
-				else
-					return;
-			} else {
-				if (asks.size() > pos)
-					o = asks.get(pos);
-				else
-					return;
-			}
-			o.put("p", price);
-			o.put("s", size);
+			applied = book.update(side, pos, price, size);
 		} else if (operation == DeepType.DELETE) {
 			depthInited = true;
-			if (side == DeepSide.BUY) {
-				if (bids.size() > pos)
-					bids.remove(pos);
-			} else {
-				if (asks.size() > pos)
-					asks.remove(pos);
-			}
+			applied = book.delete(side, pos);
 		} else {
 			log("Error DeepType " + pos + " " + side + " " + operation + " " + price + " " + size);
 			return;
 		}
-		// Debug
-//		if (pos < 3 && depthInited) {
-//			log(_contract.shownName() + "------------------------------------------" + bids.size());
-//			for (int i = 0; i < 3; i++)
-//				if (asks.size() > i && bids.size() > i)
-//					log(_contract.shownName() + "[" + i + "]" + bids.get(i).getIntValue("s") + " "
-//							+ bids.get(i).getDoubleValue("p") + " --- " + asks.get(i).getDoubleValue("p") + " "
-//							+ asks.get(i).getIntValue("s"));
-//		}
-		if (depthInited && broadcastLambda != null) {
-			odbkSnapshot.set(2, System.currentTimeMillis());
-			Redis.exec(broadcastLambda);
+		checkConsistency();
+		if (!applied) {
+			_health.gap(); // Missed the update that made the position
+			return;
+		}
+		if (!depthInited)
+			return;
+		ConflatingPublisher.Channel c = broadcastChannel, d = deltaChannel;
+		if (c != null) c.markDirty();
+		if (d != null) d.markDirty();
+	}
+
+	// Warn once when the book turns crossed or an update misses its position, not on every update.
+	private void checkConsistency() {
+		if (book.crossedCount() != _lastCrossedCount) {
+			_lastCrossedCount = book.crossedCount();
+			warn(publishODBKChannel + " crossed book #" + _lastCrossedCount + " " + book);
+		}
+		if (book.outOfOrderCount() != _lastOutOfOrder) {
+			if (_lastOutOfOrder == 0 || book.outOfOrderCount() % 1000 == 0)
+				warn(publishODBKChannel + " out of order depth update, total " + book.outOfOrderCount() + " " + book);
+			_lastOutOfOrder = book.outOfOrderCount();
 		}
 	}
 }
@@ -0,0 +1,26 @@
+package com.avalok.ib.handler;
+
+/**
+ * Liveness counters of one market data subscription. Written by its handler on the TWS
+ * message thread, read by FeedMonitor from its own.
+ */
+public class FeedHealth {
+	public final long createdMs = System.currentTimeMillis();
+	private volatile long _lastMs = 0, _updates = 0, _gaps = 0; // Each written by one thread
+
+	/** A message of the subscription arrived. */
+	public void update() {
+		_lastMs = System.currentTimeMillis();
+		_updates++;
+	}
+
+	/** A message was lost or the data had to be reset, e.g. a depth update at a missing position. */
+	public void gap() {
+		_gaps++;
+	}
+
+	/** Time of the last message, 0 before the first one. */
+	public long lastMs() { return _lastMs; }
+	public long updates() { return _updates; }
+	public long gaps() { return _gaps; }
+}
@@ -1,17 +1,13 @@
 package com.avalok.ib.handler;
 
-import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 import com.avalok.ib.IBContract;
+import com.bitex.util.JsonWriter;
 import com.bitex.util.Redis;
 import com.ib.client.Contract;
 import com.ib.client.TickAttrib;
 import com.ib.client.TickType;
 import com.ib.controller.ApiController.IOptHandler;
-import redis.clients.jedis.Jedis;
-
-import java.util.function.Consumer;
 
 import static com.bitex.util.DebugUtil.*;
 
@@ -21,26 +17,41 @@ public class OptionTopMktDataHandler implements IOptHandler{
     protected IBContract _contract;
     protected final double multiplier;
     protected final double marketDataSizeMultiplier;
+    protected final int channelId; // conid from contract details, BinaryMarketData channel id
     protected final String publishODBKChannel; // Publish odbk to universal system
     protected final String publishTickChannel; // Publish odbk to universal system
-    protected final JSONArray topDataSnapshot = new JSONArray();
-    protected final JSONObject[] topAsks = new JSONObject[] {new JSONObject()};
-    protected final JSONObject[] topBids = new JSONObject[] {new JSONObject()};
+    protected Double bidSize, askSize; // Top of book with bidPrice and askPrice, null until received
     protected boolean topDataInited = false; // Wait until all ASK/BID filled
 
-    protected final JSONArray newTicksData = new JSONArray();
-    protected final JSONArray newTicks = new JSONArray();
     // Wait until tickSnapshotEnd(), This function suddenly does not work any more. 20200514
     // protected boolean tickDataInited = false;
     protected boolean tickDataInited = true;
 
-    private Consumer<Jedis> broadcastTopLambda;
-    private Consumer<Jedis> broadcastTickLambda;
+    protected final long conflateMs;
+    protected final boolean binary;
+    private volatile ConflatingPublisher.Channel broadcastTopChannel;
+    private volatile ConflatingPublisher.Channel broadcastTickChannel;
+    private long _topSeq = 0, _tradeSeq = 0; // Binary messages published
+    private final JsonWriter _json = new JsonWriter(); // Under this handler's lock
 
     public OptionTopMktDataHandler(IBContract contract, boolean broadcastTop, boolean broadcastTick) {
+        this(contract, broadcastTop, broadcastTick, ConflatingPublisher.PER_BATCH);
+    }
+
+    public OptionTopMktDataHandler(IBContract contract, boolean broadcastTop, boolean broadcastTick, long conflateMs) {
+        this(contract, broadcastTop, broadcastTick, false, conflateMs);
+    }
+
+    /**
+     * @param binary publish BinaryMarketData messages on full_odbk_bin_channel and full_tick_bin_channel instead
+     * @param conflateMs ConflatingPublisher.PER_BATCH, EVERY_UPDATE or min publish interval in ms for the odbk channel
+     */
+    public OptionTopMktDataHandler(IBContract contract, boolean broadcastTop, boolean broadcastTick, boolean binary, long conflateMs) {
         _contract = contract;
-        publishODBKChannel = "URANUS:"+contract.exchange()+":"+contract.pair()+":full_odbk_channel";
-        publishTickChannel = "URANUS:"+contract.exchange()+":"+contract.pair()+":full_tick_channel";
+        this.conflateMs = conflateMs;
+        this.binary = binary;
+        publishODBKChannel = "URANUS:"+contract.exchange()+":"+contract.pair()+(binary ? ":full_odbk_bin_channel" : ":full_odbk_channel");
+        publishTickChannel = "URANUS:"+contract.exchange()+":"+contract.pair()+(binary ? ":full_tick_bin_channel" : ":full_tick_channel");
         if (contract.multiplier() == null)
             multiplier = 1;
         else
@@ -50,6 +61,7 @@ public class OptionTopMktDataHandler implements IOptHandler{
             JSONObject contractDetail = ContractDetailsHandler.findDetails(contract);
             if (contractDetail != null) {
                 marketDataSizeMultiplier = contractDetail.getIntValue("mdSizeMultiplier");
+                channelId = contractDetail.getJSONObject("contract").getIntValue("conid");
                 break;
             }
 			if (t0 < System.currentTimeMillis() - 2000) {
@@ -61,53 +73,100 @@ public class OptionTopMktDataHandler implements IOptHandler{
 					info("WARNING!! FIX _contract.exchange FROM"+ _contract.exchange() + " to SMART");
 					_contract = smartIbc;
 					marketDataSizeMultiplier = smartContractDetail.getIntValue("mdSizeMultiplier");
+					channelId = smartContractDetail.getJSONObject("contract").getIntValue("conid");
 					break;
 				}
 			}
             log("wait for contract details " + publishODBKChannel);
             sleep(200);
         }
-        // Pre-build snapshot
-        topDataSnapshot.add(topBids);
-        topDataSnapshot.add(topAsks);
-        topDataSnapshot.add(0); // Timestamp
-        // Pre-build broadcast lambda.
-        if (broadcastTop) {
-            broadcastTopLambda = new Consumer<Jedis> () {
-                @Override
-                public void accept(Jedis t) {
-                    topDataSnapshot.set(2, System.currentTimeMillis());
-                    // Dont do this when same depth handler is working.
-                    Long depthT = DeepMktDataHandler.CHANNEL_TIME.get(publishODBKChannel);
-                    if (depthT == null || depthT < System.currentTimeMillis() - 1000) {
-                        if (_debug)
-                            warn("Publish to " + publishODBKChannel);
-                        t.publish(publishODBKChannel, JSON.toJSONString(topDataSnapshot));
-                    } else if (_debug)
-                        warn("Dont publish to " + publishODBKChannel);
-                }
-            };
+        // Snapshots are built by the publisher, under this handler's lock.
+        if (broadcastTop && binary) {
+            broadcastTopChannel = ConflatingPublisher.instance.registerBytes(publishODBKChannel, this,
+                    () -> depthIdle() ? topBinary(System.currentTimeMillis()) : null, conflateMs);
+        } else if (broadcastTop) {
+            broadcastTopChannel = ConflatingPublisher.instance.registerBytes(publishODBKChannel, this, () -> {
+                return depthIdle() ? writeTopJSON(_json.reset(), System.currentTimeMillis()).toBytes() : null;
+            }, conflateMs);
         }
 
-        // Pre-build tick data.
-        newTicks.add(new JSONObject());
-        newTicksData.add(newTicks);
-        newTicksData.add(0); // Timestamp
-        // Pre-build broadcast lambda.
-        if (broadcastTop) {
-            broadcastTickLambda = new Consumer<Jedis>() {
-                @Override
-                public void accept(Jedis t) {
-                    if (_debug)
-                        warn("Publish to " + publishTickChannel);
-                    t.publish(publishTickChannel, JSON.toJSONString(newTicksData));
-                }
-            };
+        // Every trade is published, the channel only moves Redis I/O off the TWS thread.
+        if (broadcastTop && binary) {
+            broadcastTickChannel = ConflatingPublisher.instance.registerStreamBytes(publishTickChannel, this, () -> {
+                if (_debug)
+                    warn("Publish to " + publishTickChannel);
+                return BinaryMarketData.trade(channelId, ++_tradeSeq, _tradeRecvTime, _tradePrice, _tradeSize, _tradeTime, _tradeSell);
+            }, ConflatingPublisher.EVERY_UPDATE);
+        } else if (broadcastTop) {
+            broadcastTickChannel = ConflatingPublisher.instance.registerStreamBytes(publishTickChannel, this, () -> {
+                if (_debug)
+                    warn("Publish to " + publishTickChannel);
+                return writeTradeJSON(_json.reset()).toBytes();
+            }, ConflatingPublisher.EVERY_UPDATE);
         }
 
     }
 
     public IBContract contract() { return _contract; }
+    public long conflateMs() { return conflateMs; }
+    public boolean binary() { return binary; }
+    /** Top of book states that were never published, 0 without broadcast. */
+    public long droppedCount() {
+        ConflatingPublisher.Channel c = broadcastTopChannel;
+        return c == null ? 0 : c.droppedCount();
+    }
+
+    // Dont publish top when the depth handler of the same contract is working.
+    private boolean depthIdle() {
+        Long depthT = DeepMktDataHandler.CHANNEL_TIME.get(publishODBKChannel);
+        if (depthT == null || depthT < System.currentTimeMillis() - 1000) {
+            if (_debug)
+                warn("Publish to " + publishODBKChannel);
+            return true;
+        }
+        if (_debug)
+            warn("Dont publish to " + publishODBKChannel);
+        return false;
+    }
+
+    private byte[] topBinary(long now) {
+        int bids = bidPrice != null && bidSize != null ? 1 : 0;
+        int asks = askPrice != null && askSize != null ? 1 : 0;
+        return BinaryMarketData.levels(BinaryMarketData.BOOK, 0, channelId, ++_topSeq, now,
+                new double[] { bids == 0 ? 0 : bidPrice }, new double[] { bids == 0 ? 0 : bidSize }, bids,
+                new double[] { asks == 0 ? 0 : askPrice }, new double[] { asks == 0 ? 0 : askSize }, asks);
+    }
+
+    // [[{p,s}], [{p,s}], timestamp] as full_odbk_channel, a level lacks the fields not received yet.
+    private JsonWriter writeTopJSON(JsonWriter w, long now) {
+        w.beginArray();
+        writeTopLevel(w, bidPrice, bidSize);
+        writeTopLevel(w, askPrice, askSize);
+        return w.value(now).endArray();
+    }
+
+    private static void writeTopLevel(JsonWriter w, Double price, Double size) {
+        w.beginArray().beginObject();
+        if (price != null) w.name("p").value(price);
+        if (size != null) w.name("s").value(size);
+        w.endObject().endArray();
+    }
+
+    // [[{p,s,T,t}], timestamp] as full_tick_channel.
+    private JsonWriter writeTradeJSON(JsonWriter w) {
+        return w.beginArray().beginArray().beginObject()
+                .name("p").value(_tradePrice).name("s").value(_tradeSize)
+                .name("T").value(_tradeSell ? "SELL" : "BUY").name("t").value(_tradeTime)
+                .endObject().endArray().value(_tradeRecvTime).endArray();
+    }
+
+    /** Stop publishing, after the subscription is cancelled. */
+    public void stopBroadcast() {
+        ConflatingPublisher.instance.unregister(broadcastTopChannel);
+        ConflatingPublisher.instance.unregister(broadcastTickChannel);
+        broadcastTopChannel = null;
+        broadcastTickChannel = null;
+    }
 
     Double bidPrice, askPrice; // To determine last trade side
 
@@ -123,24 +182,25 @@ public class OptionTopMktDataHandler implements IOptHandler{
     private Long lastTickTime = 0l;
     public Double lastTickPrice = null;
     private Double lastTickSize = null;
-    private JSONObject lastTrade;
+    // Last trade, published on the tick channel
+    private double _tradePrice, _tradeSize;
+    private long _tradeTime, _tradeRecvTime;
+    private boolean _tradeSell;
 
 
     @java.lang.Override
-    public void tickPrice(TickType tickType, double price, TickAttrib attribs) {
+    public synchronized void tickPrice(TickType tickType, double price, TickAttrib attribs) {
         if (_debug)
             info(_contract.shownName() + " tickPrice() tickType " + tickType + " price " + price + " attribs " + attribs);
         switch (tickType) {
             case BID:
                 bidPrice = price;
-                topBids[0].put("p", price);
-                if (topBids[0].getDouble("s") == null) break;
+                if (bidSize == null) break;
                 if (tickDataInited) broadcastTop(false);
                 break;
             case ASK:
                 askPrice = price;
-                topAsks[0].put("p", price);
-                if (topAsks[0].getDouble("s") == null) break;
+                if (askSize == null) break;
                 if (tickDataInited) broadcastTop(false);
                 break;
             case LAST:
@@ -161,14 +221,12 @@ public class OptionTopMktDataHandler implements IOptHandler{
             // DELAYED types
             case DELAYED_BID:
                 bidPrice = price;
-                topBids[0].put("p", price);
-                if (topBids[0].getDouble("s") == null) break;
+                if (bidSize == null) break;
                 if (tickDataInited) broadcastTop(false);
                 break;
             case DELAYED_ASK:
                 askPrice = price;
-                topAsks[0].put("p", price);
-                if (topAsks[0].getDouble("s") == null) break;
+                if (askSize == null) break;
                 if (tickDataInited) broadcastTop(false);
                 break;
             case DELAYED_LAST:
@@ -191,7 +249,7 @@ public class OptionTopMktDataHandler implements IOptHandler{
     }
 
     @java.lang.Override
-    public void tickSize(TickType tickType, int size_in_lot) {
+    public synchronized void tickSize(TickType tickType, int size_in_lot) {
         Double size;
         if (_contract.exchange().equals("SEHK") || _contract.exchange().equals("HKFE")){
             size = size_in_lot * 1.0;
@@ -202,13 +260,13 @@ public class OptionTopMktDataHandler implements IOptHandler{
             info(_contract.shownName() + " tickSize() tickType " + tickType + " size " + size);
         switch (tickType) {
             case BID_SIZE:
-                topBids[0].put("s", size);
-                if (topBids[0].getDouble("p") == null) break;
+                bidSize = size;
+                if (bidPrice == null) break;
                 if (tickDataInited) broadcastTop(false);
                 break;
             case ASK_SIZE:
-                topAsks[0].put("s", size);
-                if (topAsks[0].getDouble("p") == null) break;
+                askSize = size;
+                if (askPrice == null) break;
                 if (tickDataInited) broadcastTop(false);
                 break;
             case LAST_SIZE:
@@ -231,13 +289,13 @@ public class OptionTopMktDataHandler implements IOptHandler{
             // If live data is available a request for delayed data would be ignored by TWS
             // DELAYED types
             case DELAYED_BID_SIZE:
-                topBids[0].put("s", size);
-                if (topBids[0].getDouble("p") == null) break;
+                bidSize = size;
+                if (bidPrice == null) break;
                 if (tickDataInited) broadcastTop(false);
                 break;
             case DELAYED_ASK_SIZE:
-                topAsks[0].put("s", size);
-                if (topAsks[0].getDouble("p") == null) break;
+                askSize = size;
+                if (askPrice == null) break;
                 if (tickDataInited) broadcastTop(false);
                 break;
             case DELAYED_LAST_SIZE:
@@ -263,7 +321,7 @@ public class OptionTopMktDataHandler implements IOptHandler{
     }
 
     @java.lang.Override
-    public void tickString(TickType tickType, String value) {
+    public synchronized void tickString(TickType tickType, String value) {
         if (_debug)
             info(_contract.shownName() + " tickString() tickType " + tickType + " VALUE: " + value);
         switch (tickType) {
@@ -287,7 +345,7 @@ public class OptionTopMktDataHandler implements IOptHandler{
     }
 
     @java.lang.Override
-    public void tickSnapshotEnd() {
+    public synchronized void tickSnapshotEnd() {
         // This function suddenly does not work. 20200514
         tickDataInited = true;
         broadcastTop(true);
@@ -361,12 +419,12 @@ public class OptionTopMktDataHandler implements IOptHandler{
 
     private void writeComputation(String key, JSONObject j){
     	log("Redis -> "+ key);
-        Redis.set(key, j);
+        Redis.WRITER.setLatest(key, j.toJSONString());
     }
 
     private void broadcastTop(boolean verbose) {
-        if (broadcastTopLambda != null) {
-            Redis.exec(broadcastTopLambda);
+        if (broadcastTopChannel != null) {
+            broadcastTopChannel.markDirty();
             if (verbose)
                 log(">>> broadcast top " + publishODBKChannel);
         }
@@ -380,21 +438,16 @@ public class OptionTopMktDataHandler implements IOptHandler{
                     + lastTickPrice + " lastTickSize " + lastTickSize);
             return;
         }
-        lastTrade = new JSONObject();
         // Guess last trade side by price difference.
-        if (bidPrice != null && askPrice != null) {
-            if (Math.abs(bidPrice-lastTickPrice) < Math.abs(askPrice-lastTickPrice))
-                lastTrade.put("T", "SELL");
-            else
-                lastTrade.put("T", "BUY");
-        } else
-            lastTrade.put("T", "BUY");
-        lastTrade.put("p", lastTickPrice);
-        lastTrade.put("s", lastTickSize);
-        lastTrade.put("t", lastTickTime);
-        newTicks.set(0, lastTrade);
-        newTicksData.set(1, System.currentTimeMillis());
-        if (broadcastTickLambda != null)
-            Redis.exec(broadcastTickLambda);
+        if (bidPrice != null && askPrice != null)
+            _tradeSell = Math.abs(bidPrice-lastTickPrice) < Math.abs(askPrice-lastTickPrice);
+        else
+            _tradeSell = false;
+        _tradePrice = lastTickPrice;
+        _tradeSize = lastTickSize;
+        _tradeTime = lastTickTime;
+        _tradeRecvTime = System.currentTimeMillis();
+        if (broadcastTickChannel != null)
+            broadcastTickChannel.markDirty();
     }
 }
\ No newline at end of file
@@ -0,0 +1,139 @@
+package com.avalok.ib.handler;
+
+import com.bitex.util.JsonWriter;
+import com.ib.client.Types.DeepSide;
+
+/**
+ * Fixed capacity L2 book kept in parallel primitive arrays, level 0 is the best price.
+ * IB depth updates (insert/update/delete at a position) are applied in place, nothing is
+ * allocated until a snapshot is encoded for publishing.
+ * Not thread safe, it is only touched from the TWS message thread.
+ */
+public class OrderBook {
+	public final int capacity;
+	protected final double[] bidPrices, bidSizes, askPrices, askSizes;
+	protected int bidCount = 0, askCount = 0;
+
+	protected long _seq = 0; // Applied updates
+	protected long _outOfOrder = 0; // Updates at a position the book does not have
+	protected long _crossedCount = 0; // Times the book became crossed
+	protected boolean _crossed = false;
+
+	public OrderBook(int capacity) {
+		this.capacity = capacity;
+		bidPrices = new double[capacity];
+		bidSizes = new double[capacity];
+		askPrices = new double[capacity];
+		askSizes = new double[capacity];
+	}
+
+	////////////////////////////////////////////////////////////////
+	// Updates, false when rejected as out of order.
+	////////////////////////////////////////////////////////////////
+	/** Insert at pos, levels below move down and the last one falls off a full side. */
+	public boolean insert(DeepSide side, int pos, double price, double size) {
+		boolean bid = side == DeepSide.BUY;
+		int count = bid ? bidCount : askCount;
+		if (pos > count || pos >= capacity) return outOfOrder();
+		double[] prices = bid ? bidPrices : askPrices;
+		double[] sizes = bid ? bidSizes : askSizes;
+		// Books are a few dozen levels, a loop beats two arraycopy calls
+		for (int i = Math.min(count, capacity - 1); i > pos; i--) {
+			prices[i] = prices[i - 1];
+			sizes[i] = sizes[i - 1];
+		}
+		prices[pos] = price;
+		sizes[pos] = size;
+		if (count < capacity) {
+			if (bid) bidCount++; else askCount++;
+		}
+		return applied(pos);
+	}
+
+	public boolean update(DeepSide side, int pos, double price, double size) {
+		boolean bid = side == DeepSide.BUY;
+		if (pos >= (bid ? bidCount : askCount)) return outOfOrder();
+		if (bid) {
+			bidPrices[pos] = price;
+			bidSizes[pos] = size;
+		} else {
+			askPrices[pos] = price;
+			askSizes[pos] = size;
+		}
+		return applied(pos);
+	}
+
+	public boolean delete(DeepSide side, int pos) {
+		boolean bid = side == DeepSide.BUY;
+		int count = bid ? bidCount : askCount;
+		if (pos >= count) return outOfOrder();
+		double[] prices = bid ? bidPrices : askPrices;
+		double[] sizes = bid ? bidSizes : askSizes;
+		for (int i = pos + 1; i < count; i++) {
+			prices[i - 1] = prices[i];
+			sizes[i - 1] = sizes[i];
+		}
+		if (bid) bidCount--; else askCount--;
+		return applied(pos);
+	}
+
+	public void clear() {
+		bidCount = 0;
+		askCount = 0;
+		_crossed = false;
+		_seq++;
+	}
+
+	private boolean outOfOrder() {
+		_outOfOrder++;
+		return false;
+	}
+
+	private boolean applied(int pos) {
+		_seq++;
+		// Only a change at the top can cross or uncross the book
+		if (pos == 0) {
+			boolean crossed = bidCount > 0 && askCount > 0 && bidPrices[0] >= askPrices[0];
+			if (crossed && !_crossed) _crossedCount++;
+			_crossed = crossed;
+		}
+		return true;
+	}
+
+	////////////////////////////////////////////////////////////////
+	// Read access.
+	////////////////////////////////////////////////////////////////
+	public int bidCount() { return bidCount; }
+	public int askCount() { return askCount; }
+	public double bidPrice(int i) { return bidPrices[i]; }
+	public double bidSize(int i) { return bidSizes[i]; }
+	public double askPrice(int i) { return askPrices[i]; }
+	public double askSize(int i) { return askSizes[i]; }
+	public long seq() { return _seq; }
+	public long outOfOrderCount() { return _outOfOrder; }
+	public long crossedCount() { return _crossedCount; }
+	/** Best bid at or above best ask, usually a missed update. */
+	public boolean crossed() { return _crossed; }
+
+	/** [bids, asks, timestamp] with levels as {p, s}, the full_odbk_channel format. */
+	public JsonWriter writeJSON(JsonWriter w, long timestamp) {
+		w.beginArray();
+		writeLevels(w, bidPrices, bidSizes, bidCount);
+		writeLevels(w, askPrices, askSizes, askCount);
+		return w.value(timestamp).endArray();
+	}
+
+	private static void writeLevels(JsonWriter w, double[] prices, double[] sizes, int count) {
+		w.beginArray();
+		for (int i = 0; i < count; i++)
+			w.beginObject().name("p").value(prices[i]).name("s").value(sizes[i]).endObject();
+		w.endArray();
+	}
+
+	@Override
+	public String toString() {
+		return "OrderBook seq " + _seq + " bids " + bidCount + " asks " + askCount
+				+ (bidCount > 0 ? " bid " + bidPrices[0] : "") + (askCount > 0 ? " ask " + askPrices[0] : "")
+				+ (_crossed ? " CROSSED" : "") + " outOfOrder " + _outOfOrder;
+	}
+}
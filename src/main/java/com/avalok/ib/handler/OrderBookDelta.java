@@ -0,0 +1,122 @@
+package com.avalok.ib.handler;
+
+import com.bitex.util.JsonWriter;
+
+/**
+ * Builds odbk_delta_channel messages of an OrderBook: the price levels that changed since
+ * the previous message, keyed by price rather than by IB position so an insert at the top
+ * does not resend every level below it.
+ *
+ * Message: {"seq":N, "b":[[p,s],...], "a":[[p,s],...], "t":timestamp}, plus "reset":true
+ * on the first message of a subscription. Size 0 removes the level, sizes of levels
+ * sharing a price are summed. seq goes up by 1 on every message, a gap means a message
+ * was lost and the subscriber should resync from the snapshot key.
+ *
+ * Accessed under the lock of the handler that owns the book.
+ */
+public class OrderBookDelta {
+	private final OrderBook _book;
+	// Book as of the last message
+	private final double[] _bidPrices, _bidSizes, _askPrices, _askSizes;
+	private int _bidCount = 0, _askCount = 0;
+	// Changes of the last message, a side can both gain and lose every level
+	private final double[] _bidChangePrices, _bidChangeSizes, _askChangePrices, _askChangeSizes;
+	private int _bidChanges = 0, _askChanges = 0;
+	private long _seq = 0;
+
+	public OrderBookDelta(OrderBook book) {
+		_book = book;
+		_bidPrices = new double[book.capacity];
+		_bidSizes = new double[book.capacity];
+		_askPrices = new double[book.capacity];
+		_askSizes = new double[book.capacity];
+		_bidChangePrices = new double[book.capacity * 2];
+		_bidChangeSizes = new double[book.capacity * 2];
+		_askChangePrices = new double[book.capacity * 2];
+		_askChangeSizes = new double[book.capacity * 2];
+	}
+
+	/** Seq of the last message built. */
+	public long seq() { return _seq; }
+	/** The last message is the first one, clear the book before applying it. */
+	public boolean reset() { return _seq == 1; }
+
+	/** Diff the book against the last message, false when no level changed. */
+	public boolean next() {
+		OrderBook b = _book;
+		_bidChanges = diff(_bidPrices, _bidSizes, _bidCount, b.bidPrices, b.bidSizes, b.bidCount, _bidChangePrices, _bidChangeSizes);
+		_askChanges = diff(_askPrices, _askSizes, _askCount, b.askPrices, b.askSizes, b.askCount, _askChangePrices, _askChangeSizes);
+		if (_seq > 0 && _bidChanges == 0 && _askChanges == 0)
+			return false;
+		System.arraycopy(b.bidPrices, 0, _bidPrices, 0, b.bidCount);
+		System.arraycopy(b.bidSizes, 0, _bidSizes, 0, b.bidCount);
+		System.arraycopy(b.askPrices, 0, _askPrices, 0, b.askCount);
+		System.arraycopy(b.askSizes, 0, _askSizes, 0, b.askCount);
+		_bidCount = b.bidCount;
+		_askCount = b.askCount;
+		_seq++;
+		return true;
+	}
+
+	/** The last message, after next() returned true. */
+	public JsonWriter writeJSON(JsonWriter w, long timestamp) {
+		w.beginObject().name("seq").value(_seq);
+		if (reset()) w.name("reset").value(true);
+		w.name("b");
+		writeLevels(w, _bidChangePrices, _bidChangeSizes, _bidChanges);
+		w.name("a");
+		writeLevels(w, _askChangePrices, _askChangeSizes, _askChanges);
+		return w.name("t").value(timestamp).endObject();
+	}
+
+	/** The last message in BinaryMarketData DELTA format. */
+	public byte[] toBinary(int channelId, long timestamp) {
+		return BinaryMarketData.levels(BinaryMarketData.DELTA, reset() ? BinaryMarketData.FLAG_RESET : 0, channelId, _seq, timestamp,
+				_bidChangePrices, _bidChangeSizes, _bidChanges, _askChangePrices, _askChangeSizes, _askChanges);
+	}
+
+	// Books are at most a few dozen levels deep, plain scans beat building maps.
+	private static int diff(double[] oldPrices, double[] oldSizes, int oldCount,
+			double[] prices, double[] sizes, int count, double[] changePrices, double[] changeSizes) {
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			double p = prices[i];
+			if (indexOf(prices, i, p) >= 0) continue; // Price already handled
+			double s = sizeAt(prices, sizes, count, p);
+			if (s != sizeAt(oldPrices, oldSizes, oldCount, p)) {
+				changePrices[n] = p;
+				changeSizes[n++] = s;
+			}
+		}
+		for (int i = 0; i < oldCount; i++) {
+			double p = oldPrices[i];
+			if (indexOf(oldPrices, i, p) >= 0) continue;
+			if (indexOf(prices, count, p) < 0) {
+				changePrices[n] = p;
+				changeSizes[n++] = 0;
+			}
+		}
+		return n;
+	}
+
+	private static int indexOf(double[] prices, int count, double p) {
+		for (int i = 0; i < count; i++)
+			if (prices[i] == p) return i;
+		return -1;
+	}
+
+	// Total size at price p, 0 when absent.
+	private static double sizeAt(double[] prices, double[] sizes, int count, double p) {
+		double s = 0;
+		for (int i = 0; i < count; i++)
+			if (prices[i] == p) s += sizes[i];
+		return s;
+	}
+
+	private static void writeLevels(JsonWriter w, double[] prices, double[] sizes, int count) {
+		w.beginArray();
+		for (int i = 0; i < count; i++)
+			w.beginArray().value(prices[i]).value(sizes[i]).endArray();
+		w.endArray();
+	}
+}
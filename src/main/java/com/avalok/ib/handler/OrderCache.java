@@ -0,0 +1,253 @@
+package com.avalok.ib.handler;
+
+import static com.bitex.util.DebugUtil.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.alibaba.fastjson.JSONObject;
+import com.avalok.ib.IBOrder;
+
+/**
+ * Every order AllOrderHandler has seen, kept across reconnects.
+ *
+ * An order is found by permId, else orderId, else OMS id: an order placed here has no
+ * permId until its first status, a manual TWS order has no orderId.
+ * orderIds are per API client, an orderId only finds an entry still without permId and
+ * of the same clientId. The latest IBOrder recorded for it is kept.
+ *
+ * Orders are also indexed by conid and account, each split into open and terminal ones,
+ * so open orders of a contract are a lookup. Open means not known to be dead yet,
+ * including orders that have no status so far.
+ *
+ * Reads never lock and may come from any thread. Writes are serialized, an order moving
+ * from open to terminal is added to the new set before it leaves the old one.
+ *
+ * Terminal orders are evicted ORDER_EVICT_MS (ENV, default 86400000) after they were
+ * seen terminal. Their Redis OMS entries are left as they are.
+ *
+ * On reconnect beginSnapshot() is called, open orders not recorded again by the open and
+ * completed order snapshots are dropped in endSnapshot(): they ended while disconnected
+ * and TWS no longer reports them.
+ */
+class OrderCache {
+	private static final long EVICT_MS = Long.parseLong(
+			System.getenv("ORDER_EVICT_MS") == null ? "86400000" : System.getenv("ORDER_EVICT_MS"));
+
+	// One per order, the keys it is indexed under are kept to move or drop it.
+	private static class Entry {
+		volatile IBOrder order;
+		int permId, orderId, clientId, conid;
+		String omsId, account;
+		boolean open;
+		long terminalMs;
+		int snapshot; // Last snapshot it was recorded in
+	}
+
+	// Orders of one conid or account, split by status.
+	private static class Group {
+		final Set<Entry> open = ConcurrentHashMap.newKeySet();
+		final Set<Entry> terminal = ConcurrentHashMap.newKeySet();
+
+		Set<Entry> of(boolean open) { return open ? this.open : terminal; }
+		boolean isEmpty() { return open.isEmpty() && terminal.isEmpty(); }
+	}
+
+	private final ConcurrentHashMap<Integer, Entry> _byPermId = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Integer, Entry> _byId = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Entry> _byOMSId = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Integer, Group> _byConid = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Group> _byAccount = new ConcurrentHashMap<>();
+	private final Group _all = new Group();
+	private final AtomicLong _evicted = new AtomicLong();
+	private final AtomicLong _dropped = new AtomicLong();
+	private int _snapshot = 0;
+
+	OrderCache() {
+		long period = Math.max(1000, Math.min(60_000, EVICT_MS));
+		new Timer("OrderCacheEviction", true).scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					int n = evict(System.currentTimeMillis() - EVICT_MS);
+					if (n > 0) info("Evicted " + n + " terminal orders from order cache");
+				} catch (Exception e) {
+					err("OrderCache eviction error " + e);
+				}
+			}
+		}, period, period);
+	}
+
+	void recOrders(IBOrder[] list) {
+		for (IBOrder o : list) recOrder(o);
+	}
+
+	synchronized void recOrder(IBOrder o) {
+		int permId = o.permId(), orderId = o.orderId(), clientId = o.order.clientId();
+		String omsId = o.omsId();
+		Entry e = null;
+		if (permId != 0) e = _byPermId.get(permId);
+		if (e == null && orderId != 0) {
+			e = _byId.get(orderId);
+			if (e != null && (e.permId != 0 || e.clientId != clientId)) e = null; // Another order
+		}
+		if (e == null && permId == 0 && orderId == 0 && omsId != null) e = _byOMSId.get(omsId);
+		boolean added = e == null;
+		if (added) {
+			e = new Entry();
+			e.clientId = clientId;
+		}
+		e.order = o;
+		e.snapshot = _snapshot;
+		if (permId != 0 && e.permId != permId) {
+			e.permId = permId;
+			_byPermId.put(permId, e);
+		}
+		if (orderId != 0 && e.orderId != orderId) {
+			e.orderId = orderId;
+			// Open orders of this client keep their orderId against others reusing it.
+			Entry prev = _byId.get(orderId);
+			if (prev == null || prev.clientId == clientId || !prev.open)
+				_byId.put(orderId, e);
+		}
+		if (omsId != null && !omsId.equals(e.omsId)) {
+			e.omsId = omsId;
+			_byOMSId.put(omsId, e);
+		}
+
+		int conid = o.contract.conid();
+		String account = o.account() == null ? "" : o.account();
+		boolean open = !Boolean.FALSE.equals(o.isAlive());
+		if (added) {
+			e.conid = conid;
+			e.account = account;
+			e.open = open;
+			group(_byConid, conid).of(open).add(e);
+			group(_byAccount, account).of(open).add(e);
+			_all.of(open).add(e);
+		} else {
+			if (e.conid != conid) {
+				group(_byConid, conid).of(open).add(e);
+				ungroup(_byConid, e.conid, e);
+				e.conid = conid;
+			}
+			if (!e.account.equals(account)) {
+				group(_byAccount, account).of(open).add(e);
+				ungroup(_byAccount, e.account, e);
+				e.account = account;
+			}
+			if (e.open != open) {
+				Group[] groups = { _byConid.get(conid), _byAccount.get(account), _all };
+				for (Group g : groups) g.of(open).add(e);
+				for (Group g : groups) g.of(!open).remove(e);
+				e.open = open;
+			}
+		}
+		if (!open && e.terminalMs == 0)
+			e.terminalMs = System.currentTimeMillis();
+		else if (open)
+			e.terminalMs = 0;
+	}
+
+	private static <K> Group group(ConcurrentHashMap<K, Group> index, K key) {
+		return index.computeIfAbsent(key, k -> new Group());
+	}
+
+	// Under this
+	private static <K> void ungroup(ConcurrentHashMap<K, Group> index, K key, Entry e) {
+		Group g = index.get(key);
+		if (g == null) return;
+		g.open.remove(e);
+		g.terminal.remove(e);
+		if (g.isEmpty()) index.remove(key, g);
+	}
+
+	// Drop terminal orders seen terminal before beforeMs.
+	synchronized int evict(long beforeMs) {
+		int n = 0;
+		for (Entry e : _all.terminal) {
+			if (e.terminalMs == 0 || e.terminalMs >= beforeMs) continue;
+			remove(e, _all.terminal);
+			n++;
+		}
+		_evicted.addAndGet(n);
+		return n;
+	}
+
+	// Under this
+	private void remove(Entry e, Set<Entry> all) {
+		all.remove(e);
+		ungroup(_byConid, e.conid, e);
+		ungroup(_byAccount, e.account, e);
+		if (e.permId != 0) _byPermId.remove(e.permId, e);
+		if (e.orderId != 0) _byId.remove(e.orderId, e);
+		if (e.omsId != null) _byOMSId.remove(e.omsId, e);
+	}
+
+	/** Before the open and completed order snapshots of a new connection. */
+	synchronized void beginSnapshot() {
+		_snapshot++;
+	}
+
+	/** After both snapshots: drop open orders not recorded since beginSnapshot(), returned. */
+	synchronized List<IBOrder> endSnapshot() {
+		List<IBOrder> list = new ArrayList<>();
+		for (Entry e : _all.open) {
+			if (e.snapshot == _snapshot) continue;
+			remove(e, _all.open);
+			list.add(e.order);
+		}
+		_dropped.addAndGet(list.size());
+		return list;
+	}
+
+	IBOrder byId(int id) { return order(_byId.get(id)); }
+	IBOrder byPermId(int permId) { return order(_byPermId.get(permId)); }
+	IBOrder byOMSId(String id) { return order(_byOMSId.get(id)); }
+
+	private static IBOrder order(Entry e) { return e == null ? null : e.order; }
+
+	/** Every order, with or without OMS id. */
+	List<IBOrder> orders() {
+		List<IBOrder> list = orders(_all.open);
+		list.addAll(orders(_all.terminal));
+		return list;
+	}
+
+	/** Every open or terminal order. */
+	List<IBOrder> byStatus(boolean open) { return orders(_all.of(open)); }
+
+	/** Open or terminal orders of contract conid. */
+	List<IBOrder> byConid(int conid, boolean open) {
+		Group g = _byConid.get(conid);
+		return g == null ? new ArrayList<>() : orders(g.of(open));
+	}
+
+	/** Open or terminal orders of account. */
+	List<IBOrder> byAccount(String account, boolean open) {
+		Group g = _byAccount.get(account);
+		return g == null ? new ArrayList<>() : orders(g.of(open));
+	}
+
+	private static List<IBOrder> orders(Set<Entry> entries) {
+		List<IBOrder> list = new ArrayList<>(entries.size());
+		for (Entry e : entries) list.add(e.order);
+		return list;
+	}
+
+	/** {open, terminal, conids, evicted, dropped} */
+	JSONObject stats() {
+		JSONObject j = new JSONObject();
+		j.put("open", _all.open.size());
+		j.put("terminal", _all.terminal.size());
+		j.put("conids", _byConid.size());
+		j.put("evicted", _evicted.get());
+		j.put("dropped", _dropped.get());
+		return j;
+	}
+}
@@ -5,7 +5,6 @@ import static com.bitex.util.DebugUtil.*;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Consumer;
 
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONArray;
@@ -15,8 +14,6 @@ import com.bitex.util.Redis;
 import com.ib.client.Contract;
 import com.ib.controller.ApiController.IPositionMultiHandler;
 
-import redis.clients.jedis.Jedis;
-
 /**
  * Please use AccountMVHandler, PositionHandler does not receive CASH balance.
  */
@@ -55,13 +52,7 @@ public class PositionHandler implements IPositionMultiHandler{
 			final String key = "IBGateway:"+acc+":position";
 			JSONArray pos = _data.get(acc);
 			if (pos == null) continue;
-			final String posStr = JSON.toJSONString(pos);
-			Redis.exec(new Consumer<Jedis>() {
-				@Override
-				public void accept(Jedis t) {
-					t.set(key, posStr);
-				}
-			});
+			Redis.set(key, JSON.toJSONString(pos));
 		}
 	}
 	
@@ -0,0 +1,182 @@
+package com.avalok.ib.handler;
+
+import static com.bitex.util.DebugUtil.*;
+
+import java.util.List;
+
+import com.alibaba.fastjson.JSONObject;
+import com.avalok.ib.IBContract;
+import com.bitex.util.JsonWriter;
+import com.ib.client.HistoricalTick;
+import com.ib.client.HistoricalTickBidAsk;
+import com.ib.client.HistoricalTickLast;
+import com.ib.client.TickAttribBidAsk;
+import com.ib.client.TickAttribLast;
+import com.ib.controller.ApiController.ITickByTickDataHandler;
+
+/**
+ * Tick by tick AllLast and BidAsk streams of one contract, both requests share this handler.
+ *
+ * Every print is published on full_tick_channel, like TopMktDataHandler does with its
+ * LAST/LAST_SIZE triples but without guessing which ticks belong together:
+ * [[{"p","s","T","t","x","c"}], timestamp], "x" exchange and "c" special conditions when
+ * given. Side "T" comes from the BBO stream: at or through the ask is a BUY, at or through
+ * the bid a SELL, in between the nearer side.
+ *
+ * Every BBO change is published in top of book format on full_odbk_channel, conflated
+ * like SUB_TOP, and only while no depth stream nor top data of the contract is publishing
+ * there: consumers never get two interleaved books.
+ * With binary, BinaryMarketData TRADE and BOOK messages go to the *_bin_channel instead.
+ * Prints also feed the BarHandler of the contract, if any.
+ */
+public class TickByTickHandler implements ITickByTickDataHandler {
+	public static final String ALL_LAST = "AllLast", BID_ASK = "BidAsk";
+
+	protected IBContract _contract;
+	protected final double multiplier;
+	protected final int channelId; // conid from contract details, BinaryMarketData channel id
+	protected final boolean binary;
+	protected final long conflateMs;
+	protected final String publishODBKChannel, publishTickChannel;
+	protected final String barPrefix; // BarHandler of the contract
+	private volatile ConflatingPublisher.Channel _bboChannel, _tradeChannel;
+
+	// Latest BBO, NaN until the first BidAsk tick
+	private double _bidPrice = Double.NaN, _askPrice = Double.NaN, _bidSize, _askSize;
+	// Last print
+	private double _tradePrice, _tradeSize;
+	private long _tradeTime, _tradeRecvTime;
+	private boolean _tradeSell;
+	private String _tradeExchange, _tradeConditions;
+	private long _bboSeq = 0, _tradeSeq = 0; // Binary messages published
+	private final JsonWriter _json = new JsonWriter(); // Under this handler's lock
+	private final FeedHealth _health = new FeedHealth();
+
+	/**
+	 * @param binary publish BinaryMarketData messages on full_odbk_bin_channel and full_tick_bin_channel instead
+	 * @param conflateMs ConflatingPublisher.PER_BATCH, EVERY_UPDATE or min publish interval in ms for BBO changes
+	 */
+	public TickByTickHandler(IBContract contract, boolean binary, long conflateMs) {
+		_contract = contract;
+		this.binary = binary;
+		this.conflateMs = conflateMs;
+		String prefix = "URANUS:"+contract.exchange()+":"+contract.pair();
+		barPrefix = prefix;
+		publishODBKChannel = prefix + (binary ? ":full_odbk_bin_channel" : ":full_odbk_channel");
+		publishTickChannel = prefix + (binary ? ":full_tick_bin_channel" : ":full_tick_channel");
+		if (contract.multiplier() == null)
+			multiplier = 1;
+		else
+			multiplier = Double.parseDouble(contract.multiplier());
+		while (true) {
+			JSONObject contractDetail = ContractDetailsHandler.findDetails(contract);
+			if (contractDetail != null) {
+				channelId = contractDetail.getJSONObject("contract").getIntValue("conid");
+				break;
+			}
+			log("wait for contract details " + publishTickChannel);
+			sleep(200);
+		}
+		// Snapshots are built by the publisher, under this handler's lock.
+		ConflatingPublisher p = ConflatingPublisher.instance;
+		_bboChannel = p.registerBytes(publishODBKChannel, this, () -> {
+			if (!DeepMktDataHandler.depthIdle(publishODBKChannel) || TopMktDataHandler.publishing(publishODBKChannel))
+				return null;
+			long now = System.currentTimeMillis();
+			if (binary)
+				return BinaryMarketData.levels(BinaryMarketData.BOOK, 0, channelId, ++_bboSeq, now,
+						new double[] { _bidPrice }, new double[] { _bidSize }, 1,
+						new double[] { _askPrice }, new double[] { _askSize }, 1);
+			JsonWriter w = _json.reset().beginArray();
+			w.beginArray().beginObject().name("p").value(_bidPrice).name("s").value(_bidSize).endObject().endArray();
+			w.beginArray().beginObject().name("p").value(_askPrice).name("s").value(_askSize).endObject().endArray();
+			return w.value(now).endArray().toBytes();
+		}, conflateMs);
+		// Every print is published.
+		_tradeChannel = p.registerStreamBytes(publishTickChannel, this, () -> {
+			if (binary)
+				return BinaryMarketData.trade(channelId, ++_tradeSeq, _tradeRecvTime, _tradePrice, _tradeSize, _tradeTime, _tradeSell);
+			JsonWriter w = _json.reset().beginArray().beginArray().beginObject()
+					.name("p").value(_tradePrice).name("s").value(_tradeSize)
+					.name("T").value(_tradeSell ? "SELL" : "BUY").name("t").value(_tradeTime);
+			if (_tradeExchange != null && !_tradeExchange.isEmpty())
+				w.name("x").value(_tradeExchange);
+			if (_tradeConditions != null && !_tradeConditions.isEmpty())
+				w.name("c").value(_tradeConditions);
+			return w.endObject().endArray().value(_tradeRecvTime).endArray().toBytes();
+		}, ConflatingPublisher.EVERY_UPDATE);
+	}
+
+	public IBContract contract() { return _contract; }
+	public long conflateMs() { return conflateMs; }
+	public boolean binary() { return binary; }
+	public FeedHealth health() { return _health; }
+
+	/** Stop publishing, after both requests are cancelled. */
+	public void stopBroadcast() {
+		ConflatingPublisher.instance.unregister(_bboChannel);
+		ConflatingPublisher.instance.unregister(_tradeChannel);
+		_bboChannel = null;
+		_tradeChannel = null;
+	}
+
+	private double size(int size) {
+		// Tick by tick sizes are not in mdSizeMultiplier lots
+		if (_contract.exchange().equals("SEHK") || _contract.exchange().equals("HKFE"))
+			return size;
+		return size * multiplier;
+	}
+
+	@Override
+	public synchronized void tickByTickAllLast(int reqId, int tickType, long time, double price, int size,
+			TickAttribLast tickAttribLast, String exchange, String specialConditions) {
+		_health.update();
+		if (size <= 0) return;
+		_tradePrice = price;
+		_tradeSize = size(size);
+		_tradeTime = time * 1000;
+		_tradeRecvTime = System.currentTimeMillis();
+		_tradeExchange = exchange;
+		_tradeConditions = specialConditions;
+		if (price >= _askPrice)
+			_tradeSell = false;
+		else if (price <= _bidPrice)
+			_tradeSell = true;
+		else if (!Double.isNaN(_bidPrice) && !Double.isNaN(_askPrice))
+			_tradeSell = price - _bidPrice < _askPrice - price;
+		else
+			_tradeSell = false;
+		BarHandler.trade(barPrefix, _tradePrice, _tradeSize, _tradeRecvTime, true);
+		ConflatingPublisher.Channel c = _tradeChannel;
+		if (c != null) c.markDirty();
+	}
+
+	@Override
+	public synchronized void tickByTickBidAsk(int reqId, long time, double bidPrice, double askPrice, int bidSize,
+			int askSize, TickAttribBidAsk tickAttribBidAsk) {
+		_health.update();
+		_bidPrice = bidPrice;
+		_askPrice = askPrice;
+		_bidSize = size(bidSize);
+		_askSize = size(askSize);
+		ConflatingPublisher.Channel c = _bboChannel;
+		if (c != null) c.markDirty();
+	}
+
+	@Override
+	public void tickByTickMidPoint(int reqId, long time, double midPoint) {
+	}
+
+	// Only sent when a number of historical ticks is requested, this handler asks for none.
+	@Override
+	public void tickByTickHistoricalTickAllLast(int reqId, List<HistoricalTickLast> ticks) {
+	}
+
+	@Override
+	public void tickByTickHistoricalTickBidAsk(int reqId, List<HistoricalTickBidAsk> ticks) {
+	}
+
+	@Override
+	public void tickByTickHistoricalTick(int reqId, List<HistoricalTick> ticks) {
+	}
+}
@@ -0,0 +1,508 @@
+package com.avalok.ib.sim;
+
+import static com.bitex.util.DebugUtil.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory Redis stand-in speaking RESP2, enough for Jedis and redis-cli to run the gateway
+ * offline: strings with expiry, hashes, KEYS and pub/sub with patterns. Values are kept as
+ * ISO-8859-1 strings so binary payloads survive unchanged. Single database, no persistence.
+ *
+ * Usage: RedisSim [port], default 6379.
+ */
+public class RedisSim {
+	private final int _port;
+	private final Map<String, Object> _data = new ConcurrentHashMap<>(); // String or Map<String,String>
+	private final Map<String, Long> _expireAtMs = new ConcurrentHashMap<>();
+	private final Map<String, Set<Conn>> _channels = new ConcurrentHashMap<>();
+	private final Map<String, Set<Conn>> _patterns = new ConcurrentHashMap<>();
+	private final Map<String, Pattern> _compiled = new ConcurrentHashMap<>();
+	private final AtomicLong _published = new AtomicLong();
+	private final AtomicLong _commands = new AtomicLong();
+
+	public RedisSim(int port) {
+		_port = port;
+	}
+
+	public long publishedCount() { return _published.get(); }
+	public long commandCount() { return _commands.get(); }
+
+	/** Listen in a daemon thread and return once the port is bound. */
+	public RedisSim start() throws IOException {
+		ServerSocket server = new ServerSocket(_port);
+		Thread t = new Thread(() -> {
+			int n = 0;
+			while (true) {
+				try {
+					Socket socket = server.accept();
+					socket.setTcpNoDelay(true);
+					Conn conn = new Conn(socket);
+					Thread ct = new Thread(conn, "RedisSim-" + (++n));
+					ct.setDaemon(true);
+					ct.start();
+				} catch (IOException e) {
+					err("RedisSim accept failed " + e);
+					return;
+				}
+			}
+		}, "RedisSim");
+		t.setDaemon(true);
+		t.start();
+		info("RedisSim listening on " + _port);
+		return this;
+	}
+
+	public static void main(String[] args) throws Exception {
+		RedisSim redis = new RedisSim(args.length > 0 ? Integer.parseInt(args[0]) : 6379).start();
+		long lastPub = 0, lastCmd = 0;
+		while (true) {
+			sleep(10_000);
+			long pub = redis.publishedCount(), cmd = redis.commandCount();
+			log("RedisSim commands " + cmd + " (+" + (cmd - lastCmd) + "), published " + pub + " (+" + (pub - lastPub) + ") in 10s");
+			lastPub = pub;
+			lastCmd = cmd;
+		}
+	}
+
+	////////////////////////////////////////////////////////////////
+	// Keyspace
+	////////////////////////////////////////////////////////////////
+	private Object lookup(String key) {
+		Long expireAt = _expireAtMs.get(key);
+		if (expireAt != null && expireAt <= System.currentTimeMillis()) {
+			_data.remove(key);
+			_expireAtMs.remove(key);
+			return null;
+		}
+		return _data.get(key);
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, String> hash(String key, boolean create) {
+		Object v = lookup(key);
+		if (v == null) {
+			if (!create)
+				return null;
+			Map<String, String> h = new ConcurrentHashMap<>();
+			Object prev = _data.putIfAbsent(key, h);
+			return prev == null ? h : (Map<String, String>) prev;
+		}
+		if (!(v instanceof Map))
+			throw new WrongType();
+		return (Map<String, String>) v;
+	}
+
+	private Pattern glob(String glob) {
+		return _compiled.computeIfAbsent(glob, g -> {
+			StringBuilder re = new StringBuilder();
+			for (char c : g.toCharArray()) {
+				if (c == '*') re.append(".*");
+				else if (c == '?') re.append('.');
+				else if (c == '[' || c == ']') re.append(c);
+				else re.append(Pattern.quote(String.valueOf(c)));
+			}
+			return Pattern.compile(re.toString(), Pattern.DOTALL);
+		});
+	}
+
+	private int publish(String channel, String msg) {
+		_published.incrementAndGet();
+		int receivers = 0;
+		Set<Conn> subs = _channels.get(channel);
+		if (subs != null) {
+			for (Conn c : subs)
+				if (c.push("message", channel, msg))
+					receivers++;
+		}
+		for (Map.Entry<String, Set<Conn>> e : _patterns.entrySet()) {
+			if (!glob(e.getKey()).matcher(channel).matches())
+				continue;
+			for (Conn c : e.getValue())
+				if (c.push("pmessage", e.getKey(), channel, msg))
+					receivers++;
+		}
+		return receivers;
+	}
+
+	private static class WrongType extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		WrongType() { super("WRONGTYPE Operation against a key holding the wrong kind of value"); }
+	}
+
+	////////////////////////////////////////////////////////////////
+	// Connection
+	////////////////////////////////////////////////////////////////
+	private class Conn implements Runnable {
+		private final Socket _socket;
+		private final InputStream _in;
+		private final OutputStream _out;
+		private final Set<String> _subChannels = ConcurrentHashMap.newKeySet();
+		private final Set<String> _subPatterns = ConcurrentHashMap.newKeySet();
+
+		Conn(Socket socket) throws IOException {
+			_socket = socket;
+			_in = new BufferedInputStream(socket.getInputStream());
+			_out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		@Override
+		public void run() {
+			try {
+				List<String> cmd;
+				while ((cmd = readCommand()) != null) {
+					if (cmd.isEmpty())
+						continue;
+					_commands.incrementAndGet();
+					boolean keepOpen;
+					synchronized (this) {
+						try {
+							keepOpen = execute(cmd);
+						} catch (WrongType e) {
+							writeError(e.getMessage());
+							keepOpen = true;
+						} catch (RuntimeException e) {
+							writeError("ERR " + e.getMessage());
+							keepOpen = true;
+						}
+						// Pipelined commands are answered together, flushed once the input runs dry.
+						if (_in.available() == 0)
+							_out.flush();
+					}
+					if (!keepOpen)
+						break;
+				}
+			} catch (EOFException e) {
+				// client closed
+			} catch (IOException e) {
+				// client reset
+			} finally {
+				close();
+			}
+		}
+
+		private void close() {
+			for (String ch : _subChannels)
+				unsubscribe(_channels, ch);
+			for (String p : _subPatterns)
+				unsubscribe(_patterns, p);
+			try {
+				_socket.close();
+			} catch (IOException ignored) {
+			}
+		}
+
+		private void unsubscribe(Map<String, Set<Conn>> map, String name) {
+			Set<Conn> set = map.get(name);
+			if (set != null) {
+				set.remove(this);
+				if (set.isEmpty())
+					map.remove(name, set);
+			}
+		}
+
+		/** Deliver a pub/sub message, false if this connection is gone. */
+		synchronized boolean push(String... parts) {
+			try {
+				writeArray(Arrays.asList(parts));
+				_out.flush();
+				return true;
+			} catch (IOException e) {
+				close();
+				return false;
+			}
+		}
+
+		private boolean execute(List<String> cmd) throws IOException {
+			String name = cmd.get(0).toUpperCase();
+			int argc = cmd.size() - 1;
+			boolean subscribed = !_subChannels.isEmpty() || !_subPatterns.isEmpty();
+			if (subscribed && !name.endsWith("SUBSCRIBE") && !name.equals("PING") && !name.equals("QUIT")) {
+				writeError("ERR only (P)SUBSCRIBE / (P)UNSUBSCRIBE / PING / QUIT allowed in this context");
+				return true;
+			}
+			switch (name) {
+			case "PING":
+				if (subscribed)
+					writeArray(Arrays.asList("pong", argc > 0 ? cmd.get(1) : ""));
+				else if (argc > 0)
+					writeBulk(cmd.get(1));
+				else
+					writeSimple("PONG");
+				return true;
+			case "QUIT":
+				writeSimple("OK");
+				_out.flush();
+				return false;
+			case "ECHO":
+				writeBulk(cmd.get(1));
+				return true;
+			case "AUTH":
+			case "SELECT":
+			case "CLIENT":
+			case "FLUSHALL":
+			case "FLUSHDB":
+				if (name.startsWith("FLUSH")) {
+					_data.clear();
+					_expireAtMs.clear();
+				}
+				writeSimple("OK");
+				return true;
+			case "INFO":
+				writeBulk("# Server\r\nredis_version:6.0.0\r\nredis_mode:standalone\r\n");
+				return true;
+			case "DBSIZE":
+				writeInt(_data.size());
+				return true;
+			case "GET": {
+				Object v = lookup(cmd.get(1));
+				if (v instanceof Map)
+					throw new WrongType();
+				writeBulk((String) v);
+				return true;
+			}
+			case "SET": {
+				String key = cmd.get(1);
+				Long expireAt = null;
+				boolean nx = false, xx = false;
+				for (int i = 3; i < cmd.size(); i++) {
+					String opt = cmd.get(i).toUpperCase();
+					if (opt.equals("EX")) expireAt = System.currentTimeMillis() + Long.parseLong(cmd.get(++i)) * 1000;
+					else if (opt.equals("PX")) expireAt = System.currentTimeMillis() + Long.parseLong(cmd.get(++i));
+					else if (opt.equals("NX")) nx = true;
+					else if (opt.equals("XX")) xx = true;
+				}
+				boolean exists = lookup(key) != null;
+				if ((nx && exists) || (xx && !exists)) {
+					writeBulk(null);
+					return true;
+				}
+				_data.put(key, cmd.get(2));
+				if (expireAt != null) _expireAtMs.put(key, expireAt);
+				else _expireAtMs.remove(key);
+				writeSimple("OK");
+				return true;
+			}
+			case "SETEX":
+				_data.put(cmd.get(1), cmd.get(3));
+				_expireAtMs.put(cmd.get(1), System.currentTimeMillis() + Long.parseLong(cmd.get(2)) * 1000);
+				writeSimple("OK");
+				return true;
+			case "DEL":
+			case "UNLINK": {
+				int n = 0;
+				for (String k : cmd.subList(1, cmd.size())) {
+					if (lookup(k) != null && _data.remove(k) != null)
+						n++;
+					_expireAtMs.remove(k);
+				}
+				writeInt(n);
+				return true;
+			}
+			case "EXISTS": {
+				int n = 0;
+				for (String k : cmd.subList(1, cmd.size()))
+					if (lookup(k) != null)
+						n++;
+				writeInt(n);
+				return true;
+			}
+			case "EXPIRE":
+				if (lookup(cmd.get(1)) == null) {
+					writeInt(0);
+				} else {
+					_expireAtMs.put(cmd.get(1), System.currentTimeMillis() + Long.parseLong(cmd.get(2)) * 1000);
+					writeInt(1);
+				}
+				return true;
+			case "TTL": {
+				Object v = lookup(cmd.get(1));
+				Long expireAt = _expireAtMs.get(cmd.get(1));
+				writeInt(v == null ? -2 : expireAt == null ? -1 : (expireAt - System.currentTimeMillis() + 999) / 1000);
+				return true;
+			}
+			case "KEYS": {
+				Pattern p = glob(cmd.get(1));
+				List<String> keys = new ArrayList<>();
+				for (String k : _data.keySet())
+					if (p.matcher(k).matches() && lookup(k) != null)
+						keys.add(k);
+				writeArray(keys);
+				return true;
+			}
+			case "HSET":
+			case "HMSET": {
+				Map<String, String> h = hash(cmd.get(1), true);
+				int added = 0;
+				for (int i = 2; i + 1 < cmd.size(); i += 2)
+					if (h.put(cmd.get(i), cmd.get(i + 1)) == null)
+						added++;
+				if (name.equals("HMSET")) writeSimple("OK");
+				else writeInt(added);
+				return true;
+			}
+			case "HGET": {
+				Map<String, String> h = hash(cmd.get(1), false);
+				writeBulk(h == null ? null : h.get(cmd.get(2)));
+				return true;
+			}
+			case "HDEL": {
+				Map<String, String> h = hash(cmd.get(1), false);
+				int n = 0;
+				if (h != null) {
+					for (String f : cmd.subList(2, cmd.size()))
+						if (h.remove(f) != null)
+							n++;
+					if (h.isEmpty())
+						_data.remove(cmd.get(1), h);
+				}
+				writeInt(n);
+				return true;
+			}
+			case "HLEN": {
+				Map<String, String> h = hash(cmd.get(1), false);
+				writeInt(h == null ? 0 : h.size());
+				return true;
+			}
+			case "HKEYS":
+			case "HGETALL": {
+				Map<String, String> h = hash(cmd.get(1), false);
+				List<String> out = new ArrayList<>();
+				if (h != null) {
+					for (Map.Entry<String, String> e : h.entrySet()) {
+						out.add(e.getKey());
+						if (name.equals("HGETALL"))
+							out.add(e.getValue());
+					}
+				}
+				writeArray(out);
+				return true;
+			}
+			case "PUBLISH":
+				writeInt(publish(cmd.get(1), cmd.get(2)));
+				return true;
+			case "SUBSCRIBE":
+			case "PSUBSCRIBE": {
+				boolean pattern = name.equals("PSUBSCRIBE");
+				for (String ch : cmd.subList(1, cmd.size())) {
+					(pattern ? _subPatterns : _subChannels).add(ch);
+					(pattern ? _patterns : _channels).computeIfAbsent(ch, k -> ConcurrentHashMap.newKeySet()).add(this);
+					writeSubscription(pattern ? "psubscribe" : "subscribe", ch);
+				}
+				return true;
+			}
+			case "UNSUBSCRIBE":
+			case "PUNSUBSCRIBE": {
+				boolean pattern = name.equals("PUNSUBSCRIBE");
+				Set<String> mine = pattern ? _subPatterns : _subChannels;
+				List<String> names = argc > 0 ? cmd.subList(1, cmd.size()) : new ArrayList<>(mine);
+				if (names.isEmpty())
+					writeSubscription(pattern ? "punsubscribe" : "unsubscribe", null);
+				for (String ch : names) {
+					mine.remove(ch);
+					unsubscribe(pattern ? _patterns : _channels, ch);
+					writeSubscription(pattern ? "punsubscribe" : "unsubscribe", ch);
+				}
+				return true;
+			}
+			default:
+				writeError("ERR unknown command '" + cmd.get(0) + "'");
+				return true;
+			}
+		}
+
+		////////////////////////////////////////////////////////////////
+		// RESP
+		////////////////////////////////////////////////////////////////
+		private List<String> readCommand() throws IOException {
+			int b = _in.read();
+			if (b < 0)
+				return null;
+			if (b != '*') { // inline command, e.g. from telnet
+				String line = ((char) b) + readLine();
+				List<String> words = new ArrayList<>();
+				for (String w : line.trim().split("\\s+"))
+					if (!w.isEmpty())
+						words.add(w);
+				return words;
+			}
+			int n = Integer.parseInt(readLine());
+			List<String> args = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				if (_in.read() != '$')
+					throw new IOException("protocol error, expected bulk string");
+				int len = Integer.parseInt(readLine());
+				byte[] buf = new byte[len];
+				int off = 0;
+				while (off < len) {
+					int r = _in.read(buf, off, len - off);
+					if (r < 0)
+						throw new EOFException();
+					off += r;
+				}
+				readLine(); // CRLF after the payload
+				args.add(new String(buf, StandardCharsets.ISO_8859_1));
+			}
+			return args;
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int b;
+			while ((b = _in.read()) != '\n') {
+				if (b < 0)
+					throw new EOFException();
+				if (b != '\r')
+					sb.append((char) b);
+			}
+			return sb.toString();
+		}
+
+		private void writeRaw(String s) throws IOException {
+			_out.write(s.getBytes(StandardCharsets.ISO_8859_1));
+		}
+
+		private void writeSimple(String s) throws IOException { writeRaw("+" + s + "\r\n"); }
+		private void writeError(String s) throws IOException { writeRaw("-" + s + "\r\n"); }
+		private void writeInt(long n) throws IOException { writeRaw(":" + n + "\r\n"); }
+
+		private void writeBulk(String s) throws IOException {
+			if (s == null) {
+				writeRaw("$-1\r\n");
+				return;
+			}
+			writeRaw("$" + s.length() + "\r\n");
+			writeRaw(s);
+			writeRaw("\r\n");
+		}
+
+		private void writeArray(List<String> items) throws IOException {
+			writeRaw("*" + items.size() + "\r\n");
+			for (String item : items)
+				writeBulk(item);
+		}
+
+		private void writeSubscription(String kind, String name) throws IOException {
+			writeRaw("*3\r\n");
+			writeBulk(kind);
+			writeBulk(name);
+			writeInt(_subChannels.size() + _subPatterns.size());
+		}
+	}
+}
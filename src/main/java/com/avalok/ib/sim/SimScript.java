@@ -0,0 +1,155 @@
+package com.avalok.ib.sim;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Replay script for TwsSim, a text file with one directive per line, '#' starts a comment.
+ * Frames are written as their fields separated by '|', exactly as TWS sends them without
+ * the length prefix, e.g. a tickPrice is "1|6|{top:AAPL}|1|187.5|100|0".
+ *
+ * <pre>
+ * &lt;offsetUs&gt; &lt;frame&gt;           timed frame, offset in microseconds from replay start
+ * contract &lt;symbol&gt; &lt;frame&gt;     canned contractData answer for reqContractDetails, {reqId} is substituted
+ * fill &lt;symbol|*&gt; &lt;model&gt; [qty] [delayUs]
+ *                                  immediate | partial &lt;qty&gt; | rest | reject
+ * openorder &lt;frame&gt;              openOrder template sent on placeOrder and on every status change
+ * execution &lt;frame&gt;              execDetails template sent on every fill
+ * </pre>
+ *
+ * Placeholders in frames: {top:SYM} {depth:SYM} {tbt:SYM} {tbtbidask:SYM} {bar:SYM} resolve to the client's
+ * current request id for that symbol (SYM@EXCHANGE narrows it to one exchange), frames whose
+ * subscription does not exist are skipped. Order templates see {orderId} {permId} {clientId}
+ * {account} {symbol} {action} {qty} {orderType} {lmtPrice} {status} {filled} {remaining}
+ * {avgPrice} {lastQty} {lastPrice} {execId} {time}.
+ */
+public class SimScript {
+	public static class TimedFrame {
+		public final long offsetUs;
+		public final String[] fields;
+		TimedFrame(long offsetUs, String[] fields) {
+			this.offsetUs = offsetUs;
+			this.fields = fields;
+		}
+	}
+
+	public static class FillRule {
+		public final String model;
+		public final double qty;
+		public final long delayUs;
+		FillRule(String model, double qty, long delayUs) {
+			this.model = model;
+			this.qty = qty;
+			this.delayUs = delayUs;
+		}
+	}
+
+	private static final FillRule DEFAULT_FILL = new FillRule("immediate", 0, 0);
+
+	public final List<TimedFrame> frames = new ArrayList<>();
+	public final Map<String, String[]> contracts = new HashMap<>();
+	public final Map<String, FillRule> fills = new HashMap<>();
+	public String[] openOrderTemplate = null;
+	public String[] executionTemplate = null;
+
+	public static SimScript load(String path) throws IOException {
+		SimScript script = new SimScript();
+		if (path == null)
+			return script;
+		try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.ISO_8859_1)) {
+			String line;
+			int lineNo = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNo++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				try {
+					script.parse(line);
+				} catch (RuntimeException e) {
+					throw new IOException(path + ":" + lineNo + " " + e.getMessage() + " in: " + line, e);
+				}
+			}
+		}
+		// Timed frames may be appended from several recordings, replay them in time order.
+		script.frames.sort((a, b) -> Long.compare(a.offsetUs, b.offsetUs));
+		return script;
+	}
+
+	private void parse(String line) {
+		String[] words = line.split("\\s+", 3);
+		switch (words[0]) {
+		case "contract":
+			contracts.put(words[1], fields(words[2]));
+			break;
+		case "fill":
+			String[] args = line.split("\\s+");
+			String model = args[2];
+			int next = 3;
+			double qty = 0;
+			if (model.equals("partial"))
+				qty = Double.parseDouble(args[next++]);
+			long delayUs = args.length > next ? Long.parseLong(args[next]) : 0;
+			if (!model.equals("immediate") && !model.equals("partial") && !model.equals("rest") && !model.equals("reject"))
+				throw new IllegalArgumentException("unknown fill model " + model);
+			fills.put(args[1], new FillRule(model, qty, delayUs));
+			break;
+		case "openorder":
+			openOrderTemplate = fields(line.substring(words[0].length()).trim());
+			break;
+		case "execution":
+			executionTemplate = fields(line.substring(words[0].length()).trim());
+			break;
+		default:
+			words = line.split("\\s+", 2);
+			frames.add(new TimedFrame(Long.parseLong(words[0]), fields(words[1])));
+		}
+	}
+
+	public FillRule fillRule(String symbol) {
+		FillRule rule = fills.get(symbol);
+		if (rule == null)
+			rule = fills.get("*");
+		return rule == null ? DEFAULT_FILL : rule;
+	}
+
+	static String[] fields(String frame) {
+		return frame.split("\\|", -1);
+	}
+
+	/** Replace every {name} in fields, null when lookup does not know one of the names. */
+	static String[] substitute(String[] fields, Function<String, String> lookup) {
+		String[] out = new String[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			String f = fields[i];
+			int open = f.indexOf('{');
+			if (open < 0) {
+				out[i] = f;
+				continue;
+			}
+			StringBuilder sb = new StringBuilder();
+			int pos = 0;
+			while (open >= 0) {
+				int close = f.indexOf('}', open);
+				if (close < 0)
+					break;
+				String value = lookup.apply(f.substring(open + 1, close));
+				if (value == null)
+					return null;
+				sb.append(f, pos, open).append(value);
+				pos = close + 1;
+				open = f.indexOf('{', pos);
+			}
+			out[i] = sb.append(f, pos, f.length()).toString();
+		}
+		return out;
+	}
+}
@@ -0,0 +1,505 @@
+package com.avalok.ib.sim;
+
+import static com.bitex.util.DebugUtil.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.avalok.ib.sim.SimScript.FillRule;
+import com.avalok.ib.sim.SimScript.TimedFrame;
+
+/**
+ * One API client connected to TwsSim: V100+ handshake, request bookkeeping, order fills
+ * and the replay of timed frames into this client's subscriptions.
+ */
+class SimSession implements Runnable {
+	private static final int MIN_SERVER_VER_MARKET_CAP_PRICE = 131;
+	private static final int MIN_SERVER_VER_ORDER_CONTAINER = 145;
+	private static final int REPLAY_FLUSH_FRAMES = 64;
+
+	private final TwsSim _sim;
+	private final Socket _socket;
+	private final DataInputStream _in;
+	private final DataOutputStream _out;
+	private final ScheduledExecutorService _timer;
+	private final String _name;
+	private int _serverVersion;
+	private int _clientId = -1;
+	private volatile boolean _closed = false;
+
+	// "top:AAPL" and "top:AAPL@SMART" -> request id, so replayed frames land on live subscriptions.
+	private final Map<String, Integer> _subs = new ConcurrentHashMap<>();
+	private final Map<Integer, String[]> _subKeys = new ConcurrentHashMap<>();
+	private final Map<String, Double> _lastPrice = new ConcurrentHashMap<>();
+	private final Map<Integer, SimOrder> _orders = new ConcurrentHashMap<>();
+	private final Set<Integer> _unknownMsgIds = ConcurrentHashMap.newKeySet();
+	private final Set<Integer> _depthReqs = ConcurrentHashMap.newKeySet();
+	private final Set<Integer> _tbtReqs = ConcurrentHashMap.newKeySet();
+
+	private static class SimOrder {
+		int orderId, permId;
+		String symbol, action, orderType, account;
+		double qty, lmtPrice, filled, avgPrice, lastQty, lastPrice;
+		String status = "PreSubmitted";
+		int execSeq = 0;
+		double remaining() { return qty - filled; }
+		boolean done() { return status.equals("Filled") || status.equals("Cancelled") || status.equals("Inactive"); }
+	}
+
+	SimSession(TwsSim sim, Socket socket, String name) throws IOException {
+		_sim = sim;
+		_socket = socket;
+		_name = name;
+		_in = new DataInputStream(socket.getInputStream());
+		_out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+		_timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, name + "-timer");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@Override
+	public void run() {
+		try {
+			handshake();
+			String[] fields;
+			while (!_closed && (fields = readFrame()) != null)
+				handle(fields);
+		} catch (EOFException | SocketException e) {
+			// client went away
+		} catch (Exception e) {
+			err(_name + " " + e);
+		} finally {
+			close();
+			log(_name + " client " + _clientId + " disconnected");
+		}
+	}
+
+	void close() {
+		_closed = true;
+		_timer.shutdownNow();
+		try {
+			_socket.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	////////////////////////////////////////////////////////////////
+	// Wire
+	////////////////////////////////////////////////////////////////
+	private void handshake() throws IOException {
+		byte[] prefix = new byte[4];
+		_in.readFully(prefix);
+		if (!new String(prefix, StandardCharsets.ISO_8859_1).equals("API\0"))
+			throw new IOException("not a V100+ client, prefix " + Arrays.toString(prefix));
+		String versions = readFrame()[0]; // "v100..151" optionally followed by connect options
+		String range = versions.split(" ")[0].substring(1);
+		int clientMax = Integer.parseInt(range.contains("..") ? range.substring(range.indexOf("..") + 2) : range);
+		_serverVersion = Math.min(clientMax, TwsSim.SERVER_VERSION);
+		SimpleDateFormat fmt = new SimpleDateFormat("yyyyMMdd HH:mm:ss z");
+		fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+		send(String.valueOf(_serverVersion), fmt.format(new Date()));
+		log(_name + " handshake " + versions + " -> server version " + _serverVersion);
+	}
+
+	/** Fields of the next frame, the trailing NUL does not produce an extra empty field. */
+	private String[] readFrame() throws IOException {
+		int len = _in.readInt();
+		if (len <= 0 || len > 16 * 1024 * 1024)
+			throw new IOException("bad frame length " + len);
+		byte[] buf = new byte[len];
+		_in.readFully(buf);
+		String s = new String(buf, StandardCharsets.ISO_8859_1);
+		if (s.endsWith("\0"))
+			s = s.substring(0, s.length() - 1);
+		return s.split("\0", -1);
+	}
+
+	void send(String... fields) throws IOException {
+		send(fields, true);
+	}
+
+	private void send(String[] fields, boolean flush) throws IOException {
+		int len = 0;
+		for (String f : fields)
+			len += f.length() + 1;
+		byte[] buf = new byte[len];
+		int pos = 0;
+		for (String f : fields) {
+			for (int i = 0; i < f.length(); i++)
+				buf[pos++] = (byte) f.charAt(i);
+			buf[pos++] = 0;
+		}
+		synchronized (_out) {
+			_out.writeInt(len);
+			_out.write(buf);
+			if (flush)
+				_out.flush();
+		}
+		_sim.framesOut.incrementAndGet();
+	}
+
+	private void flush() throws IOException {
+		synchronized (_out) {
+			_out.flush();
+		}
+	}
+
+	private static String num(double v) {
+		return v == (long) v ? String.valueOf((long) v) : String.valueOf(v);
+	}
+
+	////////////////////////////////////////////////////////////////
+	// Requests
+	////////////////////////////////////////////////////////////////
+	private void handle(String[] f) throws IOException {
+		int msgId = Integer.parseInt(f[0]);
+		switch (msgId) {
+		case 71: // START_API
+			_clientId = Integer.parseInt(f[2]);
+			send("15", "1", _sim.account); // managedAccounts
+			send("9", "1", String.valueOf(_sim.nextOrderId.get())); // nextValidId
+			log(_name + " client " + _clientId + " started API");
+			startReplay();
+			break;
+		case 8: // REQ_IDS
+			send("9", "1", String.valueOf(_sim.nextOrderId.get()));
+			break;
+		case 17: // REQ_MANAGED_ACCTS
+			send("15", "1", _sim.account);
+			break;
+		case 49: // REQ_CURRENT_TIME
+			send("49", "1", String.valueOf(System.currentTimeMillis() / 1000));
+			break;
+		case 1: // REQ_MKT_DATA
+			subscribe("top", Integer.parseInt(f[2]), f[4], f[10]);
+			break;
+		case 10: // REQ_MKT_DEPTH
+			int depthReqId = Integer.parseInt(f[2]);
+			if (_sim.maxDepth > 0 && _depthReqs.size() >= _sim.maxDepth) {
+				send("4", "2", String.valueOf(depthReqId), "309",
+						"Max number (" + _sim.maxDepth + ") of market depth requests has been reached");
+				break;
+			}
+			_depthReqs.add(depthReqId);
+			subscribe("depth", depthReqId, f[4], f[10]);
+			break;
+		case 50: // REQ_REAL_TIME_BARS
+			subscribe("bar", Integer.parseInt(f[2]), f[4], f[10]);
+			break;
+		case 97: // REQ_TICK_BY_TICK_DATA, no version field
+			int tbtReqId = Integer.parseInt(f[1]);
+			if (_sim.maxTickByTick > 0 && _tbtReqs.size() >= _sim.maxTickByTick) {
+				send("4", "2", String.valueOf(tbtReqId), "10190", "Max number of tick-by-tick requests has been reached.");
+				break;
+			}
+			_tbtReqs.add(tbtReqId);
+			// Trades on {tbt:SYM}, quotes on {tbtbidask:SYM}
+			subscribe(f[14].equals("BidAsk") ? "tbtbidask" : "tbt", tbtReqId, f[3], f[9]);
+			break;
+		case 11: // CANCEL_MKT_DEPTH
+			_depthReqs.remove(Integer.parseInt(f[2]));
+			unsubscribe(Integer.parseInt(f[2]));
+			break;
+		case 2: // CANCEL_MKT_DATA
+		case 51: // CANCEL_REAL_TIME_BARS
+			unsubscribe(Integer.parseInt(f[2]));
+			break;
+		case 98: // CANCEL_TICK_BY_TICK_DATA
+			_tbtReqs.remove(Integer.parseInt(f[1]));
+			unsubscribe(Integer.parseInt(f[1]));
+			break;
+		case 9: // REQ_CONTRACT_DATA
+			contractDetails(f);
+			break;
+		case 3: // PLACE_ORDER
+			placeOrder(f);
+			break;
+		case 4: // CANCEL_ORDER
+			cancelOrder(Integer.parseInt(f[2]));
+			break;
+		case 58: // REQ_GLOBAL_CANCEL
+			for (SimOrder o : _orders.values())
+				if (!o.done())
+					cancelOrder(o.orderId);
+			break;
+		case 5: // REQ_OPEN_ORDERS
+		case 16: // REQ_ALL_OPEN_ORDERS
+			for (SimOrder o : _orders.values())
+				if (!o.done())
+					sendOrderState(o);
+			send("53", "1"); // openOrderEnd
+			break;
+		case 15: // REQ_AUTO_OPEN_ORDERS
+			break;
+		case 6: // REQ_ACCOUNT_DATA
+			send("54", "1", _sim.account); // accountDownloadEnd
+			break;
+		case 7: // REQ_EXECUTIONS
+			send("55", "1", f[2]); // execDetailsEnd
+			break;
+		case 61: // REQ_POSITIONS
+			send("62", "1"); // positionEnd
+			break;
+		case 62: // REQ_ACCOUNT_SUMMARY
+			send("64", "1", f[2]); // accountSummaryEnd
+			break;
+		case 99: // REQ_COMPLETED_ORDERS
+			send("102"); // completedOrdersEnd
+			break;
+		case 82: // REQ_MKT_DEPTH_EXCHANGES
+			send("80", "0");
+			break;
+		default:
+			if (_unknownMsgIds.add(msgId))
+				log(_name + " ignores request msgId " + msgId);
+		}
+	}
+
+	private void subscribe(String type, int reqId, String symbol, String exchange) {
+		String[] keys = { type + ":" + symbol, type + ":" + symbol + "@" + exchange };
+		for (String k : keys)
+			_subs.put(k, reqId);
+		_subKeys.put(reqId, keys);
+	}
+
+	private void unsubscribe(int reqId) {
+		String[] keys = _subKeys.remove(reqId);
+		if (keys == null)
+			return;
+		for (String k : keys)
+			_subs.remove(k, reqId);
+	}
+
+	private void contractDetails(String[] f) throws IOException {
+		String reqId = f[2];
+		String symbol = f[4];
+		String[] canned = _sim.script.contracts.get(symbol);
+		if (canned != null) {
+			send(SimScript.substitute(canned, name -> name.equals("reqId") ? reqId : null));
+		} else {
+			String conid = f[3].isEmpty() || f[3].equals("0") ? String.valueOf((symbol.hashCode() & 0x7fffffff) % 100_000_000 + 1) : f[3];
+			String secType = f[5], primaryExch = f[11], currency = f[12];
+			// A query without exchange lists every venue in TWS, answer with one concrete venue
+			String exchange = !f[10].isEmpty() ? f[10] : !primaryExch.isEmpty() ? primaryExch : "SIM";
+			String localSymbol = f[13].isEmpty() ? symbol : f[13];
+			String tradingClass = f[14].isEmpty() ? symbol : f[14];
+			String multiplier = f[9];
+			// contractData version 8, fields in EDecoder.processContractDataMsg() order
+			send("10", "8", reqId, symbol, secType, f[6], f[7].isEmpty() ? "0" : f[7], f[8], exchange, currency,
+					localSymbol, tradingClass, tradingClass, conid, "0.01", "1", multiplier,
+					"LMT,MKT,STP", exchange, "1", "0", symbol + " SIM", primaryExch,
+					"", "", "", "", "UTC", "", "", "", "", "0", "1", "", "", "", "");
+		}
+		send("52", "1", reqId); // contractDataEnd
+	}
+
+	////////////////////////////////////////////////////////////////
+	// Orders and the fill model
+	////////////////////////////////////////////////////////////////
+	// Order state is changed by the request thread and by delayed fills on the timer thread.
+	private synchronized void placeOrder(String[] f) throws IOException {
+		int base = _serverVersion < MIN_SERVER_VER_ORDER_CONTAINER ? 2 : 1; // index of order id
+		int orderId = Integer.parseInt(f[base]);
+		SimOrder o = _orders.get(orderId);
+		boolean modify = o != null && !o.done();
+		if (o == null || o.done()) {
+			o = new SimOrder();
+			o.orderId = orderId;
+			o.permId = _sim.nextPermId.incrementAndGet();
+			_sim.nextOrderId.accumulateAndGet(orderId + 1, Math::max);
+		}
+		o.symbol = f[base + 2];
+		o.action = f[base + 15];
+		o.qty = Double.parseDouble(f[base + 16]);
+		o.orderType = f[base + 17];
+		o.lmtPrice = f[base + 18].isEmpty() ? 0 : Double.parseDouble(f[base + 18]);
+		o.account = f[base + 22].isEmpty() ? _sim.account : f[base + 22];
+		_orders.put(orderId, o);
+
+		FillRule rule = _sim.script.fillRule(o.symbol);
+		if (rule.model.equals("reject")) {
+			o.status = "Inactive";
+			send("4", "2", String.valueOf(orderId), "201", "Order rejected - reason:simulated by TwsSim");
+			sendOrderState(o);
+			return;
+		}
+		o.status = "Submitted";
+		sendOrderState(o);
+		if (modify)
+			return;
+		final SimOrder order = o;
+		if (rule.model.equals("immediate"))
+			later(rule.delayUs, () -> fill(order, order.remaining()));
+		else if (rule.model.equals("partial"))
+			later(rule.delayUs, () -> fill(order, Math.min(rule.qty, order.remaining())));
+	}
+
+	private synchronized void cancelOrder(int orderId) throws IOException {
+		SimOrder o = _orders.get(orderId);
+		if (o == null || o.done()) {
+			send("4", "2", String.valueOf(orderId), "10147", "OrderId " + orderId + " that needs to be cancelled is not found.");
+			return;
+		}
+		o.status = "Cancelled";
+		send("4", "2", String.valueOf(orderId), "202", "Order Canceled - reason:");
+		sendOrderState(o);
+	}
+
+	private synchronized void fill(SimOrder o, double qty) throws IOException {
+		if (o.done() || qty <= 0)
+			return;
+		double price = o.lmtPrice;
+		if (price == 0 || !o.orderType.equals("LMT"))
+			price = _lastPrice.getOrDefault(o.symbol, o.lmtPrice);
+		o.avgPrice = (o.avgPrice * o.filled + price * qty) / (o.filled + qty);
+		o.filled += qty;
+		o.lastQty = qty;
+		o.lastPrice = price;
+		o.execSeq++;
+		if (o.remaining() <= 0)
+			o.status = "Filled";
+		if (_sim.script.executionTemplate != null)
+			send(SimScript.substitute(_sim.script.executionTemplate, name -> orderField(o, name)));
+		sendOrderState(o);
+	}
+
+	private synchronized void sendOrderState(SimOrder o) throws IOException {
+		if (_sim.script.openOrderTemplate != null)
+			send(SimScript.substitute(_sim.script.openOrderTemplate, name -> orderField(o, name)));
+		if (_serverVersion >= MIN_SERVER_VER_MARKET_CAP_PRICE)
+			send("3", String.valueOf(o.orderId), o.status, num(o.filled), num(o.remaining()), num(o.avgPrice),
+					String.valueOf(o.permId), "0", num(o.lastPrice), String.valueOf(_clientId), "", "0");
+		else
+			send("3", "6", String.valueOf(o.orderId), o.status, num(o.filled), num(o.remaining()), num(o.avgPrice),
+					String.valueOf(o.permId), "0", num(o.lastPrice), String.valueOf(_clientId), "");
+	}
+
+	private String orderField(SimOrder o, String name) {
+		switch (name) {
+		case "orderId": return String.valueOf(o.orderId);
+		case "permId": return String.valueOf(o.permId);
+		case "clientId": return String.valueOf(_clientId);
+		case "account": return o.account;
+		case "symbol": return o.symbol;
+		case "action": return o.action;
+		case "qty": return num(o.qty);
+		case "orderType": return o.orderType;
+		case "lmtPrice": return num(o.lmtPrice);
+		case "status": return o.status;
+		case "filled": return num(o.filled);
+		case "remaining": return num(o.remaining());
+		case "avgPrice": return num(o.avgPrice);
+		case "lastQty": return num(o.lastQty);
+		case "lastPrice": return num(o.lastPrice);
+		case "execId": return String.format("%08x.%d.01.01", o.permId, o.execSeq);
+		case "time": return new SimpleDateFormat("yyyyMMdd  HH:mm:ss").format(new Date());
+		default: return null;
+		}
+	}
+
+	private interface IOTask {
+		void run() throws IOException;
+	}
+
+	private void later(long delayUs, IOTask task) {
+		_timer.schedule(() -> {
+			try {
+				task.run();
+			} catch (IOException e) {
+				close();
+			}
+		}, delayUs, TimeUnit.MICROSECONDS);
+	}
+
+	////////////////////////////////////////////////////////////////
+	// Replay
+	////////////////////////////////////////////////////////////////
+	private void startReplay() {
+		if (_sim.script.frames.isEmpty())
+			return;
+		Thread t = new Thread(this::replay, _name + "-replay");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void replay() {
+		sleep(_sim.warmupMs);
+		int pass = 0;
+		try {
+			do {
+				long sent = 0, skipped = 0;
+				long t0 = System.nanoTime();
+				int unflushed = 0;
+				for (TimedFrame frame : _sim.script.frames) {
+					if (_closed)
+						return;
+					if (_sim.speed > 0) {
+						long due = t0 + (long) (frame.offsetUs * 1000 / _sim.speed);
+						long wait = due - System.nanoTime();
+						if (wait > 0) {
+							flush();
+							unflushed = 0;
+							LockSupport.parkNanos(wait);
+						}
+					}
+					String[] fields = SimScript.substitute(frame.fields, this::replayField);
+					if (fields == null) {
+						skipped++;
+						continue;
+					}
+					recordPrice(frame.fields, fields);
+					send(fields, false);
+					sent++;
+					if (++unflushed >= REPLAY_FLUSH_FRAMES) {
+						flush();
+						unflushed = 0;
+					}
+				}
+				flush();
+				long us = (System.nanoTime() - t0) / 1000;
+				log(_name + " replay pass " + (++pass) + " sent " + sent + " skipped " + skipped + " frames in " + us + "us"
+						+ (us > 0 ? ", " + (sent * 1_000_000 / us) + " frames/s" : ""));
+			} while (_sim.loop && !_closed);
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	private String replayField(String name) {
+		if (name.equals("time"))
+			return String.valueOf(System.currentTimeMillis() / 1000);
+		Integer reqId = _subs.get(name);
+		return reqId == null ? null : reqId.toString();
+	}
+
+	/** Remember bid/ask/last from tickPrice frames, market orders fill there. */
+	private void recordPrice(String[] template, String[] fields) {
+		if (!fields[0].equals("1") || fields.length < 5 || !template[2].startsWith("{top:"))
+			return;
+		String tickType = fields[3];
+		if (tickType.equals("1") || tickType.equals("2") || tickType.equals("4")) {
+			String symbol = template[2].substring(5, template[2].length() - 1);
+			int at = symbol.indexOf('@');
+			_lastPrice.put(at < 0 ? symbol : symbol.substring(0, at), Double.parseDouble(fields[4]));
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.avalok.ib.sim;
+
+import static com.bitex.util.DebugUtil.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ib.client.EClient;
+
+/**
+ * Local stand-in for TWS / IB Gateway, so the gateway can run without a live session.
+ * It speaks the V100+ handshake, answers the requests the gateway makes at start-up,
+ * fills orders with the model from the script and replays its timed frames into
+ * whatever the connected client has subscribed. See SimScript for the file format.
+ *
+ * Usage: TwsSim [--port 4001] [--script file.sim] [--speed 1] [--loop] [--warmup-ms 2000]
+ *               [--account DU0000000] [--redis-port 6379] [--max-depth 0] [--max-tbt 0]
+ *   --speed 1 replays in real time, 10 ten times faster, 0 as fast as the socket takes it.
+ *   --redis-port also starts a RedisSim in this JVM, for fully offline runs.
+ *   --max-depth rejects market depth requests past that many with error 309, as TWS does, 0 never.
+ *   --max-tbt does the same to tick by tick requests with error 10190.
+ */
+public class TwsSim {
+	public static final int SERVER_VERSION = EClient.MAX_VERSION;
+
+	final SimScript script;
+	final double speed;
+	final boolean loop;
+	final long warmupMs;
+	final String account;
+	int maxDepth = 0, maxTickByTick = 0;
+	final AtomicInteger nextOrderId = new AtomicInteger(1);
+	final AtomicInteger nextPermId = new AtomicInteger(1_000_000);
+	final AtomicLong framesOut = new AtomicLong();
+	private final int _port;
+
+	public TwsSim(int port, SimScript script, double speed, boolean loop, long warmupMs, String account) {
+		_port = port;
+		this.script = script;
+		this.speed = speed;
+		this.loop = loop;
+		this.warmupMs = warmupMs;
+		this.account = account;
+	}
+
+	/** Accept clients until the JVM exits, one session thread per client. */
+	public void serve() throws IOException {
+		try (ServerSocket server = new ServerSocket(_port)) {
+			info("TwsSim listening on " + _port + ", server version " + SERVER_VERSION + ", "
+					+ script.frames.size() + " timed frames, speed " + (speed > 0 ? speed + "x" : "max"));
+			int n = 0;
+			while (true) {
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				String name = "TwsSim-" + (++n);
+				new Thread(new SimSession(this, socket, name), name).start();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = 4001;
+		String scriptPath = null;
+		double speed = 1;
+		boolean loop = false;
+		long warmupMs = 2000;
+		String account = "DU0000000";
+		int redisPort = 0;
+		int maxDepth = 0, maxTickByTick = 0;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "--port": port = Integer.parseInt(args[++i]); break;
+			case "--script": scriptPath = args[++i]; break;
+			case "--speed": speed = Double.parseDouble(args[++i]); break;
+			case "--loop": loop = true; break;
+			case "--warmup-ms": warmupMs = Long.parseLong(args[++i]); break;
+			case "--account": account = args[++i]; break;
+			case "--redis-port": redisPort = Integer.parseInt(args[++i]); break;
+			case "--max-depth": maxDepth = Integer.parseInt(args[++i]); break;
+			case "--max-tbt": maxTickByTick = Integer.parseInt(args[++i]); break;
+			default:
+				err("Unknown arg " + args[i]);
+				return;
+			}
+		}
+		if (redisPort > 0)
+			new RedisSim(redisPort).start();
+		TwsSim sim = new TwsSim(port, SimScript.load(scriptPath), speed, loop, warmupMs, account);
+		sim.maxDepth = maxDepth;
+		sim.maxTickByTick = maxTickByTick;
+		sim.serve();
+	}
+}
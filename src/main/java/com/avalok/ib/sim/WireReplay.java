@@ -0,0 +1,162 @@
+package com.avalok.ib.sim;
+
+import static com.bitex.util.DebugUtil.*;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.ib.client.DefaultEWrapper;
+import com.ib.client.EWireRecorder;
+import com.ib.client.EWrapper;
+
+/**
+ * Reads segment files written by EWireRecorder (TWS_API_RECORD_DIR) and feeds every
+ * inbound frame back through EDecoder, for post-mortem of a session or as a decode
+ * benchmark on real traffic.
+ *
+ * Usage: WireReplay [--print] [--out] [--stats] <file.wire|dir>...
+ *   --print  print every decoded EWrapper callback with its receive time (default)
+ *   --out    also print outbound requests as raw fields
+ *   --stats  decode silently and report message counts by id and decode time
+ */
+public class WireReplay {
+	private final EWrapper _wrapper;
+	private final boolean _printOut;
+	private EWireRecorder.Decoder _decoder = null;
+	private boolean _handshake = false;
+	private long _recordNanos = 0;
+	private long _inFrames = 0, _outFrames = 0, _decodeNanos = 0;
+	private final long[] _countById = new long[256];
+	private final SimpleDateFormat _timeFmt = new SimpleDateFormat("HH:mm:ss.SSS");
+
+	public WireReplay(EWrapper wrapper, boolean printOut) {
+		_wrapper = wrapper;
+		_printOut = printOut;
+	}
+
+	public void replay(File file) throws Exception {
+		EWireRecorder.Segment seg = new EWireRecorder.Segment(file);
+		while (seg.next()) {
+			_recordNanos = seg.epochNanos();
+			ByteBuffer payload = seg.payload();
+			if (seg.direction() == EWireRecorder.OUT) {
+				_outFrames++;
+				if (startsWithApiHeader(payload)) {
+					_decoder = new EWireRecorder.Decoder(0, _wrapper); // new connection, the next inbound frame is the handshake
+					_handshake = true;
+				} else if (_printOut)
+					System.out.println(time() + " --> " + fields(payload, 4));
+				continue;
+			}
+			// A recording that starts mid-connection carries its server version on every record
+			if (_decoder == null)
+				_decoder = new EWireRecorder.Decoder(seg.serverVersion(), _wrapper);
+			_inFrames++;
+			int msgId = _handshake ? -1 : msgId(payload);
+			_handshake = false;
+			if (msgId >= 0 && msgId < _countById.length)
+				_countById[msgId]++;
+			long t = System.nanoTime();
+			_decoder.process(payload);
+			_decodeNanos += System.nanoTime() - t;
+		}
+	}
+
+	String time() {
+		return _timeFmt.format(new Date(_recordNanos / 1_000_000)) + String.format("%06d", _recordNanos % 1_000_000_000 / 1000).substring(3);
+	}
+
+	public String stats() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("in ").append(_inFrames).append(" out ").append(_outFrames).append(" frames");
+		if (_inFrames > 0)
+			sb.append(", decode ").append(_decodeNanos / _inFrames).append("ns/msg");
+		Map<Integer, Long> counts = new TreeMap<>();
+		for (int i = 0; i < _countById.length; i++)
+			if (_countById[i] > 0)
+				counts.put(i, _countById[i]);
+		sb.append("\nmsgId counts ").append(counts);
+		return sb.toString();
+	}
+
+	private static boolean startsWithApiHeader(ByteBuffer b) {
+		return b.remaining() >= 4 && b.get(b.position()) == 'A' && b.get(b.position() + 1) == 'P'
+				&& b.get(b.position() + 2) == 'I' && b.get(b.position() + 3) == 0;
+	}
+
+	private static int msgId(ByteBuffer b) {
+		int id = 0;
+		for (int i = b.position(); i < b.limit(); i++) {
+			byte c = b.get(i);
+			if (c == 0)
+				return id;
+			if (c < '0' || c > '9')
+				return -1;
+			id = id * 10 + (c - '0');
+		}
+		return -1;
+	}
+
+	private static String fields(ByteBuffer b, int skip) {
+		byte[] bytes = new byte[Math.max(0, b.remaining() - skip)];
+		ByteBuffer d = b.duplicate();
+		d.position(b.position() + skip);
+		d.get(bytes);
+		return new String(bytes, StandardCharsets.ISO_8859_1).replace('\0', '|');
+	}
+
+	/** EWrapper that prints every callback as "time <-- name [args]". */
+	private static EWrapper printer(WireReplay[] self) {
+		return (EWrapper) Proxy.newProxyInstance(EWrapper.class.getClassLoader(), new Class<?>[] { EWrapper.class },
+				(proxy, method, args) -> {
+					if (method.getDeclaringClass() == Object.class)
+						return method.invoke(proxy, args);
+					System.out.println(self[0].time() + " <-- " + method.getName() + " " + (args == null ? "" : Arrays.deepToString(args)));
+					return null;
+				});
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean stats = false, printOut = false;
+		List<File> files = new ArrayList<>();
+		for (String arg : args) {
+			switch (arg) {
+			case "--print": break;
+			case "--out": printOut = true; break;
+			case "--stats": stats = true; break;
+			default:
+				File f = new File(arg);
+				if (f.isDirectory()) {
+					File[] segs = f.listFiles((d, name) -> name.endsWith(EWireRecorder.SUFFIX));
+					// Names are prefix-time-index, so name order is recording order
+					Arrays.sort(segs);
+					files.addAll(Arrays.asList(segs));
+				} else {
+					files.add(f);
+				}
+			}
+		}
+		if (files.isEmpty()) {
+			err("Usage: WireReplay [--print] [--out] [--stats] <file.wire|dir>...");
+			return;
+		}
+		WireReplay[] self = new WireReplay[1];
+		self[0] = new WireReplay(stats ? new DefaultEWrapper() : printer(self), printOut && !stats);
+		long t = System.currentTimeMillis();
+		for (File f : files) {
+			if (stats)
+				log("Replay " + f);
+			self[0].replay(f);
+		}
+		info(self[0].stats() + "\nin " + (System.currentTimeMillis() - t) + "ms");
+	}
+}
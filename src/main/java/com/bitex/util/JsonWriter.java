@@ -0,0 +1,278 @@
+package com.bitex.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.alibaba.fastjson.util.RyuDouble;
+
+/**
+ * Streaming JSON emitter for the fixed schemas the gateway publishes, writes UTF-8 straight
+ * into a reusable byte[] without building JSONObject/JSONArray trees.
+ * Output is byte for byte what JSON.toJSONString() gives for the same values in the same
+ * order: doubles go through the same RyuDouble fastjson uses, NaN and infinity are null,
+ * strings are escaped the same way.
+ *
+ * Commas are inserted automatically:
+ * <pre>
+ * w.reset().beginObject().name("p").value(187.49).name("s").value(400.0).endObject();
+ * </pre>
+ * Not thread safe, keep one per thread or per handler, see local().
+ */
+public final class JsonWriter {
+	private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+	private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+	private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+	private static final ThreadLocal<JsonWriter> LOCAL = ThreadLocal.withInitial(JsonWriter::new);
+
+	private byte[] _buf;
+	private int _len = 0;
+	private boolean _needComma = false;
+	private final char[] _digits = new char[32]; // RyuDouble writes at most 24 chars
+
+	public JsonWriter() {
+		this(512);
+	}
+
+	public JsonWriter(int capacity) {
+		_buf = new byte[capacity];
+	}
+
+	/** Reset writer of the calling thread. */
+	public static JsonWriter local() {
+		return LOCAL.get().reset();
+	}
+
+	public JsonWriter reset() {
+		_len = 0;
+		_needComma = false;
+		return this;
+	}
+
+	public int length() { return _len; }
+	/** Internal buffer, valid up to length() until the next write. */
+	public byte[] buffer() { return _buf; }
+
+	/** Copy of the output, for handing over to another thread. */
+	public byte[] toBytes() {
+		return Arrays.copyOf(_buf, _len);
+	}
+
+	@Override
+	public String toString() {
+		return new String(_buf, 0, _len, StandardCharsets.UTF_8);
+	}
+
+	////////////////////////////////////////////////////////////////
+	// Structure
+	////////////////////////////////////////////////////////////////
+	public JsonWriter beginObject() {
+		separate();
+		put((byte) '{');
+		_needComma = false;
+		return this;
+	}
+
+	public JsonWriter endObject() {
+		put((byte) '}');
+		_needComma = true;
+		return this;
+	}
+
+	public JsonWriter beginArray() {
+		separate();
+		put((byte) '[');
+		_needComma = false;
+		return this;
+	}
+
+	public JsonWriter endArray() {
+		put((byte) ']');
+		_needComma = true;
+		return this;
+	}
+
+	/** Field name, must be followed by exactly one value. */
+	public JsonWriter name(String name) {
+		separate();
+		string(name);
+		put((byte) ':');
+		_needComma = false;
+		return this;
+	}
+
+	////////////////////////////////////////////////////////////////
+	// Values
+	////////////////////////////////////////////////////////////////
+	public JsonWriter value(double v) {
+		separate();
+		if (Double.isNaN(v) || Double.isInfinite(v)) {
+			put(NULL);
+		} else {
+			int n = RyuDouble.toString(v, _digits, 0);
+			ensure(n);
+			for (int i = 0; i < n; i++)
+				_buf[_len++] = (byte) _digits[i];
+		}
+		_needComma = true;
+		return this;
+	}
+
+	/** null for a null Double, like fastjson. */
+	public JsonWriter value(Double v) {
+		if (v == null)
+			return nullValue();
+		return value(v.doubleValue());
+	}
+
+	public JsonWriter value(long v) {
+		separate();
+		ensure(20);
+		if (v == Long.MIN_VALUE) {
+			put("-9223372036854775808".getBytes(StandardCharsets.US_ASCII));
+		} else {
+			if (v < 0) {
+				_buf[_len++] = '-';
+				v = -v;
+			}
+			int digits = 1;
+			for (long x = v; x >= 10; x /= 10)
+				digits++;
+			for (int i = _len + digits - 1; i >= _len; i--) {
+				_buf[i] = (byte) ('0' + v % 10);
+				v /= 10;
+			}
+			_len += digits;
+		}
+		_needComma = true;
+		return this;
+	}
+
+	public JsonWriter value(boolean v) {
+		separate();
+		put(v ? TRUE : FALSE);
+		_needComma = true;
+		return this;
+	}
+
+	public JsonWriter nullValue() {
+		separate();
+		put(NULL);
+		_needComma = true;
+		return this;
+	}
+
+	/** Quoted and escaped string, null for null. */
+	public JsonWriter value(String s) {
+		if (s == null)
+			return nullValue();
+		separate();
+		string(s);
+		_needComma = true;
+		return this;
+	}
+
+	private void string(String s) {
+		ensure(s.length() + 2);
+		_buf[_len++] = '"';
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0xa0 || c == '\u2028' || c == '\u2029') {
+				escaped(c);
+			} else if (c < 0x800) {
+				ensure(2);
+				_buf[_len++] = (byte) (0xc0 | (c >> 6));
+				_buf[_len++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				ensure(4);
+				_buf[_len++] = (byte) (0xf0 | (cp >> 18));
+				_buf[_len++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				_buf[_len++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				_buf[_len++] = (byte) (0x80 | (cp & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				put((byte) '?'); // Unpaired, as String.getBytes(UTF_8) does
+			} else {
+				ensure(3);
+				_buf[_len++] = (byte) (0xe0 | (c >> 12));
+				_buf[_len++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				_buf[_len++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		put((byte) '"');
+	}
+
+	/** Enum by name, as fastjson writes enums by default. */
+	public JsonWriter value(Enum<?> e) {
+		return e == null ? nullValue() : value(e.name());
+	}
+
+	/**
+	 * Quoted and escaped string from UTF-8 bytes written by a JsonWriter, e.g. a JSON document
+	 * nested as a string. Bytes of multi-byte characters are copied as they are.
+	 */
+	public JsonWriter value(byte[] utf8, int off, int len) {
+		separate();
+		ensure(len + 2);
+		_buf[_len++] = '"';
+		for (int i = off; i < off + len; i++) {
+			byte b = utf8[i];
+			if (b < 0) // Part of a multi-byte character
+				put(b);
+			else
+				escaped((char) b);
+		}
+		put((byte) '"');
+		_needComma = true;
+		return this;
+	}
+
+	////////////////////////////////////////////////////////////////
+	// Internal
+	////////////////////////////////////////////////////////////////
+	// ASCII, or a character fastjson writes as a unicode escape: controls, DEL, C1 controls, U+2028/9
+	private void escaped(char c) {
+		ensure(6);
+		if (c >= 0x20 && c < 0x7f && c != '"' && c != '\\') {
+			_buf[_len++] = (byte) c;
+			return;
+		}
+		_buf[_len++] = '\\';
+		switch (c) {
+		case '"': _buf[_len++] = '"'; break;
+		case '\\': _buf[_len++] = '\\'; break;
+		case '\b': _buf[_len++] = 'b'; break;
+		case '\f': _buf[_len++] = 'f'; break;
+		case '\n': _buf[_len++] = 'n'; break;
+		case '\r': _buf[_len++] = 'r'; break;
+		case '\t': _buf[_len++] = 't'; break;
+		default:
+			_buf[_len++] = 'u';
+			_buf[_len++] = HEX[c >> 12];
+			_buf[_len++] = HEX[(c >> 8) & 0xf];
+			_buf[_len++] = HEX[(c >> 4) & 0xf];
+			_buf[_len++] = HEX[c & 0xf];
+		}
+	}
+
+	private void separate() {
+		if (_needComma)
+			put((byte) ',');
+	}
+
+	private void put(byte b) {
+		ensure(1);
+		_buf[_len++] = b;
+	}
+
+	private void put(byte[] bytes) {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, _buf, _len, bytes.length);
+		_len += bytes.length;
+	}
+
+	private void ensure(int n) {
+		if (_len + n > _buf.length)
+			_buf = Arrays.copyOf(_buf, Math.max(_buf.length * 2, _len + n));
+	}
+}
@@ -0,0 +1,67 @@
+package com.bitex.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.alibaba.fastjson.JSONObject;
+
+/**
+ * Lock-free latency histogram with log-linear buckets (8 per power of two, within 12.5%),
+ * cheap enough to record every event from any thread. Meant to be read and reset
+ * periodically, e.g. once per heartbeat.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 3;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+
+	/** Record one value, in nanos. */
+	public void record(long nanos) {
+		_counts.incrementAndGet(bucket(Math.max(0, nanos)));
+	}
+
+	static int bucket(long v) {
+		if (v < SUB) return (int) v;
+		int exp = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS; // >= 0
+		return (exp + 1) * SUB + (int) ((v >>> exp) & (SUB - 1));
+	}
+
+	/** Upper bound of values in bucket b. */
+	static long bucketMax(int b) {
+		if (b < SUB) return b;
+		int exp = b / SUB - 1;
+		long mantissa = SUB + (b % SUB);
+		return ((mantissa + 1) << exp) - 1;
+	}
+
+	/**
+	 * {n, p50, p99, p999, max} in micros since the last call, then starts over.
+	 * Percentiles are bucket upper bounds.
+	 */
+	public JSONObject snapshotAndReset() {
+		long[] counts = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = _counts.getAndSet(i, 0);
+			n += counts[i];
+		}
+		JSONObject j = new JSONObject();
+		j.put("n", n);
+		if (n == 0) return j;
+		long p50 = (n + 1) / 2, p99 = n - n / 100, p999 = n - n / 1000;
+		long seen = 0;
+		int max = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			if (counts[i] == 0) continue;
+			long before = seen;
+			seen += counts[i];
+			if (before < p50 && seen >= p50) j.put("p50", bucketMax(i) / 1000.0);
+			if (before < p99 && seen >= p99) j.put("p99", bucketMax(i) / 1000.0);
+			if (before < p999 && seen >= p999) j.put("p999", bucketMax(i) / 1000.0);
+			max = i;
+		}
+		j.put("max", bucketMax(max) / 1000.0);
+		return j;
+	}
+}
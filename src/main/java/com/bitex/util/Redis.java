@@ -13,10 +13,13 @@ import redis.clients.jedis.JedisPoolConfig;
 /**
  * Thread-safe redis pool
  * See: https://www.alibabacloud.com/help/doc-detail/98726.htm
+ * pub/set/setex/del are asynchronous, see RedisWriter, exec() is a synchronous call.
  */
 public class Redis {
 	
 	private static final JedisPool POOL;
+	// REDIS_WRITER_QUEUE: bound of the async writer queue, per kind of write.
+	public static final RedisWriter WRITER;
 
 	static {
 		JedisPoolConfig config = new JedisPoolConfig();
@@ -30,6 +33,8 @@ public class Redis {
 				Integer.parseInt(System.getenv("REDIS_PORT")),
 				10_000,
 				System.getenv("REDIS_PSWD"));
+		WRITER = new RedisWriter(POOL, System.getenv("REDIS_WRITER_QUEUE") == null ?
+				65536 : Integer.parseInt(System.getenv("REDIS_WRITER_QUEUE")));
 	}
 
 	public static void exec(Consumer<Jedis> lambda) {
@@ -56,50 +61,42 @@ public class Redis {
 	}
 
 	////////////////////////////////////////////////////////////////
-	// Jedis wrapper with pool.
+	// Asynchronous writes through WRITER, they return before Redis has the data.
 	////////////////////////////////////////////////////////////////
 
 	public static void pub(String channel, Object j) {
 		pub(channel, JSON.toJSONString(j));
 	}
 	public static void pub(String channel, String msg) {
-		exec(new Consumer<Jedis>() {
-			@Override
-			public void accept(Jedis t) {
-				t.publish(channel, msg);
-			}
-		});
+		WRITER.publish(RedisWriter.Kind.OTHER, channel, msg);
+	}
+	/** Market data may be dropped when Redis falls behind, see RedisWriter. */
+	public static void pubMarketData(String channel, String msg) {
+		WRITER.publish(RedisWriter.Kind.MARKET_DATA, channel, msg);
+	}
+	public static void pubMarketData(byte[] channel, byte[] msg) {
+		WRITER.publish(RedisWriter.Kind.MARKET_DATA, channel, msg);
 	}
 	
 	public static void set(String key, Object j) {
 		set(key, JSON.toJSONString(j));
 	}
 	public static void set(String k, String v) {
-		exec(new Consumer<Jedis>() {
-			@Override
-			public void accept(Jedis t) {
-				t.set(k, v);
-			}
-		});
+		WRITER.set(RedisWriter.Kind.OTHER, k, v);
 	}
 	public static void del(String k) {
-		exec(new Consumer<Jedis>() {
-			@Override
-			public void accept(Jedis t) {
-				t.del(k);
-			}
-		});
+		WRITER.del(RedisWriter.Kind.OTHER, k);
 	}
 
 	public static void setex (String key, int seconds, Object j) {
 		setex(key, seconds, JSON.toJSONString(j));
 	}
 	public static void setex(String k, int seconds, String v) {
-		exec(new Consumer<Jedis>() {
-			@Override
-			public void accept(Jedis t) {
-				t.setex(k, seconds, v);
-			}
-		});
+		WRITER.setex(RedisWriter.Kind.OTHER, k, seconds, v);
+	}
+
+	/** Wait until all writes enqueued so far reached Redis, false on timeout. */
+	public static boolean flush(long timeoutMs) {
+		return WRITER.flush(timeoutMs);
 	}
 }
@@ -0,0 +1,353 @@
+package com.bitex.util;
+
+import static com.bitex.util.DebugUtil.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import com.alibaba.fastjson.JSONObject;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * Asynchronous Redis writer: callers enqueue commands and return at once, one thread
+ * drains the queue and sends everything waiting through a single Pipeline per batch,
+ * on a connection it keeps.
+ *
+ * All writes share one queue and are written in the order they were enqueued, whatever
+ * their kind, so a SET followed by a PUBLISH lands in that order.
+ *
+ * Backpressure depends on the kind of write:
+ * <ul>
+ * <li>MARKET_DATA: never blocks. A write with a key (publishLatest(), setLatest()) replaces
+ * the pending write of the same key, the latest snapshot of every channel is always
+ * written. Writes without a key, deltas and trades, are bounded by the queue size: the
+ * oldest of them is dropped when full.</li>
+ * <li>ORDER: never blocks and is never dropped, it is not bounded.</li>
+ * <li>OTHER: blocks the caller while the queue holds as many OTHER writes as its bound.</li>
+ * </ul>
+ * A failed batch is retried after RETRY_MS, ahead of anything enqueued since, except
+ * market data superseded meanwhile. Retried commands may reach Redis twice. The only
+ * writes given up are those whose own commands throw while being queued in the pipeline,
+ * retrying them cannot help.
+ */
+public class RedisWriter {
+	public enum Kind { MARKET_DATA, ORDER, OTHER }
+
+	private static final int MAX_BATCH = 512;
+	private static final long RETRY_MS = 1000;
+
+	private static final class Op {
+		final Kind kind;
+		final String key; // MARKET_DATA superseded by the next write of the same key, or null
+		final Consumer<Pipeline> cmds;
+		final long enqueuedNanos = System.nanoTime();
+		boolean dropped = false; // Left in _queue, skipped by the writer
+		Op(Kind kind, String key, Consumer<Pipeline> cmds) {
+			this.kind = kind;
+			this.key = key;
+			this.cmds = cmds;
+		}
+	}
+
+	private final JedisPool _pool;
+	private final int _capacity;
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _notEmpty = _lock.newCondition();
+	private final Condition _notFull = _lock.newCondition();
+	private final Condition _drained = _lock.newCondition();
+	// Guarded by _lock
+	private final ArrayDeque<Op> _queue = new ArrayDeque<>(); // Every kind, in order
+	private final HashMap<String, Op> _latest = new HashMap<>(); // Pending keyed market data
+	private final ArrayDeque<Op> _droppable = new ArrayDeque<>(); // Pending market data without key, in order
+	private final int[] _pending = new int[Kind.values().length]; // Not dropped, in _queue
+	private int _husks = 0; // Dropped ones still in _queue
+	private boolean _writing = false;
+	private long _dropped = 0, _superseded = 0, _failed = 0, _written = 0, _batches = 0;
+
+	private final LatencyHistogram _flushLatency = new LatencyHistogram(); // enqueue to reply
+	private final LatencyHistogram _syncLatency = new LatencyHistogram(); // one pipeline round trip
+	private final Thread _thread;
+
+	public RedisWriter(JedisPool pool, int capacity) {
+		_pool = pool;
+		_capacity = capacity;
+		_thread = new Thread(this::run, "RedisWriter");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	/** Enqueue commands that are sent together, in this order, in one pipeline. */
+	public void submit(Kind kind, Consumer<Pipeline> cmds) {
+		submit(kind, null, cmds);
+	}
+
+	/** Same as submit(), a MARKET_DATA write with a key drops the pending one of that key. */
+	public void submit(Kind kind, String key, Consumer<Pipeline> cmds) {
+		Op op = new Op(kind, kind == Kind.MARKET_DATA ? key : null, cmds);
+		_lock.lock();
+		try {
+			switch (kind) {
+			case MARKET_DATA:
+				if (op.key != null) {
+					Op prev = _latest.put(op.key, op);
+					if (prev != null) {
+						drop(prev);
+						_superseded++;
+					}
+				} else {
+					if (_droppable.size() >= _capacity) {
+						drop(_droppable.pollFirst());
+						_dropped++;
+					}
+					_droppable.addLast(op);
+				}
+				break;
+			case ORDER:
+				break;
+			default:
+				while (_pending[Kind.OTHER.ordinal()] >= _capacity)
+					_notFull.awaitUninterruptibly();
+			}
+			_queue.addLast(op);
+			_pending[kind.ordinal()]++;
+			_notEmpty.signal();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	// Under _lock, op is pending in _queue.
+	private void drop(Op op) {
+		op.dropped = true;
+		_pending[op.kind.ordinal()]--;
+		// Husks of superseded snapshots pile up while Redis is away, sweep them now and then.
+		if (++_husks > _capacity && _husks > _queue.size() / 2) {
+			_queue.removeIf(o -> o.dropped);
+			_husks = 0;
+		}
+	}
+
+	public void publish(Kind kind, String channel, String message) {
+		submit(kind, p -> p.publish(channel, message));
+	}
+
+	public void publish(Kind kind, byte[] channel, byte[] message) {
+		submit(kind, p -> p.publish(channel, message));
+	}
+
+	/** Market data snapshot, replaces the pending one of the same channel. */
+	public void publishLatest(String channel, String message) {
+		submit(Kind.MARKET_DATA, "pub " + channel, p -> p.publish(channel, message));
+	}
+
+	/** Same as publishLatest(String, String), channel is the UTF-8 of name. */
+	public void publishLatest(String name, byte[] channel, byte[] message) {
+		submit(Kind.MARKET_DATA, "pub " + name, p -> p.publish(channel, message));
+	}
+
+	/** Market data snapshot, replaces the pending one of the same key. */
+	public void setLatest(String key, byte[] value) {
+		byte[] k = key.getBytes(StandardCharsets.UTF_8);
+		submit(Kind.MARKET_DATA, "set " + key, p -> p.set(k, value));
+	}
+
+	public void setLatest(String key, String value) {
+		submit(Kind.MARKET_DATA, "set " + key, p -> p.set(key, value));
+	}
+
+	public void set(Kind kind, byte[] key, byte[] value) {
+		submit(kind, p -> p.set(key, value));
+	}
+
+	public void set(Kind kind, String key, String value) {
+		submit(kind, p -> p.set(key, value));
+	}
+
+	public void setex(Kind kind, String key, int seconds, String value) {
+		submit(kind, p -> p.setex(key, seconds, value));
+	}
+
+	public void del(Kind kind, String key) {
+		submit(kind, p -> p.del(key));
+	}
+
+	// Under _lock
+	private int pending() {
+		int n = 0;
+		for (int p : _pending) n += p;
+		return n;
+	}
+
+	/** Wait until everything enqueued so far is written, false on timeout. */
+	public boolean flush(long timeoutMs) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		_lock.lock();
+		try {
+			while (_writing || pending() > 0) {
+				long left = deadline - System.nanoTime();
+				if (left <= 0) return false;
+				_drained.awaitNanos(left);
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * {queue, written, dropped, superseded, failed, batches, flushUs, syncUs}, latencies since the last call.
+	 */
+	public JSONObject stats() {
+		JSONObject j = new JSONObject();
+		_lock.lock();
+		try {
+			j.put("queue", pending());
+			j.put("written", _written);
+			j.put("dropped", _dropped);
+			j.put("superseded", _superseded);
+			j.put("failed", _failed);
+			j.put("batches", _batches);
+		} finally {
+			_lock.unlock();
+		}
+		j.put("flushUs", _flushLatency.snapshotAndReset());
+		j.put("syncUs", _syncLatency.snapshotAndReset());
+		return j;
+	}
+
+	////////////////////////////////////////////////////////////////
+	// Writer thread
+	////////////////////////////////////////////////////////////////
+	private List<Op> take(List<Op> batch) {
+		_lock.lock();
+		try {
+			while (pending() == 0) {
+				_queue.clear();
+				_husks = 0;
+				_writing = false;
+				_drained.signalAll();
+				_notEmpty.awaitUninterruptibly();
+			}
+			_writing = true;
+			boolean wasFull = _pending[Kind.OTHER.ordinal()] >= _capacity;
+			while (batch.size() < MAX_BATCH && !_queue.isEmpty()) {
+				Op op = _queue.pollFirst();
+				if (op.dropped) {
+					_husks--;
+					continue;
+				}
+				_pending[op.kind.ordinal()]--;
+				if (op.key != null)
+					_latest.remove(op.key, op);
+				else if (op.kind == Kind.MARKET_DATA)
+					_droppable.removeFirstOccurrence(op); // Its head
+				batch.add(op);
+			}
+			if (wasFull && _pending[Kind.OTHER.ordinal()] < _capacity)
+				_notFull.signalAll();
+			return batch;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/** Put back a failed batch, ahead of anything enqueued since. */
+	private void requeue(List<Op> batch) {
+		_lock.lock();
+		try {
+			for (int i = batch.size() - 1; i >= 0; i--) {
+				Op op = batch.get(i);
+				if (op.dropped) // Broken
+					continue;
+				if (op.key != null) {
+					if (_latest.containsKey(op.key)) { // A newer one is queued
+						_superseded++;
+						continue;
+					}
+					_latest.put(op.key, op);
+				} else if (op.kind == Kind.MARKET_DATA) {
+					_droppable.addFirst(op);
+				}
+				_queue.addFirst(op);
+				_pending[op.kind.ordinal()]++;
+			}
+			while (_droppable.size() > _capacity) {
+				drop(_droppable.pollFirst());
+				_dropped++;
+			}
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	private void run() {
+		List<Op> batch = new ArrayList<>(MAX_BATCH);
+		Jedis jedis = null;
+		while (true) {
+			take(batch);
+			int broken = 0;
+			try {
+				if (jedis == null)
+					jedis = _pool.getResource();
+				long t0 = System.nanoTime();
+				Pipeline p = jedis.pipelined();
+				for (Op op : batch) {
+					try {
+						op.cmds.accept(p);
+					} catch (JedisConnectionException e) {
+						throw e;
+					} catch (RuntimeException e) { // Its commands are broken, retrying would not help
+						err("RedisWriter dropped a broken " + op.kind + " write: " + e);
+						op.dropped = true;
+						broken++;
+					}
+				}
+				p.sync();
+				long t1 = System.nanoTime();
+				_syncLatency.record(t1 - t0);
+				for (Op op : batch)
+					_flushLatency.record(t1 - op.enqueuedNanos);
+				_lock.lock();
+				try {
+					_written += batch.size() - broken;
+					_failed += broken;
+					_batches++;
+				} finally {
+					_lock.unlock();
+				}
+			} catch (Exception e) { // Connection lost or pipeline broken, retry on a new connection
+				err("RedisWriter failed to write " + batch.size() + " commands, retry in " + RETRY_MS + "ms: " + e);
+				if (jedis != null) {
+					try {
+						jedis.close();
+					} catch (Exception ignored) {
+					}
+					jedis = null;
+				}
+				_lock.lock();
+				try {
+					_failed += broken;
+				} finally {
+					_lock.unlock();
+				}
+				requeue(batch);
+				sleep(RETRY_MS);
+			}
+			batch.clear();
+		}
+	}
+}
@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.io.ObjectOutput;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
@@ -17,6 +18,10 @@ import java.util.Optional;
 class Builder implements ObjectOutput {
 	private static final char SEP = 0;
 	private static final byte[] EMPTY_LENGTH_HEADER = new byte[ 4 ];
+	private static final int RETAINED_SIZE = 1024;
+	private static final int MAX_RETAINED_SIZE = 64 * 1024;
+	private static final int MAX_DECIMALS = 8;
+	private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8 };
 
 	private final ByteBuffer m_sb;
 
@@ -25,19 +30,27 @@ class Builder implements ObjectOutput {
 	}
 
 	public void send(int a) {
-        send( String.valueOf(a) );
+		m_sb.writeInt( a);
+		m_sb.writeByte( SEP);
 	}
 
 	public void sendMax(int a) {
-		send( a == Integer.MAX_VALUE ? "" : String.valueOf( a) );
+		if (a != Integer.MAX_VALUE) {
+			m_sb.writeInt( a);
+		}
+		m_sb.writeByte( SEP);
 	}
 
 	public void send(double a) {
-        send( String.valueOf( a) );
+		m_sb.writeDouble( a);
+		m_sb.writeByte( SEP);
 	}
 
 	public void sendMax(double a) {
-		send( a == Double.MAX_VALUE ? "" : String.valueOf( a) );
+		if (a != Double.MAX_VALUE) {
+			m_sb.writeDouble( a);
+		}
+		m_sb.writeByte( SEP);
 	}
 
 	public void send(Boolean a) {
@@ -50,10 +63,9 @@ class Builder implements ObjectOutput {
 
 	public void send( String a) {
 		if (a != null) {
-		    byte[] buffer = a.getBytes(StandardCharsets.UTF_8);
-		    m_sb.write( buffer, 0, buffer.length );
+		    m_sb.writeString( a);
 		}
-		m_sb.write( SEP);
+		m_sb.writeByte( SEP);
 	}
 
 	public void send( byte[] bytes ) {
@@ -85,6 +97,11 @@ class Builder implements ObjectOutput {
         send(contract.includeExpired() ? 1 : 0);
 	}
 
+    /** Empty the builder so the calling thread can encode its next message into the same array. */
+    void reset() {
+        m_sb.recycle();
+    }
+
     public int allocateLengthHeader() {
         int lengthHeaderPosition = m_sb.size();
         m_sb.write( EMPTY_LENGTH_HEADER, 0, EMPTY_LENGTH_HEADER.length );
@@ -99,6 +116,16 @@ class Builder implements ObjectOutput {
        m_sb.writeTo( dos );
     }
 
+    /** Copy of the encoded bytes. */
+    byte[] toByteArray() {
+        return m_sb.toByteArray();
+    }
+
+    /** Wraps the encoded bytes without copying, the builder must not be written to afterwards. */
+    java.nio.ByteBuffer toByteBuffer() {
+        return m_sb.toByteBuffer();
+    }
+
     // b[] must be at least b[position+4]
     static void intToBytes(int val, byte b[], int position) {
         b[position]   = (byte)(0xff & (val >> 24));
@@ -131,6 +158,125 @@ class Builder implements ObjectOutput {
         void writeTo(DataOutputStream out) throws IOException {
             out.write( this.buf, 0, this.count );
         }
+
+        java.nio.ByteBuffer toByteBuffer() {
+            return java.nio.ByteBuffer.wrap( this.buf, 0, this.count ).slice();
+        }
+
+        /** reset, dropping an array that one oversized message grew beyond MAX_RETAINED_SIZE */
+        void recycle() {
+            if (this.buf.length > MAX_RETAINED_SIZE) {
+                this.buf = new byte[ RETAINED_SIZE ];
+            }
+            this.count = 0;
+        }
+
+        // The methods below skip ByteArrayOutputStream's monitor and the String round trip
+        // used for numbers; a Builder is only ever written by one thread.
+
+        private void ensureCapacity(int extra) {
+            if (this.count + extra > this.buf.length) {
+                this.buf = Arrays.copyOf( this.buf, Math.max( this.buf.length << 1, this.count + extra) );
+            }
+        }
+
+        void writeByte(int b) {
+            ensureCapacity( 1);
+            this.buf[ this.count++ ] = (byte)b;
+        }
+
+        /** ASCII strings are copied char by char, anything else goes through the UTF-8 encoder. */
+        void writeString(String s) {
+            int len = s.length();
+            ensureCapacity( len);
+            int start = this.count;
+            for (int i = 0; i < len; i++) {
+                char c = s.charAt( i);
+                if (c >= 0x80) {
+                    byte[] bytes = s.getBytes( StandardCharsets.UTF_8);
+                    this.count = start;
+                    ensureCapacity( bytes.length);
+                    System.arraycopy( bytes, 0, this.buf, start, bytes.length);
+                    this.count = start + bytes.length;
+                    return;
+                }
+                this.buf[ start + i ] = (byte)c;
+            }
+            this.count = start + len;
+        }
+
+        void writeInt(int v) {
+            writeLong( v);
+        }
+
+        void writeLong(long v) {
+            if (v == Long.MIN_VALUE) {
+                writeString( Long.toString( v) );
+                return;
+            }
+            ensureCapacity( 20);
+            if (v < 0) {
+                this.buf[ this.count++ ] = '-';
+                v = -v;
+            }
+            writeDigits( v, 0);
+        }
+
+        /** Same text as String.valueOf(double) for whole numbers; other values in the usual price range
+         *  get the fewest decimals that parse back to the same double, which is what Double.toString
+         *  prints too. Everything else falls back to Double.toString. */
+        void writeDouble(double v) {
+            double abs = Math.abs( v);
+            if (abs < 1e7 && (v != 0 || 1 / v > 0)) {
+                long whole = (long)v;
+                if (whole == v) {
+                    writeLong( whole);
+                    writeByte( '.');
+                    writeByte( '0');
+                    return;
+                }
+                if (abs >= 1e-3) {
+                    for (int k = 1; k <= MAX_DECIMALS; k++) {
+                        long scaled = Math.round( v * POW10[ k ]);
+                        if (scaled / POW10[ k ] == v) { // |scaled| < 10^15, so the division is exact
+                            ensureCapacity( 20);
+                            if (scaled < 0) {
+                                this.buf[ this.count++ ] = '-';
+                                scaled = -scaled;
+                            }
+                            writeDigits( scaled, k);
+                            return;
+                        }
+                    }
+                }
+            }
+            writeString( Double.toString( v) );
+        }
+
+        /** write v, which is not negative, with a decimal point before its last decimals digits */
+        private void writeDigits(long v, int decimals) {
+            int n = 1;
+            for (long t = v / 10; t != 0; t /= 10) {
+                n++;
+            }
+            if (n <= decimals) {
+                n = decimals + 1; // leading "0."
+            }
+            int end = this.count + n + (decimals > 0 ? 1 : 0);
+            int pos = end;
+            for (int i = 0; i < decimals; i++) {
+                this.buf[ --pos ] = (byte)('0' + v % 10);
+                v /= 10;
+            }
+            if (decimals > 0) {
+                this.buf[ --pos ] = '.';
+            }
+            do {
+                this.buf[ --pos ] = (byte)('0' + v % 10);
+                v /= 10;
+            } while (pos > this.count);
+            this.count = end;
+        }
     }
 
 	@Override
@@ -293,7 +293,7 @@ public abstract class EClient {
 
     protected EReaderSignal m_signal;
     protected EWrapper m_eWrapper;    // msg handler
-    protected int m_serverVersion;
+    protected volatile int m_serverVersion;
     protected String m_TwsTime;
     protected int m_clientId;
     protected boolean m_extraAuth;
@@ -301,7 +301,9 @@ public abstract class EClient {
     private String m_optionalCapabilities;
     private String m_connectOptions = ""; // iServer rails are used for Connection if this is not null
 	protected String m_host;
-	protected ETransport m_socketTransport;
+	protected volatile ETransport m_socketTransport;
+	protected volatile EWireRecorder m_wireRecorder; // null unless recording
+	protected volatile Runnable m_msgBatchListener; // null unless set
 	
 	public boolean isUseV100Plus() {
 		return m_useV100Plus;
@@ -315,9 +317,15 @@ public abstract class EClient {
     // set
     protected synchronized void setExtraAuth(boolean extraAuth) { m_extraAuth = extraAuth; }
     public void optionalCapabilities(String val) 		{ m_optionalCapabilities = val; }
+    /** Journal every frame sent and received from now on, null stops recording. */
+    public void wireRecorder(EWireRecorder recorder)	{ m_wireRecorder = recorder; }
+    /** Run on the decoding thread each time it has decoded all messages available, i.e. after a burst. */
+    public void msgBatchListener(Runnable listener)	{ m_msgBatchListener = listener; }
 
     // get
     public String optionalCapabilities() { return m_optionalCapabilities; }
+    public EWireRecorder wireRecorder()  { return m_wireRecorder; }
+    public Runnable msgBatchListener()   { return m_msgBatchListener; }
 
     public EClient( EWrapper eWrapper, EReaderSignal signal) {
         m_eWrapper = eWrapper;
@@ -379,7 +387,7 @@ public abstract class EClient {
     
     public abstract void eDisconnect();
     
-    public synchronized void startAPI() {
+    public void startAPI() {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -407,7 +415,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void cancelScannerSubscription( int tickerId) {
+    public void cancelScannerSubscription( int tickerId) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -438,7 +446,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqScannerParameters() {
+    public void reqScannerParameters() {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -468,7 +476,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqScannerSubscription(int tickerId, 
+    public void reqScannerSubscription(int tickerId, 
             ScannerSubscription subscription, 
             List<TagValue> scannerSubscriptionOptions, 
             List<TagValue> scannerSubscriptionFilterOptions) {
@@ -550,7 +558,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqMktData(int tickerId, Contract contract,
+    public void reqMktData(int tickerId, Contract contract,
     		String genericTickList, boolean snapshot, boolean regulatorySnapshot, List<TagValue> mktDataOptions) {
         if (!isConnected()) {
             error(EClientErrors.NO_VALID_ID, EClientErrors.NOT_CONNECTED, "");
@@ -694,7 +702,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void cancelHistoricalData( int tickerId ) {
+    public void cancelHistoricalData( int tickerId ) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -725,7 +733,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void cancelRealTimeBars(int tickerId) {
+    public void cancelRealTimeBars(int tickerId) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -757,7 +765,7 @@ public abstract class EClient {
     }
 
     /** Note that formatData parameter affects intra-day bars only; 1-day bars always return with date in YYYYMMDD format. */
-    public synchronized void reqHistoricalData( int tickerId, Contract contract,
+    public void reqHistoricalData( int tickerId, Contract contract,
                                                 String endDateTime, String durationStr,
                                                 String barSizeSetting, String whatToShow,
                                                 int useRTH, int formatDate, boolean keepUpToDate, List<TagValue> chartOptions) {
@@ -869,7 +877,7 @@ public abstract class EClient {
     }
 
     /** Note that formatData parameter affects intra-day bars only; 1-day bars always return with date in YYYYMMDD format. */
-    public synchronized void reqHeadTimestamp(int tickerId, Contract contract,
+    public void reqHeadTimestamp(int tickerId, Contract contract,
                                                 String whatToShow, int useRTH, int formatDate) {
     	// not connected?
     	if( !isConnected()) {
@@ -901,7 +909,7 @@ public abstract class EClient {
         }
     }
     
-    public synchronized void cancelHeadTimestamp(int tickerId) {
+    public void cancelHeadTimestamp(int tickerId) {
     	// not connected?
     	if( !isConnected()) {
     		notConnected();
@@ -928,7 +936,7 @@ public abstract class EClient {
    }
     
     
-    public synchronized void reqRealTimeBars(int tickerId, Contract contract, int barSize, String whatToShow, boolean useRTH, List<TagValue> realTimeBarsOptions) {
+    public void reqRealTimeBars(int tickerId, Contract contract, int barSize, String whatToShow, boolean useRTH, List<TagValue> realTimeBarsOptions) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -996,7 +1004,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqContractDetails(int reqId, Contract contract) {
+    public void reqContractDetails(int reqId, Contract contract) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -1093,7 +1101,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqMktDepth( int tickerId, Contract contract, int numRows, boolean isSmartDepth, List<TagValue> mktDepthOptions) {
+    public void reqMktDepth( int tickerId, Contract contract, int numRows, boolean isSmartDepth, List<TagValue> mktDepthOptions) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -1185,7 +1193,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void cancelMktData( int tickerId) {
+    public void cancelMktData( int tickerId) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -1210,7 +1218,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void cancelMktDepth( int tickerId, boolean isSmartDepth) {
+    public void cancelMktDepth( int tickerId, boolean isSmartDepth) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -1253,7 +1261,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void exerciseOptions( int tickerId, Contract contract,
+    public void exerciseOptions( int tickerId, Contract contract,
                                               int exerciseAction, int exerciseQuantity,
                                               String account, int override) {
         // not connected?
@@ -1314,7 +1322,21 @@ public abstract class EClient {
       }
     }
 
-    public synchronized void placeOrder( int id, Contract contract, Order order) {
+    public void placeOrder( int id, Contract contract, Order order) {
+        placeOrder( id, contract, null, order);
+    }
+
+    /** Contract fields of a placeOrder message as this server version expects them,
+     *  to be given back to placeOrder(int, Contract, byte[], Order) for the same contract. */
+    public byte[] encodeOrderContract( Contract contract) {
+        Builder b = new Builder( 128 );
+        sendOrderContract( b, contract);
+        return b.toByteArray();
+    }
+
+    /** placeOrder() with the contract fields from encodeOrderContract(), or encoded here when null.
+     *  The contract is still needed for the server version checks. */
+    public void placeOrder( int id, Contract contract, byte[] contractFields, Order order) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -1608,31 +1630,11 @@ public abstract class EClient {
             b.send( id);
 
             // send contract fields
-            if( m_serverVersion >= MIN_SERVER_VER_PLACE_ORDER_CONID) {
-                b.send(contract.conid());
-            }
-            b.send( contract.symbol());
-            b.send( contract.getSecType());
-            b.send( contract.lastTradeDateOrContractMonth());
-            b.send( contract.strike());
-            b.send( contract.getRight());
-            if (m_serverVersion >= 15) {
-                b.send(contract.multiplier());
-            }
-            b.send( contract.exchange());
-            if( m_serverVersion >= 14) {
-              b.send(contract.primaryExch());
+            if (contractFields != null) {
+                b.send( contractFields);
             }
-            b.send( contract.currency());
-            if( m_serverVersion >= 2) {
-                b.send (contract.localSymbol());
-            }
-            if (m_serverVersion >= MIN_SERVER_VER_TRADING_CLASS) {
-                b.send(contract.tradingClass());
-            }
-            if( m_serverVersion >= MIN_SERVER_VER_SEC_ID_TYPE){
-            	b.send( contract.getSecIdType());
-            	b.send( contract.secId());
+            else {
+                sendOrderContract( b, contract);
             }
 
             // send main order fields
@@ -2017,7 +2019,7 @@ public abstract class EClient {
                b.send(order.usePriceMgmtAlgo());
            }
 
-           closeAndSend(b);
+           closeAndSendUrgent(b);
         }
         catch( Exception e) {
             error( id, EClientErrors.FAIL_SEND_ORDER, e.toString());
@@ -2025,7 +2027,36 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqAccountUpdates(boolean subscribe, String acctCode) {
+    private void sendOrderContract( Builder b, Contract contract) {
+        if( m_serverVersion >= MIN_SERVER_VER_PLACE_ORDER_CONID) {
+            b.send(contract.conid());
+        }
+        b.send( contract.symbol());
+        b.send( contract.getSecType());
+        b.send( contract.lastTradeDateOrContractMonth());
+        b.send( contract.strike());
+        b.send( contract.getRight());
+        if (m_serverVersion >= 15) {
+            b.send(contract.multiplier());
+        }
+        b.send( contract.exchange());
+        if( m_serverVersion >= 14) {
+          b.send(contract.primaryExch());
+        }
+        b.send( contract.currency());
+        if( m_serverVersion >= 2) {
+            b.send (contract.localSymbol());
+        }
+        if (m_serverVersion >= MIN_SERVER_VER_TRADING_CLASS) {
+            b.send(contract.tradingClass());
+        }
+        if( m_serverVersion >= MIN_SERVER_VER_SEC_ID_TYPE){
+        	b.send( contract.getSecIdType());
+        	b.send( contract.secId());
+        }
+    }
+
+    public void reqAccountUpdates(boolean subscribe, String acctCode) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2054,7 +2085,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqExecutions(int reqId, ExecutionFilter filter) {
+    public void reqExecutions(int reqId, ExecutionFilter filter) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2094,7 +2125,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void cancelOrder( int id) {
+    public void cancelOrder( int id) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2111,7 +2142,7 @@ public abstract class EClient {
             b.send( VERSION);
             b.send( id);
 
-            closeAndSend(b);
+            closeAndSendUrgent(b);
         }
         catch( Exception e) {
             error( id, EClientErrors.FAIL_SEND_CORDER, e.toString());
@@ -2119,7 +2150,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqOpenOrders() {
+    public void reqOpenOrders() {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2143,7 +2174,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqIds( int numIds) {
+    public void reqIds( int numIds) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2167,7 +2198,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqNewsBulletins( boolean allMsgs) {
+    public void reqNewsBulletins( boolean allMsgs) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2191,7 +2222,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void cancelNewsBulletins() {
+    public void cancelNewsBulletins() {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2215,7 +2246,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void setServerLogLevel(int logLevel) {
+    public void setServerLogLevel(int logLevel) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2240,7 +2271,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqAutoOpenOrders(boolean bAutoBind) {
+    public void reqAutoOpenOrders(boolean bAutoBind) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2265,7 +2296,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqAllOpenOrders() {
+    public void reqAllOpenOrders() {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2289,7 +2320,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqManagedAccts() {
+    public void reqManagedAccts() {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2313,7 +2344,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void requestFA( int faDataType ) {
+    public void requestFA( int faDataType ) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2344,7 +2375,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void replaceFA( int faDataType, String xml ) {
+    public void replaceFA( int faDataType, String xml ) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2376,7 +2407,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqCurrentTime() {
+    public void reqCurrentTime() {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2406,7 +2437,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqFundamentalData(int reqId, Contract contract, String reportType,
+    public void reqFundamentalData(int reqId, Contract contract, String reportType,
             //reserved for future use, must be blank
             List<TagValue> fundamentalDataOptions) {
         // not connected?
@@ -2465,7 +2496,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void cancelFundamentalData(int reqId) {
+    public void cancelFundamentalData(int reqId) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2496,7 +2527,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void calculateImpliedVolatility(int reqId, Contract contract,
+    public void calculateImpliedVolatility(int reqId, Contract contract,
             double optionPrice, double underPrice,
             //reserved for future use, must be blank
             List<TagValue> impliedVolatilityOptions) {
@@ -2563,7 +2594,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void cancelCalculateImpliedVolatility(int reqId) {
+    public void cancelCalculateImpliedVolatility(int reqId) {
 
         // not connected?
         if( !isConnected()) {
@@ -2595,7 +2626,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void calculateOptionPrice(int reqId, Contract contract,
+    public void calculateOptionPrice(int reqId, Contract contract,
             double volatility, double underPrice,
             //reserved for future use, must be blank
             List<TagValue> optionPriceOptions) {
@@ -2662,7 +2693,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void cancelCalculateOptionPrice(int reqId) {
+    public void cancelCalculateOptionPrice(int reqId) {
 
         // not connected?
         if( !isConnected()) {
@@ -2694,7 +2725,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqGlobalCancel() {
+    public void reqGlobalCancel() {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2716,7 +2747,7 @@ public abstract class EClient {
             b.send( REQ_GLOBAL_CANCEL);
             b.send( VERSION);
 
-            closeAndSend(b);
+            closeAndSendUrgent(b);
         }
         catch( Exception e) {
             error( EClientErrors.NO_VALID_ID, EClientErrors.FAIL_SEND_REQGLOBALCANCEL, e.toString());
@@ -2724,7 +2755,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqMarketDataType(int marketDataType) {
+    public void reqMarketDataType(int marketDataType) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2755,7 +2786,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqPositions() {
+    public void reqPositions() {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2784,7 +2815,7 @@ public abstract class EClient {
     }
     
 
-	public synchronized void reqSecDefOptParams(int reqId, String underlyingSymbol, String futFopExchange, String underlyingSecType, int underlyingConId) {
+	public void reqSecDefOptParams(int reqId, String underlyingSymbol, String futFopExchange, String underlyingSecType, int underlyingConId) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2814,7 +2845,7 @@ public abstract class EClient {
         }
 	}
 	
-	public synchronized void reqSoftDollarTiers(int reqId) {
+	public void reqSoftDollarTiers(int reqId) {
 		if (!isConnected()) {
 			notConnected();
 			return;
@@ -2839,7 +2870,7 @@ public abstract class EClient {
         }
 	}
 
-    public synchronized void cancelPositions() {
+    public void cancelPositions() {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2867,7 +2898,7 @@ public abstract class EClient {
         }
     }
     
-    public synchronized void reqPositionsMulti( int reqId, String account, String modelCode) {
+    public void reqPositionsMulti( int reqId, String account, String modelCode) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2898,7 +2929,7 @@ public abstract class EClient {
         }
     }    
     
-    public synchronized void cancelPositionsMulti( int reqId) {
+    public void cancelPositionsMulti( int reqId) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2927,7 +2958,7 @@ public abstract class EClient {
         }
     }
     
-	public synchronized void cancelAccountUpdatesMulti( int reqId) {
+	public void cancelAccountUpdatesMulti( int reqId) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2956,7 +2987,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqAccountUpdatesMulti( int reqId, String account, String modelCode, boolean ledgerAndNLV) {
+    public void reqAccountUpdatesMulti( int reqId, String account, String modelCode, boolean ledgerAndNLV) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -2988,7 +3019,7 @@ public abstract class EClient {
         }
     }
     
-    public synchronized void reqAccountSummary( int reqId, String group, String tags) {
+    public void reqAccountSummary( int reqId, String group, String tags) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3019,7 +3050,7 @@ public abstract class EClient {
         }
     }
 
-	public synchronized void cancelAccountSummary( int reqId) {
+	public void cancelAccountSummary( int reqId) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3047,7 +3078,7 @@ public abstract class EClient {
             error( EClientErrors.NO_VALID_ID, EClientErrors.FAIL_SEND_CANACCOUNTDATA, e.toString());
         }
     }
-    public synchronized void verifyRequest( String apiName, String apiVersion) {
+    public void verifyRequest( String apiName, String apiVersion) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3082,7 +3113,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void verifyMessage( String apiData) {
+    public void verifyMessage( String apiData) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3110,7 +3141,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void verifyAndAuthRequest( String apiName, String apiVersion, String opaqueIsvKey) {
+    public void verifyAndAuthRequest( String apiName, String apiVersion, String opaqueIsvKey) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3146,7 +3177,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void verifyAndAuthMessage( String apiData, String xyzResponse) {
+    public void verifyAndAuthMessage( String apiData, String xyzResponse) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3175,7 +3206,7 @@ public abstract class EClient {
         }
     }
 
-	public synchronized void queryDisplayGroups( int reqId) {
+	public void queryDisplayGroups( int reqId) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3204,7 +3235,7 @@ public abstract class EClient {
         }
     }
 	
-	public synchronized void subscribeToGroupEvents( int reqId, int groupId) {
+	public void subscribeToGroupEvents( int reqId, int groupId) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3234,7 +3265,7 @@ public abstract class EClient {
         }
     }	
 
-	public synchronized void updateDisplayGroup( int reqId, String contractInfo) {
+	public void updateDisplayGroup( int reqId, String contractInfo) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3264,7 +3295,7 @@ public abstract class EClient {
         }
     }	
 
-	public synchronized void unsubscribeFromGroupEvents( int reqId) {
+	public void unsubscribeFromGroupEvents( int reqId) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3293,7 +3324,7 @@ public abstract class EClient {
         }
     }	
 
-    public synchronized void reqMatchingSymbols( int reqId, String pattern) {
+    public void reqMatchingSymbols( int reqId, String pattern) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3320,7 +3351,7 @@ public abstract class EClient {
         }
     }	
 
-    public synchronized void reqFamilyCodes() {
+    public void reqFamilyCodes() {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3345,7 +3376,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqMktDepthExchanges() {
+    public void reqMktDepthExchanges() {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3370,7 +3401,7 @@ public abstract class EClient {
         }
     }
     
-    public synchronized void reqSmartComponents(int reqId, String bboExchange) {
+    public void reqSmartComponents(int reqId, String bboExchange) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3398,7 +3429,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqNewsProviders() {
+    public void reqNewsProviders() {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3423,7 +3454,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqNewsArticle(int requestId, String providerCode, String articleId, List<TagValue> newsArticleOptions) {
+    public void reqNewsArticle(int requestId, String providerCode, String articleId, List<TagValue> newsArticleOptions) {
         // not connected?
         if (!isConnected()) {
             notConnected();
@@ -3456,7 +3487,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqHistoricalNews( int requestId, int conId, String providerCodes, 
+    public void reqHistoricalNews( int requestId, int conId, String providerCodes, 
             String startDateTime, String endDateTime, int totalResults, List<TagValue> historicalNewsOptions) {
 
         // not connected?
@@ -3494,7 +3525,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqHistogramData(int tickerId, Contract contract,
+    public void reqHistogramData(int tickerId, Contract contract,
     		boolean useRTH, String timePeriod) {
     	// not connected?
     	if( !isConnected()) {
@@ -3525,7 +3556,7 @@ public abstract class EClient {
     	}
     }
     
-    public synchronized void cancelHistogramData( int tickerId ) {
+    public void cancelHistogramData( int tickerId ) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3553,7 +3584,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqMarketRule( int marketRuleId) {
+    public void reqMarketRule( int marketRuleId) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3581,7 +3612,7 @@ public abstract class EClient {
         }
     }
     
-    public synchronized void reqPnL(int reqId, String account, String modelCode) {
+    public void reqPnL(int reqId, String account, String modelCode) {
         if( !isConnected()) {
             notConnected();
             return;
@@ -3608,7 +3639,7 @@ public abstract class EClient {
         }
     }
     
-    public synchronized void cancelPnL(int reqId) {
+    public void cancelPnL(int reqId) {
         if( !isConnected()) {
             notConnected();
             return;
@@ -3633,7 +3664,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqPnLSingle(int reqId, String account, String modelCode, int conId) {
+    public void reqPnLSingle(int reqId, String account, String modelCode, int conId) {
         if( !isConnected()) {
             notConnected();
             return;
@@ -3661,7 +3692,7 @@ public abstract class EClient {
         }
     }
     
-    public synchronized void cancelPnLSingle(int reqId) {
+    public void cancelPnLSingle(int reqId) {
         if( !isConnected()) {
             notConnected();
             return;
@@ -3686,7 +3717,7 @@ public abstract class EClient {
         }
     }
     
-    public synchronized void reqHistoricalTicks(int reqId, Contract contract, String startDateTime,
+    public void reqHistoricalTicks(int reqId, Contract contract, String startDateTime,
             String endDateTime, int numberOfTicks, String whatToShow, int useRth, boolean ignoreSize,
             List<TagValue> miscOptions) {
         if (!isConnected()) {
@@ -3721,7 +3752,7 @@ public abstract class EClient {
         }        
     }
   
-    public synchronized void reqTickByTickData(int reqId, Contract contract, String tickType, int numberOfTicks, boolean ignoreSize) {
+    public void reqTickByTickData(int reqId, Contract contract, String tickType, int numberOfTicks, boolean ignoreSize) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3774,7 +3805,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void cancelTickByTickData(int reqId) {
+    public void cancelTickByTickData(int reqId) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3802,7 +3833,7 @@ public abstract class EClient {
         }
     }
 
-    public synchronized void reqCompletedOrders(boolean apiOnly) {
+    public void reqCompletedOrders(boolean apiOnly) {
         // not connected?
         if( !isConnected()) {
             notConnected();
@@ -3854,6 +3885,11 @@ public abstract class EClient {
     protected abstract Builder prepareBuffer();
     
     protected abstract void closeAndSend(Builder buf) throws IOException;
+
+    /** Like closeAndSend(), for orders that must not wait behind batched requests. */
+    protected void closeAndSendUrgent(Builder buf) throws IOException {
+        closeAndSend(buf);
+    }
     
     private void sendV100APIHeader() throws IOException {
     	try (Builder builder = new Builder(1024)) {
@@ -3869,7 +3905,7 @@ public abstract class EClient {
             builder.send(out.getBytes(StandardCharsets.UTF_8));
             builder.updateLength(lengthPos);
 
-            sendMsg(new EMessage(builder));
+            sendMsg(new EMessage(builder), true);
         }
     }
 
@@ -3879,7 +3915,20 @@ public abstract class EClient {
     }
 
     protected void sendMsg(EMessage msg) throws IOException {
-    	m_socketTransport.send(msg);
+    	sendMsg(msg, false);
+    }
+
+    protected void sendMsg(EMessage msg, boolean urgent) throws IOException {
+    	EWireRecorder recorder = m_wireRecorder;
+    	if (recorder != null) {
+    		recorder.recordOut(msg.buffer(), m_serverVersion);
+    	}
+    	if (urgent) {
+    		m_socketTransport.sendUrgent(msg);
+    	}
+    	else {
+    		m_socketTransport.send(msg);
+    	}
     }
 
     private static boolean IsEmpty(String str) {
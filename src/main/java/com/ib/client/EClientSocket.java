@@ -6,7 +6,12 @@ package com.ib.client;
 import java.io.DataInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
 
 public class EClientSocket extends EClient implements EClientMsgSink  {
 
@@ -15,8 +20,10 @@ public class EClientSocket extends EClient implements EClientMsgSink  {
     private boolean m_allowRedirect;
     protected DataInputStream m_dis;
 	private boolean m_asyncEConnect = false;
-	private boolean m_connected = false;
-	private Socket m_socket;
+	private volatile boolean m_connected = false;
+	private volatile Socket m_socket;
+	private SocketChannel m_channel; // only set by eConnectNio()
+	private long m_writeCoalescingNanos = 0;
 		
 	public void setAsyncEConnect(boolean asyncEConnect) {
 		this.m_asyncEConnect = asyncEConnect;
@@ -26,13 +33,41 @@ public class EClientSocket extends EClient implements EClientMsgSink  {
 		return m_asyncEConnect;
 	}
 
+	/**
+	 * Batch outgoing requests that are ready within windowNanos into one socket write,
+	 * orders are still written immediately. 0 (default) writes every request on its own.
+	 * Takes effect on the next connect.
+	 */
+	public void setWriteCoalescingNanos(long windowNanos) {
+		m_writeCoalescingNanos = windowNanos;
+	}
+
+	public long getWriteCoalescingNanos() {
+		return m_writeCoalescingNanos;
+	}
+
+	private ETransport coalesce(ETransport transport, GatheringByteChannel out) {
+		return m_writeCoalescingNanos > 0 ? new ECoalescingTransport(transport, out, m_writeCoalescingNanos) : transport;
+	}
+
+	/** The transport in use, e.g. to read ECoalescingTransport counters; null when disconnected. */
+	public ETransport transport() {
+		return m_socketTransport;
+	}
+
 	public EClientSocket(EWrapper eWrapper, EReaderSignal signal) {
 		super(eWrapper, signal);
 	}
 
+	/** One builder per sending thread, reused for every request that thread encodes. */
+	private static final ThreadLocal<Builder> BUILDERS = ThreadLocal.withInitial( () -> new Builder( 1024 ) );
+
+	/** The returned builder stays valid until the same thread calls prepareBuffer() again;
+	 *  closeAndSend() writes it to the socket before returning, so nothing holds on to it. */
 	@Override
 	protected Builder prepareBuffer() {
-        Builder buf = new Builder( 1024 );
+        Builder buf = BUILDERS.get();
+        buf.reset();
         if( m_useV100Plus ) {
             buf.allocateLengthHeader();
         }
@@ -41,19 +76,34 @@ public class EClientSocket extends EClient implements EClientMsgSink  {
 
 	@Override
 	protected void closeAndSend(Builder buf) throws IOException {
+		closeAndSend(buf, false);
+	}
+
+	@Override
+	protected void closeAndSendUrgent(Builder buf) throws IOException {
+		closeAndSend(buf, true);
+	}
+
+	private void closeAndSend(Builder buf, boolean urgent) throws IOException {
     	if( m_useV100Plus ) {
-    		buf.updateLength( 0 ); // New buffer means length header position is always zero
+    		buf.updateLength( 0 ); // Reset buffer means length header position is always zero
     	}
     	
     	EMessage msg = new EMessage(buf);
     	
-    	sendMsg(msg);
+    	sendMsg(msg, urgent);
     }
 
 	protected synchronized void eConnect(Socket socket) throws IOException {
+	    m_channel = null;
+	    ESocket transport = new ESocket(socket);
+	    eConnect(socket, coalesce(transport, transport.channel()), socket.getInputStream(), m_asyncEConnect);
+	}
+
+	private void eConnect(Socket socket, ETransport transport, InputStream in, boolean asyncEConnect) throws IOException {
 	    // create io streams
-	    m_socketTransport = new ESocket(socket);
-	    m_dis = new DataInputStream(socket.getInputStream());
+	    m_socketTransport = transport;
+	    m_dis = new DataInputStream(in);
 	    m_defaultPort = socket.getPort();
 	    m_socket = socket;
 	
@@ -62,7 +112,7 @@ public class EClientSocket extends EClient implements EClientMsgSink  {
 	    // start reader thread
 	    EReader reader = new EReader(this, m_signal);
 	
-	    if (!m_asyncEConnect) {
+	    if (!asyncEConnect) {
 	    	reader.putMessageToQueue();
 
 	    	while (m_serverVersion == 0) {
@@ -104,6 +154,38 @@ public class EClientSocket extends EClient implements EClientMsgSink  {
 	    }
 	}
 
+	/**
+	 * Connects over a SocketChannel for use with ESelectorReader instead of EReader.
+	 * The handshake is always done synchronously on the still blocking channel,
+	 * then the caller hands this client to ESelectorReader.register().
+	 */
+	public synchronized void eConnectNio( String host, int port, int clientId) {
+	    m_host = checkConnected(host);
+	
+	    m_clientId = clientId;
+	    m_extraAuth = false;
+	    m_redirectCount = 0;
+	
+	    if(m_host == null){
+	        return;
+	    }
+	    try{
+	        SocketChannel channel = SocketChannel.open(new InetSocketAddress(m_host, port));
+	        channel.socket().setTcpNoDelay(true);
+	        m_channel = channel;
+	        // Channel stream is unbuffered, so nothing past the handshake is consumed here
+	        eConnect(channel.socket(), coalesce(new ENioSocket(channel), channel), Channels.newInputStream(channel), false);
+	    }
+	    catch( Exception e) {
+	    	eDisconnect();
+	        connectionError();
+	    }
+	}
+
+	SocketChannel channel() {
+		return m_channel;
+	}
+
 	public boolean allowRedirect() {
 		return m_allowRedirect;
 	}
@@ -235,7 +317,7 @@ public class EClientSocket extends EClient implements EClientMsgSink  {
 	}
 
 	@Override
-	public synchronized boolean isConnected() {
+	public boolean isConnected() {
 		return m_socket != null && m_socket.isConnected() && m_connected;
 	}
 }
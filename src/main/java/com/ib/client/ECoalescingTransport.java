@@ -0,0 +1,173 @@
+/* Copyright (C) 2019 Interactive Brokers LLC. All rights reserved. This code is subject to the terms
+ * and conditions of the IB API Non-Commercial License or the IB API Commercial License, as applicable. */
+
+package com.ib.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ETransport that holds outgoing frames for up to a short window and writes everything
+ * ready by then in one gathering write, so a burst of requests (re-subscribing all market
+ * data after a farm reconnect) costs a few syscalls instead of one per request.
+ * Urgent messages (orders) are never held: pending frames and the urgent one go out
+ * together in a single write straight away, which keeps request order intact.
+ */
+public class ECoalescingTransport implements ETransport {
+	private static final int PENDING_SIZE = 64 * 1024;
+
+	private final ETransport m_inner;
+	private final GatheringByteChannel m_out;
+	private final long m_windowNanos;
+	private final ByteBuffer m_pending = ByteBuffer.allocateDirect(PENDING_SIZE); // guarded by m_lock
+	private final ByteBuffer[] m_gather = new ByteBuffer[2];
+	private final ReentrantLock m_lock = new ReentrantLock();
+	private final Condition m_framesPending = m_lock.newCondition();
+	private final Thread m_flusher;
+	private long m_firstPendingNanos;
+	private IOException m_flushError;
+	private boolean m_closed;
+
+	private final AtomicLong m_frames = new AtomicLong();
+	private final AtomicLong m_writes = new AtomicLong();
+
+	/**
+	 * @param inner transport that owns the socket, only used to close it
+	 * @param out channel writing to the same socket
+	 * @param windowNanos longest time a frame may wait for others to join it
+	 */
+	public ECoalescingTransport(ETransport inner, GatheringByteChannel out, long windowNanos) {
+		m_inner = inner;
+		m_out = out;
+		m_windowNanos = windowNanos;
+		m_flusher = new Thread(this::flushLoop, "ECoalescingTransport");
+		m_flusher.setDaemon(true);
+		m_flusher.start();
+	}
+
+	@Override
+	public void send(EMessage msg) throws IOException {
+		ByteBuffer src = msg.getBuffer();
+		m_lock.lock();
+		try {
+			checkOpen();
+			m_frames.incrementAndGet();
+			if (src.remaining() > m_pending.remaining()) {
+				writeLocked(src);
+				return;
+			}
+			// The message may be backed by a reused Builder, so it is copied before returning
+			if (m_pending.position() == 0) {
+				m_firstPendingNanos = System.nanoTime();
+				m_framesPending.signal();
+			}
+			m_pending.put(src);
+		}
+		finally {
+			m_lock.unlock();
+		}
+	}
+
+	@Override
+	public void sendUrgent(EMessage msg) throws IOException {
+		m_lock.lock();
+		try {
+			checkOpen();
+			m_frames.incrementAndGet();
+			writeLocked(msg.getBuffer());
+		}
+		finally {
+			m_lock.unlock();
+		}
+	}
+
+	/** Frames handed to this transport. */
+	public long frameCount() {
+		return m_frames.get();
+	}
+
+	/** Write calls made on the channel, at most one syscall each for a socket. */
+	public long writeCount() {
+		return m_writes.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		m_lock.lock();
+		try {
+			if (!m_closed && m_flushError == null && m_pending.position() > 0) {
+				try {
+					writeLocked(null);
+				} catch (IOException ignored) {
+				}
+			}
+			m_closed = true;
+			m_framesPending.signal();
+		}
+		finally {
+			m_lock.unlock();
+		}
+		m_inner.close();
+	}
+
+	private void checkOpen() throws IOException {
+		if (m_flushError != null) {
+			throw m_flushError;
+		}
+		if (m_closed) {
+			throw new IOException("transport closed");
+		}
+	}
+
+	/** Write pending frames followed by extra, if any, in one gathering write. */
+	private void writeLocked(ByteBuffer extra) throws IOException {
+		m_pending.flip();
+		m_gather[0] = m_pending;
+		m_gather[1] = extra;
+		int count = extra == null ? 1 : 2;
+		try {
+			while (m_pending.hasRemaining() || (extra != null && extra.hasRemaining())) {
+				m_writes.incrementAndGet();
+				if (m_out.write(m_gather, 0, count) == 0) {
+					Thread.yield(); // non-blocking channel with a full send buffer
+				}
+			}
+		}
+		finally {
+			m_pending.clear();
+			m_gather[1] = null;
+		}
+	}
+
+	private void flushLoop() {
+		m_lock.lock();
+		try {
+			while (!m_closed) {
+				if (m_pending.position() == 0 || m_flushError != null) {
+					m_framesPending.awaitUninterruptibly();
+					continue;
+				}
+				long wait = m_firstPendingNanos + m_windowNanos - System.nanoTime();
+				if (wait > 0) {
+					m_framesPending.awaitNanos(wait);
+					continue;
+				}
+				try {
+					writeLocked(null);
+				} catch (IOException e) {
+					m_flushError = e; // reported to the next sender, EReader sees the broken socket too
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			m_lock.unlock();
+		}
+	}
+}
@@ -6,8 +6,9 @@ package com.ib.client;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.ObjectInput;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -105,6 +106,7 @@ class EDecoder implements ObjectInput {
     private EWrapper m_EWrapper;
     private int m_serverVersion;
 	private IMessageReader m_messageReader;
+	private final ByteBufferMessageReader m_bufferReader = new ByteBufferMessageReader();
 
 	public EDecoder(int serverVersion, EWrapper callback) {
 		this(serverVersion, callback, null);
@@ -147,13 +149,14 @@ class EDecoder implements ObjectInput {
 		m_EWrapper.connectAck();
     } 
     
-    private boolean readMessageToInternalBuf(InputStream dis) {
-  		m_messageReader = new PreV100MessageReader(dis);
+    private boolean readMessageToInternalBuf(EMessage msg) {
+    	m_bufferReader.reset(msg.buffer());
+  		m_messageReader = m_bufferReader;
     	return true;
     }
     
     public int processMsg(EMessage msg) throws IOException {
-    	if (!readMessageToInternalBuf(msg.getStream())) {
+    	if (!readMessageToInternalBuf(msg)) {
     		return 0;
     	}
     	
@@ -1974,49 +1977,59 @@ class EDecoder implements ObjectInput {
     }
 
     public boolean readBoolFromInt() throws IOException {
-        String str = readStr();
-        return str != null && (Integer.parseInt(str) != 0);
+        return m_messageReader.readInt(0) != 0;
     }
 
     public int readInt() throws IOException {
-        String str = readStr();
-        return str == null ? 0 : Integer.parseInt( str);
+        return m_messageReader.readInt(0);
     }
 
     public int readIntMax() throws IOException {
-        String str = readStr();
-        return (str == null || str.length() == 0) ? Integer.MAX_VALUE
-        	                                      : Integer.parseInt( str);
+        return m_messageReader.readInt(Integer.MAX_VALUE);
     }
 
     public long readLong() throws IOException {
-        String str = readStr();
-        return str == null ? 0L : Long.parseLong(str);
+        return m_messageReader.readLong(0L);
     }
 
     public double readDouble() throws IOException {
-        String str = readStr();
-        return str == null ? 0 : Double.parseDouble( str);
+        return m_messageReader.readDouble(0);
     }
 
     public double readDoubleMax() throws IOException {
-        String str = readStr();
-        return (str == null || str.length() == 0) ? Double.MAX_VALUE
-        	                                      : Double.parseDouble( str);
+        return m_messageReader.readDouble(Double.MAX_VALUE);
     }
 
     /** Message reader interface */
     private interface IMessageReader extends Closeable {
     	String readStr() throws IOException;
+    	/** Numeric readers return ifEmpty for an empty field, otherwise the same as the JDK parser. */
+    	int readInt(int ifEmpty) throws IOException;
+    	long readLong(long ifEmpty) throws IOException;
+    	double readDouble(double ifEmpty) throws IOException;
     	int msgLength();
     }
 
-    private static class PreV100MessageReader implements IMessageReader {
-    	private final InputStream m_din;
+    /**
+     * Reads NUL terminated fields straight from the message buffer, no intermediate stream.
+     * Works for both V100+ frames and the pre-V100 unframed stream, where running off the
+     * end of the buffer means the message is not complete yet.
+     */
+    private static class ByteBufferMessageReader implements IMessageReader {
+    	private static final int MAX_INT_DIGITS = 9;
+    	private static final int MAX_LONG_DIGITS = 18;
+    	private static final int MAX_EXACT_DOUBLE_DIGITS = 15;
+    	private static final double[] POW10 = {
+    		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15 };
+    	
+    	private ByteBuffer m_buf;
+    	private int m_pos;
     	private int m_msgLength = 0;
     	
-    	PreV100MessageReader( InputStream din ) {
-    		m_din = din;
+    	void reset( ByteBuffer buf ) {
+    		m_buf = buf;
+    		m_pos = 0;
+    		m_msgLength = 0;
     	}
     	
     	@Override
@@ -2024,28 +2037,152 @@ class EDecoder implements ObjectInput {
     		return m_msgLength;
     	}
     	
+    	/** @return index of the NUL terminating the field which starts at m_pos */
+    	private int fieldEnd() throws EOFException {
+    		final ByteBuffer buf = m_buf;
+    		final int limit = buf.limit();
+    		for (int i = m_pos; i < limit; i++) {
+    			if (buf.get(i) == 0) {
+    				return i;
+    			}
+    		}
+    		throw new EOFException();
+    	}
+    	
+    	private void skipField(int end) {
+    		m_msgLength += end - m_pos + 1;
+    		m_pos = end + 1;
+    	}
+    	
     	@Override public String readStr() throws IOException {
-    		 StringBuilder sb = new StringBuilder();
-    		    		 
- 	         for(; true; m_msgLength++) {
- 	            int c = m_din.read();
- 	            if( c <= 0) {
- 	            	if ( c < 0 ) {
- 	            		throw new EOFException();
- 	            	}
- 	            	
- 	            	m_msgLength++;
- 	                break;
- 	            }
- 	            sb.append( (char)c);
- 	        }
- 	
- 	        String str = sb.toString();
- 	        return str.length() == 0 ? null : str;    
- 	    }
+    		int end = fieldEnd();
+    		int len = end - m_pos;
+    		String str = null;
+    		
+    		if (len > 0) {
+    			// Latin-1 keeps the historical one char per byte decoding
+    			if (m_buf.hasArray()) {
+    				str = new String(m_buf.array(), m_buf.arrayOffset() + m_pos, len, StandardCharsets.ISO_8859_1);
+    			} else {
+    				byte[] bytes = new byte[len];
+    				for (int i = 0; i < len; i++) {
+    					bytes[i] = m_buf.get(m_pos + i);
+    				}
+    				str = new String(bytes, StandardCharsets.ISO_8859_1);
+    			}
+    		}
+    		
+    		skipField(end);
+    		return str;
+    	}
+    	
+    	/** @return value of the plain decimal digits in [from, end), or -1 if any other byte is found */
+    	private long digits(int from, int end) {
+    		long v = 0;
+    		for (int i = from; i < end; i++) {
+    			int d = m_buf.get(i) - '0';
+    			if (d < 0 || d > 9) {
+    				return -1;
+    			}
+    			v = v * 10 + d;
+    		}
+    		return v;
+    	}
+    	
+    	/** @return index of the first digit, past an optional sign */
+    	private int skipSign(int end) {
+    		byte b = m_buf.get(m_pos);
+    		return (b == '-' || b == '+') && m_pos + 1 < end ? m_pos + 1 : m_pos;
+    	}
+    	
+    	// Fields too long or not plain digits fall back to the JDK parsers, so
+    	// overflow, odd formats and NumberFormatException behave exactly as before.
+    	@Override public int readInt(int ifEmpty) throws IOException {
+    		int end = fieldEnd();
+    		if (end == m_pos) {
+    			skipField(end);
+    			return ifEmpty;
+    		}
+    		int from = skipSign(end);
+    		if (end - from <= MAX_INT_DIGITS) {
+    			long v = digits(from, end);
+    			if (v >= 0) {
+    				boolean neg = m_buf.get(m_pos) == '-';
+    				skipField(end);
+    				return (int) (neg ? -v : v);
+    			}
+    		}
+    		return Integer.parseInt(readStr());
+    	}
+    	
+    	@Override public long readLong(long ifEmpty) throws IOException {
+    		int end = fieldEnd();
+    		if (end == m_pos) {
+    			skipField(end);
+    			return ifEmpty;
+    		}
+    		int from = skipSign(end);
+    		if (end - from <= MAX_LONG_DIGITS) {
+    			long v = digits(from, end);
+    			if (v >= 0) {
+    				boolean neg = m_buf.get(m_pos) == '-';
+    				skipField(end);
+    				return neg ? -v : v;
+    			}
+    		}
+    		return Long.parseLong(readStr());
+    	}
+    	
+    	/**
+    	 * Plain [sign]digits[.digits] with at most 15 significant digits is computed as
+    	 * mantissa / 10^scale. Both operands are exact doubles, so the single rounding of the
+    	 * division gives the same result as Double.parseDouble. Anything else (exponents,
+    	 * NaN, Infinity, long fractions) goes through Double.parseDouble itself.
+    	 */
+    	@Override public double readDouble(double ifEmpty) throws IOException {
+    		int end = fieldEnd();
+    		if (end == m_pos) {
+    			skipField(end);
+    			return ifEmpty;
+    		}
+    		int i = m_pos;
+    		byte first = m_buf.get(i);
+    		boolean neg = first == '-';
+    		if (neg || first == '+') {
+    			i++;
+    		}
+    		long mantissa = 0;
+    		int numDigits = 0;
+    		int scale = -1; // -1 until the decimal point is seen
+    		for (; i < end; i++) {
+    			byte b = m_buf.get(i);
+    			if (b >= '0' && b <= '9') {
+    				if (++numDigits > MAX_EXACT_DOUBLE_DIGITS) {
+    					break;
+    				}
+    				mantissa = mantissa * 10 + (b - '0');
+    				if (scale >= 0) {
+    					scale++;
+    				}
+    			} else if (b == '.' && scale < 0) {
+    				scale = 0;
+    			} else {
+    				break;
+    			}
+    		}
+    		if (i == end && numDigits > 0) {
+    			double v = mantissa;
+    			if (scale > 0) {
+    				v /= POW10[scale];
+    			}
+    			skipField(end);
+    			return neg ? -v : v;
+    		}
+    		return Double.parseDouble(readStr());
+    	}
     	
     	@Override public void close() {
-    	    /* noop in pre-v100 */
+    	    /* noop, buffer is owned by the EMessage */
     	}
     }
 
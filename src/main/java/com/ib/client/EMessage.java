@@ -4,31 +4,63 @@
 package com.ib.client;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class EMessage {
-	ByteArrayOutputStream m_buf;
+	// Message bytes are [0, limit) of this view, it is never repositioned after construction.
+	private final ByteBuffer m_buf;
 	
 	public EMessage(byte[] buf, int len) {
-		m_buf = new ByteArrayOutputStream();
-		
-		m_buf.write(buf, 0, len);
+		m_buf = ByteBuffer.wrap(Arrays.copyOf(buf, len));
+	}
+	
+	/**
+	 * Wraps the remaining bytes of buf without copying them.
+	 * The caller must not overwrite those bytes until the message is processed.
+	 */
+	public EMessage(ByteBuffer buf) {
+		m_buf = buf.slice();
 	}
 	
 	public EMessage(Builder buf) throws IOException {
-		m_buf = new ByteArrayOutputStream();
-		
-			buf.writeTo(new DataOutputStream(m_buf));
+		m_buf = buf.toByteBuffer();
+	}
+	
+	/** Backing view for EDecoder, read with absolute gets only. */
+	ByteBuffer buffer() {
+		return m_buf;
+	}
+	
+	public ByteBuffer getBuffer() {
+		return m_buf.asReadOnlyBuffer();
+	}
+	
+	public int length() {
+		return m_buf.limit();
 	}
 	
 	public InputStream getStream() {
-		return new ByteArrayInputStream(m_buf.toByteArray());
+		if (m_buf.hasArray()) {
+			return new ByteArrayInputStream(m_buf.array(), m_buf.arrayOffset(), m_buf.limit());
+		}
+		return new ByteArrayInputStream(getRawData());
+	}
+	
+	public byte[] getRawData() {
+		byte[] data = new byte[m_buf.limit()];
+		m_buf.duplicate().get(data);
+		return data;
 	}
 	
-	public byte[] getRawData() {		
-		return m_buf.toByteArray();
+	public void writeTo(OutputStream out) throws IOException {
+		if (m_buf.hasArray()) {
+			out.write(m_buf.array(), m_buf.arrayOffset(), m_buf.limit());
+		} else {
+			out.write(getRawData());
+		}
 	}
 }
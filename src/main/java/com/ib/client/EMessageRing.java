@@ -0,0 +1,86 @@
+/* Copyright (C) 2019 Interactive Brokers LLC. All rights reserved. This code is subject to the terms
+ * and conditions of the IB API Non-Commercial License or the IB API Commercial License, as applicable. */
+
+package com.ib.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer/single-consumer queue between EReader and the message processing thread.
+ * Slots are allocated once, head and tail are published with ordered writes instead of locks.
+ * Also records how long each message waited, for the queue lag gauge.
+ */
+public class EMessageRing {
+	private final EMessage[] m_slots;
+	private final long[] m_enqueueNanos;
+	private final int m_mask;
+	private final AtomicLong m_tail = new AtomicLong(); // next slot to write, advanced by the producer only
+	private final AtomicLong m_head = new AtomicLong(); // next slot to read, advanced by the consumer only
+	private long m_cachedHead = 0; // producer's last view of m_head
+	private volatile long m_maxLagNanos = 0;
+
+	/** @param capacity rounded up to a power of two */
+	public EMessageRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		m_slots = new EMessage[size];
+		m_enqueueNanos = new long[size];
+		m_mask = size - 1;
+	}
+
+	/** Producer side. @return false if the ring is full */
+	public boolean offer(EMessage msg) {
+		long tail = m_tail.get();
+
+		if (tail - m_cachedHead >= m_slots.length) {
+			m_cachedHead = m_head.get();
+
+			if (tail - m_cachedHead >= m_slots.length) {
+				return false;
+			}
+		}
+
+		int i = (int) tail & m_mask;
+		m_slots[i] = msg;
+		m_enqueueNanos[i] = System.nanoTime();
+		m_tail.lazySet(tail + 1);
+		return true;
+	}
+
+	/** Consumer side. @return null if the ring is empty */
+	public EMessage poll() {
+		long head = m_head.get();
+
+		if (head >= m_tail.get()) {
+			return null;
+		}
+
+		int i = (int) head & m_mask;
+		EMessage msg = m_slots[i];
+		long lag = System.nanoTime() - m_enqueueNanos[i];
+
+		if (lag > m_maxLagNanos) {
+			m_maxLagNanos = lag;
+		}
+
+		m_slots[i] = null;
+		m_head.lazySet(head + 1);
+		return msg;
+	}
+
+	public int capacity() {
+		return m_slots.length;
+	}
+
+	/** Number of queued messages, approximate while both sides are running. */
+	public int size() {
+		long size = m_tail.get() - m_head.get();
+		return (int) Math.max(0, Math.min(size, m_slots.length));
+	}
+
+	/** Longest time a message waited in the ring since the last call. */
+	public long maxLagNanosAndReset() {
+		long lag = m_maxLagNanos;
+		m_maxLagNanos = 0;
+		return lag;
+	}
+}
@@ -0,0 +1,57 @@
+/* Copyright (C) 2019 Interactive Brokers LLC. All rights reserved. This code is subject to the terms
+ * and conditions of the IB API Non-Commercial License or the IB API Commercial License, as applicable. */
+
+package com.ib.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * ETransport over a SocketChannel, used together with ESelectorReader.
+ * Outgoing messages are staged in a direct buffer so the channel can write them without
+ * its own temporary copy. The channel is blocking during the handshake and non-blocking
+ * afterwards, so a full socket send buffer is waited out here.
+ */
+public class ENioSocket implements ETransport {
+	private static final int OUT_BUF_SIZE = 64 * 1024;
+
+	private final SocketChannel m_channel;
+	private final ByteBuffer m_outBuf = ByteBuffer.allocateDirect(OUT_BUF_SIZE);
+
+	ENioSocket(SocketChannel channel) {
+		m_channel = channel;
+	}
+
+	SocketChannel channel() {
+		return m_channel;
+	}
+
+	@Override
+	public synchronized void send(EMessage msg) throws IOException {
+		ByteBuffer src = msg.getBuffer();
+
+		if (src.remaining() > m_outBuf.capacity()) {
+			writeFully(src);
+			return;
+		}
+
+		m_outBuf.clear();
+		m_outBuf.put(src);
+		m_outBuf.flip();
+		writeFully(m_outBuf);
+	}
+
+	private void writeFully(ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			if (m_channel.write(buf) == 0) {
+				Thread.yield();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		m_channel.close();
+	}
+}
@@ -5,9 +5,9 @@ package com.ib.client;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.util.concurrent.locks.LockSupport;
 
 
 
@@ -26,7 +26,14 @@ public class EReader extends Thread {
     private static final int IN_BUF_SIZE_DEFAULT = 8192;
     private byte[] m_iBuf = new byte[IN_BUF_SIZE_DEFAULT];
     private int m_iBufLen = 0;
-    private final Deque<EMessage> m_msgQueue = new LinkedList<>();
+    // V100+ frames are read back to back into a shared slab and handed out as slices of it,
+    // a fresh slab is only allocated when the current one is used up.
+    private static final int SLAB_SIZE_DEFAULT = 64 * 1024;
+    private byte[] m_slab = new byte[SLAB_SIZE_DEFAULT];
+    private int m_slabPos = 0;
+    private static final int MSG_QUEUE_SIZE_DEFAULT = 16 * 1024;
+    private static final long QUEUE_FULL_BACKOFF_NANOS = 50_000;
+    private final EMessageRing m_msgQueue;
     
     protected boolean isUseV100Plus() {
 		return m_clientSocket.isUseV100Plus();
@@ -41,9 +48,28 @@ public class EReader extends Thread {
      * @param signal A callback that informs that there are messages in msg queue.
      */
     public EReader(EClientSocket parent, EReaderSignal signal) {
+    	this(parent, signal, MSG_QUEUE_SIZE_DEFAULT);
+    }
+    
+    /**
+     * @param queueSize capacity of the message ring between this reader and processMsgs(),
+     * the reader stops pulling from the socket while it is full.
+     */
+    public EReader(EClientSocket parent, EReaderSignal signal, int queueSize) {
     	m_clientSocket = parent;
         m_signal = signal;
         m_processMsgsDecoder = new EDecoder(parent.serverVersion(), parent.wrapper(), parent);
+        m_msgQueue = new EMessageRing(queueSize);
+    }
+    
+    /** Messages read but not yet processed. */
+    public int queueDepth() {
+    	return m_msgQueue.size();
+    }
+    
+    /** Longest queue wait of a message since the last call, in nanoseconds. */
+    public long maxQueueLagNanosAndReset() {
+    	return m_msgQueue.maxLagNanosAndReset();
     }
     
     /**
@@ -81,8 +107,13 @@ public class EReader extends Thread {
 		if (msg == null)
 			return false;
 		
-		synchronized(m_msgQueue) {
-			m_msgQueue.addFirst(msg);
+		while (!m_msgQueue.offer(msg)) {
+			if (Thread.currentThread().isInterrupted()) {
+				return false;
+			}
+			// Consumer is behind, make sure it is awake and let it drain
+			m_signal.issueSignal();
+			LockSupport.parkNanos(QUEUE_FULL_BACKOFF_NANOS);
 		}
 		
 		m_signal.issueSignal();
@@ -91,9 +122,7 @@ public class EReader extends Thread {
 	}   
 
 	protected EMessage getMsg() {
-    	synchronized (m_msgQueue) {
-    		return m_msgQueue.isEmpty() ? null : m_msgQueue.removeLast();
-		}
+		return m_msgQueue.poll();
     }
 	
     static final int MAX_MSG_LENGTH = 0xffffff;
@@ -109,9 +138,16 @@ public class EReader extends Thread {
     public void processMsgs() throws IOException {
     	EMessage msg = getMsg();
     	
+    	boolean decoded = msg != null;
+    	
     	while (msg != null && m_processMsgsDecoder.processMsg(msg) > 0) {
     		msg = getMsg();
     	}
+    	
+    	Runnable batchListener = m_clientSocket.msgBatchListener();
+    	if (decoded && batchListener != null) {
+    		batchListener.run();
+    	}
     }
 
 	private EMessage readSingleMessage() throws IOException {
@@ -123,15 +159,34 @@ public class EReader extends Thread {
 						+ msgSize);
 			}
 			
-			byte[] buf = new byte[msgSize];
+			if (msgSize > m_slab.length - m_slabPos) {
+				// Messages still queued keep the old slab alive until they are processed
+				m_slab = new byte[Math.max(SLAB_SIZE_DEFAULT, msgSize)];
+				m_slabPos = 0;
+			}
 			
+			int start = m_slabPos;
 			int offset = 0;
 			
 			while (offset < msgSize) {
-				offset += m_clientSocket.read(buf, offset, msgSize - offset);
+				int n = m_clientSocket.read(m_slab, start + offset, msgSize - offset);
+				
+				if (n < 0) {
+					throw new EOFException();
+				}
+				
+				offset += n;
+			}
+			
+			m_slabPos += msgSize;
+			
+			ByteBuffer frame = ByteBuffer.wrap(m_slab, start, msgSize);
+			EWireRecorder recorder = m_clientSocket.wireRecorder();
+			if (recorder != null) {
+				recorder.recordIn(frame, m_clientSocket.serverVersion());
 			}
 						
-			return new EMessage(buf, buf.length);
+			return new EMessage(frame);
 		}
 		
 		if (m_iBufLen == 0) {
@@ -145,7 +200,7 @@ public class EReader extends Thread {
 				msgSize = 0;
 				if (m_iBufLen > 0) {
 				  try (EDecoder decoder = new EDecoder(m_clientSocket.serverVersion(), defaultWrapper)) {
-				    msgSize = decoder.processMsg(new EMessage(m_iBuf, m_iBufLen));
+				    msgSize = decoder.processMsg(new EMessage(ByteBuffer.wrap(m_iBuf, 0, m_iBufLen)));
 				  }
 				}
 				break;
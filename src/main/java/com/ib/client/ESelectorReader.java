@@ -0,0 +1,173 @@
+/* Copyright (C) 2019 Interactive Brokers LLC. All rights reserved. This code is subject to the terms
+ * and conditions of the IB API Non-Commercial License or the IB API Commercial License, as applicable. */
+
+package com.ib.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Alternative to EReader for clients connected with EClientSocket.eConnectNio().
+ *
+ * One selector thread serves any number of connections (e.g. different client IDs).
+ * Frames are cut in place from a per connection direct buffer and decoded on this
+ * thread, so EWrapper callbacks run here instead of on a separate processing thread.
+ * Callbacks must therefore not block, or they hold up every registered connection.
+ */
+public class ESelectorReader extends Thread {
+	private static final int IN_BUF_SIZE_DEFAULT = 256 * 1024;
+
+	private final Selector m_selector;
+	private final Queue<Connection> m_pending = new ConcurrentLinkedQueue<>();
+
+	public ESelectorReader() throws IOException {
+		super("ESelectorReader");
+		m_selector = Selector.open();
+	}
+
+	/**
+	 * Hands a connected client over to this reader, switching its channel to non-blocking.
+	 * The handshake must be complete, which eConnectNio() guarantees.
+	 */
+	public void register(EClientSocket client) throws IOException {
+		SocketChannel channel = client.channel();
+
+		if (channel == null) {
+			throw new IllegalArgumentException("client is not connected with eConnectNio()");
+		}
+
+		channel.configureBlocking(false);
+		m_pending.add(new Connection(client, channel));
+		m_selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (!isInterrupted()) {
+			try {
+				m_selector.select();
+			} catch (IOException e) {
+				break;
+			}
+
+			registerPending();
+
+			Iterator<SelectionKey> it = m_selector.selectedKeys().iterator();
+
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+
+				Connection conn = (Connection) key.attachment();
+
+				try {
+					if (key.isValid() && key.isReadable()) {
+						conn.readAndDispatch();
+					}
+				} catch (Exception ex) {
+					key.cancel();
+					conn.fail(ex);
+				}
+			}
+		}
+	}
+
+	private void registerPending() {
+		Connection conn;
+
+		while ((conn = m_pending.poll()) != null) {
+			try {
+				conn.m_channel.register(m_selector, SelectionKey.OP_READ, conn);
+			} catch (IOException ex) {
+				conn.fail(ex);
+			}
+		}
+	}
+
+	private static class Connection {
+		private final EClientSocket m_client;
+		private final SocketChannel m_channel;
+		private final EDecoder m_decoder;
+		private ByteBuffer m_inBuf = ByteBuffer.allocateDirect(IN_BUF_SIZE_DEFAULT);
+
+		Connection(EClientSocket client, SocketChannel channel) {
+			m_client = client;
+			m_channel = channel;
+			m_decoder = new EDecoder(client.serverVersion(), client.wrapper(), client);
+		}
+
+		/** Reads what is available and decodes every complete length-prefixed frame. */
+		void readAndDispatch() throws IOException {
+			if (m_channel.read(m_inBuf) < 0) {
+				throw new EOFException();
+			}
+
+			m_inBuf.flip();
+			boolean decoded = false;
+
+			while (m_inBuf.remaining() >= 4) {
+				int start = m_inBuf.position();
+				int msgSize = m_inBuf.getInt(start);
+
+				if (msgSize > EReader.MAX_MSG_LENGTH) {
+					throw new IOException("message is too long: " + msgSize);
+				}
+
+				if (m_inBuf.remaining() < 4 + msgSize) {
+					if (4 + msgSize > m_inBuf.capacity()) {
+						grow(4 + msgSize);
+						return;
+					}
+					break;
+				}
+
+				ByteBuffer frame = m_inBuf.duplicate();
+				frame.position(start + 4);
+				frame.limit(start + 4 + msgSize);
+				m_inBuf.position(start + 4 + msgSize);
+
+				EWireRecorder recorder = m_client.wireRecorder();
+				if (recorder != null) {
+					recorder.recordIn(frame, m_client.serverVersion());
+				}
+				// Decoded synchronously, so the frame may point into m_inBuf
+				m_decoder.processMsg(new EMessage(frame));
+				decoded = true;
+			}
+
+			m_inBuf.compact();
+
+			Runnable batchListener = m_client.msgBatchListener();
+			if (decoded && batchListener != null) {
+				batchListener.run();
+			}
+		}
+
+		/** Called with m_inBuf flipped, leaves it ready for the next read. */
+		private void grow(int size) {
+			ByteBuffer buf = ByteBuffer.allocateDirect(size);
+			buf.put(m_inBuf);
+			m_inBuf = buf;
+		}
+
+		void fail(Exception ex) {
+			EWrapper wrapper = m_client.wrapper();
+
+			if (ex instanceof EOFException) {
+				wrapper.error(EClientErrors.NO_VALID_ID, EClientErrors.BAD_LENGTH.code(),
+						EClientErrors.BAD_LENGTH.msg() + " " + ex.getMessage());
+			} else {
+				wrapper.error(ex);
+			}
+
+			m_client.eDisconnect();
+		}
+	}
+}
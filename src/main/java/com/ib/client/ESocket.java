@@ -6,22 +6,28 @@ package com.ib.client;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 
 public class ESocket implements ETransport {
 
     protected DataOutputStream m_dos;   // the socket output stream
 
+    /** Request methods encode without holding the client lock, so writes are serialized here. */
     @Override
-    public void send(EMessage msg) throws IOException {
-        byte[] buf = msg.getRawData();
-
-        m_dos.write(buf, 0, buf.length);
+    public synchronized void send(EMessage msg) throws IOException {
+        msg.writeTo(m_dos);
     }
 
     ESocket(Socket s) throws IOException {
         m_dos = new DataOutputStream(s.getOutputStream());
     }
 
+    /** Gathering view of the output stream for ECoalescingTransport, each write is one stream write. */
+    GatheringByteChannel channel() {
+        return new StreamChannel();
+    }
+
     // Sends String without length prefix (pre-V100 style)
     protected void send(String str) throws IOException {
         // Write string to data buffer
@@ -37,4 +43,49 @@ public class ESocket implements ETransport {
             m_dos.close();
         }
     }
+
+    private class StreamChannel implements GatheringByteChannel {
+        private byte[] m_scratch = new byte[ 64 * 1024 ];
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            int total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                total += srcs[i].remaining();
+            }
+            if (total > m_scratch.length) {
+                m_scratch = new byte[ total ];
+            }
+            int pos = 0;
+            for (int i = offset; i < offset + length; i++) {
+                int n = srcs[i].remaining();
+                srcs[i].get(m_scratch, pos, n);
+                pos += n;
+            }
+            synchronized (ESocket.this) { // same lock as send()
+                m_dos.write(m_scratch, 0, total);
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return (int)write(new ByteBuffer[] { src }, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            ESocket.this.close();
+        }
+    }
 }
@@ -8,4 +8,9 @@ import java.io.IOException;
 
 public interface ETransport extends Closeable {
 	void send(EMessage msg) throws IOException;
+
+	/** Send without any batching delay, used for orders. */
+	default void sendUrgent(EMessage msg) throws IOException {
+		send(msg);
+	}
 }
@@ -0,0 +1,77 @@
+/* Copyright (C) 2019 Interactive Brokers LLC. All rights reserved. This code is subject to the terms
+ * and conditions of the IB API Non-Commercial License or the IB API Commercial License, as applicable. */
+
+package com.ib.client;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free EReaderSignal. issueSignal() is a volatile write, plus an unpark only
+ * when the consumer is actually parked, instead of a monitor and notifyAll per message.
+ * Use one instance per connection.
+ */
+public class EWaitStrategySignal implements EReaderSignal {
+	public enum WaitStrategy {
+		PARK,		// lowest CPU, wake-up costs a park/unpark
+		SPIN_YIELD,	// spins briefly, then yields the core between checks
+		BUSY_SPIN	// burns a core, lowest latency
+	}
+
+	private static final int SPIN_TRIES = 100;
+
+	private final WaitStrategy m_strategy;
+	private volatile boolean m_open = false;
+	private volatile Thread m_waiter = null;
+
+	public EWaitStrategySignal() {
+		this(WaitStrategy.PARK);
+	}
+
+	public EWaitStrategySignal(WaitStrategy strategy) {
+		m_strategy = strategy == null ? WaitStrategy.PARK : strategy;
+	}
+
+	public WaitStrategy strategy() {
+		return m_strategy;
+	}
+
+	@Override
+	public void issueSignal() {
+		m_open = true;
+		Thread waiter = m_waiter;
+		if (waiter != null) {
+			LockSupport.unpark(waiter);
+		}
+	}
+
+	@Override
+	public void waitForSignal() {
+		int spins = 0;
+
+		while (!m_open) {
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+
+			switch (m_strategy) {
+			case BUSY_SPIN:
+				break;
+			case SPIN_YIELD:
+				if (++spins > SPIN_TRIES) {
+					Thread.yield();
+				}
+				break;
+			default:
+				// Both fields are volatile: either issueSignal() sees m_waiter, or we see m_open
+				m_waiter = Thread.currentThread();
+				if (!m_open) {
+					LockSupport.park(this);
+				}
+				m_waiter = null;
+				break;
+			}
+		}
+
+		m_open = false;
+	}
+}
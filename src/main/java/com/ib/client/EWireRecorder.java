@@ -0,0 +1,216 @@
+/* Copyright (C) 2019 Interactive Brokers LLC. All rights reserved. This code is subject to the terms
+ * and conditions of the IB API Non-Commercial License or the IB API Commercial License, as applicable. */
+
+package com.ib.client;
+
+import static com.bitex.util.DebugUtil.err;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Append-only binary journal of every frame read from and written to TWS, kept in
+ * memory-mapped segment files so a record costs one copy into the page cache and
+ * survives a crash of the process.
+ *
+ * <pre>
+ * segment  = header(32) record* (a zero length marks the end)
+ * header   = magic "IBWIRE01"(8) createdEpochNanos(8) segmentIndex(4) reserved(12)
+ * record   = length(4) serverVersion(2) direction(1) reserved(1) epochNanos(8) payload(length)
+ * </pre>
+ * Inbound payloads are frame bodies without the length prefix, as handed to EDecoder.
+ * Outbound payloads are the bytes as written, length prefix included. Records are
+ * padded to 8 bytes. All numbers are little endian.
+ */
+public class EWireRecorder implements Closeable {
+	public static final byte IN = 'I';
+	public static final byte OUT = 'O';
+
+	static final long MAGIC = 0x31304552_49574249L; // "IBWIRE01" read little endian
+	static final int SEGMENT_HEADER = 32;
+	static final int RECORD_HEADER = 16;
+	public static final String SUFFIX = ".wire";
+
+	private final File m_dir;
+	private final String m_prefix;
+	private final int m_segmentSize;
+	// System.nanoTime() is monotonic but has no epoch, records are stamped relative to this pair
+	private final long m_baseEpochNanos = System.currentTimeMillis() * 1_000_000L;
+	private final long m_baseNanoTime = System.nanoTime();
+	private MappedByteBuffer m_segment; // guarded by this
+	private int m_segmentIndex = 0;
+	private long m_records = 0;
+	private long m_bytes = 0;
+	private boolean m_closed = false;
+
+	/**
+	 * @param dir directory for segment files, created if missing
+	 * @param prefix file name prefix, e.g. the gateway name
+	 * @param segmentSize bytes per segment file, a new file is started when one is full
+	 */
+	public EWireRecorder(File dir, String prefix, int segmentSize) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("cannot create " + dir);
+		}
+		m_dir = dir;
+		m_prefix = prefix;
+		m_segmentSize = segmentSize;
+		m_segment = openSegment();
+	}
+
+	public void recordIn(ByteBuffer frame, int serverVersion) {
+		append(IN, frame, serverVersion);
+	}
+
+	public void recordOut(ByteBuffer msg, int serverVersion) {
+		append(OUT, msg, serverVersion);
+	}
+
+	/** Copies the remaining bytes of buf without moving its position. IO errors stop recording, they never reach the caller. */
+	private synchronized void append(byte direction, ByteBuffer buf, int serverVersion) {
+		if (m_closed) {
+			return;
+		}
+		int len = buf.remaining();
+		if (len == 0) {
+			return; // a zero length marks the end of a segment
+		}
+		int size = align(RECORD_HEADER + len);
+		try {
+			if (size > m_segment.remaining()) {
+				if (size > m_segmentSize - SEGMENT_HEADER) {
+					return; // can never fit, TWS frames are far below any sensible segment size
+				}
+				m_segment = openSegment();
+			}
+		} catch (IOException e) {
+			err("EWireRecorder stopped: " + e);
+			m_closed = true;
+			return;
+		}
+		MappedByteBuffer seg = m_segment;
+		int start = seg.position();
+		seg.putShort(start + 4, (short) serverVersion);
+		seg.put(start + 6, direction);
+		seg.putLong(start + 8, m_baseEpochNanos + (System.nanoTime() - m_baseNanoTime));
+		seg.position(start + RECORD_HEADER);
+		seg.put(buf.duplicate());
+		// The length goes in last, a reader of a torn segment stops at the previous record
+		seg.putInt(start, len);
+		seg.position(start + size);
+		m_records++;
+		m_bytes += len;
+	}
+
+	public synchronized long recordCount() {
+		return m_records;
+	}
+
+	public synchronized long byteCount() {
+		return m_bytes;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (!m_closed) {
+			m_closed = true;
+			m_segment.force();
+		}
+	}
+
+	private MappedByteBuffer openSegment() throws IOException {
+		if (m_segment != null) {
+			m_segment.force(); // the old mapping is released when collected
+		}
+		String time = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		File file = new File(m_dir, String.format("%s-%s-%04d%s", m_prefix, time, m_segmentIndex, SUFFIX));
+		MappedByteBuffer seg;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel ch = raf.getChannel()) {
+			seg = ch.map(MapMode.READ_WRITE, 0, m_segmentSize); // stays valid after the channel is closed
+		}
+		seg.order(ByteOrder.LITTLE_ENDIAN);
+		seg.putLong(MAGIC);
+		seg.putLong(m_baseEpochNanos + (System.nanoTime() - m_baseNanoTime));
+		seg.putInt(m_segmentIndex++);
+		seg.position(SEGMENT_HEADER);
+		return seg;
+	}
+
+	private static int align(int n) {
+		return (n + 7) & ~7;
+	}
+
+	/** Sequential reader over one segment file. */
+	public static class Segment {
+		private final ByteBuffer m_buf;
+		private final long m_createdEpochNanos;
+		private final int m_index;
+		private int m_length;
+		private int m_serverVersion;
+		private byte m_direction;
+		private long m_epochNanos;
+		private ByteBuffer m_payload;
+
+		public Segment(File file) throws IOException {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel ch = raf.getChannel()) {
+				m_buf = ch.map(MapMode.READ_ONLY, 0, ch.size()).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			if (m_buf.remaining() < SEGMENT_HEADER || m_buf.getLong(0) != MAGIC) {
+				throw new IOException(file + " is not a wire recording");
+			}
+			m_createdEpochNanos = m_buf.getLong(8);
+			m_index = m_buf.getInt(16);
+			m_buf.position(SEGMENT_HEADER);
+		}
+
+		public long createdEpochNanos() { return m_createdEpochNanos; }
+		public int index()              { return m_index; }
+
+		/** Moves to the next record, false at the end of the segment. */
+		public boolean next() {
+			int pos = m_buf.position();
+			if (m_buf.limit() - pos < RECORD_HEADER || (m_length = m_buf.getInt(pos)) <= 0
+					|| m_buf.limit() - pos < RECORD_HEADER + m_length) {
+				return false;
+			}
+			m_serverVersion = m_buf.getShort(pos + 4);
+			m_direction = m_buf.get(pos + 6);
+			m_epochNanos = m_buf.getLong(pos + 8);
+			ByteBuffer payload = m_buf.duplicate();
+			payload.position(pos + RECORD_HEADER);
+			payload.limit(pos + RECORD_HEADER + m_length);
+			m_payload = payload.slice();
+			m_buf.position(Math.min(m_buf.limit(), pos + align(RECORD_HEADER + m_length)));
+			return true;
+		}
+
+		public int serverVersion() { return m_serverVersion; }
+		public byte direction()    { return m_direction; }
+		public long epochNanos()   { return m_epochNanos; }
+		/** Payload of the current record, valid until the segment is dropped. */
+		public ByteBuffer payload() { return m_payload; }
+	}
+
+	/** Feeds recorded inbound payloads to an EWrapper, one per connection. */
+	public static class Decoder {
+		private final EDecoder m_decoder;
+
+		/** @param serverVersion 0 when the first frame is the handshake reply */
+		public Decoder(int serverVersion, EWrapper wrapper) {
+			m_decoder = new EDecoder(serverVersion, wrapper);
+		}
+
+		public void process(ByteBuffer payload) throws IOException {
+			m_decoder.processMsg(new EMessage(payload));
+		}
+	}
+}
@@ -3,6 +3,8 @@
 
 package com.ib.client;
 
+import java.util.HashMap;
+import java.util.Map;
 
 public enum OrderStatus {
 	ApiPending,
@@ -16,7 +18,20 @@ public enum OrderStatus {
 	PendingSubmit,
 	Unknown;
 
+	// TWS sends the exact names, other casings fall back to the scan below
+	private static final Map<String, OrderStatus> BY_NAME = new HashMap<>();
+
+	static {
+		for( OrderStatus type : values() ) {
+			BY_NAME.put(type.name(), type);
+		}
+	}
+
     public static OrderStatus get(String apiString) {
+        OrderStatus exact = apiString == null ? null : BY_NAME.get(apiString);
+        if( exact != null ) {
+            return exact;
+        }
         for( OrderStatus type : values() ) {
             if( type.name().equalsIgnoreCase(apiString) ) {
                 return type;
@@ -101,6 +101,29 @@ public enum TickType {
     private int m_ndx;
     private String m_field;
     
+    // Dense lookup by tick id, built once; get() is called for every tick
+    private static final TickType[] BY_INDEX;
+    
+    static {
+        int max = 0;
+        for( TickType tt : values() ) {
+            if( tt != UNKNOWN && tt.m_ndx > max) {
+                max = tt.m_ndx;
+            }
+        }
+        BY_INDEX = new TickType[max + 1];
+        for( TickType tt : values() ) {
+            if( tt != UNKNOWN && BY_INDEX[tt.m_ndx] == null) {
+                BY_INDEX[tt.m_ndx] = tt;
+            }
+        }
+        for( int i = 0; i < BY_INDEX.length; i++) {
+            if( BY_INDEX[i] == null) {
+                BY_INDEX[i] = UNKNOWN;
+            }
+        }
+    }
+    
     // Get
     public int index()    { return m_ndx; }
     public String field() { return m_field; }
@@ -111,12 +134,7 @@ public enum TickType {
     }
     
     public static TickType get(int ndx) {
-        for( TickType tt : values() ) {
-            if( tt.m_ndx == ndx) {
-                return tt;
-            }
-        }
-        return UNKNOWN;
+        return ndx >= 0 && ndx < BY_INDEX.length ? BY_INDEX[ndx] : UNKNOWN;
     }
 
     public static String getField(int tickType) {
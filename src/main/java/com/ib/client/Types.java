@@ -274,16 +274,20 @@ public class Types {
 	public enum DeepType {
 	    INSERT, UPDATE, DELETE;
 
+	    private static final DeepType[] VALUES = values();
+
 	    public static DeepType get( int ordinal) {
-	    	return getEnum( ordinal, values() );
+	    	return ordinal >= 0 && ordinal < VALUES.length ? VALUES[ordinal] : getEnum( ordinal, VALUES );
 	    }
 	}
 
 	public enum DeepSide {
 	    SELL, BUY;
 
+	    private static final DeepSide[] VALUES = values();
+
 	    public static DeepSide get( int ordinal) {
-	    	return getEnum( ordinal, values() );
+	    	return ordinal >= 0 && ordinal < VALUES.length ? VALUES[ordinal] : getEnum( ordinal, VALUES );
 	    }
 	}
 
@@ -10,8 +10,10 @@ import java.nio.charset.StandardCharsets;
 import com.ib.client.Contract;
 import com.ib.client.EClientErrors;
 import com.ib.client.EClientSocket;
-import com.ib.client.EJavaSignal;
 import com.ib.client.EMessage;
+import com.ib.client.EReaderSignal;
+import com.ib.client.EWaitStrategySignal;
+import com.ib.client.EWaitStrategySignal.WaitStrategy;
 import com.ib.client.EWrapper;
 import com.ib.client.Order;
 
@@ -27,22 +29,28 @@ public class ApiConnection extends EClientSocket {
 
 	private final ILogger m_inLogger;
 	private final ILogger m_outLogger;
-	private static final EJavaSignal m_signal = new EJavaSignal();
 
 	public ApiConnection(EWrapper wrapper, ILogger inLogger, ILogger outLogger) {
-		super( wrapper, m_signal);
+		this( wrapper, inLogger, outLogger, WaitStrategy.PARK);
+	}
+
+	/** Each connection gets its own signal, so a reader left over from an old connection cannot wake a new one. */
+	public ApiConnection(EWrapper wrapper, ILogger inLogger, ILogger outLogger, WaitStrategy waitStrategy) {
+		super( wrapper, new EWaitStrategySignal( waitStrategy) );
 		m_inLogger = inLogger;
 		m_outLogger = outLogger;
 	}
 
+	public EReaderSignal signal() {
+		return m_signal;
+	}
+
 	@Override
-	protected void sendMsg(EMessage msg) throws IOException {
-		// TODO Auto-generated method stub
-		super.sendMsg(msg);
-		
-		byte[] buf = msg.getRawData();
+	protected void sendMsg(EMessage msg, boolean urgent) throws IOException {
+		super.sendMsg(msg, urgent);
 
 		if (m_outLogger != null) {
+			byte[] buf = msg.getRawData();
 			m_outLogger.log(new String(buf, 0, buf.length, StandardCharsets.UTF_8));
 		}
 	}
@@ -69,7 +77,11 @@ public class ApiConnection extends EClientSocket {
 		return n;
 	}
 
-	public synchronized void placeOrder(Contract contract, Order order) {
+	public void placeOrder(Contract contract, Order order) {
+		placeOrder(contract, null, order);
+	}
+
+	public void placeOrder(Contract contract, byte[] contractFields, Order order) {
 		// not connected?
 		if( !isConnected() ) {
             notConnected();
@@ -82,6 +94,6 @@ public class ApiConnection extends EClientSocket {
             return;
 		}
 
-	    placeOrder(order.orderId(), contract, order);
+	    placeOrder(order.orderId(), contract, contractFields, order);
 	} 
 }
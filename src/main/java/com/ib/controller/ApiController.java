@@ -7,15 +7,16 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.GregorianCalendar;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.avalok.ib.handler.ContractDetailsHandler;
 import com.ib.client.*;
+import com.ib.client.EWaitStrategySignal.WaitStrategy;
 import com.ib.client.Types.BarSize;
 import com.ib.client.Types.DeepSide;
 import com.ib.client.Types.DeepType;
@@ -29,10 +30,13 @@ import com.ib.controller.ApiConnection.ILogger;
 
 public class ApiController implements EWrapper {
 	private ApiConnection m_client;
+	private EReader m_reader;
 	private final ILogger m_outLogger;
 	private final ILogger m_inLogger;
-	public int m_reqId;	// used for all requests except orders; designed not to conflict with m_orderId
+	private final AtomicInteger m_reqId = new AtomicInteger();	// used for all requests except orders; designed not to conflict with m_orderId
+	private final ThreadLocal<int[]> m_lastReqId = ThreadLocal.withInitial( () -> new int[1]); // requests are made from several threads
 	private int m_orderId;
+	private final Object m_orderLock = new Object(); // new order ids reach the socket in the order they are assigned
 
 	private final IConnectionHandler m_connectionHandler;
 	private ITradeReportHandler m_tradeReportHandler;
@@ -41,44 +45,55 @@ public class ApiController implements EWrapper {
 	private IScannerHandler m_scannerHandler;
 	private ITimeHandler m_timeHandler;
 	private IBulletinHandler m_bulletinHandler;
-	private final Map<Integer,IInternalHandler> m_contractDetailsMap = new HashMap<>();
-	private final Map<Integer,IOptHandler> m_optionCompMap = new HashMap<>();
-	private final Map<Integer,IEfpHandler> m_efpMap = new HashMap<>();
-	private final Map<Integer,ITopMktDataHandler> m_topMktDataMap = new HashMap<>();
-	private final Map<Integer,IDeepMktDataHandler> m_deepMktDataMap = new HashMap<>();
-	private final Map<Integer, IScannerHandler> m_scannerMap = new HashMap<>();
-	private final Map<Integer, IRealTimeBarHandler> m_realTimeBarMap = new HashMap<>();
-	private final Map<Integer, IHistoricalDataHandler> m_historicalDataMap = new HashMap<>();
-	private final Map<Integer, IHeadTimestampHandler> m_headTimestampMap = new HashMap<>();
-	private final Map<Integer, IHistogramDataHandler> m_histogramDataMap = new HashMap<>();
-	private final Map<Integer, IFundamentalsHandler> m_fundMap = new HashMap<>();
-	private final Map<Integer, IOrderHandler> m_orderHandlers = new HashMap<>();
-	private final Map<Integer,IAccountSummaryHandler> m_acctSummaryHandlers = new HashMap<>();
-	private final Map<Integer,IMarketValueSummaryHandler> m_mktValSummaryHandlers = new HashMap<>();
+	private final HandlerRegistry m_handlers = new HandlerRegistry();
+	private final HandlerRegistry.Table<IInternalHandler> m_contractDetailsMap = m_handlers.table("contractDetails");
+	private final HandlerRegistry.Table<IOptHandler> m_optionCompMap = m_handlers.table("optionComp");
+	private final HandlerRegistry.Table<IEfpHandler> m_efpMap = m_handlers.table("efp");
+	private final HandlerRegistry.Table<ITopMktDataHandler> m_topMktDataMap = m_handlers.table("topMktData");
+	private final HandlerRegistry.Table<IDeepMktDataHandler> m_deepMktDataMap = m_handlers.table("deepMktData");
+	private final HandlerRegistry.Table<IScannerHandler> m_scannerMap = m_handlers.table("scanner");
+	private final HandlerRegistry.Table<IRealTimeBarHandler> m_realTimeBarMap = m_handlers.table("realTimeBar");
+	private final HandlerRegistry.Table<IHistoricalDataHandler> m_historicalDataMap = m_handlers.table("historicalData");
+	private final HandlerRegistry.Table<IHeadTimestampHandler> m_headTimestampMap = m_handlers.table("headTimestamp");
+	private final HandlerRegistry.Table<IHistogramDataHandler> m_histogramDataMap = m_handlers.table("histogramData");
+	private final HandlerRegistry.Table<IFundamentalsHandler> m_fundMap = m_handlers.table("fund");
+	private final HandlerRegistry.Table<IOrderHandler> m_orderHandlers = m_handlers.table("order");
+	private final HandlerRegistry.Table<IAccountSummaryHandler> m_acctSummaryHandlers = m_handlers.table("acctSummary");
+	private final HandlerRegistry.Table<IMarketValueSummaryHandler> m_mktValSummaryHandlers = m_handlers.table("mktValSummary");
 	private final Set<IPositionHandler> m_positionHandlers = new ConcurrentHashSet<>();
 	private final Set<IAccountHandler> m_accountHandlers = new ConcurrentHashSet<>();
 	private final Set<ILiveOrderHandler> m_liveOrderHandlers = new ConcurrentHashSet<>();
-	private final Map<Integer, IPositionMultiHandler> m_positionMultiMap = new HashMap<>();
-	private final Map<Integer, IAccountUpdateMultiHandler> m_accountUpdateMultiMap = new HashMap<>();
-	private final Map<Integer, ISecDefOptParamsReqHandler> m_secDefOptParamsReqMap = new HashMap<>();
-	private final Map<Integer, ISoftDollarTiersReqHandler> m_softDollarTiersReqMap = new HashMap<>();
+	private final HandlerRegistry.Table<IPositionMultiHandler> m_positionMultiMap = m_handlers.table("positionMulti");
+	private final HandlerRegistry.Table<IAccountUpdateMultiHandler> m_accountUpdateMultiMap = m_handlers.table("accountUpdateMulti");
+	private final HandlerRegistry.Table<ISecDefOptParamsReqHandler> m_secDefOptParamsReqMap = m_handlers.table("secDefOptParamsReq");
+	private final HandlerRegistry.Table<ISoftDollarTiersReqHandler> m_softDollarTiersReqMap = m_handlers.table("softDollarTiersReq");
 	private final Set<IFamilyCodesHandler> m_familyCodesHandlers = new ConcurrentHashSet<>();
-	private final Map<Integer, ISymbolSamplesHandler> m_symbolSamplesHandlerMap = new HashMap<>();
+	private final HandlerRegistry.Table<ISymbolSamplesHandler> m_symbolSamplesHandlerMap = m_handlers.table("symbolSamples");
 	private final Set<IMktDepthExchangesHandler> m_mktDepthExchangesHandlers = new ConcurrentHashSet<>();
-	private final Map<Integer, ITickNewsHandler> m_tickNewsHandlerMap = new HashMap<>();
-	private final Map<Integer, ISmartComponentsHandler> m_smartComponentsHandler = new HashMap<>();
+	private final HandlerRegistry.Table<ITickNewsHandler> m_tickNewsHandlerMap = m_handlers.table("tickNews");
+	private final HandlerRegistry.Table<ISmartComponentsHandler> m_smartComponentsHandler = m_handlers.table("smartComponents");
 	private final Set<INewsProvidersHandler> m_newsProvidersHandlers = new ConcurrentHashSet<>();
-	private final Map<Integer, INewsArticleHandler> m_newsArticleHandlerMap = new HashMap<>();
-	private final Map<Integer, IHistoricalNewsHandler> m_historicalNewsHandlerMap = new HashMap<>();
+	private final HandlerRegistry.Table<INewsArticleHandler> m_newsArticleHandlerMap = m_handlers.table("newsArticle");
+	private final HandlerRegistry.Table<IHistoricalNewsHandler> m_historicalNewsHandlerMap = m_handlers.table("historicalNews");
 	private final Set<IMarketRuleHandler> m_marketRuleHandlers = new ConcurrentHashSet<>();
-    private final Map<Integer, IPnLHandler> m_pnlMap = new HashMap<>();
-    private final Map<Integer, IPnLSingleHandler> m_pnlSingleMap = new HashMap<>();
-    private final Map<Integer, IHistoricalTickHandler> m_historicalTicksMap = new HashMap<>();
-    private final Map<Integer, ITickByTickDataHandler> m_tickByTickDataMap = new HashMap<>();
+    private final HandlerRegistry.Table<IPnLHandler> m_pnlMap = m_handlers.table("pnl");
+    private final HandlerRegistry.Table<IPnLSingleHandler> m_pnlSingleMap = m_handlers.table("pnlSingle");
+    private final HandlerRegistry.Table<IHistoricalTickHandler> m_historicalTicksMap = m_handlers.table("historicalTicks");
+    private final HandlerRegistry.Table<ITickByTickDataHandler> m_tickByTickDataMap = m_handlers.table("tickByTickData");
 	private boolean m_connected = false;
 
 	public ApiConnection client() { return m_client; }
 
+	private int nextReqId() {
+		int reqId = m_reqId.getAndIncrement();
+		m_lastReqId.get()[0] = reqId;
+		return reqId;
+	}
+	/** Request id the calling thread got last, 0 before its first request. */
+	public int lastReqId() { return m_lastReqId.get()[0]; }
+	/** Id of the next request from any thread. */
+	public int peekReqId() { return m_reqId.get(); }
+
 	// ---------------------------------------- Constructor and Connection handling ----------------------------------------
 	public interface IConnectionHandler {
 		void connected();
@@ -94,16 +109,39 @@ public class ApiController implements EWrapper {
 	}
 
 	public ApiController( IConnectionHandler handler, ILogger inLogger, ILogger outLogger) {
+		this(handler, inLogger, outLogger, WaitStrategy.PARK);
+	}
+
+	/** @param waitStrategy how the message processing thread waits for the EReader */
+	public ApiController( IConnectionHandler handler, ILogger inLogger, ILogger outLogger, WaitStrategy waitStrategy) {
 		m_connectionHandler = handler;
-		m_client = new ApiConnection( this, inLogger, outLogger);
+		m_client = new ApiConnection( this, inLogger, outLogger, waitStrategy);
 		m_inLogger = inLogger;
 		m_outLogger = outLogger;
 	}
 	
+	/** Messages waiting between EReader and the processing thread, 0 when not using EReader. */
+	public int readerQueueDepth() {
+		EReader reader = m_reader;
+		return reader == null ? 0 : reader.queueDepth();
+	}
+
+	/** Longest queue wait since the last call, 0 when not using EReader. */
+	public long readerMaxLagNanosAndReset() {
+		EReader reader = m_reader;
+		return reader == null ? 0 : reader.maxQueueLagNanosAndReset();
+	}
+
+	/** Registered request handlers per handler type. */
+	public Map<String,Integer> handlerCounts() {
+		return m_handlers.counts();
+	}
+
 	private void startMsgProcessingThread() {
-		final EReaderSignal signal = new EJavaSignal();		
+		final EReaderSignal signal = m_client.signal();
 		final EReader reader = new EReader(client(), signal);
 		
+		m_reader = reader;
 		reader.start();
 		
 		new Thread(() -> {
@@ -129,6 +167,29 @@ public class ApiController implements EWrapper {
 		}
     }
 
+	/**
+	 * Same as connect(), but over a non-blocking channel served by selectorReader.
+	 * Messages are then decoded and dispatched on the selector thread, without a
+	 * dedicated EReader and processing thread for this connection.
+	 */
+	public void connect( String host, int port, int clientId, String connectionOpts, ESelectorReader selectorReader ) {
+		if (selectorReader == null) {
+			connect(host, port, clientId, connectionOpts);
+			return;
+		}
+		if(!m_client.isConnected()){
+			m_client.eConnectNio(host, port, clientId);
+			if (m_client.isConnected()) {
+				try {
+					selectorReader.register(m_client);
+				} catch (IOException e) {
+					error(e);
+				}
+			}
+	        sendEOM();
+		}
+    }
+
 	public void disconnect() {
 		if (!checkConnection())
 			return;
@@ -150,7 +211,7 @@ public class ApiController implements EWrapper {
 
 	@Override public void nextValidId(int orderId) {
 		m_orderId = orderId;
-		m_reqId = m_orderId + 10000000; // let order id's not collide with other request id's
+		m_reqId.set( m_orderId + 10000000); // let order id's not collide with other request id's
 		m_connected  = true;
 		if (m_connectionHandler != null) {
 			m_connectionHandler.connected();
@@ -266,7 +327,7 @@ public class ApiController implements EWrapper {
 			sb.append( tag);
 		}
 
-		int reqId = m_reqId++;
+		int reqId = nextReqId();
 		m_acctSummaryHandlers.put( reqId, handler);
 		m_client.reqAccountSummary( reqId, group, sb.toString() );
 		sendEOM();
@@ -291,7 +352,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-		int reqId = m_reqId++;
+		int reqId = nextReqId();
 		m_mktValSummaryHandlers.put( reqId, handler);
 		m_client.reqAccountSummary( reqId, group, "$LEDGER");
 		sendEOM();
@@ -421,7 +482,7 @@ public class ApiController implements EWrapper {
 	}
 
 	private void internalReqContractDetails( Contract contract, final IInternalHandler processor) {
-		int reqId = m_reqId++;
+		int reqId = nextReqId();
 		m_contractDetailsMap.put( reqId, processor);
 		m_orderHandlers.put(reqId, new IOrderHandler() { public void handle(int errorCode, String errorMsg) { processor.contractDetailsEnd();}
 
@@ -513,7 +574,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-    	int reqId = m_reqId++;
+    	int reqId = nextReqId();
     	m_topMktDataMap.put( reqId, handler);
 		// Refer https://interactivebrokers.github.io/tws-api/market_data_type.html
 		// If live data is available a request for delayed data would be ignored by TWS
@@ -526,7 +587,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-    	int reqId = m_reqId++;
+    	int reqId = nextReqId();
     	m_topMktDataMap.put( reqId, handler);
     	m_optionCompMap.put( reqId, handler);
 		// Refer https://interactivebrokers.github.io/tws-api/market_data_type.html
@@ -540,7 +601,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-    	int reqId = m_reqId++;
+    	int reqId = nextReqId();
     	m_topMktDataMap.put( reqId, handler);
     	m_efpMap.put( reqId, handler);
 		// Refer https://interactivebrokers.github.io/tws-api/market_data_type.html
@@ -665,7 +726,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-    	int reqId = m_reqId++;
+    	int reqId = nextReqId();
     	m_deepMktDataMap.put( reqId, handler);
     	List<TagValue> mktDepthOptions = new ArrayList<>();
     	m_client.reqMktDepth( reqId, contract, numRows, isSmartDepth, mktDepthOptions);
@@ -704,7 +765,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-		int reqId = m_reqId++;
+		int reqId = nextReqId();
 		m_optionCompMap.put( reqId, handler);
 		m_client.calculateImpliedVolatility( reqId, c, optPrice, underPrice, null);
 		sendEOM();
@@ -714,7 +775,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-		int reqId = m_reqId++;
+		int reqId = nextReqId();
 		m_optionCompMap.put( reqId, handler);
 		m_client.calculateOptionPrice(reqId, c, vol, underPrice, null);
 		sendEOM();
@@ -755,7 +816,7 @@ public class ApiController implements EWrapper {
 			return;
 
     	m_tradeReportHandler = handler;
-    	m_client.reqExecutions( m_reqId++, filter);
+    	m_client.reqExecutions( nextReqId(), filter);
 		sendEOM();
     }
 
@@ -855,19 +916,29 @@ public class ApiController implements EWrapper {
 	}
 
 	public void placeOrModifyOrder(Contract contract, final Order order, final IOrderHandler handler) {
+		placeOrModifyOrder(contract, null, order, handler);
+	}
+
+	/** With contract fields pre-encoded by EClient.encodeOrderContract(), null to encode them here. */
+	public void placeOrModifyOrder(Contract contract, byte[] contractFields, final Order order, final IOrderHandler handler) {
 		if (!checkConnection())
 			return;
 
-		// when placing new order, assign new order id
+		synchronized (m_orderLock) {
+			assignOrderId(order, handler);
+			m_client.placeOrder( contract, contractFields, order);
+		}
+		sendEOM();
+	}
+
+	/** When placing new order, assign new order id and register its handler, before it is sent. */
+	private void assignOrderId(final Order order, final IOrderHandler handler) {
 		if (order.orderId() == 0) {
 			order.orderId( m_orderId++);
 			if (handler != null) {
 				m_orderHandlers.put( order.orderId(), handler);
 			}
 		}
-
-		m_client.placeOrder( contract, order);
-		sendEOM();
 	}
 
 	public void cancelOrder(int orderId) {
@@ -890,7 +961,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-		m_client.exerciseOptions( m_reqId++, contract, type.ordinal(), quantity, account, override ? 1 : 0);
+		m_client.exerciseOptions( nextReqId(), contract, type.ordinal(), quantity, account, override ? 1 : 0);
 		sendEOM();
 	}
 
@@ -994,7 +1065,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-		int reqId = m_reqId++;
+		int reqId = nextReqId();
 		
 		m_scannerMap.put(reqId, handler);
 		m_client.reqScannerSubscription(reqId, sub, null, filterOptions);
@@ -1047,7 +1118,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-    	int reqId = m_reqId++;
+    	int reqId = nextReqId();
     	m_historicalDataMap.put( reqId, handler);
     	String durationStr = duration + " " + durationUnit.toString().charAt( 0);
     	m_client.reqHistoricalData(reqId, contract, endDateTime, durationStr, barSize.toString(), whatToShow.toString(), rthOnly ? 1 : 0, 2, keepUpToDate, Collections.emptyList());
@@ -1099,7 +1170,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-    	int reqId = m_reqId++;
+    	int reqId = nextReqId();
     	m_realTimeBarMap.put( reqId, handler);
     	List<TagValue> realTimeBarsOptions = new ArrayList<>();
     	m_client.reqRealTimeBars(reqId, contract, 0, whatToShow.toString(), rthOnly, realTimeBarsOptions);
@@ -1135,7 +1206,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-    	int reqId = m_reqId++;
+    	int reqId = nextReqId();
     	m_fundMap.put( reqId, handler);
     	m_client.reqFundamentalData( reqId, contract, reportType.getApiString(), null);
 		sendEOM();
@@ -1213,7 +1284,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-		int reqId = m_reqId++;
+		int reqId = nextReqId();
 		m_positionMultiMap.put( reqId, handler);
 		m_client.reqPositionsMulti( reqId, account, modelCode);
 		sendEOM();
@@ -1256,7 +1327,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-		int reqId = m_reqId++;
+		int reqId = nextReqId();
 		m_accountUpdateMultiMap.put( reqId, handler);
 		m_client.reqAccountUpdatesMulti( reqId, account, modelCode, ledgerAndNLV);
 		sendEOM();
@@ -1319,14 +1390,8 @@ public class ApiController implements EWrapper {
 		m_connectionHandler.show( string);
 	}
 
-    private static <K,V> K getAndRemoveKey( Map<K,V> map, V value) {
-    	for (Entry<K,V> entry : map.entrySet() ) {
-    		if (entry.getValue() == value) {
-    			map.remove( entry.getKey() );
-    			return entry.getKey();
-    		}
-    	}
-		return null;
+    private static <V> Integer getAndRemoveKey( HandlerRegistry.Table<V> table, V value) {
+    	return table.removeValue( value);
     }
 
 	/** Obsolete, never called. */
@@ -1344,7 +1409,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-		int reqId = m_reqId++;
+		int reqId = nextReqId();
 		m_secDefOptParamsReqMap.put( reqId, handler);
 		m_client.reqSecDefOptParams(reqId, underlyingSymbol, futFopExchange, /*currency,*/ underlyingSecType, underlyingConId);
 		sendEOM();
@@ -1383,7 +1448,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-    	int reqId = m_reqId++;
+    	int reqId = nextReqId();
     	
 		m_softDollarTiersReqMap.put(reqId, handler);		
 		m_client.reqSoftDollarTiers(reqId);
@@ -1428,7 +1493,7 @@ public class ApiController implements EWrapper {
         if (!checkConnection())
             return;
         
-        int reqId = m_reqId++;
+        int reqId = nextReqId();
 
         m_symbolSamplesHandlerMap.put(reqId, handler);
         m_client.reqMatchingSymbols(reqId, pattern);
@@ -1483,7 +1548,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-		int tickerId = m_reqId++;
+		int tickerId = nextReqId();
 
 		m_tickNewsHandlerMap.put(tickerId, handler);
 		// Refer https://interactivebrokers.github.io/tws-api/market_data_type.html
@@ -1522,7 +1587,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 		
-		int reqId = m_reqId++;
+		int reqId = nextReqId();
 		
 		m_smartComponentsHandler.put(reqId, handler);
 		m_client.reqSmartComponents(reqId, bboExchange);
@@ -1569,7 +1634,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-		int requestId = m_reqId++;
+		int requestId = nextReqId();
 
 		m_newsArticleHandlerMap.put(requestId, handler);
 		m_client.reqNewsArticle(requestId, providerCode, articleId, Collections.emptyList());
@@ -1595,7 +1660,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-		int requestId = m_reqId++;
+		int requestId = nextReqId();
 		m_historicalNewsHandlerMap.put( requestId, handler);
 		m_client.reqHistoricalNews( requestId, conId, providerCodes, startDateTime, endDateTime, totalResults, Collections.emptyList());
 		sendEOM();
@@ -1627,7 +1692,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-    	int reqId = m_reqId++;
+    	int reqId = nextReqId();
 		
     	m_headTimestampMap.put(reqId, handler);
     	m_client.reqHeadTimestamp(reqId, contract, whatToShow.toString(), rthOnly ? 1 : 0, 2);
@@ -1654,7 +1719,7 @@ public class ApiController implements EWrapper {
 		if (!checkConnection())
 			return;
 
-    	int reqId = m_reqId++;
+    	int reqId = nextReqId();
     	String durationStr = duration + " " + durationUnit.toString().toLowerCase() + "s";
     	
     	m_histogramDataMap.put(reqId, handler);
@@ -1729,7 +1794,7 @@ public class ApiController implements EWrapper {
 	    if (!checkConnection())
 	        return;
 
-	    int reqId = m_reqId++;
+	    int reqId = nextReqId();
 
 	    m_pnlMap.put(reqId, handler);
 
@@ -1769,7 +1834,7 @@ public class ApiController implements EWrapper {
         if (!checkConnection())
             return;
 
-        int reqId = m_reqId++;
+        int reqId = nextReqId();
 
         m_pnlSingleMap.put(reqId, handler);
 
@@ -1812,7 +1877,7 @@ public class ApiController implements EWrapper {
         if (!checkConnection())
             return;
 
-        int reqId = m_reqId++;
+        int reqId = nextReqId();
 
         m_historicalTicksMap.put(reqId, handler);
 
@@ -1885,7 +1950,7 @@ public class ApiController implements EWrapper {
         if (!checkConnection())
             return;
 
-        int reqId = m_reqId++;
+        int reqId = nextReqId();
         m_tickByTickDataMap.put( reqId, handler);
         m_client.reqTickByTickData( reqId, contract, tickType, numberOfTicks, ignoreSize);
         sendEOM();
@@ -0,0 +1,174 @@
+/* Copyright (C) 2019 Interactive Brokers LLC. All rights reserved. This code is subject to the terms
+ * and conditions of the IB API Non-Commercial License or the IB API Commercial License, as applicable. */
+
+package com.ib.controller;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Registry of request handlers keyed by primitive reqId/orderId, one table per handler type.
+ *  Lookups are lock-free and never box the key, so they are safe from the EReader processing
+ *  thread while other threads register and cancel requests. Writers lock their own table only. */
+class HandlerRegistry {
+	private final List<Table<?>> m_tables = new ArrayList<>();
+
+	/** Create a table for one handler type; name is used in counts(). */
+	synchronized <V> Table<V> table(String name) {
+		Table<V> table = new Table<>(name);
+		m_tables.add(table);
+		return table;
+	}
+
+	/** Live handler count per table, in registration order. */
+	synchronized Map<String,Integer> counts() {
+		Map<String,Integer> counts = new LinkedHashMap<>();
+		for (Table<?> table : m_tables) {
+			counts.put(table.name(), table.size());
+		}
+		return counts;
+	}
+
+	/** Open-addressing int-to-handler map. A slot's key is written once, before its value is
+	 *  published through a volatile store, so readers that see a value also see its key. Removal
+	 *  leaves a tombstone that can only be revived for the same key; tombstones are dropped when
+	 *  the table is rebuilt and the new slots are published through a volatile reference. */
+	static final class Table<V> {
+		private static final int INITIAL_CAPACITY = 16;
+		private static final Object TOMBSTONE = new Object();
+
+		private final String m_name;
+		private volatile Slots m_slots = new Slots(INITIAL_CAPACITY);
+		private volatile int m_size;
+		private int m_used; // live entries plus tombstones, guarded by this
+
+		Table(String name) {
+			m_name = name;
+		}
+
+		String name() {
+			return m_name;
+		}
+
+		int size() {
+			return m_size;
+		}
+
+		@SuppressWarnings("unchecked")
+		V get(int key) {
+			Slots slots = m_slots;
+			int mask = slots.m_keys.length - 1;
+			for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+				Object value = slots.m_values.get(i);
+				if (value == null) {
+					return null;
+				}
+				if (slots.m_keys[i] == key) {
+					return value == TOMBSTONE ? null : (V)value;
+				}
+			}
+		}
+
+		/** return previous handler for key, or null */
+		@SuppressWarnings("unchecked")
+		synchronized V put(int key, V handler) {
+			if (handler == null) {
+				throw new NullPointerException("handler");
+			}
+			Slots slots = m_slots;
+			int i = slots.indexOf(key);
+			Object prev = slots.m_values.get(i);
+			if (prev == null) {
+				if ((m_used + 1) * 2 > slots.m_keys.length) {
+					slots = rebuild(m_size + 1);
+					i = slots.indexOf(key);
+				}
+				slots.m_keys[i] = key;
+				m_used++;
+			}
+			slots.m_values.set(i, handler);
+			if (prev == null || prev == TOMBSTONE) {
+				m_size++;
+				return null;
+			}
+			return (V)prev;
+		}
+
+		/** return removed handler, or null if key was not registered */
+		@SuppressWarnings("unchecked")
+		synchronized V remove(int key) {
+			Slots slots = m_slots;
+			int i = slots.indexOf(key);
+			Object prev = slots.m_values.get(i);
+			if (prev == null || prev == TOMBSTONE) {
+				return null;
+			}
+			slots.m_values.set(i, TOMBSTONE);
+			m_size--;
+			return (V)prev;
+		}
+
+		/** Remove the first entry holding this exact handler; return its key or null. Used on the
+		 *  cancel path only, hence the linear scan and the boxed result. */
+		synchronized Integer removeValue(V handler) {
+			Slots slots = m_slots;
+			for (int i = 0; i < slots.m_keys.length; i++) {
+				if (slots.m_values.get(i) == handler) {
+					slots.m_values.set(i, TOMBSTONE);
+					m_size--;
+					return slots.m_keys[i];
+				}
+			}
+			return null;
+		}
+
+		/** Copy live entries into a table sized for at least size entries at half load. */
+		private Slots rebuild(int size) {
+			Slots old = m_slots;
+			int capacity = INITIAL_CAPACITY;
+			while (capacity < size * 4) {
+				capacity <<= 1;
+			}
+			Slots slots = new Slots(capacity);
+			m_used = 0;
+			for (int i = 0; i < old.m_keys.length; i++) {
+				Object value = old.m_values.get(i);
+				if (value != null && value != TOMBSTONE) {
+					int j = slots.indexOf(old.m_keys[i]);
+					slots.m_keys[j] = old.m_keys[i];
+					slots.m_values.lazySet(j, value);
+					m_used++;
+				}
+			}
+			m_slots = slots; // volatile store publishes the filled arrays
+			return slots;
+		}
+
+		private static int mix(int key) {
+			int h = key * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+
+		private static final class Slots {
+			final int[] m_keys;
+			final AtomicReferenceArray<Object> m_values;
+
+			Slots(int capacity) {
+				m_keys = new int[capacity];
+				m_values = new AtomicReferenceArray<>(capacity);
+			}
+
+			/** slot holding key, or the first never-used slot on its probe path */
+			int indexOf(int key) {
+				int mask = m_keys.length - 1;
+				for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+					if (m_values.get(i) == null || m_keys[i] == key) {
+						return i;
+					}
+				}
+			}
+		}
+	}
+}
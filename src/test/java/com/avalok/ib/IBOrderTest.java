@@ -0,0 +1,80 @@
+package com.avalok.ib;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.alibaba.fastjson.JSON;
+import com.bitex.util.JsonWriter;
+import com.ib.client.Contract;
+import com.ib.client.Order;
+import com.ib.client.OrderStates;
+import com.ib.client.OrderStatus;
+
+public class IBOrderTest {
+	private static final String[] REFS = { null, "uranus_abc-123", "oms_\"q\"\\x", "\u4e2d\u6587ref", "line\nbreak " };
+	private static final String[] EXCHANGES = { "SMART", "NYSE", "SEHK" };
+
+	// updateTime is the clock at each call
+	private static String stripTime(String json) {
+		return json.replaceAll("\"updateTime\":\\d+", "\"updateTime\":0");
+	}
+
+	private static IBOrder order(Random r, int i) {
+		Contract c = new Contract();
+		c.symbol(r.nextBoolean() ? "AAPL" : "700");
+		c.secType(r.nextBoolean() ? "STK" : "FUT");
+		c.currency("USD");
+		c.exchange(EXCHANGES[r.nextInt(EXCHANGES.length)]);
+		c.conid(r.nextInt(99999));
+		if (r.nextBoolean()) c.lastTradeDateOrContractMonth("20261218");
+		Order o = new Order();
+		o.orderId(i + 1);
+		o.permId(r.nextInt(Integer.MAX_VALUE));
+		o.orderRef(REFS[r.nextInt(REFS.length)]);
+		o.action(r.nextBoolean() ? "BUY" : "SELL");
+		o.totalQuantity(r.nextInt(1000) + 10);
+		o.lmtPrice(i % 7 == 0 ? Double.MAX_VALUE : Math.round(r.nextDouble() * 100000) / 100.0);
+		o.orderType(r.nextBoolean() ? "LMT" : "MKT");
+		o.tif(r.nextBoolean() ? "DAY" : "GTC");
+		o.whatIf(r.nextInt(5) == 0);
+		o.account("DU1");
+		IBOrder ibo = new IBOrder(c, o, OrderStates.of(r.nextBoolean() ? "Submitted" : "Filled",
+				r.nextBoolean() ? Double.MAX_VALUE : r.nextDouble()));
+		double filled = r.nextInt(10);
+		ibo.setStatus(r.nextBoolean() ? OrderStatus.Submitted : OrderStatus.Cancelled, filled, o.totalQuantity() - filled,
+				i % 5 == 0 ? Double.NaN : r.nextDouble() * 10, o.permId(), 0, 0.0, 0, "", 0.0);
+		if (r.nextInt(4) == 0)
+			ibo.setRejected(r.nextBoolean() ? "Reject \"x\"\t\u0001" : null);
+		return ibo;
+	}
+
+	@Test
+	public void writeOMSJSONAsFastjson() {
+		Random r = new Random(3);
+		JsonWriter w = new JsonWriter();
+		for (int i = 0; i < 500; i++) {
+			IBOrder o = order(r, i);
+			String expected = stripTime(JSON.toJSONString(o.toOMSJSON()));
+			assertEquals(expected, stripTime(o.writeOMSJSON(w.reset()).toString()));
+		}
+	}
+
+	@Test
+	public void unstatusedOrderHasNoStatus() {
+		Contract c = new Contract();
+		c.symbol("AAPL");
+		c.secType("STK");
+		c.currency("USD");
+		c.exchange("SMART");
+		Order o = new Order();
+		o.orderRef("uranus_1");
+		IBOrder ibo = new IBOrder(c, o, OrderStates.of("PreSubmitted", 0));
+		assertFalse(ibo.hasStatus());
+		assertNull(ibo.isAlive());
+		ibo.setCompleted();
+		assertTrue(ibo.hasStatus());
+	}
+}
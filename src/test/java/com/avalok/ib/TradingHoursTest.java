@@ -0,0 +1,54 @@
+package com.avalok.ib;
+
+import static org.junit.Assert.*;
+
+import java.time.ZonedDateTime;
+
+import org.junit.Test;
+
+public class TradingHoursTest {
+	private static long ms(String isoZoned) {
+		return ZonedDateTime.parse(isoZoned).toInstant().toEpochMilli();
+	}
+
+	@Test
+	public void sessionsAndClosedDays() {
+		TradingHours h = TradingHours.parse(
+				"20261016:0400-20261016:2000;20261017:CLOSED;20261018:CLOSED;20261019:0400-20261019:2000", "US/Eastern");
+		assertEquals(ms("2026-10-16T04:00-04:00"), h.sessionStart(ms("2026-10-16T10:00-04:00")));
+		assertEquals(TradingHours.CLOSED, h.sessionStart(ms("2026-10-16T21:00-04:00")));
+		assertEquals(TradingHours.CLOSED, h.sessionStart(ms("2026-10-17T12:00-04:00")));
+		assertEquals(TradingHours.CLOSED, h.sessionStart(ms("2026-10-19T03:59-04:00")));
+		assertEquals(ms("2026-10-19T04:00-04:00"), h.sessionStart(ms("2026-10-19T04:00-04:00")));
+		// Days not listed
+		assertEquals(TradingHours.UNKNOWN, h.sessionStart(ms("2026-10-15T12:00-04:00")));
+		assertEquals(TradingHours.UNKNOWN, h.sessionStart(ms("2026-10-20T12:00-04:00")));
+	}
+
+	@Test
+	public void sessionsPastMidnight() {
+		TradingHours h = TradingHours.parse("20261018:1700-20261019:1600;20261019:1700-20261020:1600", "US/Central");
+		assertEquals(ms("2026-10-18T17:00-05:00"), h.sessionStart(ms("2026-10-19T02:00-05:00")));
+		assertEquals(TradingHours.CLOSED, h.sessionStart(ms("2026-10-19T16:30-05:00")));
+		assertEquals(ms("2026-10-19T17:00-05:00"), h.sessionStart(ms("2026-10-20T15:59-05:00")));
+		assertEquals(TradingHours.UNKNOWN, h.sessionStart(ms("2026-10-20T16:30-05:00")));
+	}
+
+	@Test
+	public void oldFormat() {
+		TradingHours h = TradingHours.parse("20090507:0700-1830,1830-2330;20090508:CLOSED", "EST (Eastern Standard Time)");
+		assertEquals(ms("2009-05-07T18:30-05:00"), h.sessionStart(ms("2009-05-07T19:00-05:00")));
+		assertEquals(ms("2009-05-07T07:00-05:00"), h.sessionStart(ms("2009-05-07T07:00-05:00")));
+		assertEquals(TradingHours.CLOSED, h.sessionStart(ms("2009-05-07T23:45-05:00")));
+		assertEquals(TradingHours.CLOSED, h.sessionStart(ms("2009-05-08T12:00-05:00")));
+	}
+
+	@Test
+	public void unreadable() {
+		assertNull(TradingHours.parse(null, "US/Eastern"));
+		assertNull(TradingHours.parse("", "US/Eastern"));
+		assertNull(TradingHours.parse("20261016:0400-20261016:2000", "Nowhere/Zone"));
+		assertNull(TradingHours.parse("garbage", "US/Eastern"));
+		assertNull(TradingHours.parse("20261016:0400-20261016:2000", null));
+	}
+}
@@ -0,0 +1,104 @@
+package com.avalok.ib.controller;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.alibaba.fastjson.JSONObject;
+import com.avalok.ib.controller.ApiRateLimiter.Priority;
+
+// Timing bounds are loose, the dispatcher thread may be scheduled late on a busy box.
+public class ApiRateLimiterTest {
+	@Test
+	public void burstRunsInlineThenQueues() {
+		ApiRateLimiter l = new ApiRateLimiter(0.01, 3);
+		Thread caller = Thread.currentThread();
+		List<Thread> ran = new ArrayList<>();
+		for (int i = 0; i < 3; i++)
+			assertTrue(l.submit(Priority.ORDER, () -> ran.add(Thread.currentThread())));
+		assertEquals(Arrays.asList(caller, caller, caller), ran);
+		assertFalse(l.submit(Priority.ORDER, () -> ran.add(Thread.currentThread())));
+		// The same or lower priority never jumps a queued request
+		assertFalse(l.submit(Priority.SUBSCRIBE, () -> {}));
+
+		JSONObject s = l.stats();
+		assertEquals(1, s.getJSONObject("waiting").getIntValue("order"));
+		assertEquals(1, s.getJSONObject("waiting").getIntValue("subscribe"));
+		assertEquals(3, s.getJSONObject("granted").getLongValue("order"));
+		assertEquals(1, s.getJSONObject("delayed").getLongValue("order"));
+		assertEquals(3, ran.size());
+	}
+
+	@Test
+	public void lowPrioritiesLeaveReserve() {
+		ApiRateLimiter l = new ApiRateLimiter(0.01, 4);
+		assertTrue(l.submit(Priority.ORDER, () -> {}));
+		// REFERENCE needs 1 + burst/2 tokens, SUBSCRIBE 1 + burst/4
+		assertTrue(l.submit(Priority.REFERENCE, () -> {}));
+		assertFalse(l.submit(Priority.REFERENCE, () -> {}));
+		assertTrue(l.submit(Priority.SUBSCRIBE, () -> {}));
+		assertFalse(l.submit(Priority.SUBSCRIBE, () -> {}));
+		assertTrue(l.submit(Priority.CANCEL, () -> {}));
+		assertFalse(l.submit(Priority.ORDER, () -> {}));
+	}
+
+	@Test
+	public void cancelServedBeforeQueuedOrders() throws Exception {
+		ApiRateLimiter l = new ApiRateLimiter(10, 1);
+		assertTrue(l.submit(Priority.ORDER, () -> {}));
+		List<String> ran = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch done = new CountDownLatch(4);
+		for (String s : new String[] { "ref", "order1", "order2" }) {
+			Priority p = s.equals("ref") ? Priority.REFERENCE : Priority.ORDER;
+			assertFalse(l.submit(p, () -> { ran.add(s); done.countDown(); }));
+		}
+		assertFalse(l.submit(Priority.CANCEL, () -> { ran.add("cancel"); done.countDown(); }));
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("cancel", "order1", "order2", "ref"), ran);
+		assertEquals(0, l.stats().getJSONObject("waiting").getIntValue("order"));
+	}
+
+	@Test
+	public void failingSendDoesNotStopDispatcher() throws Exception {
+		ApiRateLimiter l = new ApiRateLimiter(50, 1);
+		l.submit(Priority.ORDER, () -> {});
+		l.submit(Priority.ORDER, () -> { throw new IllegalStateException("test"); });
+		CountDownLatch done = new CountDownLatch(1);
+		l.submit(Priority.ORDER, done::countDown);
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void acquireWaitsForRefill() {
+		ApiRateLimiter l = new ApiRateLimiter(20, 1);
+		long t = System.nanoTime();
+		l.acquire(Priority.CANCEL);
+		assertTrue(System.nanoTime() - t < TimeUnit.MILLISECONDS.toNanos(50));
+		t = System.nanoTime();
+		l.acquire(Priority.ORDER);
+		l.acquire(Priority.ORDER);
+		long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t);
+		assertTrue("waited " + ms, ms >= 80 && ms < 5000);
+		assertEquals(2, l.stats().getJSONObject("delayed").getLongValue("order"));
+	}
+
+	@Test
+	public void windowRefusesOverMax() throws Exception {
+		ApiRateLimiter.Window w = new ApiRateLimiter.Window(2, 200);
+		assertEquals(0, w.tryAcquire());
+		assertEquals(0, w.tryAcquire());
+		long wait = w.tryAcquire();
+		assertTrue("wait " + wait, wait > 0 && wait <= 200);
+		assertEquals(2, w.used());
+		Thread.sleep(250);
+		assertEquals(0, w.used());
+		assertEquals(0, w.tryAcquire());
+	}
+}
@@ -0,0 +1,138 @@
+package com.avalok.ib.controller;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.avalok.ib.logger.NullIBLogger;
+import com.avalok.ib.sim.SimScript;
+import com.avalok.ib.sim.TwsSim;
+import com.ib.client.Contract;
+import com.ib.client.EWireRecorder;
+import com.ib.client.Order;
+import com.ib.controller.ApiController.IConnectionHandler;
+
+public class IBApiControllerTest {
+	// Order ids of PLACE_ORDER frames as they go to the socket, the limiter's sends are slow.
+	private static class SlowDispatcher extends EWireRecorder {
+		final List<Integer> ids = Collections.synchronizedList(new ArrayList<>());
+		final CountDownLatch dispatching = new CountDownLatch(1);
+
+		SlowDispatcher(File dir) throws IOException { super(dir, "test", 1 << 20); }
+
+		@Override
+		public void recordOut(ByteBuffer msg, int serverVersion) {
+			byte[] b = new byte[msg.remaining()];
+			msg.duplicate().get(b);
+			int skip = b.length >= 4 && ByteBuffer.wrap(b).getInt() == b.length - 4 ? 4 : 0;
+			String[] f = new String(b, skip, b.length - skip, StandardCharsets.ISO_8859_1).split("\0");
+			if (!f[0].equals("3")) return;
+			if (Thread.currentThread().getName().equals("ApiRateLimiter")) {
+				dispatching.countDown();
+				try {
+					Thread.sleep(300);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			ids.add(Integer.parseInt(f[1]));
+		}
+	}
+
+	private static Contract contract() {
+		Contract c = new Contract();
+		c.symbol("AAPL");
+		c.secType("STK");
+		c.currency("USD");
+		c.exchange("SMART");
+		return c;
+	}
+
+	private static Order order(int i) {
+		Order o = new Order();
+		o.action("BUY");
+		o.totalQuantity(1);
+		o.orderType("LMT");
+		o.lmtPrice(100 + i);
+		o.orderRef("uranus_test" + i);
+		return o;
+	}
+
+	private static IBApiController connect() throws Exception {
+		int port;
+		try (ServerSocket s = new ServerSocket(0)) {
+			port = s.getLocalPort();
+		}
+		TwsSim sim = new TwsSim(port, SimScript.load(null), 0, false, 0, "DU1");
+		Thread t = new Thread(() -> {
+			try {
+				sim.serve();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}, "TwsSim");
+		t.setDaemon(true);
+		t.start();
+
+		CountDownLatch connected = new CountDownLatch(1);
+		IBApiController api = new IBApiController(new IConnectionHandler() {
+			public void connected() { connected.countDown(); }
+			public void disconnected() {}
+			public void accountList(List<String> list) {}
+			public void error(Exception e) {}
+			public void message(int id, int errorCode, String errorMsg) {}
+			public void show(String string) {}
+		}, new NullIBLogger(), new NullIBLogger());
+		for (int i = 0; i < 50 && connected.getCount() > 0; i++) {
+			api.connect("127.0.0.1", port, 1, null);
+			connected.await(100, TimeUnit.MILLISECONDS);
+		}
+		assertTrue("connected to TwsSim", connected.await(5, TimeUnit.SECONDS));
+		return api;
+	}
+
+	// A PLACE_ORDER taking a free token while the limiter is still sending a queued order
+	// must not reach the socket first with a higher id.
+	@Test
+	public void orderIdsInOrderOnTheWire() throws Exception {
+		IBApiController api = connect();
+		File dir = Files.createTempDirectory("wire").toFile();
+		SlowDispatcher wire = new SlowDispatcher(dir);
+		api.setWireRecorder(wire);
+		try {
+			int n = 0;
+			long sentNs = 1;
+			while (sentNs != 0 && n < 1000) { // Until one waits for a token
+				Order o = order(n++);
+				sentNs = api.queueOrder(contract(), null, o, null, t -> {});
+				if (sentNs != 0) assertTrue(o.orderId() > 0); // A queued one may be sent by now
+			}
+			assertEquals(0, sentNs);
+			assertTrue(wire.dispatching.await(10, TimeUnit.SECONDS));
+			Thread.sleep(100); // Tokens come back while the limiter sends
+			api.placeOrModifyOrder(contract(), order(n++), null);
+
+			for (int i = 0; i < 100 && wire.ids.size() < n; i++)
+				Thread.sleep(50);
+			assertEquals(n, wire.ids.size());
+			for (int i = 1; i < n; i++)
+				assertTrue("ids on the wire " + wire.ids, wire.ids.get(i) > wire.ids.get(i - 1));
+		} finally {
+			api.setWireRecorder(null);
+			wire.close();
+			api.disconnect();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package com.avalok.ib.handler;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.ib.client.Types.DeepSide;
+
+public class BinaryMarketDataTest {
+	@Test
+	public void bookRoundTrip() {
+		OrderBook book = new OrderBook(5);
+		book.insert(DeepSide.BUY, 0, 187.49, 300);
+		book.insert(DeepSide.BUY, 1, 187.48, 1e9);
+		book.insert(DeepSide.SELL, 0, 187.5, 0.5);
+		byte[] bytes = BinaryMarketData.book(-7, Long.MAX_VALUE, 1792301485717L, book);
+		assertEquals(BinaryMarketData.HEADER_BYTES + 3 * BinaryMarketData.LEVEL_BYTES, bytes.length);
+
+		BinaryMarketData.Message m = BinaryMarketData.decode(bytes);
+		assertEquals(BinaryMarketData.VERSION, m.version);
+		assertEquals(BinaryMarketData.BOOK, m.type);
+		assertEquals(0, m.flags);
+		assertEquals(-7, m.channelId);
+		assertEquals(Long.MAX_VALUE, m.seq);
+		assertEquals(1792301485717L, m.timestamp);
+		assertArrayEquals(new double[] { 187.49, 187.48 }, m.bidPrices, 0);
+		assertArrayEquals(new double[] { 300, 1e9 }, m.bidSizes, 0);
+		assertArrayEquals(new double[] { 187.5 }, m.askPrices, 0);
+		assertArrayEquals(new double[] { 0.5 }, m.askSizes, 0);
+	}
+
+	@Test
+	public void emptyDeltaWithReset() {
+		byte[] bytes = BinaryMarketData.levels(BinaryMarketData.DELTA, BinaryMarketData.FLAG_RESET, 1, 1, 0,
+				new double[0], new double[0], 0, new double[0], new double[0], 0);
+		assertEquals(BinaryMarketData.HEADER_BYTES, bytes.length);
+		BinaryMarketData.Message m = BinaryMarketData.decode(bytes);
+		assertEquals(BinaryMarketData.DELTA, m.type);
+		assertTrue(m.reset());
+		assertFalse(m.sell());
+		assertEquals(0, m.bidPrices.length);
+		assertEquals(0, m.askPrices.length);
+	}
+
+	@Test
+	public void levelCountsPastShortRange() {
+		int n = 40000;
+		double[] p = new double[n], s = new double[n];
+		for (int i = 0; i < n; i++) { p[i] = i; s[i] = n - i; }
+		BinaryMarketData.Message m = BinaryMarketData.decode(
+				BinaryMarketData.levels(BinaryMarketData.BOOK, 0, 1, 1, 0, p, s, n, p, s, 1));
+		assertEquals(n, m.bidPrices.length);
+		assertEquals(1, m.askPrices.length);
+		assertEquals(n - 1, m.bidPrices[n - 1], 0);
+		assertEquals(1, m.bidSizes[n - 1], 0);
+	}
+
+	@Test
+	public void deltaRoundTrip() {
+		OrderBook book = new OrderBook(5);
+		OrderBookDelta d = new OrderBookDelta(book);
+		book.insert(DeepSide.BUY, 0, 100.0, 3);
+		book.insert(DeepSide.SELL, 0, 101.0, 4);
+		book.insert(DeepSide.SELL, 1, 102.0, 1);
+		d.next();
+		BinaryMarketData.Message m = BinaryMarketData.decode(d.toBinary(265598, 99));
+		assertEquals(BinaryMarketData.DELTA, m.type);
+		assertTrue(m.reset());
+		assertEquals(265598, m.channelId);
+		assertEquals(1, m.seq);
+		assertEquals(99, m.timestamp);
+		assertArrayEquals(new double[] { 100.0 }, m.bidPrices, 0);
+		assertArrayEquals(new double[] { 101.0, 102.0 }, m.askPrices, 0);
+		assertArrayEquals(new double[] { 4, 1 }, m.askSizes, 0);
+
+		book.delete(DeepSide.SELL, 1);
+		d.next();
+		m = BinaryMarketData.decode(d.toBinary(265598, 100));
+		assertFalse(m.reset());
+		assertEquals(2, m.seq);
+		assertEquals(0, m.bidPrices.length);
+		assertArrayEquals(new double[] { 102.0 }, m.askPrices, 0);
+		assertArrayEquals(new double[] { 0 }, m.askSizes, 0);
+	}
+
+	@Test
+	public void tradeRoundTrip() {
+		byte[] bytes = BinaryMarketData.trade(265598, 42, 1000, 187.49, 100, 999, true);
+		assertEquals(BinaryMarketData.HEADER_BYTES + BinaryMarketData.TRADE_BYTES, bytes.length);
+		BinaryMarketData.Message m = BinaryMarketData.decode(bytes);
+		assertEquals(BinaryMarketData.TRADE, m.type);
+		assertTrue(m.sell());
+		assertFalse(m.reset());
+		assertEquals(265598, m.channelId);
+		assertEquals(42, m.seq);
+		assertEquals(1000, m.timestamp);
+		assertEquals(187.49, m.price, 0);
+		assertEquals(100, m.size, 0);
+		assertEquals(999, m.tradeTime);
+		assertNull(m.bidPrices);
+
+		assertFalse(BinaryMarketData.decode(BinaryMarketData.trade(1, 1, 1, Double.NaN, 1, 1, false)).sell());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsOtherVersion() {
+		byte[] bytes = BinaryMarketData.trade(1, 1, 1, 1, 1, 1, false);
+		bytes[0] = BinaryMarketData.VERSION + 1;
+		BinaryMarketData.decode(bytes);
+	}
+}
@@ -0,0 +1,141 @@
+package com.avalok.ib.handler;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.bitex.util.JsonWriter;
+import com.ib.client.Types.DeepSide;
+
+public class OrderBookDeltaTest {
+	private static final DeepSide BID = DeepSide.BUY, ASK = DeepSide.SELL;
+
+	private static JSONObject json(OrderBookDelta d, long ts) {
+		return JSON.parseObject(d.writeJSON(new JsonWriter(), ts).toString());
+	}
+
+	@Test
+	public void firstMessageResets() {
+		OrderBook book = new OrderBook(5);
+		OrderBookDelta d = new OrderBookDelta(book);
+		book.insert(BID, 0, 100.0, 3);
+		book.insert(ASK, 0, 101.0, 4);
+		assertTrue(d.next());
+		assertEquals(1, d.seq());
+		assertTrue(d.reset());
+		assertEquals("{\"seq\":1,\"reset\":true,\"b\":[[100.0,3.0]],\"a\":[[101.0,4.0]],\"t\":7}",
+				d.writeJSON(new JsonWriter(), 7).toString());
+
+		// Nothing changed
+		assertFalse(d.next());
+		assertEquals(1, d.seq());
+	}
+
+	@Test
+	public void emptyBookStillStarts() {
+		OrderBookDelta d = new OrderBookDelta(new OrderBook(5));
+		assertTrue(d.next());
+		assertEquals("{\"seq\":1,\"reset\":true,\"b\":[],\"a\":[],\"t\":0}", d.writeJSON(new JsonWriter(), 0).toString());
+		assertFalse(d.next());
+	}
+
+	@Test
+	public void onlyChangedLevels() {
+		OrderBook book = new OrderBook(5);
+		OrderBookDelta d = new OrderBookDelta(book);
+		book.insert(BID, 0, 100.0, 3);
+		book.insert(BID, 1, 99.0, 5);
+		book.insert(ASK, 0, 101.0, 4);
+		d.next();
+
+		// Insert at the top only sends the new level
+		book.insert(BID, 0, 100.5, 1);
+		assertTrue(d.next());
+		JSONObject j = json(d, 1);
+		assertEquals(2, j.getLongValue("seq"));
+		assertFalse(j.containsKey("reset"));
+		assertEquals(JSONArray.parse("[[100.5,1.0]]"), j.getJSONArray("b"));
+		assertEquals(0, j.getJSONArray("a").size());
+
+		// Removed level has size 0
+		book.delete(BID, 2);
+		book.update(ASK, 0, 101.0, 6);
+		assertTrue(d.next());
+		j = json(d, 2);
+		assertEquals(3, j.getLongValue("seq"));
+		assertEquals(JSONArray.parse("[[99.0,0.0]]"), j.getJSONArray("b"));
+		assertEquals(JSONArray.parse("[[101.0,6.0]]"), j.getJSONArray("a"));
+	}
+
+	@Test
+	public void samePriceLevelsSummed() {
+		OrderBook book = new OrderBook(5);
+		OrderBookDelta d = new OrderBookDelta(book);
+		book.insert(ASK, 0, 101.0, 4);
+		book.insert(ASK, 1, 101.0, 2);
+		d.next();
+		assertEquals(JSONArray.parse("[[101.0,6.0]]"), json(d, 0).getJSONArray("a"));
+
+		// Moving size between two levels at one price is no change
+		book.update(ASK, 0, 101.0, 5);
+		book.update(ASK, 1, 101.0, 1);
+		assertFalse(d.next());
+
+		book.delete(ASK, 1);
+		assertTrue(d.next());
+		assertEquals(JSONArray.parse("[[101.0,5.0]]"), json(d, 0).getJSONArray("a"));
+	}
+
+	// Applying every delta to a price map gives the aggregated book.
+	@Test
+	public void replayMatchesBook() {
+		Random r = new Random(11);
+		OrderBook book = new OrderBook(10);
+		OrderBookDelta d = new OrderBookDelta(book);
+		TreeMap<Double, Double> bids = new TreeMap<>(), asks = new TreeMap<>();
+		for (int i = 0; i < 20000; i++) {
+			DeepSide side = r.nextBoolean() ? BID : ASK;
+			int count = side == BID ? book.bidCount() : book.askCount();
+			double price = (side == BID ? 100 : 110) + r.nextInt(20) * 0.5;
+			int op = r.nextInt(3);
+			if (op == 0 || count == 0)
+				book.insert(side, r.nextInt(count + 1), price, r.nextInt(9) + 1);
+			else if (op == 1)
+				book.update(side, r.nextInt(count), price, r.nextInt(9) + 1);
+			else
+				book.delete(side, r.nextInt(count));
+			if (r.nextInt(3) != 0 || !d.next()) continue;
+
+			JSONObject j = json(d, i);
+			assertEquals(d.seq(), j.getLongValue("seq"));
+			apply(bids, j.getJSONArray("b"));
+			apply(asks, j.getJSONArray("a"));
+			assertEquals(aggregate(book, true), bids);
+			assertEquals(aggregate(book, false), asks);
+		}
+	}
+
+	private static void apply(TreeMap<Double, Double> side, JSONArray levels) {
+		for (int i = 0; i < levels.size(); i++) {
+			JSONArray l = levels.getJSONArray(i);
+			if (l.getDoubleValue(1) == 0)
+				assertNotNull("removed a missing level", side.remove(l.getDouble(0)));
+			else
+				side.put(l.getDouble(0), l.getDouble(1));
+		}
+	}
+
+	private static TreeMap<Double, Double> aggregate(OrderBook book, boolean bid) {
+		TreeMap<Double, Double> m = new TreeMap<>();
+		int count = bid ? book.bidCount() : book.askCount();
+		for (int i = 0; i < count; i++)
+			m.merge(bid ? book.bidPrice(i) : book.askPrice(i), bid ? book.bidSize(i) : book.askSize(i), Double::sum);
+		return m;
+	}
+}
@@ -0,0 +1,160 @@
+package com.avalok.ib.handler;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.avalok.ib.IBOrder;
+import com.ib.client.Contract;
+import com.ib.client.Order;
+import com.ib.client.OrderStates;
+import com.ib.client.OrderStatus;
+
+public class OrderCacheTest {
+	private static IBOrder order(int conid, String account, int clientId, int orderId, int permId, String orderRef) {
+		Contract c = new Contract();
+		c.conid(conid);
+		c.symbol("S" + conid);
+		c.secType("STK");
+		c.currency("USD");
+		c.exchange("SMART");
+		Order o = new Order();
+		o.account(account);
+		o.clientId(clientId);
+		o.orderId(orderId);
+		o.permId(permId);
+		o.orderRef(orderRef);
+		o.totalQuantity(10);
+		return new IBOrder(c, o, OrderStates.of("PreSubmitted", 0));
+	}
+
+	private static IBOrder status(IBOrder o, OrderStatus status) {
+		o.setStatus(status, 0, 10, 0, o.permId(), 0, 0, o.order.clientId(), "", 0);
+		return o;
+	}
+
+	@Test
+	public void openAndTerminalIndexes() {
+		OrderCache c = new OrderCache();
+		IBOrder a = status(order(1, "DU1", 0, 1, 101, "uranus_a"), OrderStatus.Submitted);
+		IBOrder b = status(order(1, "DU2", 0, 2, 102, "uranus_b"), OrderStatus.Cancelled);
+		IBOrder n = order(2, "DU1", 0, 3, 0, "uranus_n"); // No status yet, counted open
+		c.recOrders(new IBOrder[] { a, b, n });
+
+		assertEquals(Arrays.asList(a), c.byConid(1, true));
+		assertEquals(Arrays.asList(b), c.byConid(1, false));
+		assertEquals(Arrays.asList(n), c.byConid(2, true));
+		assertTrue(c.byConid(3, true).isEmpty());
+		assertEquals(2, c.byAccount("DU1", true).size());
+		assertEquals(Arrays.asList(b), c.byAccount("DU2", false));
+		assertEquals(2, c.byStatus(true).size());
+		assertEquals(3, c.orders().size());
+		assertSame(b, c.byPermId(102));
+		assertSame(n, c.byOMSId("uranus_n"));
+		assertEquals(2, c.stats().getIntValue("open"));
+		assertEquals(1, c.stats().getIntValue("terminal"));
+		assertEquals(2, c.stats().getIntValue("conids"));
+
+		// Open to terminal moves it in every index
+		IBOrder a2 = status(order(1, "DU1", 0, 1, 101, "uranus_a"), OrderStatus.Filled);
+		c.recOrder(a2);
+		assertTrue(c.byConid(1, true).isEmpty());
+		assertEquals(2, c.byConid(1, false).size());
+		assertEquals(Arrays.asList(n), c.byAccount("DU1", true));
+		assertSame(a2, c.byId(1));
+		assertEquals(3, c.orders().size());
+	}
+
+	@Test
+	public void permIdArrivesLater() {
+		OrderCache c = new OrderCache();
+		c.recOrder(order(1, "DU1", 7, 5, 0, "uranus_x"));
+		IBOrder withPermId = status(order(1, "DU1", 7, 5, 555, "uranus_x"), OrderStatus.Submitted);
+		c.recOrder(withPermId);
+		assertEquals(1, c.orders().size());
+		assertSame(withPermId, c.byPermId(555));
+		assertSame(withPermId, c.byId(5));
+		assertSame(withPermId, c.byOMSId("uranus_x"));
+	}
+
+	@Test
+	public void manualOrdersByPermId() {
+		OrderCache c = new OrderCache();
+		IBOrder m = status(order(1, "DU1", 0, 0, 900, null), OrderStatus.Submitted);
+		c.recOrder(m);
+		IBOrder m2 = status(order(1, "DU1", 0, 0, 900, null), OrderStatus.Cancelled);
+		c.recOrder(m2);
+		assertEquals(1, c.orders().size());
+		assertSame(m2, c.byOMSId("900"));
+		assertNull(c.byId(0));
+	}
+
+	@Test
+	public void orderIdIsPerClient() {
+		OrderCache c = new OrderCache();
+		IBOrder ours = order(1, "DU1", 1, 5, 0, "uranus_ours");
+		c.recOrder(ours);
+		// Another client's order 5 is another order and does not take orderId 5
+		IBOrder theirs = order(1, "DU1", 2, 5, 0, "uranus_theirs");
+		c.recOrder(theirs);
+		assertEquals(2, c.orders().size());
+		assertSame(ours, c.byId(5));
+		assertSame(theirs, c.byOMSId("uranus_theirs"));
+
+		// Ours gets its permId through orderId, theirs is still unknown by orderId
+		IBOrder ours2 = status(order(1, "DU1", 1, 5, 11, "uranus_ours"), OrderStatus.Submitted);
+		c.recOrder(ours2);
+		assertEquals(2, c.orders().size());
+		assertSame(ours2, c.byPermId(11));
+
+		// An orderId reused after a reset is a new order once the old one has a permId
+		IBOrder reused = order(1, "DU1", 1, 5, 0, "uranus_new");
+		c.recOrder(reused);
+		assertEquals(3, c.orders().size());
+		assertSame(ours2, c.byPermId(11));
+	}
+
+	@Test
+	public void evictTerminal() throws Exception {
+		OrderCache c = new OrderCache();
+		c.recOrder(status(order(1, "DU1", 0, 1, 101, "uranus_a"), OrderStatus.Filled));
+		c.recOrder(status(order(1, "DU1", 0, 2, 102, "uranus_b"), OrderStatus.Submitted));
+		assertEquals(0, c.evict(System.currentTimeMillis() - 60_000));
+		Thread.sleep(2);
+		assertEquals(1, c.evict(System.currentTimeMillis()));
+		assertNull(c.byPermId(101));
+		assertNull(c.byId(1));
+		assertNull(c.byOMSId("uranus_a"));
+		assertNotNull(c.byPermId(102));
+		assertEquals(1, c.byConid(1, true).size());
+		assertTrue(c.byConid(1, false).isEmpty());
+		assertEquals(1, c.stats().getLongValue("evicted"));
+	}
+
+	@Test
+	public void snapshotDropsUnreported() {
+		OrderCache c = new OrderCache();
+		IBOrder a = status(order(1, "DU1", 0, 1, 101, "uranus_a"), OrderStatus.Submitted);
+		IBOrder b = status(order(2, "DU1", 0, 2, 102, "uranus_b"), OrderStatus.Submitted);
+		IBOrder done = status(order(1, "DU1", 0, 3, 103, "uranus_c"), OrderStatus.Filled);
+		c.recOrders(new IBOrder[] { a, b, done });
+
+		c.beginSnapshot();
+		c.recOrder(status(order(1, "DU1", 0, 1, 101, "uranus_a"), OrderStatus.Submitted));
+		List<IBOrder> dropped = c.endSnapshot();
+		assertEquals(Arrays.asList(b), dropped);
+		assertNull(c.byPermId(102));
+		assertTrue(c.byConid(2, true).isEmpty());
+		assertEquals(1, c.byStatus(true).size());
+		// Terminal orders are left to eviction
+		assertNotNull(c.byPermId(103));
+		assertEquals(1, c.stats().getLongValue("dropped"));
+
+		c.beginSnapshot();
+		assertEquals(Arrays.asList(c.byPermId(101)), c.endSnapshot());
+		assertEquals(2, c.stats().getLongValue("dropped"));
+	}
+}
@@ -0,0 +1,94 @@
+package com.bitex.util;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+
+/**
+ * JsonWriter output must be byte for byte what JSON.toJSONString() gives, subscribers
+ * compare and parse both.
+ */
+public class JsonWriterTest {
+	private static String fastjson(Object... values) {
+		return JSON.toJSONString(new JSONArray(Arrays.asList(values)));
+	}
+
+	@Test
+	public void doublesAsFastjson() {
+		double[] special = { 0.0, -0.0, 1.0, 100.0, 187.49, 0.1 + 0.2, 1e-3, 0.00099, 1.0E-5, 1e7, 9999999.999,
+				123456789.0, 1e21, 1e300, Double.MAX_VALUE, Double.MIN_VALUE, -Double.MAX_VALUE,
+				Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		JsonWriter w = new JsonWriter();
+		for (double d : special)
+			assertEquals("" + d, fastjson(d), w.reset().beginArray().value(d).endArray().toString());
+		Random r = new Random(7);
+		for (int i = 0; i < 100000; i++) {
+			double d = i % 2 == 0 ? Math.round(r.nextDouble() * 1e6) / 100.0 : Double.longBitsToDouble(r.nextLong());
+			assertEquals("" + d, fastjson(d), w.reset().beginArray().value(d).endArray().toString());
+		}
+	}
+
+	@Test
+	public void nullDoubleAndLongs() {
+		JsonWriter w = new JsonWriter();
+		assertEquals(fastjson((Object) null), w.reset().beginArray().value((Double) null).endArray().toString());
+		for (long l : new long[] { 0, 1, -1, 9, 10, Long.MAX_VALUE, Long.MIN_VALUE, 1792301485717L, -123456789 })
+			assertEquals(fastjson(l), w.reset().beginArray().value(l).endArray().toString());
+	}
+
+	@Test
+	public void everyCharAsFastjson() {
+		JsonWriter w = new JsonWriter();
+		for (int c = 0; c < 0x10000; c++) {
+			if (Character.isSurrogate((char) c)) continue;
+			String s = "a" + (char) c + "b";
+			assertEquals(Integer.toHexString(c), JSON.toJSONString(s), w.reset().value(s).toString());
+		}
+	}
+
+	@Test
+	public void controlAndLineSeparators() {
+		String s = "tab\t nl\n cr\r nul\u0000 bell\u0007 esc\u001b del\u007f q\" bs\\ sl/ ls\u2028 ps\u2029 end";
+		JsonWriter w = new JsonWriter();
+		assertEquals(JSON.toJSONString(s), w.value(s).toString());
+		assertFalse(w.toString().contains("\u2028"));
+		assertFalse(w.toString().contains("\u2029"));
+		String multi = "\u4e2d\u6587 \u00e9 \ud83d\ude00";
+		assertEquals(JSON.toJSONString(multi), w.reset().value(multi).toString());
+	}
+
+	@Test
+	public void objectsAndNestedStrings() {
+		JSONObject inner = new JSONObject(true);
+		inner.put("p", 187.49);
+		inner.put("s", Double.NaN);
+		inner.put("x", "line\u2028sep");
+		String innerJson = inner.toJSONString();
+		JSONObject outer = new JSONObject(true);
+		outer.put("k", innerJson);
+		outer.put("b", true);
+
+		JsonWriter w = new JsonWriter();
+		byte[] nested = w.beginObject().name("p").value(187.49).name("s").value(Double.NaN)
+				.name("x").value("line\u2028sep").endObject().toBytes();
+		assertEquals(innerJson, new String(nested, StandardCharsets.UTF_8));
+		String got = w.reset().beginObject().name("k").value(nested, 0, nested.length).name("b").value(true).endObject().toString();
+		assertEquals(JSON.toJSONString(outer), got);
+	}
+
+	@Test
+	public void growsPastCapacity() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5000; i++) sb.append((char) ('a' + i % 26)).append('\u00e9');
+		JsonWriter w = new JsonWriter(8);
+		assertEquals(JSON.toJSONString(sb.toString()), w.value(sb.toString()).toString());
+	}
+}
@@ -0,0 +1,11 @@
+package com.ib.client;
+
+/** Test fixture, OrderState can only be built in this package. */
+public class OrderStates {
+	public static OrderState of(String status, double commission) {
+		OrderState s = new OrderState();
+		s.status(status);
+		s.commission(commission);
+		return s;
+	}
+}